@@ -5,7 +5,11 @@ import java.io.File;
 import java.math.BigInteger;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 import edu.sdsc.inca.protocol.*;
 import edu.sdsc.inca.repository.Repository;
@@ -79,9 +83,27 @@ public class Agent extends Server {
   // remote reporter managers
   private ReporterManagerTable rms = new ReporterManagerTable();
 
+  // Shared timer and worker pool for starting and checking reporter managers
+  private AgentScheduler scheduler = new AgentScheduler();
+
+  // Queues suite changes to many reporter managers concurrently
+  private SuiteDistributor distributor = new SuiteDistributor( this );
+
+  // Depot suite updates waiting for an update of the same suite version to
+  // complete so they can be sent together; keyed by suite name and version
+  private HashMap<String,DepotSuiteUpdate> depotUpdates =
+    new HashMap<String,DepotSuiteUpdate>();
+  private HashSet<String> depotUpdatesInProgress = new HashSet<String>();
+
   // The suites current configured on the agent
   private SuiteTable suites;
 
+  // Serializes the updates of each suite, from fetching their packages
+  // through applying them, in the order the updates arrive; keyed by suite
+  // name
+  private ConcurrentHashMap<String,ReentrantLock> suiteLocks =
+    new ConcurrentHashMap<String,ReentrantLock>();
+
   // Global agent state
   protected boolean ranShutdown = false;
 
@@ -106,13 +128,15 @@ public class Agent extends Server {
       DepotClient.DEPOT_CLIENT_OPTS +
       "b|buildscript      str path to reporter manager build script\n" +
       "C|check            str check the reporter manager on resources\n" +
+      "d|distribute       int # managers to distribute suites to at once\n" +
       "e|email            str email to send notices of manager restarts\n" +
       "r|rmdist           str path to reporter manager tarball distribution\n" +
       "R|refreshPkgs      int repository check period for package updates\n" +
       "s|stayAlive        int stay alive ping period for the manager\n" +
       "S|startAttempt     int re-start attempt period fpr the manager\n" +
       "u|upgradeResources str upgrade managers in specified resource group\n" +
-      "U|upgradeTargets   str makefile targets to execute during upgrade\n",
+      "U|upgradeTargets   str makefile targets to execute during upgrade\n" +
+      "w|workers          int # threads for starting and checking managers\n",
       true
     );
   static {
@@ -140,7 +164,8 @@ public class Agent extends Server {
 
   /**
    * Check to see if the reporter manager has been staged to all resources in
-   * the specified resource group
+   * the specified resource group.  Resources are checked concurrently (see
+   * ReporterManagerFleet).
    *
    * @param resourcesToCheck  A resource or resource group to check
    *
@@ -150,21 +175,12 @@ public class Agent extends Server {
   public void checkReporterManagers( String resourcesToCheck )
     throws ConfigurationException, InterruptedException {
 
-    for ( String resource :
-          this.resources.getResources( resourcesToCheck, true ) ) {
-      logger.info( "Checking reporter manager on resource " + resource );
-      String desc = "Reporter manager stage on resource " + resource + ":";
-      ReporterManagerStarter rmStarter =
-        new ReporterManagerStarter( resource, this );
-      for ( int j = 0; j < rmStarter.getEquivalentHosts().length; j++ ) {
-        if ( rmStarter.isStaged() ) {
-          logger.info( desc + " good" );
-          return;
-        }
-        rmStarter.nextHost();
-      }
-      logger.error( desc + "' bad" );
-    }
+    String[] resourceNames =
+      this.resources.getResources( resourcesToCheck, true );
+    int numGood = new ReporterManagerFleet( this ).check( resourceNames );
+    logger.info
+      ( "Check complete:  " + numGood + " out of " + resourceNames.length +
+        " resources have a good reporter manager install" );
   }
 
   /**
@@ -191,7 +207,8 @@ public class Agent extends Server {
   }
 
   /**
-   * Send the suites to all reporter managers.
+   * Send the suites to all reporter managers.  The suites are queued to
+   * multiple reporter managers concurrently (see SuiteDistributor).
    *
    * @param suites  A HashMap where the resources are the keys and
    * each entry is the SuiteDocument that should be distributed to the resource.
@@ -202,35 +219,7 @@ public class Agent extends Server {
   public HashMap<String,Integer> distributeSuites
     ( HashMap<String,SuiteWrapper> suites ) {
 
-    HashMap<String,Integer> proposedChangeCount = new HashMap<String,Integer>();
-    for( String resource : suites.keySet() ) {
-      logger.debug( "Attempting to distribute suite to " + resource );
-      ReporterManagerController managerController =
-        this.getReporterManager( resource );
-      if ( managerController != null ) {
-        SuiteDocument s = suites.get(resource).getSuiteDocument();
-        logger.debug( "Adding suite "+s.getSuite().getGuid()+" to "+resource );
-        try {
-          if ( managerController.hasApprovalEmail() ) {
-            logger.debug
-              ( "Adding proposed suite " + s.getSuite().getGuid() + " to " +
-                resource );
-            proposedChangeCount.put
-              ( resource, managerController.addProposedSuite( s ) );
-          } else {
-            logger.debug
-              ( "Adding suite " + s.getSuite().getGuid() + " to " + resource );
-            managerController.addSuite( s );
-          }
-        } catch (Exception e) {
-          logger.debug( "Unable to add suite " + s.getSuite().getGuid()  );
-        }
-      } else {
-        logger.error
-          ( "Unable to retrieve controller for reporter manager " + resource );
-      }
-    }
-    return proposedChangeCount;
+    return this.distributor.distribute( suites );
   }
 
   /**
@@ -350,6 +339,15 @@ public class Agent extends Server {
     return managerController;
   }
 
+  /**
+   * Return the scheduler used to start and check reporter managers.
+   *
+   * @return  The agent's shared timer and worker pool.
+   */
+  public AgentScheduler getScheduler() {
+    return this.scheduler;
+  }
+
   public ReporterManagerTable getReporterManagerTable() {
     return rms;
   }
@@ -505,7 +503,8 @@ public class Agent extends Server {
           return;
         }
         this.agent.getRepositoryCache().start();
-        this.agent.getReporterManagerTable().start();
+        this.agent.getReporterManagerTable().startChecks
+          ( this.agent.getScheduler() );
         this.agent.restartManagers();
       }
     }
@@ -560,6 +559,14 @@ public class Agent extends Server {
         Constants.MILLIS_TO_SECOND
       );
     }
+    if((config.getProperty("distribute")) != null) {
+      this.distributor.setParallelism
+        ( Integer.parseInt(config.getProperty("distribute")) );
+    }
+    if((config.getProperty("workers")) != null) {
+      this.getScheduler().setWorkers
+        ( Integer.parseInt(config.getProperty("workers")) );
+    }
     if((config.getProperty("upgradeResources")) != null) {
       this.upgradeReporterManagers = config.getProperty("upgradeResources");
       if((config.getProperty("upgradeTargets")) != null) {
@@ -660,40 +667,86 @@ public class Agent extends Server {
    * @return a map where the resources with proposed changes are the keys and
    * the value is the number of changes.
    */
-  public synchronized HashMap<String,Integer> updateCachedPackages() {
+  public HashMap<String,Integer> updateCachedPackages() {
+    // fetch updates without holding any lock so a slow repository doesn't
+    // block suite updates
+    String[] updated = this.repositoryCache.checkForPackageUpdates();
+    return this.applyPackageUpdates( updated );
+  }
+
+  /**
+   * Send package updates to the reporter managers and update the agent's
+   * suites to use the new package versions.  Each suite is changed while
+   * holding its suite lock so the change is ordered with updates of the
+   * suite that are fetching their packages.
+   *
+   * @param updated  The names of packages that have been updated in the
+   * repository cache.
+   *
+   * @return a map where the resources with proposed changes are the keys and
+   * the value is the number of changes.
+   */
+  private HashMap<String,Integer> applyPackageUpdates( String[] updated ) {
     HashMap<String,Integer> proposedChangeCount = new HashMap<String,Integer>();
-    for( String pkgName : this.repositoryCache.checkForPackageUpdates() ) {
-      distributePackageUpdate( pkgName );
-      for ( String suiteName : this.getSuites().getNames() ) {
-        logger.info
-          ( "Checking suite " + suiteName + " for package " + pkgName );
-        SuiteStagesWrapper suite = this.getSuites().getSuite( suiteName );
-        PackageType pkg = this.getRepositoryCache().getPackage(pkgName, null);
-        SuiteWrapper suiteMods = suite.updatePackage
-          ( pkgName, pkg.getVersion(), pkg.getUri() );
-        if ( suiteMods.getSeriesConfigCount() < 1 ) {
-          logger.info( "No changes found" );
-          continue;
-        }
+    for( String pkgName : updated ) {
+      String[] suiteNames;
+      synchronized( this ) {
+        distributePackageUpdate( pkgName );
+        suiteNames = this.getSuites().getNames();
+      }
+      for ( String suiteName : suiteNames ) {
+        ReentrantLock suiteLock = this.getSuiteLock( suiteName );
+        suiteLock.lock();
         try {
-          logger.info
-            ( "Found " + suiteMods.getSeriesConfigCount() + " changes" );
-          SuiteStagesWrapper changes = suite.modify( suiteMods );
-          logger.info
-            ("Sending package update for suite " + suiteName + " to managers");
-          HashMap<String,Integer> thisProposedChangeCount =
-            this.distributeSuites( changes.getResourceSuites() );
-          sumHashes( proposedChangeCount, thisProposedChangeCount );
-        } catch ( Exception e ) {
-          logger.error
-            ( "Error applying package update for " + pkgName + " to suite " +
-            suiteName, e );
+          synchronized( this ) {
+            sumHashes( proposedChangeCount,
+                       this.applyPackageUpdate( pkgName, suiteName ) );
+          }
+        } finally {
+          suiteLock.unlock();
         }
       }
     }
     return proposedChangeCount;
   }
 
+  /**
+   * Update a suite to use the new version of a package.  The caller must hold
+   * the suite lock and the agent lock.
+   *
+   * @param pkgName  The name of a package that has been updated in the
+   * repository cache.
+   * @param suiteName  The name of the suite to update.
+   *
+   * @return a map where the resources with proposed changes are the keys and
+   * the value is the number of changes.
+   */
+  private HashMap<String,Integer> applyPackageUpdate
+    ( String pkgName, String suiteName ) {
+
+    logger.info( "Checking suite " + suiteName + " for package " + pkgName );
+    SuiteStagesWrapper suite = this.getSuites().getSuite( suiteName );
+    PackageType pkg = this.getRepositoryCache().getPackage(pkgName, null);
+    SuiteWrapper suiteMods = suite.updatePackage
+      ( pkgName, pkg.getVersion(), pkg.getUri() );
+    if ( suiteMods.getSeriesConfigCount() < 1 ) {
+      logger.info( "No changes found" );
+      return new HashMap<String,Integer>();
+    }
+    try {
+      logger.info( "Found " + suiteMods.getSeriesConfigCount() + " changes" );
+      SuiteStagesWrapper changes = suite.modify( suiteMods );
+      logger.info
+        ("Sending package update for suite " + suiteName + " to managers");
+      return this.distributeSuites( changes.getResourceSuites() );
+    } catch ( Exception e ) {
+      logger.error
+        ( "Error applying package update for " + pkgName + " to suite " +
+        suiteName, e );
+      return new HashMap<String,Integer>();
+    }
+  }
+
   /**
    * Updates the resource configuration on the agent.
    *
@@ -958,8 +1011,7 @@ public class Agent extends Server {
         this.getRepositoryCache().join();
       }
       if(this.getReporterManagerTable() != null) {
-        this.getReporterManagerTable().interrupt();
-        this.getReporterManagerTable().join();
+        this.getReporterManagerTable().stopChecks();
       }
 
       super.shutdown();
@@ -1003,7 +1055,7 @@ public class Agent extends Server {
    * @return a map where the resources with proposed changes are the keys and
    * the value is the number of changes.
    */
-  public synchronized HashMap<String,Integer> updateSuite(SuiteWrapper suite) {
+  public HashMap<String,Integer> updateSuite(SuiteWrapper suite) {
     HashMap<String,Integer> proposedChangeCount = new HashMap<String,Integer>();
     SuiteDocument sd = suite.getSuiteDocument();
     String suiteName = sd.getSuite().getName();
@@ -1013,23 +1065,92 @@ public class Agent extends Server {
     }
     logger.info( "Received update for suite '" + suiteName + "'" );
 
-    HashMap<String, SuiteWrapper> suites;
+    // updates of the same suite are applied in the order they arrive
+    ReentrantLock suiteLock = this.getSuiteLock( suiteName );
+    suiteLock.lock();
+    try {
+      return this.fetchAndApplySuiteUpdate( suite );
+    } finally {
+      suiteLock.unlock();
+    }
+  }
+
+  /**
+   * Load the reporters of a suite update into the repository cache and then
+   * apply it.  The caller must hold the suite lock.
+   *
+   * @param suite An update to a suite or a new suite.
+   *
+   * @return a map where the resources with proposed changes are the keys and
+   * the value is the number of changes.
+   */
+  private HashMap<String,Integer> fetchAndApplySuiteUpdate
+    ( SuiteWrapper suite ) {
+
+    HashMap<String,Integer> proposedChangeCount = new HashMap<String,Integer>();
+    String suiteName = suite.getSuiteDocument().getSuite().getName();
 
-    // 1) load the reporters into our cache
+    // 1) load the reporters into our cache.  This is done without holding
+    // the agent lock so a slow repository only delays updates of this suite.
     logger.info( "Loading reporters for suite update '" + suiteName + "'" );
+    Vector<String> names = new Vector<String>();
+    Vector<String> versions = new Vector<String>();
     for ( SeriesConfig config : suite.getSeriesConfigs() ) {
       String name = config.getSeries().getName();
       String version = config.getSeries().getVersion();
       if ( ! this.getRepositoryCache().existsLocally(name,version) ) {
-        if ( ! this.getRepositoryCache().fetchPackage(name,version) ) {
-          logger.error
-            ( "Unable to retrieve package " + name + " version=" + version +
-              "and/or its dependencies; rejecting suite update " + suiteName );
-          return proposedChangeCount;
-        }
+        names.add( name );
+        versions.add( version );
       }
     }
+    if ( ! this.getRepositoryCache().fetchPackages
+           ( names.toArray(new String[names.size()]),
+             versions.toArray(new String[versions.size()]) ) ) {
+      logger.error
+        ( "Unable to retrieve packages " + names + " and/or their " +
+          "dependencies; rejecting suite update " + suiteName );
+      return proposedChangeCount;
+    }
     logger.info( "Reporters loaded for suite update '" + suiteName + "'" );
+    return this.applySuiteUpdate( suite );
+  }
+
+  /**
+   * Return the lock used to serialize updates of a suite.  The lock is fair,
+   * so updates waiting for it are applied in the order they arrived.
+   *
+   * @param suiteName  The name of the suite
+   *
+   * @return The lock for the suite
+   */
+  private ReentrantLock getSuiteLock( String suiteName ) {
+    ReentrantLock lock = this.suiteLocks.get( suiteName );
+    if ( lock == null ) {
+      ReentrantLock newLock = new ReentrantLock( true );
+      lock = this.suiteLocks.putIfAbsent( suiteName, newLock );
+      if ( lock == null ) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Apply a suite update whose reporters have been loaded into the
+   * repository cache.  Performs steps 2-7 of updateSuite.
+   *
+   * @param suite An update to a suite or a new suite.
+   *
+   * @return a map where the resources with proposed changes are the keys and
+   * the value is the number of changes.
+   */
+  private synchronized HashMap<String,Integer> applySuiteUpdate
+    ( SuiteWrapper suite ) {
+
+    HashMap<String,Integer> proposedChangeCount = new HashMap<String,Integer>();
+    SuiteDocument sd = suite.getSuiteDocument();
+    String suiteName = sd.getSuite().getName();
+    HashMap<String, SuiteWrapper> suites;
 
     // 2) resolve the reporter names into reporter uris using available repos
     logger.info( "Resolving reporter names for suite update " + suiteName );
@@ -1102,7 +1223,12 @@ public class Agent extends Server {
 
   /**
    * Send the suite changes to the depot, receives a new version number and
-   * updates suite with new version.
+   * updates suite with new version.  Reporter managers send their part of a
+   * suite change to the depot once they have received it, so updates for the
+   * same suite version are coalesced:  while an update of a suite version is
+   * in progress, further updates of that version are merged into a single
+   * update which is sent once the current one completes.  Returns once the
+   * update containing the suite changes has been sent.
    *
    * @param expanded   An expanded suite document that should be sent to depot
    *
@@ -1115,6 +1241,71 @@ public class Agent extends Server {
     throws ConfigurationException, CrypterException, IOException,
            ProtocolException {
 
+    String key =
+      expanded.getSuite().getName() + " v" + expanded.getSuite().getVersion();
+    DepotSuiteUpdate update;
+    boolean sender = false;
+    synchronized( this.depotUpdates ) {
+      update = this.depotUpdates.get( key );
+      if ( update == null ) {
+        update = new DepotSuiteUpdate( expanded );
+        this.depotUpdates.put( key, update );
+        sender = true;
+      } else {
+        logger.debug( "Coalescing depot suite update for " + key );
+        update.append( expanded );
+      }
+      try {
+        while ( sender && this.depotUpdatesInProgress.contains(key) ) {
+          this.depotUpdates.wait();
+        }
+      } catch ( InterruptedException e ) {
+        // fail the update so that it will be retried later from the
+        // reporter managers' depot directories
+        this.depotUpdates.remove( key );
+        Thread.currentThread().interrupt();
+        update.setComplete
+          ( new IOException("Interrupted waiting to update suite " + key) );
+      }
+      if ( sender && ! update.isComplete() ) {
+        this.depotUpdates.remove( key );
+        this.depotUpdatesInProgress.add( key );
+      } else {
+        sender = false;
+      }
+    }
+
+    if ( sender ) {
+      try {
+        sendSuiteToDepot( update.getSuiteDocument() );
+        update.setComplete( null );
+      } catch ( Exception e ) {
+        update.setComplete( e );
+      } finally {
+        synchronized( this.depotUpdates ) {
+          this.depotUpdatesInProgress.remove( key );
+          this.depotUpdates.notifyAll();
+        }
+      }
+    }
+    update.waitForCompletion();
+  }
+
+  /**
+   * Send the suite changes to the depot, receives a new version number and
+   * updates suite with new version.
+   *
+   * @param expanded   An expanded suite document that should be sent to depot
+   *
+   * @throws ConfigurationException if trouble reading config info
+   * @throws CrypterException if trouble writing new version to suite
+   * @throws IOException if trouble communicating with depot
+   * @throws ProtocolException if unexpected responses from depot
+   */
+  protected void sendSuiteToDepot( SuiteDocument expanded )
+    throws ConfigurationException, CrypterException, IOException,
+           ProtocolException {
+
     logger.debug
       ("Sending depot suite update for " + expanded.getSuite().getName() );
 
@@ -1140,57 +1331,29 @@ public class Agent extends Server {
       SuiteStagesWrapper wrapper =
         this.getSuites().getSuite(expanded.getSuite().getName());
       wrapper.getDocument().getSuiteStages().setVersion(new BigInteger(version));
-      wrapper.save();
+      wrapper.saveChanges();
     }
   }
 
   /**
    * Upgrade the reporter manager distributions on the specified resources
-   * read upon configuration.
+   * read upon configuration.  Resources are upgraded concurrently (see
+   * ReporterManagerFleet).
    *
    * @param resourcesToUpgrade A resource name or group to upgrade
    * @param targetsToExecute The makefile target to execute for the upgrade
    *
    * @throws ConfigurationException if trouble reading resource config info
+   * @throws InterruptedException if interrupted while upgrading
    */
   public void upgradeReporterManagers( String resourcesToUpgrade,
                                        String targetsToExecute )
-    throws ConfigurationException {
+    throws ConfigurationException, InterruptedException {
 
-    int numSuccessfulUpgrades = 0;
     String[] resourceNames =
       this.resources.getResources(resourcesToUpgrade, true);
-    for ( String resource : resourceNames ) {
-      logger.info(
-        "Upgrading reporter manager on resource '" + resource + "'"
-      );
-      ReporterManagerStarter rmStarter =
-        new ReporterManagerStarter( resource, this );
-      int j;
-      for ( j = 0; j < rmStarter.getEquivalentHosts().length; j++ ) {
-        try {
-          rmStarter.findBashLoginShellOption();
-          rmStarter.stage( targetsToExecute );
-          break;
-        } catch ( Exception e ) {
-          logger.error(
-            "Attempt to upgrade resource " + resource +
-            " failed using host " + rmStarter.getCurrentHost(), e
-          );
-        }
-        rmStarter.nextHost();
-      }
-      if ( j < rmStarter.getEquivalentHosts().length ) {
-        logger.info(
-          "Upgrade on resource '" + resource + "' completed"
-        );
-        numSuccessfulUpgrades++;
-      } else {
-        logger.error(
-          "Upgrade on resource '" + resource + "' failed"
-        );
-      }
-    }
+    int numSuccessfulUpgrades = new ReporterManagerFleet( this ).upgrade
+      ( resourceNames, targetsToExecute );
     logger.info
       ( "Upgrade complete:  " + numSuccessfulUpgrades + " out of " +
         resourceNames.length + " resources were successfully upgraded" );
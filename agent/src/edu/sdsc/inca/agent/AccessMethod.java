@@ -68,6 +68,14 @@ abstract public class AccessMethod  {
     return process;
   }
 
+  /**
+   * Close the connection opened by openConnection.  Subsequent calls to get,
+   * put and run will create their own connections again.
+   */
+  public void closeConnection() {
+    // most access methods have no connection to close
+  }
+
   /**
    * Transfer a file from a remote machine to a local directory.
    *
@@ -113,6 +121,18 @@ abstract public class AccessMethod  {
    */
   abstract public boolean isActive() throws AccessMethodException;
 
+  /**
+   * Open a connection to the remote resource that is reused by subsequent
+   * calls to get, put and run (e.g., as separate channels of one
+   * authenticated SSH connection) until closeConnection is called, rather
+   * than connecting and authenticating for each call.
+   *
+   * @throws AccessMethodException if unable to connect to the resource
+   */
+  public void openConnection() throws AccessMethodException {
+    // most access methods have no connection to reuse
+  }
+
   /**
    * Given a path relative to the home directory, prepend the home signifier
    * for the given access method to the path and return the new string.
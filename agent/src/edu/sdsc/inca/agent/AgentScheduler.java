@@ -0,0 +1,197 @@
+package edu.sdsc.inca.agent;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared timer and worker pools for the agent.  Rather than giving each
+ * reporter manager its own threads for periodic checks and start attempts,
+ * the agent schedules timed events on a single timer thread and runs
+ * blocking work (e.g., checking the health of a reporter manager) on a small,
+ * bounded pool of worker threads.  Attempts to stage and start a reporter
+ * manager over ssh can take minutes, so they run on a separate pool of the
+ * same size and never hold up the checks.  Tasks on either pool must not wait
+ * for other tasks to complete; work that continues later is rescheduled on
+ * the timer instead.  Idle threads exit after a short time so the pools cost
+ * nothing when there is no work.  This class is thread-safe.
+ */
+public class AgentScheduler {
+
+  // Constants
+  final static public int DEFAULT_WORKERS = 8;
+  final static public long IDLE_WORKER_TIMEOUT = 60;
+
+  private static Logger logger = Logger.getLogger( AgentScheduler.class );
+
+  // Member variables
+  private ThreadPoolExecutor starters = null;
+  private ScheduledThreadPoolExecutor timer = null;
+  private ThreadPoolExecutor workers = null;
+
+  /**
+   * Creates the scheduler with the default number of worker threads.
+   */
+  public AgentScheduler() {
+    this( DEFAULT_WORKERS );
+  }
+
+  /**
+   * Creates the scheduler with the specified number of worker threads.
+   *
+   * @param numWorkers  The maximum number of tasks, and of start attempts,
+   *                    that will run concurrently
+   */
+  public AgentScheduler( int numWorkers ) {
+    this.timer = new ScheduledThreadPoolExecutor
+      ( 1, new NamedThreadFactory("agent-timer") );
+    this.timer.setRemoveOnCancelPolicy( true );
+    this.workers = createPool( "agent-worker", numWorkers );
+    this.starters = createPool( "agent-starter", numWorkers );
+  }
+
+  /**
+   * Create a fixed size pool of daemon threads whose threads exit after
+   * being idle for IDLE_WORKER_TIMEOUT seconds.
+   *
+   * @param name  A prefix for the names of the pool's threads
+   * @param numThreads  The maximum number of tasks that will run concurrently
+   *
+   * @return  A new thread pool
+   */
+  public static ThreadPoolExecutor createPool( String name, int numThreads ) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(
+      numThreads, numThreads, IDLE_WORKER_TIMEOUT, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory(name)
+    );
+    pool.allowCoreThreadTimeOut( true );
+    return pool;
+  }
+
+  /**
+   * Return the number of worker threads.
+   *
+   * @return  The maximum number of tasks that will run concurrently
+   */
+  public int getWorkers() {
+    return this.workers.getMaximumPoolSize();
+  }
+
+  /**
+   * Run a task once on the timer thread after a delay.  The task should hand
+   * off any blocking work to one of the pools.
+   *
+   * @param task  The task to run
+   * @param delay  The time in milliseconds to wait before running the task
+   *
+   * @return  A future that can be used to cancel the task
+   */
+  public ScheduledFuture<?> schedule( Runnable task, long delay ) {
+    return this.timer.schedule( task, delay, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Run a task periodically on the timer thread.  The next run is scheduled
+   * when the previous one completes so runs never overlap.  Tasks should
+   * hand off any blocking work to the worker pool.
+   *
+   * @param task  The task to run
+   * @param period  The time in milliseconds between the end of one run and
+   *                the start of the next
+   *
+   * @return  A future that can be used to cancel the task
+   */
+  public ScheduledFuture<?> schedulePeriodic( Runnable task, long period ) {
+    return this.timer.scheduleWithFixedDelay
+      ( task, period, period, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Set the number of worker threads and of start attempt threads.
+   *
+   * @param numWorkers  The maximum number of tasks, and of start attempts,
+   *                    that will run concurrently
+   */
+  public void setWorkers( int numWorkers ) {
+    logger.info( "Setting number of agent worker threads to " + numWorkers );
+    resizePool( this.workers, numWorkers );
+    resizePool( this.starters, numWorkers );
+  }
+
+  /**
+   * Change the number of threads in a fixed size pool.
+   *
+   * @param pool  A pool created by createPool
+   * @param numThreads  The maximum number of tasks that will run concurrently
+   */
+  public static void resizePool( ThreadPoolExecutor pool, int numThreads ) {
+    if ( numThreads > pool.getMaximumPoolSize() ) {
+      pool.setMaximumPoolSize( numThreads );
+      pool.setCorePoolSize( numThreads );
+    } else {
+      pool.setCorePoolSize( numThreads );
+      pool.setMaximumPoolSize( numThreads );
+    }
+  }
+
+  /**
+   * Run a task on the worker pool.
+   *
+   * @param task  The task to run
+   *
+   * @return  A future for retrieving the result of the task
+   */
+  public <T> Future<T> submit( Callable<T> task ) {
+    return this.workers.submit( task );
+  }
+
+  /**
+   * Run a task on the worker pool.
+   *
+   * @param task  The task to run
+   *
+   * @return  A future that can be used to cancel the task
+   */
+  public Future<?> submit( Runnable task ) {
+    return this.workers.submit( task );
+  }
+
+  /**
+   * Run an attempt to stage or start a reporter manager on the start pool.
+   *
+   * @param task  The start attempt to run
+   *
+   * @return  A future that can be used to cancel the attempt
+   */
+  public Future<?> submitStart( Runnable task ) {
+    return this.starters.submit( task );
+  }
+
+  /**
+   * Names the scheduler threads so they're easier to find in log messages
+   * and thread dumps.  The threads are daemons so they don't keep the agent
+   * from exiting.
+   */
+  private static class NamedThreadFactory implements ThreadFactory {
+    private String prefix;
+    private AtomicInteger count = new AtomicInteger( 0 );
+
+    public NamedThreadFactory( String prefix ) {
+      this.prefix = prefix;
+    }
+
+    public Thread newThread( Runnable r ) {
+      Thread thread = new Thread( r, prefix + "-" + count.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package edu.sdsc.inca.agent;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Tests for AgentScheduler.
+ */
+public class AgentSchedulerTest extends TestCase {
+  static Logger logger = Logger.getLogger(AgentSchedulerTest.class);
+
+  /**
+   * Test that a timed event runs once after its delay.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testSchedule() throws Exception {
+    AgentScheduler scheduler = new AgentScheduler( 1 );
+    final CountDownLatch ran = new CountDownLatch( 1 );
+    long start = System.currentTimeMillis();
+    scheduler.schedule( new Runnable() {
+      public void run() {
+        ran.countDown();
+      }
+    }, 500 );
+    assertTrue( "event ran", ran.await(10, TimeUnit.SECONDS) );
+    assertTrue(
+      "event waited for its delay", System.currentTimeMillis() - start >= 450
+    );
+
+    // a cancelled event never runs
+    final CountDownLatch cancelled = new CountDownLatch( 1 );
+    ScheduledFuture<?> event = scheduler.schedule( new Runnable() {
+      public void run() {
+        cancelled.countDown();
+      }
+    }, 500 );
+    event.cancel( false );
+    assertFalse
+      ( "cancelled event did not run", cancelled.await(1, TimeUnit.SECONDS) );
+  }
+
+  /**
+   * Test that runs of a periodic task never overlap, even when a run takes
+   * longer than the period.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testSchedulePeriodic() throws Exception {
+    AgentScheduler scheduler = new AgentScheduler( 1 );
+    final AtomicInteger running = new AtomicInteger( 0 );
+    final AtomicInteger maxRunning = new AtomicInteger( 0 );
+    final CountDownLatch runs = new CountDownLatch( 5 );
+    ScheduledFuture<?> checks = scheduler.schedulePeriodic( new Runnable() {
+      public void run() {
+        int now = running.incrementAndGet();
+        if ( now > maxRunning.get() ) maxRunning.set( now );
+        try {
+          Thread.sleep( 100 );
+        } catch ( InterruptedException e ) {
+          // cancelled
+        }
+        running.decrementAndGet();
+        runs.countDown();
+      }
+    }, 10 );
+    assertTrue( "periodic task ran", runs.await(10, TimeUnit.SECONDS) );
+    checks.cancel( false );
+    assertEquals( "runs did not overlap", 1, maxRunning.get() );
+  }
+
+  /**
+   * Test that start attempts run on their own pool, so start attempts that
+   * are stuck do not keep tasks on the worker pool from running.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testSubmitStart() throws Exception {
+    AgentScheduler scheduler = new AgentScheduler( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final CountDownLatch started = new CountDownLatch( 1 );
+    scheduler.submitStart( new Runnable() {
+      public void run() {
+        started.countDown();
+        try {
+          release.await();
+        } catch ( InterruptedException e ) {
+          // interrupted
+        }
+      }
+    });
+    assertTrue( "start attempt ran", started.await(10, TimeUnit.SECONDS) );
+    Future<String> check = scheduler.submit( new Callable<String>() {
+      public String call() {
+        return "checked";
+      }
+    });
+    assertEquals(
+      "worker ran while start attempt blocked", "checked",
+      check.get( 10, TimeUnit.SECONDS )
+    );
+
+    // a second start attempt waits for the first to finish
+    final CountDownLatch second = new CountDownLatch( 1 );
+    Future<?> attempt = scheduler.submitStart( new Runnable() {
+      public void run() {
+        second.countDown();
+      }
+    });
+    assertFalse( "start pool bounded", second.await(1, TimeUnit.SECONDS) );
+    release.countDown();
+    attempt.get( 10, TimeUnit.SECONDS );
+    assertTrue( "second start attempt ran", attempt.isDone() );
+  }
+
+  /**
+   * Test that the number of worker threads can be changed.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testSetWorkers() throws Exception {
+    AgentScheduler scheduler = new AgentScheduler( 1 );
+    assertEquals( "initial workers", 1, scheduler.getWorkers() );
+    scheduler.setWorkers( 3 );
+    assertEquals( "workers grown", 3, scheduler.getWorkers() );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final CountDownLatch running = new CountDownLatch( 3 );
+    for ( int i = 0; i < 3; i++ ) {
+      scheduler.submit( new Runnable() {
+        public void run() {
+          running.countDown();
+          try {
+            release.await();
+          } catch ( InterruptedException e ) {
+            // interrupted
+          }
+        }
+      });
+    }
+    assertTrue
+      ( "tasks ran concurrently", running.await(10, TimeUnit.SECONDS) );
+    release.countDown();
+    scheduler.setWorkers( 2 );
+    assertEquals( "workers shrunk", 2, scheduler.getWorkers() );
+  }
+}
@@ -0,0 +1,132 @@
+package edu.sdsc.inca.agent;
+
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+import edu.sdsc.inca.ConfigurationException;
+import edu.sdsc.inca.dataModel.suite.SuiteDocument;
+import edu.sdsc.inca.dataModel.util.SeriesConfig;
+import edu.sdsc.inca.protocol.ProtocolException;
+import edu.sdsc.inca.util.CrypterException;
+
+/**
+ * A pending update of a suite version on the depot.  Suite changes for the
+ * same suite version that arrive from several reporter managers are appended
+ * to a single update so that they can be sent to the depot in one call.
+ * Threads that contributed changes wait for the update to complete and
+ * receive its result.  This class is thread-safe.
+ */
+public class DepotSuiteUpdate {
+
+  private static Logger logger = Logger.getLogger( DepotSuiteUpdate.class );
+
+  // Member variables
+  private SuiteDocument suite = null;
+  private boolean merged = false;
+  private int count = 1;
+  private boolean complete = false;
+  private Exception error = null;
+
+  /**
+   * Start an update with the specified suite changes.
+   *
+   * @param suite  An expanded suite document that should be sent to depot
+   */
+  public DepotSuiteUpdate( SuiteDocument suite ) {
+    this.suite = suite;
+  }
+
+  /**
+   * Add the series configs of another expanded suite document with the same
+   * name and version to the update.
+   *
+   * @param other  An expanded suite document that should be sent to depot
+   */
+  public synchronized void append( SuiteDocument other ) {
+    if ( ! this.merged ) {
+      // don't modify the caller's document
+      this.suite = (SuiteDocument)this.suite.copy();
+      this.merged = true;
+    }
+    for ( SeriesConfig config :
+          other.getSuite().getSeriesConfigs().getSeriesConfigArray() ) {
+      this.suite.getSuite().getSeriesConfigs().addNewSeriesConfig().set
+        ( config );
+    }
+    this.count++;
+  }
+
+  /**
+   * Return the suite changes to send to the depot.
+   *
+   * @return  An expanded suite document containing all of the appended
+   * changes
+   */
+  public synchronized SuiteDocument getSuiteDocument() {
+    return this.suite;
+  }
+
+  /**
+   * Return true if the update has been sent or has failed.
+   *
+   * @return  True if the update is complete and false otherwise
+   */
+  public synchronized boolean isComplete() {
+    return this.complete;
+  }
+
+  /**
+   * Mark the update as complete and wake up the threads waiting for it.
+   *
+   * @param error  The error that occurred sending the update or null if it
+   * was successful
+   */
+  public synchronized void setComplete( Exception error ) {
+    if ( this.count > 1 ) {
+      logger.info
+        ( "Sent " + this.count + " suite changes to depot in one update for " +
+          this.suite.getSuite().getName() );
+    }
+    this.error = error;
+    this.complete = true;
+    notifyAll();
+  }
+
+  /**
+   * Wait for the update to complete and throw any error that occurred while
+   * sending it.
+   *
+   * @throws ConfigurationException if trouble reading config info
+   * @throws CrypterException if trouble writing new version to suite
+   * @throws IOException if trouble communicating with depot or interrupted
+   * @throws ProtocolException if unexpected responses from depot
+   */
+  public synchronized void waitForCompletion()
+    throws ConfigurationException, CrypterException, IOException,
+           ProtocolException {
+
+    try {
+      while ( ! this.complete ) {
+        wait();
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted waiting for depot suite update" );
+    }
+    if ( this.error == null ) {
+      return;
+    } else if ( this.error instanceof ConfigurationException ) {
+      throw (ConfigurationException)this.error;
+    } else if ( this.error instanceof CrypterException ) {
+      throw (CrypterException)this.error;
+    } else if ( this.error instanceof IOException ) {
+      throw (IOException)this.error;
+    } else if ( this.error instanceof ProtocolException ) {
+      throw (ProtocolException)this.error;
+    } else {
+      throw new IOException
+        ( "Unable to update suite with depot: " + this.error );
+    }
+  }
+}
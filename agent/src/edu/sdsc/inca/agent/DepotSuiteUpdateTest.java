@@ -0,0 +1,275 @@
+package edu.sdsc.inca.agent;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import edu.sdsc.inca.Agent;
+import edu.sdsc.inca.ConfigurationException;
+import edu.sdsc.inca.dataModel.suite.SuiteDocument;
+import edu.sdsc.inca.dataModel.util.SeriesConfig;
+import edu.sdsc.inca.protocol.ProtocolException;
+import edu.sdsc.inca.util.CrypterException;
+
+/**
+ * Tests for DepotSuiteUpdate and the coalescing of depot suite updates in
+ * Agent.updateSuiteOnDepot.
+ */
+public class DepotSuiteUpdateTest extends TestCase {
+  static Logger logger = Logger.getLogger(DepotSuiteUpdateTest.class);
+
+  /**
+   * An agent that records the suites it sends to the depot instead of
+   * contacting one.  The first send blocks until it is released and later
+   * sends fail with the configured error, if any.
+   */
+  static class DepotRecordingAgent extends Agent {
+    final Vector<SuiteDocument> sent = new Vector<SuiteDocument>();
+    final CountDownLatch firstSent = new CountDownLatch( 1 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    Exception error = null;
+
+    @Override
+    protected void sendSuiteToDepot( SuiteDocument expanded )
+      throws ConfigurationException, CrypterException, IOException,
+             ProtocolException {
+
+      this.sent.add( expanded );
+      if ( this.sent.size() == 1 ) {
+        this.firstSent.countDown();
+        try {
+          this.release.await();
+        } catch ( InterruptedException e ) {
+          throw new IOException( "interrupted" );
+        }
+      } else if ( this.error instanceof ProtocolException ) {
+        throw (ProtocolException)this.error;
+      } else if ( this.error != null ) {
+        throw new IOException( this.error.getMessage() );
+      }
+    }
+  }
+
+  /**
+   * A thread that sends a suite change to the depot through the agent and
+   * records the error it got, if any.
+   */
+  static class Updater extends Thread {
+    Agent agent;
+    SuiteDocument suite;
+    boolean returned = false;
+    Exception error = null;
+
+    Updater( Agent agent, SuiteDocument suite ) {
+      this.agent = agent;
+      this.suite = suite;
+    }
+
+    public void run() {
+      try {
+        this.agent.updateSuiteOnDepot( this.suite );
+        this.returned = true;
+      } catch ( Exception e ) {
+        this.error = e;
+      }
+    }
+  }
+
+  /**
+   * Returns an expanded suite with a single series config.
+   *
+   * @param name  The name of the suite
+   * @param version  The version of the suite
+   * @param nickname  The nickname of the series config
+   *
+   * @return  The suite document
+   */
+  public static SuiteDocument createSuite
+    ( String name, int version, String nickname ) {
+
+    SuiteDocument doc = SuiteDocument.Factory.newInstance();
+    doc.addNewSuite();
+    doc.getSuite().setName( name );
+    doc.getSuite().setGuid( "incas://localhost:6323/" + name );
+    doc.getSuite().setVersion( BigInteger.valueOf(version) );
+    doc.getSuite().addNewSeriesConfigs();
+    addSeriesConfig( doc, nickname );
+    return doc;
+  }
+
+  /**
+   * Adds a series config that runs a reporter once on localhost to a suite.
+   *
+   * @param doc  The suite document
+   * @param nickname  The nickname of the series config
+   */
+  public static void addSeriesConfig( SuiteDocument doc, String nickname ) {
+    SeriesConfig config =
+      doc.getSuite().getSeriesConfigs().addNewSeriesConfig();
+    config.addNewSeries().setName( "cluster.compiler.gcc.version" );
+    config.getSeries().setContext( "cluster.compiler.gcc.version" );
+    config.setNickname( nickname );
+    config.setResourceHostname( "localhost" );
+    config.addNewSchedule();
+    config.setAction( "add" );
+  }
+
+  /**
+   * Starts an update of "test v1" that blocks in the depot send and then
+   * starts updaters for the same suite version, returning once they are all
+   * waiting for the blocked update.
+   *
+   * @param agent  The agent to send the updates through
+   * @param count  The number of updaters to start
+   *
+   * @return  The blocked updater followed by the others
+   *
+   * @throws Exception if the updaters do not start waiting
+   */
+  private Updater[] startUpdates( DepotRecordingAgent agent, int count )
+    throws Exception {
+
+    Updater[] updaters = new Updater[count + 1];
+    updaters[0] = new Updater( agent, createSuite("test", 1, "first") );
+    updaters[0].start();
+    assertTrue
+      ( "first update sent", agent.firstSent.await(10, TimeUnit.SECONDS) );
+    for ( int i = 1; i < updaters.length; i++ ) {
+      updaters[i] = new Updater( agent, createSuite("test", 1, "series" + i) );
+      updaters[i].start();
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    for ( int i = 1; i < updaters.length; i++ ) {
+      while ( updaters[i].getState() != Thread.State.WAITING ) {
+        assertTrue
+          ( "updater " + i + " waiting", System.currentTimeMillis() < deadline );
+        Thread.sleep( 10 );
+      }
+    }
+    assertEquals( "later updates wait for first", 1, agent.sent.size() );
+    return updaters;
+  }
+
+  /**
+   * Test that updates of a suite version that arrive while an update of
+   * that version is being sent are sent to the depot in a single call and
+   * that every caller returns once it has been sent.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testCoalesce() throws Exception {
+    DepotRecordingAgent agent = new DepotRecordingAgent();
+    Updater[] updaters = startUpdates( agent, 5 );
+    agent.release.countDown();
+    for ( Updater updater : updaters ) {
+      updater.join( 10000 );
+      assertNull( "no error", updater.error );
+      assertTrue( "update returned", updater.returned );
+    }
+    assertEquals( "one depot call for coalesced updates", 2, agent.sent.size() );
+    SeriesConfig[] configs = agent.sent.get( 1 ).getSuite().getSeriesConfigs().
+      getSeriesConfigArray();
+    assertEquals( "all changes sent", 5, configs.length );
+    for ( int i = 1; i < updaters.length; i++ ) {
+      assertEquals
+        ( "caller's suite not modified", 1,
+          updaters[i].suite.getSuite().getSeriesConfigs().sizeOfSeriesConfigArray() );
+    }
+
+    // a different version is not held up by or merged with another
+    Updater other = new Updater( agent, createSuite("test", 2, "other") );
+    other.start();
+    other.join( 10000 );
+    assertTrue( "other version returned", other.returned );
+    assertEquals( "other version sent separately", 3, agent.sent.size() );
+  }
+
+  /**
+   * Test that every caller whose changes were coalesced into an update that
+   * failed receives the error.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testCoalescedError() throws Exception {
+    DepotRecordingAgent agent = new DepotRecordingAgent();
+    agent.error = new ProtocolException( "depot refused suite" );
+    Updater[] updaters = startUpdates( agent, 4 );
+    agent.release.countDown();
+    updaters[0].join( 10000 );
+    assertTrue( "first update returned", updaters[0].returned );
+    for ( int i = 1; i < updaters.length; i++ ) {
+      updaters[i].join( 10000 );
+      assertFalse( "update failed", updaters[i].returned );
+      assertTrue
+        ( "caller got depot error",
+          updaters[i].error instanceof ProtocolException );
+      assertEquals
+        ( "depot refused suite", updaters[i].error.getMessage() );
+    }
+    assertEquals( "one depot call for coalesced updates", 2, agent.sent.size() );
+
+    // a later update of the same version is sent again
+    agent.error = null;
+    Updater retry = new Updater( agent, createSuite("test", 1, "retry") );
+    retry.start();
+    retry.join( 10000 );
+    assertTrue( "retry returned", retry.returned );
+    assertEquals( "retry sent", 3, agent.sent.size() );
+  }
+
+  /**
+   * Test that a caller waiting for an update receives its result and that
+   * errors are rethrown with their original type where possible.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testWaitForCompletion() throws Exception {
+    final DepotSuiteUpdate update =
+      new DepotSuiteUpdate( createSuite("test", 1, "first") );
+    SuiteDocument second = createSuite( "test", 1, "second" );
+    update.append( second );
+    assertEquals
+      ( "changes appended", 2,
+        update.getSuiteDocument().getSuite().getSeriesConfigs().
+          sizeOfSeriesConfigArray() );
+    assertFalse( "not complete", update.isComplete() );
+
+    Thread waiter = new Thread() {
+      public void run() {
+        try {
+          update.waitForCompletion();
+        } catch ( Exception e ) {
+          logger.error( "unexpected error", e );
+        }
+      }
+    };
+    waiter.start();
+    update.setComplete( null );
+    waiter.join( 10000 );
+    assertFalse( "waiter returned", waiter.isAlive() );
+
+    DepotSuiteUpdate failed =
+      new DepotSuiteUpdate( createSuite("test", 1, "first") );
+    failed.setComplete( new ConfigurationException("bad config") );
+    try {
+      failed.waitForCompletion();
+      fail( "error not thrown" );
+    } catch ( ConfigurationException e ) {
+      assertEquals( "bad config", e.getMessage() );
+    }
+    failed = new DepotSuiteUpdate( createSuite("test", 1, "first") );
+    failed.setComplete( new IllegalStateException("unexpected") );
+    try {
+      failed.waitForCompletion();
+      fail( "error not thrown" );
+    } catch ( IOException e ) {
+      assertTrue( "wrapped", e.getMessage().indexOf("unexpected") >= 0 );
+    }
+  }
+}
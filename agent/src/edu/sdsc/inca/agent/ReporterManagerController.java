@@ -3,7 +3,12 @@ package edu.sdsc.inca.agent;
 
 import java.util.Vector;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Set;
 import java.io.*;
 
 import edu.sdsc.inca.ConfigurationException;
@@ -38,8 +43,10 @@ import org.apache.xmlbeans.XmlException;
  * Manages a reporter manager instance on a remote machine. It maintains
  * a persistent connection to the manager and provides the
  * ability to send packages and suites to the remote reporter manager.  It
- * also has the ability to detect a fault of the reporter manager by regularly
- * pinging it and and restarting it if necessary.
+ * also has the ability to detect a fault of the reporter manager by pinging
+ * it when the connection has been quiet and and restarting it if necessary.
+ * Queued work is sent in batches, with suite updates pipelined over the
+ * connection.
  *
  * @author Shava Smallen
  */
@@ -51,6 +58,7 @@ public class ReporterManagerController  {
   final static public String COMMITTED_FILE = "committed.xml";
   final static public String DEPOT_DIR = "depot";
   final static public int ISREADY_PERIOD = 5 * Constants.MILLIS_TO_SECOND;
+  final static public int MAX_BATCH = 32;
   final static public String PROPOSED_DIR = "proposed";
   final static private String PING_DATA = "manager";
   final static public int SUITE_CHECK_PERIOD = 5 * Constants.MILLIS_TO_SECOND;
@@ -65,6 +73,7 @@ public class ReporterManagerController  {
   private CatalogDocument        catalog = null;
   private File                   catalogFile = null;
   private File                   committedFile = null;
+  private boolean                contentDigests = true;
   private File                   depotSuites = null;
   private boolean                isRunning = false;
   private long                   lastDepotSendAttempt = 0;
@@ -75,6 +84,7 @@ public class ReporterManagerController  {
   private String                 resource = null;
   private ReporterManagerStarter rmStarter = null;  
   private boolean                shutdownDetected = false;
+  private ReporterManagerStarter stoppingStarter = null;
   private WorkQueue<ReporterManagerController> work = new WorkQueue<ReporterManagerController>();
   private String                 tempDir = null;
 
@@ -649,8 +659,10 @@ public class ReporterManagerController  {
    * manager has all of its suites and packages.  Holds a socket connection open
    * to the reporter manager and loops indefinitely (until a shutdown) to send
    * requests to the  reporter manager.  Currently requests are suite changes or
-   * packages.  When either is found in the queue, it will propagate the changes
-   * to the manager.
+   * packages.  When either is found in the queue, it will propagate all of the
+   * queued changes to the manager as one batch.  Every response from the
+   * manager counts as a heartbeat, so the manager is only pinged if nothing
+   * has been heard from it for a ping period.
    *
    * @param reader  the ProtocolReader for reading responses from the remote
    * reporter manager.
@@ -667,6 +679,7 @@ public class ReporterManagerController  {
 
     this.managerClient.setReader( reader );
     this.managerClient.setWriter( writer );
+    this.contentDigests = true; // until the manager tells us otherwise
 
     if ( freshInstall ) {
       this.reinitialize();
@@ -680,36 +693,41 @@ public class ReporterManagerController  {
     }
 
     // now wait for any changes to the schedule
-    long lastPingTime = Calendar.getInstance().getTimeInMillis();
     while ( true ) {
       if ( isBeingShutdown() ) break;
       long now = Calendar.getInstance().getTimeInMillis();
-      if ( (now - lastPingTime) >= this.agent.getPingPeriod() ) {
-        lastPingTime = now;
+      long nextPingTime =
+        this.managerClient.getLastContact() + this.agent.getPingPeriod();
+      if ( now >= nextPingTime ) {
         if ( ! isRemoteManagerAlive() ) {
           restart();
           break;
         }
+        nextPingTime = now + this.agent.getPingPeriod();
       }
       this.sendUnsentSuitesToDepot();
       
       // wait around until an action needs to be sent to the remote reporter
-      // manager
-      WorkItem<ReporterManagerController> work = null;
+      // manager.  We are woken up when work is queued or a shutdown is
+      // requested; otherwise we wait until the next ping is due.
+      Vector<WorkItem<ReporterManagerController>> batch =
+        new Vector<WorkItem<ReporterManagerController>>();
       try {
-        if ( this.work.isEmpty() ) { // we wait until there is
-          Thread.sleep( SUITE_CHECK_PERIOD ); // something in the queue
-          continue;
-        }
-        logger.info("Retrieving work for reporter manager '" + resource + "'" );
-        work = this.work.getWork();
+        WorkItem<ReporterManagerController> work =
+          this.work.getWork( nextPingTime - now );
+        if ( work == null ) continue;
+        batch.add( work );
+        batch.addAll( this.work.drainWork(MAX_BATCH - 1) );
+        logger.info
+          ( "Retrieving " + batch.size() + " units of work for reporter " +
+            "manager '" + resource + "'" );
       } catch ( InterruptedException e ) {
         logger.info( "Received interrupt in register: " + e );
         break;
       }
 
       try {
-    	  work.doWork(this);
+        sendBatch( batch );
       } catch ( InterruptedException e ) {
         logger.info(
           "Caught interrupt in while doing work in reporter manager " + resource
@@ -721,7 +739,7 @@ public class ReporterManagerController  {
           "' detected while trying to send work to '" + resource +
           "' assuming down" );
         logger.info( "Adding work back to reporter manager " + resource );
-        this.work.addWork( work );
+        this.work.requeueWork( batch );
         restart();
         break;
       }
@@ -749,75 +767,94 @@ public class ReporterManagerController  {
     throws ConfigurationException, CrypterException, IOException,
            InterruptedException, ProtocolException {
 
+    Vector<SuiteDocument> suites = new Vector<SuiteDocument>();
+    suites.add( suiteDoc );
+    sendSuites( suites );
+  }
+
+  /**
+   * Send the specified suites and any needed reporters to the remote
+   * reporter manager.  The reporters for all of the suites are sent first and
+   * then the suites are pipelined to the manager (see
+   * ManagerClient.sendSuites).  Each suite the manager acknowledges ahead of
+   * the first one it rejects is committed, sent to the depot and has its
+   * backup removed from disk.  The rejected suite and every suite after it,
+   * acknowledged or not, are left to be sent again in order, so a later
+   * update to a suite is never committed ahead of an earlier one.  Will pass
+   * thru an IOException so that it can be addressed (most likely this means
+   * the reporter manager died and we need to restart it).
+   *
+   * @param suites The suites to send to the remote reporter manager.  On
+   *               return, contains the first suite that was not acknowledged
+   *               and the suites after it, in order.
+   *
+   * @throws ConfigurationException if insufficient data to connect to depot
+   * @throws CrypterException if trouble writing new version to suite on disk
+   * @throws IOException if trouble sending suites
+   * @throws InterruptedException if interrupted during send of suites
+   * @throws ProtocolException if the manager returned an error for a suite
+   */
+  public void sendSuites( Vector<SuiteDocument> suites )
+    throws ConfigurationException, CrypterException, IOException,
+           InterruptedException, ProtocolException {
+
+    if ( suites.size() < 1 ) return;
+
     // now an action is the sending of a suite -- first extract any
     // packages that may need to be sent ahead of time
-    sendReporters( extractReportersFromSuite( suiteDoc ) );
+    for ( SuiteDocument suiteDoc : suites ) {
+      sendReporters( extractReportersFromSuite( suiteDoc ) );
+    }
 
-    // Dependencies should be filled -- send the xml suite
-    if ( ! this.isRemoteManagerAlive() ) {
+    // Dependencies should be filled -- send the xml suites
+    if ( ! this.hasRecentContact() && ! this.isRemoteManagerAlive() ) {
       throw new IOException
         ( "Reporter manager " + resource +
-          " appears to be down...aborting send of suite " +
-          suiteDoc.getSuite().getName() );
+          " appears to be down...aborting send of " + suites.size() +
+          " suites" );
     }
 
     // Suitename has been modified to be unique so that we can remove it from
     // file easily even when unable to send to RM --
     // contains suiteName@timestamp -- change it back to the original
-    String suiteName, timestamp;
-    if ( suiteDoc.getSuite().getName().contains("@") ) {
-      String[] decrypt = suiteDoc.getSuite().getName().split("@");
-      suiteName = decrypt[0];
-      timestamp = "@" + decrypt[1];
-      suiteDoc.getSuite().setName( suiteName );
-    } else {
-      suiteName = suiteDoc.getSuite().getName();
-      timestamp = "";
-    }
-    this.managerClient.sendSuite( this.resource, suiteDoc );
-
-    // Suite successfully sent to RM -- now store it in committed dir
-    logger.debug( "Saving series to " + this.committedFile);
-    try {
-      SuiteWrapper committedSuite;
-      if ( committedFile.exists() ) {
-        committedSuite = new SuiteWrapper(committedFile.getAbsolutePath());
+    SuiteDocument[] toSend = suites.toArray( new SuiteDocument[suites.size()] );
+    String[] timestamps = new String[toSend.length];
+    for ( int i = 0; i < toSend.length; i++ ) {
+      Suite suite = toSend[i].getSuite();
+      if ( suite.getName().contains("@") ) {
+        String[] decrypt = suite.getName().split("@");
+        timestamps[i] = "@" + decrypt[1];
+        suite.setName( decrypt[0] );
       } else {
-        committedSuite = new SuiteWrapper();
-      }
-      committedSuite.copySuiteAttributes(suiteDoc);
-      for (SeriesConfig committedConfig :
-        suiteDoc.getSuite().getSeriesConfigs().getSeriesConfigArray() ) {
-        if ( committedConfig.getSchedule().isSetCron() ) {
-          committedSuite.mergeSeriesConfig( committedConfig );
-        }
+        timestamps[i] = "";
       }
-      committedSuite.save( committedFile.getAbsolutePath() );
-    } catch (XmlException e) {
-      logger.error( "Unable to open committed suite " + committedFile, e );
-      logger.error( "Writing suite to log " + suiteDoc.xmlText() );
-    }
-
-    // remove backup or move it to depot dir if unable to send to depot
-    String postFix = File.separator + suiteName + timestamp + "-" +
-                     suiteDoc.getSuite().getVersion() + ".xml";
-    File suiteBackup = new File(this.approvedSuites.getAbsolutePath()+postFix);
-    File depotBackup = new File(this.depotSuites.getAbsolutePath() + postFix );
-    if ( ! suiteBackup.exists() ) {
-      logger.error( "Unable to cleanup backup file " + suiteBackup.getAbsolutePath() );
     }
+    int committable = 0;
     try {
-      this.agent.updateSuiteOnDepot( suiteDoc );
-      // suite successfully sent to mananger and depot; remove backup
-      synchronized( this.approvedSuites ) {
-        suiteBackup.delete();
+      boolean[] acknowledged =
+        this.managerClient.sendSuites( this.resource, toSend );
+      while ( committable < toSend.length && acknowledged[committable] ) {
+        committable++;
       }
-    } catch (Exception e) {
-      synchronized( this.approvedSuites ) {
-        suiteDoc.save( suiteBackup );
-        suiteBackup.renameTo( depotBackup );
+    } finally {
+      // restore the unique names of the first suite that was not acknowledged
+      // and the suites after it so they can be sent again
+      suites.clear();
+      for ( int i = committable; i < toSend.length; i++ ) {
+        toSend[i].getSuite().setName
+          ( toSend[i].getSuite().getName() + timestamps[i] );
+        suites.add( toSend[i] );
       }
-    }    
+    }
+    for ( int i = 0; i < committable; i++ ) {
+      commitSuite( toSend[i], timestamps[i] );
+    }
+    if ( suites.size() > 0 ) {
+      throw new ProtocolException
+        ( "Reporter manager " + resource + " rejected suite " +
+          toSend[committable].getSuite().getName() + "; resending it and the " +
+          ( suites.size() - 1 ) + " suites after it" );
+    }
   }
 
   /**
@@ -951,6 +988,7 @@ public class ReporterManagerController  {
         );
       }
       needToShutdown = true;
+      this.work.wakeUp();
     } else {
       logger.warn( "Shutdown requested but manager " + resource + " is not running" );
 
@@ -1057,6 +1095,129 @@ public class ReporterManagerController  {
 
   /* Private functions */
 
+  /**
+   * Store a suite that was successfully sent to the reporter manager in the
+   * committed file, send it to the depot and remove its backup (or move the
+   * backup to the depot directory if unable to send it to the depot).
+   *
+   * @param suiteDoc   The suite that was sent to the reporter manager
+   * @param timestamp  The unique suffix of the suite's backup file name
+   *
+   * @throws IOException if unable to move the backup to the depot directory
+   */
+  private void commitSuite( SuiteDocument suiteDoc, String timestamp )
+    throws IOException {
+
+    String suiteName = suiteDoc.getSuite().getName();
+    // Suite successfully sent to RM -- now store it in committed dir
+    logger.debug( "Saving series to " + this.committedFile);
+    try {
+      SuiteWrapper committedSuite;
+      if ( committedFile.exists() ) {
+        committedSuite = new SuiteWrapper(committedFile.getAbsolutePath());
+      } else {
+        committedSuite = new SuiteWrapper();
+      }
+      committedSuite.copySuiteAttributes(suiteDoc);
+      for (SeriesConfig committedConfig :
+        suiteDoc.getSuite().getSeriesConfigs().getSeriesConfigArray() ) {
+        if ( committedConfig.getSchedule().isSetCron() ) {
+          committedSuite.mergeSeriesConfig( committedConfig );
+        }
+      }
+      committedSuite.save( committedFile.getAbsolutePath() );
+    } catch (XmlException e) {
+      logger.error( "Unable to open committed suite " + committedFile, e );
+      logger.error( "Writing suite to log " + suiteDoc.xmlText() );
+    }
+
+    // remove backup or move it to depot dir if unable to send to depot
+    String postFix = File.separator + suiteName + timestamp + "-" +
+                     suiteDoc.getSuite().getVersion() + ".xml";
+    File suiteBackup = new File(this.approvedSuites.getAbsolutePath()+postFix);
+    File depotBackup = new File(this.depotSuites.getAbsolutePath() + postFix );
+    if ( ! suiteBackup.exists() ) {
+      logger.error( "Unable to cleanup backup file " + suiteBackup.getAbsolutePath() );
+    }
+    try {
+      this.agent.updateSuiteOnDepot( suiteDoc );
+      // suite successfully sent to mananger and depot; remove backup
+      synchronized( this.approvedSuites ) {
+        suiteBackup.delete();
+      }
+    } catch (Exception e) {
+      synchronized( this.approvedSuites ) {
+        suiteDoc.save( suiteBackup );
+        suiteBackup.renameTo( depotBackup );
+      }
+    }    
+  }
+
+  /**
+   * Return whether we have heard from the reporter manager within the last
+   * ping period, in which case there is no need to ping it before sending.
+   *
+   * @return  True if a statement was received from the manager within the
+   * last ping period and false otherwise.
+   */
+  private boolean hasRecentContact() {
+    long quiet = Calendar.getInstance().getTimeInMillis() -
+                 this.managerClient.getLastContact();
+    return quiet < this.agent.getPingPeriod();
+  }
+
+  /**
+   * Send a batch of queued work to the remote reporter manager.  Queued
+   * packages are sent first (each package only once), then queued suites are
+   * sent together (see sendSuites).  Work is removed from the batch as it is
+   * completed so that the remaining work can be queued again on error.
+   *
+   * @param batch  The queued work to send
+   *
+   * @throws ConfigurationException if insufficient data to connect to depot
+   * @throws CrypterException if trouble writing new version to suite on disk
+   * @throws IOException if trouble sending work
+   * @throws InterruptedException if interrupted during send of work
+   * @throws ProtocolException if unexpected response to send request
+   */
+  private void sendBatch( Vector<WorkItem<ReporterManagerController>> batch )
+    throws ConfigurationException, CrypterException, IOException,
+           InterruptedException, ProtocolException {
+
+    Vector<SuiteDocument> suites = new Vector<SuiteDocument>();
+    HashSet<String> packagesSent = new HashSet<String>();
+    Iterator<WorkItem<ReporterManagerController>> it = batch.iterator();
+    while ( it.hasNext() ) {
+      WorkItem<ReporterManagerController> work = it.next();
+      if ( work instanceof SendSuite ) {
+        suites.add( ((SendSuite)work).getSuiteDocument() );
+        continue;
+      }
+      if ( work instanceof SendPackage &&
+           ! packagesSent.add(((SendPackage)work).getPackageName()) ) {
+        logger.debug
+          ( "Package " + ((SendPackage)work).getPackageName() +
+            " already sent in this batch to " + resource );
+      } else {
+        work.doWork( this );
+      }
+      it.remove();
+    }
+    try {
+      sendSuites( suites );
+    } finally {
+      Set<SuiteDocument> unsent = Collections.newSetFromMap
+        ( new IdentityHashMap<SuiteDocument,Boolean>() );
+      unsent.addAll( suites );
+      it = batch.iterator();
+      while ( it.hasNext() ) {
+        if ( ! unsent.contains(((SendSuite)it.next()).getSuiteDocument()) ) {
+          it.remove();
+        }
+      }
+    }
+  }
+
   /**
    * Create a new catalog file for the reporter manager.
    *
@@ -1089,9 +1250,10 @@ public class ReporterManagerController  {
   }
 
   /**
-   * Restart this reporter manager.  Since you cannot restart a thread we
-   * create a duplicate reporter manager object and execute its start method.
-   * We then replace the reporter manager in the reporter manager table.
+   * Restart this reporter manager.  Any start attempt in progress is
+   * stopped and a new starter is created in its place.  The new starter is
+   * started once the old one has exited, so this call does not wait for an
+   * interrupted attempt and can be made from the agent's pools.
    */
   public synchronized void restart() {
     if ( this.getReporterManagerStarter().isManual() ) return;
@@ -1105,20 +1267,41 @@ public class ReporterManagerController  {
         + " executing on resource " + resource + " has been restarted"
       );
     }
-    if ( this.rmStarter.isAlive() ) {
-      logger.info( "Attempting to shutdown existing starter thread" );
-      this.rmStarter.interrupt();
-      try {
-        this.rmStarter.join();
-        logger.info( "Completed shutdown of existing starter thread" );
-      } catch (InterruptedException e) {
-        logger.warn( "Interrupted while trying to shut down starter thread" );
-      }
+    ReporterManagerStarter oldStarter = this.rmStarter;
+    final ReporterManagerStarter newStarter =
+      new ReporterManagerStarter( resource, agent );
+    this.rmStarter = newStarter;
+    if ( oldStarter.isAlive() ) {
+      logger.info( "Attempting to shutdown existing starter" );
+      oldStarter.interrupt();
+      this.stoppingStarter = oldStarter;
     } else {
-      logger.debug( "No existing starter thread to shut down" );      
+      logger.debug( "No existing starter to shut down" );
+    }
+    if ( this.stoppingStarter != null && this.stoppingStarter.isAlive() ) {
+      this.stoppingStarter.whenStopped( new Runnable() {
+        public void run() {
+          startReplacement( newStarter );
+        }
+      });
+    } else {
+      this.stoppingStarter = null;
+      this.start();
+    }
+  }
+
+  /**
+   * Start a starter created by restart once the starter it replaced has
+   * exited, unless another restart has replaced it in the meantime.
+   *
+   * @param starter  The starter created by restart
+   */
+  private synchronized void startReplacement( ReporterManagerStarter starter ) {
+    logger.info( "Completed shutdown of existing starter" );
+    this.stoppingStarter = null;
+    if ( this.rmStarter == starter && ! needToShutdown ) {
+      this.start();
     }
-    this.rmStarter = new ReporterManagerStarter( resource, agent );
-    this.start();
   }
 
   /**
@@ -1154,7 +1337,7 @@ public class ReporterManagerController  {
     }
 
     // send package to RM
-    if ( ! this.isRemoteManagerAlive() ) {
+    if ( ! this.hasRecentContact() && ! this.isRemoteManagerAlive() ) {
       throw new IOException
         ( "Reporter manager " + resource +
           " appears to be down...aborting send of package " + pkg.getName() );
@@ -1168,17 +1351,19 @@ public class ReporterManagerController  {
       dependsToSend = StringMethods.join( " ", dependencies );
     }
     try {
-      this.managerClient.sendPackage(
-        pkg.getFilename(),
-        pkg.getInstallPath(),
-        pkg.getName(),
-        this.agent.getRepositoryCache().getPackageContent(
-          pkg.getName(), pkg.getVersion()
-        ),
-        pkg.getPermissions(),
-        dependsToSend,
-        pkg.getVersion()
-      );
+      if ( ! sendPackageByDigest(pkg, dependsToSend) ) {
+        this.managerClient.sendPackage(
+          pkg.getFilename(),
+          pkg.getInstallPath(),
+          pkg.getName(),
+          this.agent.getRepositoryCache().getPackageContent(
+            pkg.getName(), pkg.getVersion()
+          ),
+          pkg.getPermissions(),
+          dependsToSend,
+          pkg.getVersion()
+        );
+      }
       //update our package listing for this reporter
       int newIndex = catalog.getCatalog().sizeOfPackageArray();
       catalog.getCatalog().insertNewPackage( newIndex );
@@ -1195,4 +1380,55 @@ public class ReporterManagerController  {
 
   }
 
- }
+  /**
+   * Send the package to the remote reporter manager identified by the digest
+   * of its content.  The package content is only transferred if the manager
+   * does not already have it (e.g., under a different package version), and
+   * then is compressed, chunked, and resumed from where any earlier
+   * interrupted transfer left off.
+   *
+   * @param pkg  The package to send to the remote reporter manager
+   * @param dependsToSend  The dependencies (space delimited) of the package or
+   *                       null if no dependencies
+   *
+   * @return  False if the manager does not support content digests and the
+   * package should be sent with its content; true if the package was sent
+   *
+   * @throws IOException if problem sending package
+   * @throws ProtocolException if unexpected response from the manager
+   */
+  private boolean sendPackageByDigest( PackageType pkg, String dependsToSend )
+    throws IOException, ProtocolException {
+
+    if ( ! this.contentDigests ) return false;
+    RepositoryCache cache = this.agent.getRepositoryCache();
+    String digest = cache.getPackageDigest( pkg.getName(), pkg.getVersion() );
+    if ( digest == null ) return false;
+    long offset = this.managerClient.queryPackageContent( digest );
+    if ( offset == ManagerClient.CONTENT_UNSUPPORTED ) {
+      this.contentDigests = false;
+      return false;
+    }
+    if ( offset == ManagerClient.CONTENT_PRESENT ) {
+      logger.info
+        ( "Resource '" + resource + "' has content of package " +
+          pkg.getName() + "; skipping transfer" );
+    } else {
+      this.managerClient.sendPackageContent(
+        digest,
+        cache.getPackageContent( pkg.getName(), pkg.getVersion() ),
+        offset
+      );
+    }
+    this.managerClient.sendPackageByDigest(
+      pkg.getFilename(),
+      pkg.getInstallPath(),
+      pkg.getName(),
+      digest,
+      pkg.getPermissions(),
+      dependsToSend,
+      pkg.getVersion()
+    );
+    return true;
+  }
+}
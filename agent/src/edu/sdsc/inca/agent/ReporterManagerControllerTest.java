@@ -415,6 +415,42 @@ public class ReporterManagerControllerTest extends TestCase {
     return new SuiteWrapper( SuiteDocument.Factory.parse(suiteDoc) );
   }
 
+  /**
+   * Create a resource configuration with a single resource whose reporter
+   * manager is started using the sleep access method, so start attempts can
+   * be made to hang.
+   *
+   * @param resource  The name of the resource
+   *
+   * @return  A resource configuration containing the resource
+   *
+   * @throws Exception if trouble creating the resource configuration
+   */
+  public static ResourcesWrapper createSleepResources( String resource )
+    throws Exception {
+
+    String resourcesXml =
+      "<rc:resourceConfig xmlns:rc=\"http://inca.sdsc.edu/dataModel/resourceConfig_2.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
+      "  <resources>" +
+      "    <resource>\n" +
+      "      <name>" + resource + "</name>\n" +
+      "      <macros>\n" +
+      "        <macro>\n" +
+      "          <name>__remoteInvocationMethod__</name>\n" +
+      "          <value>sleep</value>\n" +
+      "        </macro>\n" +
+      "        <macro>\n" +
+      "          <name>__incaComputeServer__</name>\n" +
+      "          <value>localhost</value>\n" +
+      "        </macro>\n" +
+      "      </macros>\n" +
+      "    </resource>" +
+      "  </resources>\n" +
+      "</rc:resourceConfig>";
+    ResourceConfigDocument doc=ResourceConfigDocument.Factory.parse(resourcesXml);
+    return new ResourcesWrapper( doc );
+  }
+
   /**
    * Create a reporter manager object using the specified uri as the contact
    * to the agent.
@@ -870,26 +906,7 @@ public class ReporterManagerControllerTest extends TestCase {
    * @throws Exception  if trouble executing test
    */
   public void testInterrupt() throws Exception {
-    String resourcesXml =
-      "<rc:resourceConfig xmlns:rc=\"http://inca.sdsc.edu/dataModel/resourceConfig_2.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
-      "  <resources>" +
-      "    <resource>\n" +
-      "      <name>localhost-interrupt</name>\n" +
-      "      <macros>\n" +
-      "        <macro>\n" +
-      "          <name>__remoteInvocationMethod__</name>\n" +
-      "          <value>sleep</value>\n" +
-      "        </macro>\n" +
-      "        <macro>\n" +
-      "          <name>__incaComputeServer__</name>\n" +
-      "          <value>localhost</value>\n" +
-      "        </macro>\n" +
-     "      </macros>\n" +
-      "    </resource>" +
-      "  </resources>\n" +
-      "</rc:resourceConfig>";
-    ResourceConfigDocument doc=ResourceConfigDocument.Factory.parse(resourcesXml);
-    ResourcesWrapper resources =  new ResourcesWrapper(doc);
+    ResourcesWrapper resources = createSleepResources( "localhost-interrupt" );
 
     System.setProperty( "inca.interrupt.sleep", "60000" );
     String[] interruptedAt = new String[] {
@@ -1174,6 +1191,42 @@ public class ReporterManagerControllerTest extends TestCase {
     Thread.sleep( 15000 );
   }
 
+  /**
+   * Test that a restart does not wait for a start attempt in progress to
+   * exit and that the new starter is started once the old one has.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testRestartWhileStarting() throws Exception {
+    System.setProperty( "inca.interrupt.sleep", "60000" );
+    System.setProperty( "inca.interrupt.sleepOn", "0" );
+    ReporterManagerController rm = createRM
+      ( true, false, createSleepResources("localhost-restart"),
+        "localhost-restart" );
+    ReporterManagerStarter oldStarter = rm.getReporterManagerStarter();
+    rm.start();
+    Thread.sleep( 5000 );
+    assertTrue( "start attempt in progress", oldStarter.isAlive() );
+
+    long restartTime = System.currentTimeMillis();
+    rm.restart();
+    assertTrue(
+      "restart returned without waiting for start attempt",
+      System.currentTimeMillis() - restartTime < 5000
+    );
+    ReporterManagerStarter newStarter = rm.getReporterManagerStarter();
+    assertNotSame( "new starter created", oldStarter, newStarter );
+
+    oldStarter.join();
+    for ( int i = 0; i < 20 && ! newStarter.isAlive(); i++ ) {
+      Thread.sleep( 500 );
+    }
+    assertTrue( "new starter started after old exitted", newStarter.isAlive() );
+    newStarter.interrupt();
+    newStarter.join();
+    assertFalse( "new starter stopped", newStarter.isAlive() );
+  }
+
   /**
    * Test the ability to send reporters from a suite to a RM
    *
@@ -0,0 +1,200 @@
+package edu.sdsc.inca.agent;
+
+import org.apache.log4j.Logger;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import edu.sdsc.inca.Agent;
+
+/**
+ * Checks or upgrades the reporter manager installations on many resources
+ * concurrently.  Each resource is handled by one task, which tries the
+ * resource's equivalent hosts in turn until one succeeds.  The commands run
+ * on a host share one connection to the host.  An upgrade can take hours, so
+ * the tasks run on a pool of their own rather than the agent's worker pool,
+ * where they would hold up the periodic reporter manager checks (see
+ * AgentScheduler).  This class is thread-safe.
+ */
+public class ReporterManagerFleet {
+
+  private static Logger logger = Logger.getLogger( ReporterManagerFleet.class );
+
+  // Member variables
+  private Agent agent = null;
+
+  /**
+   * Creates a fleet for the agent's reporter managers.
+   *
+   * @param agent  The agent whose reporter managers are checked or upgraded
+   */
+  public ReporterManagerFleet( Agent agent ) {
+    this.agent = agent;
+  }
+
+  /**
+   * Check to see if the reporter manager has been staged to the specified
+   * resources.
+   *
+   * @param resources  The names of the resources to check
+   *
+   * @return  The number of resources with a good reporter manager install
+   *
+   * @throws InterruptedException if interrupted while checking resources
+   */
+  public int check( String[] resources ) throws InterruptedException {
+    Vector<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+    for ( final String resource : resources ) {
+      tasks.add( new Callable<Boolean>() {
+        public Boolean call() throws Exception {
+          return check( resource );
+        }
+      });
+    }
+    return runAll( resources, tasks, "check" );
+  }
+
+  /**
+   * Upgrade the reporter manager distributions on the specified resources.
+   *
+   * @param resources  The names of the resources to upgrade
+   * @param targets    The makefile targets to execute for the upgrade
+   *
+   * @return  The number of resources that were successfully upgraded
+   *
+   * @throws InterruptedException if interrupted while upgrading resources
+   */
+  public int upgrade( String[] resources, final String targets )
+    throws InterruptedException {
+
+    Vector<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+    for ( final String resource : resources ) {
+      tasks.add( new Callable<Boolean>() {
+        public Boolean call() throws Exception {
+          return upgrade( resource, targets );
+        }
+      });
+    }
+    return runAll( resources, tasks, "upgrade" );
+  }
+
+  // Private Functions
+
+  /**
+   * Check the reporter manager install on a single resource using the first
+   * reachable host.
+   *
+   * @param resource  The name of the resource
+   *
+   * @return  True if the reporter manager is staged and false otherwise
+   *
+   * @throws Exception  if unable to check the resource
+   */
+  private boolean check( String resource ) throws Exception {
+    logger.info( "Checking reporter manager on resource " + resource );
+    String desc = "Reporter manager stage on resource " + resource + ":";
+    ReporterManagerStarter rmStarter =
+      new ReporterManagerStarter( resource, this.agent );
+    for ( int j = 0; j < rmStarter.getEquivalentHosts().length; j++ ) {
+      AccessMethod handle = rmStarter.getProcessHandle();
+      try {
+        handle.openConnection();
+        if ( rmStarter.isStaged() ) {
+          logger.info( desc + " good" );
+          return true;
+        }
+      } catch ( AccessMethodException e ) {
+        logger.error
+          ( "Unable to reach host " + rmStarter.getCurrentHost(), e );
+      } finally {
+        handle.closeConnection();
+      }
+      rmStarter.nextHost();
+    }
+    logger.error( desc + " bad" );
+    return false;
+  }
+
+  /**
+   * Upgrade the reporter manager on a single resource using the first host
+   * that the upgrade succeeds on.
+   *
+   * @param resource  The name of the resource
+   * @param targets   The makefile targets to execute for the upgrade
+   *
+   * @return  True if the upgrade succeeded and false otherwise
+   *
+   * @throws Exception  if unable to upgrade the resource
+   */
+  private boolean upgrade( String resource, String targets ) throws Exception {
+    logger.info( "Upgrading reporter manager on resource '" + resource + "'" );
+    ReporterManagerStarter rmStarter =
+      new ReporterManagerStarter( resource, this.agent );
+    for ( int j = 0; j < rmStarter.getEquivalentHosts().length; j++ ) {
+      AccessMethod handle = rmStarter.getProcessHandle();
+      try {
+        handle.openConnection();
+        rmStarter.findBashLoginShellOption();
+        rmStarter.stage( targets );
+        logger.info( "Upgrade on resource '" + resource + "' completed" );
+        return true;
+      } catch ( InterruptedException e ) {
+        throw e;
+      } catch ( Exception e ) {
+        logger.error(
+          "Attempt to upgrade resource " + resource +
+          " failed using host " + rmStarter.getCurrentHost(), e
+        );
+      } finally {
+        handle.closeConnection();
+      }
+      rmStarter.nextHost();
+    }
+    logger.error( "Upgrade on resource '" + resource + "' failed" );
+    return false;
+  }
+
+  /**
+   * Run one task per resource on a pool created for the run, with as many
+   * threads as the agent has workers, and count the tasks that succeeded.
+   *
+   * @param resources  The names of the resources
+   * @param tasks      The task for each resource
+   * @param action     A description of the tasks for log messages
+   *
+   * @return  The number of tasks that returned true
+   *
+   * @throws InterruptedException if interrupted while waiting for the tasks
+   */
+  private int runAll( String[] resources, Vector<Callable<Boolean>> tasks,
+                      String action ) throws InterruptedException {
+
+    int numThreads = this.agent.getScheduler().getWorkers();
+    logger.debug
+      ( "Running " + action + " on " + tasks.size() + " resources using " +
+        numThreads + " threads" );
+    ThreadPoolExecutor pool =
+      AgentScheduler.createPool( "rm-fleet-" + action, numThreads );
+    int numSuccessful = 0;
+    int i = 0;
+    try {
+      for ( Future<Boolean> result : pool.invokeAll(tasks) ) {
+        String resource = resources[i++];
+        try {
+          if ( result.get() ) {
+            numSuccessful++;
+          }
+        } catch ( ExecutionException e ) {
+          logger.error
+            ( "Unable to " + action + " resource " + resource, e.getCause() );
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return numSuccessful;
+  }
+}
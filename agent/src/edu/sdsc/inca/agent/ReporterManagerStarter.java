@@ -22,7 +22,11 @@ import java.util.Vector;
 import java.util.Calendar;
 import java.util.Arrays;
 import java.util.regex.Pattern;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.io.*;
+import java.util.zip.GZIPOutputStream;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.GeneralSecurityException;
 import java.security.cert.X509Certificate;
@@ -40,15 +44,21 @@ import edu.sdsc.inca.Agent;
 
 /**
  * Handles the creation of a remote reporter manager process on a specified
- * resource.
+ * resource.  The starter does not have a thread of its own.  Each attempt to
+ * start the reporter manager on one of the resource's hosts runs as a task on
+ * the agent's start pool, and waiting for the reporter manager to register or
+ * for the next round of attempts is done with timer events, so a starter
+ * only occupies a thread while it is staging or creating the remote process.
  *
  * @author Shava Smallen &lt;ssmallen@sdsc.edu&gt;
  */
-public class ReporterManagerStarter extends Thread {
+public class ReporterManagerStarter {
 
   // Constants -- directories and temporary files
   final static public String RMBUILDSCRIPT = "buildRM.sh";
+  final static public String RMBUNDLE = "Inca-ReporterManager-stage.tar.gz";
   final static public String RMCERT = "rmcert.pem";
+  final static public String RMDIGEST = "Inca-ReporterManager.sha256";
   final static public String RMDIST = "Inca-ReporterManager.tar.gz";
   final static public String RMKEY = "rmkey.pem";
   final static public String RMREQ = "rmreq.pem";
@@ -62,14 +72,21 @@ public class ReporterManagerStarter extends Thread {
 
   final static protected int DEFAULT_AGE = 5; // years
   private static Logger logger = Logger.getLogger(ReporterManagerStarter.class);
+  private static String rmDistDigest = null;
 
   // Member variables -- to start remote reporter manager
+  private boolean           active = false;
   private Agent             agent = null;
+  private boolean           attemptMade = false;
+  private boolean           attemptRunning = false;
+  private boolean           awaitingRegistration = false;
   private String            bashLoginOption = null;
   private String[]          equivHosts = new String[0];
   private String            host = null;
   private int               hostId = 0;
   private boolean           isRunning = false;
+  private Runnable          onStop = null;
+  private Future<?>         pending = null;
   private AccessMethod      processHandle = null;
   private String            resource = null;
   private String            rmRootPath = null;
@@ -93,9 +110,6 @@ public class ReporterManagerStarter extends Thread {
    * @param agent    Path to a location where temporary/state files can be
    */
   public ReporterManagerStarter( String resource, Agent agent ) {
-    // name the thread
-    super( resource );
-
     this.resource = resource;
     this.agent = agent;
     this.setTempDir( agent.getTempPath() );
@@ -110,9 +124,6 @@ public class ReporterManagerStarter extends Thread {
    * configure this reporter manager starter object.
    */
   public ReporterManagerStarter( ReporterManagerStarter rmStarter ) {
-    // name the thread
-    super( rmStarter.resource );
-
     this.agent = rmStarter.agent;
     this.bashLoginOption = rmStarter.bashLoginOption;
     this.caSerialNumber = rmStarter.caSerialNumber;
@@ -372,75 +383,72 @@ public class ReporterManagerStarter extends Thread {
   }
 
   /**
-   * Starts a thread to create the reporter manager on the remote resource.  If
-   * there is more than one host, it will choose the first one that it can
-   * successfully create a reporter manager on.  If unable to create a
-   * reporter manager on any resource, will wait 10 minutes and then try again.
+   * Stop starting the reporter manager.  An attempt that is waiting for a
+   * thread is dropped and one in progress is interrupted.  Use join or
+   * whenStopped to wait for an interrupted attempt to exit.
    */
-  @Override
-  public void run() {
+  public synchronized void interrupt() {
+    if ( ! this.active ) return;
+    logger.info( "Stopping start of reporter manager " + resource );
+    if ( this.pending != null ) {
+      this.pending.cancel( true );
+    }
+    this.finish();
+  }
 
-    logger.debug( "Start remote reporter manager thread for " + resource );
-    try {
-      while( true ) {
-        boolean atLeastOneCreateAttempt = false;
-        logger.debug( "Looking for host to start " + resource + " reporter manager from " + StringMethods.join( " | ", this.equivHosts) );
-        for ( int i = 0; i < this.equivHosts.length; i++ ) {
-          this.setStartAttemptTimeNow();
-          try {
-            if ( i != 0 ) {
-              this.nextHost();
-            } else {
-              this.setHost( 0 );
-            }
-          } catch ( ConfigurationException e ) {
-            logger.error("Host configuration for " + this.host + " failed",e);
-            continue;
-          }
-          String desc = "start reporter manager on " + this.resource +
-                        " using host " + this.host;
-          logger.info("Attempting to " + desc );
-          try {
-            if ( ! this.isManual() ) {
-              if ( this.bashLoginOption == null ) findBashLoginShellOption();
-              if ( ! this.isStaged() ) this.stage( null );
-              this.create();
-            }
-            this.setStartAttemptComplete(); // before wait if no exceptions
-            atLeastOneCreateAttempt = true;
-            if ( this.waitForReporterManager() ) return;
-          } catch ( InterruptedException e ) {
-            throw e;
-          } catch ( ReporterManagerException e ) {
-            logger.error( "Unable to " + desc + ": " + e, e );
-          } catch ( AccessMethodException e ) {
-            logger.error( "Unable to " + desc + ": " + e, e );
-          } catch( Throwable t ) {
-            logger.error
-              ( "Catching unknown exception; unable to " + desc + ":" + t, t );
-          } finally {
-            this.setStartAttemptComplete();
-          }
-        }
-        if ( ! atLeastOneCreateAttempt ) {
-          synchronized( this ) {
-            logger.info(
-              "Tried all equivalent hosts for resource " + resource +
-              "...waiting " + this.agent.getStartAttemptWaitPeriod() +
-              " milliseconds before next start attempt"
-            );
-            this.wait( this.agent.getStartAttemptWaitPeriod() );
-          }
-        }
-      }
-    } catch ( InterruptedException e ) {
-      logger.error(
-        "Caught interrupt while attempting to start reporter manager...exitting",
-        e
-      );
+  /**
+   * Returns true if the starter has been started and has neither seen the
+   * reporter manager register nor been interrupted, or if an interrupted
+   * start attempt has not exited yet.
+   *
+   * @return  True if the starter is active and false otherwise.
+   */
+  public synchronized boolean isAlive() {
+    return this.active || this.attemptRunning;
+  }
+
+  /**
+   * Wait for the starter to stop, either because the reporter manager has
+   * registered or because the starter was interrupted and its start attempt
+   * has exited.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized void join() throws InterruptedException {
+    while ( this.isAlive() ) {
+      this.wait();
     }
   }
 
+  /**
+   * Begin creating the reporter manager on the remote resource.  If there is
+   * more than one host, it will choose the first one that it can successfully
+   * create a reporter manager on.  If unable to create a reporter manager on
+   * any resource, will wait startAttemptWaitPeriod and then try again.  This
+   * call returns immediately; the attempts run on the agent's start pool.
+   */
+  public synchronized void start() {
+    if ( this.isAlive() ) return;
+    logger.debug( "Start remote reporter manager for " + resource );
+    this.active = true;
+    this.attemptMade = false;
+    this.scheduleAttempt( 0, 0 );
+  }
+
+  /**
+   * Run a task on the agent's worker pool once the starter has stopped, i.e.,
+   * once isAlive returns false.  Unlike join, this returns immediately, so
+   * callers on the agent's pools can wait for an interrupted start attempt
+   * to exit without holding a thread.  A later call replaces a task that has
+   * not run yet.
+   *
+   * @param task  The task to run when the starter has stopped
+   */
+  public synchronized void whenStopped( Runnable task ) {
+    this.onStop = task;
+    this.stopped();
+  }
+
   /**
    * Set the resources document referenced by the reporter manager.
    */
@@ -498,6 +506,10 @@ public class ReporterManagerStarter extends Thread {
       logger.debug
         ("Set reporter manager " + resource + " status to running " +isRunning);
       this.isRunning = isRunning;
+      if ( isRunning && this.awaitingRegistration ) {
+        this.pending.cancel( false );
+        this.registered();
+      }
       notifyAll(); // notify anybody who may be waiting on this
     }
   }
@@ -519,8 +531,11 @@ public class ReporterManagerStarter extends Thread {
 
   /**
    * Stage the Reporter Manager distribution over to the remote resource.
-   * Will first put over the reporter manager tarball and build script,
-   * invoke the build script, and wait for completion.
+   * Will first put over a single bundle containing the reporter manager
+   * tarball, build script and trusted certificates, then unpack the bundle
+   * and invoke the build script in one remote command and wait for
+   * completion.  The reporter manager tarball is left out of the bundle if
+   * the same distribution (by digest) was already staged to the resource.
    *
    * @param upgrade  If not null, runs the buildRM.sh script with the upgrade
    *                 option turned on. Otherwise a regular full install is done.
@@ -540,28 +555,18 @@ public class ReporterManagerStarter extends Thread {
     // The reporter manager distribution and build script are stored in the
     // classpath (more specifically in inca-agent.jar).  So, we need to
     // extract them in order to have a valid path to give to the access method
-    // copy functions.  We also need to grab the trusted certificates.
-    String tmpRmDistPath = null;
-    String tmpRmBuildScriptPath = null;
-    String[] trustedFiles = new String[0];
+    // copy functions.  We also need to grab the trusted certificates.  All
+    // of them are bundled into one file so they are sent in one transfer.
+    String tmpRmBundlePath = null;
     try {
-      tmpRmDistPath = writeClasspathResourceToFile( RMDIST, this.tempDir );
-      tmpRmBuildScriptPath = writeClasspathResourceToFile(
-        RMBUILDSCRIPT, this.tempDir
-      );
-      if ( this.agent.hasCredentials() ) {
-        trustedFiles = writeTrustedCertsToTempDir();
-      }
+      tmpRmBundlePath = writeStageBundle( ! isDistStaged() );
     } catch ( IOException e ) {
       throw new ReporterManagerException(
         "Problem writing reporter manager dist files to temporary directory", e
       );
     }
     try {
-      Vector<String> files = new Vector<String>();
-      files.addAll( Arrays.asList(trustedFiles) );
-      files.add( tmpRmDistPath ); files.add( tmpRmBuildScriptPath );
-      processHandle.put( files.toArray(new String[files.size()]), rmRootPath );
+      processHandle.put( tmpRmBundlePath, rmRootPath );
       build( upgrade );
       if ( this.agent.hasCredentials() ) { generateRmCredentials(); }
     } catch ( AccessMethodException e ) {
@@ -657,8 +662,10 @@ public class ReporterManagerStarter extends Thread {
   // Private Functions
 
   /**
-   * Run the build script on the remote resource using the method specified
-   * in the resource configuration file.  The call to the build script is as
+   * Unpack the stage bundle and run the build script on the remote resource
+   * using the method specified in the resource configuration file.  If the
+   * bundle did not include the reporter manager tarball, the one left by the
+   * previous build is recompressed.  The call to the build script is as
    * follows:
    *
    * <pre>
@@ -677,11 +684,16 @@ public class ReporterManagerStarter extends Thread {
   private void build( String upgrade )
     throws InterruptedException, AccessMethodException {
 
-    String[] arguments = upgrade == null ?
-      new String[]{ this.bashLoginOption, rmRootPath + "/" + RMBUILDSCRIPT,
-                    rmRootPath, RMDIST, } :
-      new String[]{ this.bashLoginOption, rmRootPath + "/" + RMBUILDSCRIPT,
-                    "-u", upgrade, rmRootPath, RMDIST, };
+    String rmTar = RMDIST.replaceFirst( "\\.gz$", "" );
+    String buildCmd =
+      "( cd " + rmRootPath + " && gzip -dc " + RMBUNDLE + " | tar xf - && " +
+      "rm -f " + RMBUNDLE + " && " +
+      "{ test -f " + RMDIST + " || gzip -f " + rmTar + "; } ) && " +
+      "/bin/bash " + rmRootPath + "/" + RMBUILDSCRIPT +
+      ( upgrade == null ? "" : " -u '" + upgrade + "'" ) +
+      " " + rmRootPath + " " + RMDIST;
+    String[] arguments =
+      new String[]{ this.bashLoginOption, "-c", buildCmd };
 
     logger.info( "Invoking build script on '" + resource + "'" );
     AccessMethodOutput result = processHandle.run( "/bin/bash", arguments );
@@ -880,6 +892,170 @@ public class ReporterManagerStarter extends Thread {
     this.suspend = resources.getValue( this.host, Protocol.SUSPEND_MACRO);
   }
 
+  /**
+   * Return the SHA-256 digest of the reporter manager distribution in the
+   * classpath.  The digest is computed once per agent.
+   *
+   * @return  A hex string containing the digest of the distribution
+   *
+   * @throws IOException  If unable to read the distribution from the classpath
+   */
+  private static synchronized String getRmDistDigest() throws IOException {
+    if ( rmDistDigest != null ) {
+      return rmDistDigest;
+    }
+    InputStream resourceStream = Component.openResourceStream( RMDIST );
+    if ( resourceStream == null ) {
+      throw new IOException( RMDIST + " not found in classpath" );
+    }
+    try {
+      MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+      byte[] buffer = new byte[8192];
+      for (;;)  {
+        int nBytes = resourceStream.read(buffer);
+        if (nBytes <= 0) break;
+        md.update(buffer, 0, nBytes);
+      }
+      StringBuffer hex = new StringBuffer();
+      for ( byte b : md.digest() ) {
+        hex.append( String.format("%02x", b) );
+      }
+      rmDistDigest = hex.toString();
+    } catch ( GeneralSecurityException e ) {
+      throw new IOException( "Unable to compute digest of " + RMDIST, e );
+    } finally {
+      resourceStream.close();
+    }
+    return rmDistDigest;
+  }
+
+  /**
+   * Checks whether the reporter manager distribution the agent would stage
+   * is already on the remote resource, i.e., the digest recorded by the last
+   * stage matches and the tarball left by the build script is still there.
+   *
+   * @return  True if the distribution does not need to be sent again and
+   * false otherwise.
+   *
+   * @throws InterruptedException if interrupted while checking the resource
+   */
+  private boolean isDistStaged() throws InterruptedException {
+    if ( this.isManual() ) {
+      return false;
+    }
+    String rmTar = RMDIST.replaceFirst( "\\.gz$", "" );
+    try {
+      AccessMethodOutput result = processHandle.run( "/bin/sh", new String[] {
+        "-c", "test -f " + rmTar + " && cat " + RMDIGEST
+      }, "", rmRootPath );
+      if ( getRmDistDigest().equals(result.getStdout().trim()) ) {
+        logger.info( "Reporter manager distribution already on " + resource );
+        return true;
+      }
+    } catch ( AccessMethodException e ) {
+      logger.debug( "Unable to read distribution digest on " + resource, e );
+    } catch ( IOException e ) {
+      logger.warn( "Unable to compute reporter manager digest", e );
+    }
+    return false;
+  }
+
+  /**
+   * Append a file to a tar archive using the ustar format.
+   *
+   * @param tar   The stream to write the tar archive to
+   * @param name  The name of the file in the archive (less than 100 chars)
+   * @param data  The contents of the file
+   *
+   * @throws IOException  If unable to write to the archive
+   */
+  private static void writeTarEntry( OutputStream tar, String name,
+                                     byte[] data ) throws IOException {
+    byte[] header = new byte[512];
+    writeTarField( header, 0, 100, name );
+    writeTarField( header, 100, 8, String.format("%07o", 0644) );
+    writeTarField( header, 108, 8, String.format("%07o", 0) );
+    writeTarField( header, 116, 8, String.format("%07o", 0) );
+    writeTarField( header, 124, 12, String.format("%011o", data.length) );
+    writeTarField( header, 136, 12,
+      String.format("%011o", System.currentTimeMillis() / 1000) );
+    Arrays.fill( header, 148, 156, (byte)' ' );
+    header[156] = '0';
+    writeTarField( header, 257, 6, "ustar" );
+    writeTarField( header, 263, 2, "00" );
+    int checksum = 0;
+    for ( byte b : header ) {
+      checksum += b & 0xff;
+    }
+    writeTarField( header, 148, 7, String.format("%06o", checksum) );
+    tar.write( header );
+    tar.write( data );
+    tar.write( new byte[(512 - data.length % 512) % 512] );
+  }
+
+  /**
+   * Copy an ASCII string into a tar header field.
+   *
+   * @param header  The tar header
+   * @param offset  The offset of the field in the header
+   * @param length  The length of the field
+   * @param value   The value to write to the field
+   */
+  private static void writeTarField( byte[] header, int offset, int length,
+                                     String value ) {
+    byte[] bytes = value.getBytes();
+    System.arraycopy( bytes, 0, header, offset,
+                      Math.min(bytes.length, length) );
+  }
+
+  /**
+   * Write the files needed to stage the reporter manager (build script,
+   * trusted certificates, distribution and its digest) to a single gzipped
+   * tar file in the temporary directory.  The digest is written last so it
+   * is only unpacked on the remote resource if the rest of the bundle was.
+   *
+   * @param includeDist  If false, the reporter manager distribution is left
+   *                     out of the bundle
+   *
+   * @return The path to the bundle.
+   *
+   * @throws IOException  If unable to write the bundle
+   */
+  private String writeStageBundle( boolean includeDist ) throws IOException {
+    Vector<String> files = new Vector<String>();
+    files.add( writeClasspathResourceToFile(RMBUILDSCRIPT, this.tempDir) );
+    if ( this.agent.hasCredentials() ) {
+      files.addAll( Arrays.asList(writeTrustedCertsToTempDir()) );
+    }
+    if ( includeDist ) {
+      files.add( writeClasspathResourceToFile(RMDIST, this.tempDir) );
+    }
+
+    String path = this.tempDir + File.separator + RMBUNDLE;
+    logger.info( "Writing " + RMBUNDLE + " to " + this.tempDir );
+    OutputStream tar = new GZIPOutputStream(
+      new BufferedOutputStream(new FileOutputStream(path))
+    );
+    try {
+      for ( String file : files ) {
+        File f = new File( file );
+        byte[] data = new byte[(int)f.length()];
+        DataInputStream in = new DataInputStream( new FileInputStream(f) );
+        try {
+          in.readFully( data );
+        } finally {
+          in.close();
+        }
+        writeTarEntry( tar, f.getName(), data );
+      }
+      writeTarEntry( tar, RMDIGEST, (getRmDistDigest() + "\n").getBytes() );
+      tar.write( new byte[1024] );
+    } finally {
+      tar.close();
+    }
+    return path;
+  }
+
   /**
    * Write the loaded trusted certificates to file so that they can be
    * transferred over to the reporter manager.
@@ -959,4 +1135,224 @@ public class ReporterManagerStarter extends Thread {
     return certPath;
   }
 
+
+  /**
+   * Attempt to start the reporter manager using the specified host.  Runs on
+   * the agent's start pool, so the number of concurrent staging and start
+   * sessions is bounded no matter how many reporter managers are being
+   * started.  The commands run during the attempt share one connection to
+   * the resource.  Rather than waiting for the reporter manager to register,
+   * the attempt schedules a deadline after which the next host is tried.
+   *
+   * @param hostIndex  The position of the host in the list of equivalent
+   *                   hosts
+   */
+  private void attemptStart( int hostIndex ) {
+    synchronized( this ) {
+      if ( ! this.active ) return;
+      this.attemptRunning = true;
+    }
+    boolean attempted = false;
+    try {
+      if ( hostIndex == 0 ) {
+        logger.debug( "Looking for host to start " + resource + " reporter manager from " + StringMethods.join( " | ", this.equivHosts) );
+      }
+      this.setStartAttemptTimeNow();
+      if ( hostIndex != 0 ) {
+        this.nextHost();
+      } else {
+        this.setHost( 0 );
+      }
+      String desc = "start reporter manager on " + this.resource +
+                    " using host " + this.host;
+      logger.info("Attempting to " + desc );
+      try {
+        if ( ! this.isManual() ) {
+          processHandle.openConnection();
+          try {
+            if ( bashLoginOption == null ) findBashLoginShellOption();
+            if ( ! isStaged() ) stage( null );
+            create();
+          } finally {
+            processHandle.closeConnection();
+          }
+        }
+        attempted = true;
+      } catch ( InterruptedException e ) {
+        logger.error(
+          "Caught interrupt while attempting to start reporter manager...exitting",
+          e
+        );
+        synchronized( this ) {
+          this.finish();
+        }
+        return;
+      } catch ( ReporterManagerException e ) {
+        logger.error( "Unable to " + desc + ": " + e, e );
+      } catch ( AccessMethodException e ) {
+        logger.error( "Unable to " + desc + ": " + e, e );
+      } catch( Throwable t ) {
+        logger.error
+          ( "Catching unknown exception; unable to " + desc + ":" + t, t );
+      }
+    } catch ( ConfigurationException e ) {
+      logger.error("Host configuration for " + this.host + " failed",e);
+    } finally {
+      this.setStartAttemptComplete();
+      synchronized( this ) {
+        this.attemptRunning = false;
+        this.notifyAll();
+        this.stopped();
+      }
+    }
+    if ( attempted ) {
+      this.awaitRegistration( hostIndex );
+    } else {
+      this.tryNextHost( hostIndex );
+    }
+  }
+
+  /**
+   * Wait up to startAttemptWaitPeriod milliseconds for the reporter manager
+   * to register after a start attempt, then try the next host.  The wait is
+   * a timer event that is cancelled if the reporter manager registers.
+   *
+   * @param hostIndex  The position of the host that was attempted
+   */
+  private synchronized void awaitRegistration( final int hostIndex ) {
+    if ( ! this.active ) return;
+    this.attemptMade = true;
+    if ( this.isRunning() ) {
+      this.registered();
+      return;
+    }
+    logger.info(
+      "Waiting up to " + (this.agent.getStartAttemptWaitPeriod()/Constants.MILLIS_TO_SECOND) +
+      " secs for reporter manager " + resource + " to check in"
+    );
+    this.awaitingRegistration = true;
+    try {
+      this.pending = this.agent.getScheduler().schedule( new Runnable() {
+        public void run() {
+          registrationTimedOut( hostIndex );
+        }
+      }, this.agent.getStartAttemptWaitPeriod() );
+    } catch ( RejectedExecutionException e ) {
+      logger.debug( "Agent shutting down; not waiting for " + resource );
+      this.finish();
+    }
+  }
+
+  /**
+   * Mark the starter as stopped and wake anyone waiting for it.  Must be
+   * called while holding the starter's lock.
+   */
+  private void finish() {
+    this.active = false;
+    this.awaitingRegistration = false;
+    this.pending = null;
+    this.notifyAll();
+    this.stopped();
+  }
+
+  /**
+   * Stop the starter because the reporter manager has registered.  Must be
+   * called while holding the starter's lock.
+   */
+  private void registered() {
+    logger.info(
+      "Remote reporter manager registered for " + resource +
+      "; start up complete"
+    );
+    this.finish();
+  }
+
+  /**
+   * Called when the reporter manager has not registered within
+   * startAttemptWaitPeriod milliseconds of a start attempt.
+   *
+   * @param hostIndex  The position of the host that was attempted
+   */
+  private void registrationTimedOut( int hostIndex ) {
+    synchronized( this ) {
+      if ( ! this.awaitingRegistration ) return;
+      this.awaitingRegistration = false;
+      logger.debug(
+        "Reporter manager " + resource + " has not checked in after " +
+        + (this.agent.getStartAttemptWaitPeriod()/Constants.MILLIS_TO_SECOND)
+        + " secs; trying again"
+      );
+    }
+    this.tryNextHost( hostIndex );
+  }
+
+  /**
+   * Queue an attempt to start the reporter manager on the start pool, unless
+   * the starter has been stopped.
+   *
+   * @param hostIndex  The position of the host to attempt
+   * @param delay  The time in milliseconds to wait before queueing it
+   */
+  private synchronized void scheduleAttempt( final int hostIndex, long delay ) {
+    if ( ! this.active ) return;
+    AgentScheduler scheduler = this.agent.getScheduler();
+    try {
+      if ( delay > 0 ) {
+        this.pending = scheduler.schedule( new Runnable() {
+          public void run() {
+            scheduleAttempt( hostIndex, 0 );
+          }
+        }, delay );
+      } else {
+        this.pending = scheduler.submitStart( new Runnable() {
+          public void run() {
+            attemptStart( hostIndex );
+          }
+        });
+      }
+    } catch ( RejectedExecutionException e ) {
+      logger.debug( "Agent shutting down; not starting " + resource );
+      this.finish();
+    }
+  }
+
+  /**
+   * Hand the task registered with whenStopped to the worker pool if the
+   * starter is no longer alive.  Must be called while holding the starter's
+   * lock.
+   */
+  private void stopped() {
+    if ( this.onStop == null || this.isAlive() ) return;
+    Runnable task = this.onStop;
+    this.onStop = null;
+    try {
+      this.agent.getScheduler().submit( task );
+    } catch ( RejectedExecutionException e ) {
+      logger.debug( "Agent shutting down; dropping stop task for " + resource );
+    }
+  }
+
+  /**
+   * Move on to the next equivalent host after an attempt failed or the
+   * reporter manager did not register.  After the last host, start over
+   * with the first one; if no attempt could be made on any host, wait
+   * startAttemptWaitPeriod milliseconds first.
+   *
+   * @param hostIndex  The position of the host that was attempted
+   */
+  private synchronized void tryNextHost( int hostIndex ) {
+    if ( hostIndex + 1 < this.equivHosts.length ) {
+      this.scheduleAttempt( hostIndex + 1, 0 );
+    } else if ( this.attemptMade ) {
+      this.attemptMade = false;
+      this.scheduleAttempt( 0, 0 );
+    } else {
+      logger.info(
+        "Tried all equivalent hosts for resource " + resource +
+        "...waiting " + this.agent.getStartAttemptWaitPeriod() +
+        " milliseconds before next start attempt"
+      );
+      this.scheduleAttempt( 0, this.agent.getStartAttemptWaitPeriod() );
+    }
+  }
 }
@@ -4,8 +4,11 @@ import org.apache.log4j.Logger;
 
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Enumeration;
 import java.util.Calendar;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 
 import edu.sdsc.inca.util.Constants;
 import edu.sdsc.inca.Agent;
@@ -14,19 +17,21 @@ import edu.sdsc.inca.Agent;
  * Convenience class for storing and tracking reporter managers.  This wraps a
  * Hashtable and provides functions specifically for working with reporter
  * manager objects (e.g., you don't have to cast an object after getting it).
- * It also is a thread that checks the viability of reporter managers.  In the
- * case that a reporter manager starter thread gets stuck, this thread will
- * force a restart.  This class is thread-safe.
+ * It also periodically checks the viability of reporter managers using the
+ * agent's scheduler.  In the case that a reporter manager starter gets
+ * stuck, the check will force a restart.  This class is thread-safe.
  *
  * @author Shava Smallen &lt;ssmallen@sdsc.edu&gt;
  */
-public class ReporterManagerTable  extends Thread {
+public class ReporterManagerTable {
   // static variables
   public static long MAX_START_TIME = Constants.MILLIS_TO_HOUR;
   private static Logger logger = Logger.getLogger( ReporterManagerTable.class );
 
   // member variables
   private int checkPeriod = Agent.PING_PERIOD;
+  private ScheduledFuture<?> checks = null;
+  private Set<String> checking = ConcurrentHashMap.newKeySet();
   private Hashtable rms = new Hashtable();
 
   /**
@@ -52,7 +57,7 @@ public class ReporterManagerTable  extends Thread {
   }
 
   /**
-   * Get the frequency of which this thread should check the health of the
+   * Get the frequency of which the table should check the health of the
    * reporter managers.
    *
    * @return  The period in milliseconds.
@@ -98,76 +103,120 @@ public class ReporterManagerTable  extends Thread {
   }
 
   /**
-   * Check all reporter manager periodically to see if they are still running.
-   * If the rm.isRunning flag is false, we know there is no remote reporter
-   * manager running.  In that case, either
+   * Check all reporter managers to see if they are still running.  Each
+   * reporter manager is checked on the agent's worker pool so that a slow
+   * restart of one does not hold up the checks of the others.  The checks
+   * are handed off without waiting for them, so this can be called from the
+   * agent's timer; a reporter manager whose previous check has not completed
+   * is skipped.  If the rm.isRunning flag is false, we know there is no
+   * remote reporter manager running.  In that case, either
    *
-   * 1) the reporter manager's starter thread is running and we just need to
+   * 1) the reporter manager's starter is running and we just need to
    * give it time to do start up a remote reporter manager,
    *
-   * 2) the reporter manager's starter thread is running but is blocked on
+   * 2) the reporter manager's starter is running but is blocked on
    * a call and needs to be timed out, or
    *
-   * 3) the reporter manager starter thread is not running in which case we
+   * 3) the reporter manager starter is not running in which case we
    * can start up a new one.
    *
-   * We are ignoring (2) until we have more experience with the nature of
-   * reporter managers not getting restarted automatically.
+   * @param scheduler  The scheduler whose worker pool runs the checks
    */
-  public void run() {
-    try {
-      logger.info(
-        "Will check reporter managers every " +
-        this.checkPeriod / Constants.MILLIS_TO_SECOND + " seconds"
-      );
-      while ( ! isInterrupted() ) {
-        Thread.sleep( this.checkPeriod );
-        logger.info( "Checking reporter managers" );
-        String[] resources = this.getResourceNames();
-        for( int i = 0; i < resources.length; i++ ) {
-          ReporterManagerController rm = this.get( resources[i] );
-          if( ! rm.isRunning() ) {
-            logger.warn
-              ( "Reporter manager " + rm.getResource() + " appears to be down");
-            if ( ! rm.getReporterManagerStarter().isAlive() ) {
-              logger.info( "No active starter thread" );
-              rm.restart();
-            } else {
-              if ( rm.getReporterManagerStarter().getStartAttemptTime() > 0 ) {
-                logger.info( rm.getResource() + " starter thread in progress" );
-                long elapsedTime = Calendar.getInstance().getTimeInMillis() -
-                           rm.getReporterManagerStarter().getStartAttemptTime();
-                if ( elapsedTime > MAX_START_TIME ) {
-                  logger.warn
-                    ("Timing out " + rm.getResource() + " starter thread");                  
-                  rm.restart();
-               } else {
-                  logger.debug( rm.getResource() + " starter thread ok" );
-                }
-              } else {
-                logger.debug( rm.getResource() + " starter thread waiting" );
-              }
+  public void checkReporterManagers( AgentScheduler scheduler ) {
+    logger.info( "Checking reporter managers" );
+    for ( final String resource : this.getResourceNames() ) {
+      final ReporterManagerController rm = this.get( resource );
+      if ( rm == null ) continue;
+      if ( ! this.checking.add(resource) ) {
+        logger.warn( "Previous check of " + resource + " still in progress" );
+        continue;
+      }
+      try {
+        scheduler.submit( new Runnable() {
+          public void run() {
+            try {
+              checkReporterManager( rm );
+            } catch ( Exception e ) {
+              logger.error( "Error checking reporter manager " + resource, e );
+            } finally {
+              checking.remove( resource );
             }
-          } else {
-            logger.info(  "Reporter manager " + rm.getResource() + " is up" );
           }
-        }
-        logger.info( "Done checking reporter managers" );
+        });
+      } catch ( RejectedExecutionException e ) {
+        this.checking.remove( resource );
+        logger.warn( "Unable to check reporter manager " + resource + ": " + e );
       }
-    } catch (InterruptedException e) {
-      logger.debug( "ReporterManagerTable interrupted while sleeping");
-    } finally {
-      logger.info( "ReporterManagerTable stopping checks");
     }
   }
 
   /**
-   * Set the frequency of which the thread should check the health of the
-   * reporter managers.
+   * Start checking the reporter managers every check period.  The checks are
+   * scheduled on the agent's timer rather than on a dedicated thread.
+   *
+   * @param scheduler  The agent's scheduler
+   */
+  public synchronized void startChecks( final AgentScheduler scheduler ) {
+    if ( this.checks != null ) return;
+    logger.info(
+      "Will check reporter managers every " +
+      this.checkPeriod / Constants.MILLIS_TO_SECOND + " seconds"
+    );
+    this.checks = scheduler.schedulePeriodic( new Runnable() {
+      public void run() {
+        checkReporterManagers( scheduler );
+      }
+    }, this.checkPeriod );
+  }
+
+  /**
+   * Stop checking the reporter managers.
+   */
+  public synchronized void stopChecks() {
+    if ( this.checks == null ) return;
+    this.checks.cancel( true );
+    this.checks = null;
+    logger.info( "ReporterManagerTable stopping checks");
+  }
+
+  /**
+   * Set the frequency of which the table should check the health of the
+   * reporter managers.  Takes effect the next time checks are started.
    *
    * @param checkPeriod  Period in milliseconds.
    */
   public void setCheckPeriod(int checkPeriod) {
     this.checkPeriod = checkPeriod;
   }
+
+  /**
+   * Check whether the specified reporter manager is running and restart it
+   * if its starter has stopped or has been attempting a start for
+   * longer than MAX_START_TIME.
+   *
+   * @param rm  The reporter manager to check
+   */
+  private void checkReporterManager( ReporterManagerController rm ) {
+    if ( rm.isRunning() ) {
+      logger.info(  "Reporter manager " + rm.getResource() + " is up" );
+      return;
+    }
+    logger.warn( "Reporter manager " + rm.getResource() + " appears to be down");
+    if ( ! rm.getReporterManagerStarter().isAlive() ) {
+      logger.info( "No active starter" );
+      rm.restart();
+    } else if ( rm.getReporterManagerStarter().getStartAttemptTime() > 0 ) {
+      logger.info( rm.getResource() + " starter in progress" );
+      long elapsedTime = Calendar.getInstance().getTimeInMillis() -
+                         rm.getReporterManagerStarter().getStartAttemptTime();
+      if ( elapsedTime > MAX_START_TIME ) {
+        logger.warn( "Timing out " + rm.getResource() + " starter");
+        rm.restart();
+      } else {
+        logger.debug( rm.getResource() + " starter ok" );
+      }
+    } else {
+      logger.debug( rm.getResource() + " starter waiting" );
+    }
+  }
 }
@@ -5,8 +5,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Hashtable;
 import java.util.Properties;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
@@ -39,6 +48,7 @@ public class RepositoryCache extends Thread {
     VERSION_ATTR, DEPENDS_ATTR
   }; */
   private static final String REPOSITORY_CATALOG = "repository.xml";
+  final static public int DEFAULT_FETCHERS = 4;
 
   // Member variables
   private Logger logger = Logger.getLogger(this.getClass().toString());
@@ -47,6 +57,11 @@ public class RepositoryCache extends Thread {
   private File catalogFile = null;
   private CatalogDocument catalog = null;
   private Repositories repositories = null;
+  private Hashtable<String,String> digests = new Hashtable<String,String>();
+  private ConcurrentHashMap<String,Object> packageLocks =
+    new ConcurrentHashMap<String,Object>();
+  private ThreadPoolExecutor fetchers =
+    AgentScheduler.createPool( "repository-fetch", DEFAULT_FETCHERS );
 
   /**
    * Create a new RepositoryCache object using cacheLocation as the directory
@@ -121,37 +136,19 @@ public class RepositoryCache extends Thread {
    * @return True if the package was updated and false if it was not.
    */
   public boolean checkForPackageUpdate( PackageType aPackage ) {
-    String pkgName = aPackage.getName();
-    String pkgVersion = aPackage.getVersion();
-    if ( aPackage.isSetLatestVersion() && aPackage.getLatestVersion() ) {
-      logger.debug(
-        "Checking for package update for " + pkgName + "; current version = " +
-        pkgVersion
-      );
-      if ( this.repositories.hasPackageUpdated(pkgName, pkgVersion) ){
-        String newVer = this.repositories.getLatestVersionOfPackage(pkgName);
-        logger.info(
-          "Fetching update version=" + newVer + " for package '" + pkgName + "'"
-        );
-        aPackage.setLatestVersion( false );
-        this.saveCatalog();
-        fetchPackage( pkgName, null );
-        return true;
-      } else {
-        logger.debug( "Package "  + pkgName + " up to date" );
-        return false;
-      }
-    } else {
-      logger.debug(
-        "Skipping package update for " + pkgName + ", version=" + pkgVersion
-      );
+    if ( ! hasPackageUpdate(aPackage) ) {
       return false;
     }
+    aPackage.setLatestVersion( false );
+    this.saveCatalog();
+    fetchPackage( aPackage.getName(), null );
+    return true;
   }
 
   /**
    * Check all packages contained in the cache and send any package updates
-   * to the reporter managers.
+   * to the reporter managers.  The repository catalogs are refreshed first
+   * and the updated packages are then fetched concurrently.
    *
    * @return An array of strings containing package names that need to be
    * updated
@@ -168,7 +165,16 @@ public class RepositoryCache extends Thread {
     }
     for ( PackageType p : catalog.getCatalog().getPackageArray() ) {
       logger.debug( "Checking for update on package '" + p.getName() + "'" );
-      if ( checkForPackageUpdate( p ) ) updated.add( p.getName() );
+      if ( hasPackageUpdate( p ) ) {
+        p.setLatestVersion( false );
+        updated.add( p.getName() );
+      }
+    }
+    if ( updated.size() > 0 ) {
+      this.saveCatalog();
+      fetchPackages
+        ( updated.toArray(new String[updated.size()]),
+          new String[updated.size()] );
     }
     logger.debug( "Finished checking for package updates" );
     return updated.toArray( new String[updated.size()] );
@@ -199,9 +205,8 @@ public class RepositoryCache extends Thread {
   }
 
   /**
-   * Fetch the specified package from the available repositories and
-   * store locally on disk.  This function is synchronized so that multiple
-   * processes can use this class without stepping on each other.
+   * Fetch the specified package and its dependencies from the available
+   * repositories and store locally on disk.
    *
    * @param name The name of the repository package to fetch.
    *
@@ -210,53 +215,86 @@ public class RepositoryCache extends Thread {
    * @return True if the repository was successfully fetched and false
    * otherwise.
    */
-  public synchronized boolean fetchPackage( String name, String version )  {
+  public boolean fetchPackage( String name, String version )  {
+    return fetchPackages( new String[] { name }, new String[] { version } );
+  }
 
-    boolean latestVersion = version == null;
-    Repository repository = this.repositories.getRepositoryForPackage(
-      name, version
-    );
-    if ( repository == null ) {
-      return false;
-    }
-    if ( version == null ) {
-      version = repository.getLatestVersionOfPackage( name );
-    }
-    Properties props = repository.getProperties(  name, version );
-    try {
-      logger.info(
-        "Fetching package '" + name + "' from repository '" +
-        repository.getURL() + "'"
-      );
-      byte[] fileText = repository.getReporter(
-        props.getProperty( Repositories.FILE_ATTR )
-      );
-      savePackageToDisk( fileText, name, version );
-    } catch ( IOException e ) {
-      logger.error( "Unable to update package '"+ name +"'", e );
-      return false;
-    }
-    PackageType pkg = updateCacheCatalog(
-      name, repository.getURL().toString(), props, latestVersion
-    );
-    String[] dependencies = pkg.getDependencies().getDependencyArray();
-    if ( dependencies.length < 1 ) {
-      logger.debug( "Package '" + name + "' has no dependencies" );
-      return true;
+  /**
+   * Fetch the specified packages and their dependencies from the available
+   * repositories and store locally on disk.  The dependency graph is resolved
+   * a level at a time:  the packages in a level are fetched concurrently and
+   * the dependencies of those packages that are not already cached make up
+   * the next level.  Fetches of the same package are serialized by a
+   * per-package lock so multiple threads can use this class without stepping
+   * on each other or downloading a package twice.
+   *
+   * @param names The names of the repository packages to fetch.
+   *
+   * @param versions The versions of the packages to fetch (null entries for
+   * latest)
+   *
+   * @return True if all packages were successfully fetched and false
+   * otherwise.
+   */
+  public boolean fetchPackages( String[] names, String[] versions ) {
+    boolean allFetched = true;
+    HashSet<String> visited = new HashSet<String>();
+    Vector<String[]> level = new Vector<String[]>();
+    for ( int i = 0; i < names.length; i++ ) {
+      if ( visited.add(names[i] + "-" + versions[i]) ) {
+        level.add( new String[] { names[i], versions[i] } );
+      }
     }
-    boolean all_fetched = true;
-    // no way to specify version for dependencies currently so we assume
-    // most current
-    for ( String d : dependencies ) {
-      if ( ! existsLocally(d, null) ) {
-        if ( ! fetchPackage(d, null) ) {
-          all_fetched = false;
+    while ( level.size() > 0 ) {
+      Vector<Callable<PackageType>> tasks = new Vector<Callable<PackageType>>();
+      for ( final String[] p : level ) {
+        tasks.add( new Callable<PackageType>() {
+          public PackageType call() {
+            return fetchSinglePackage( p[0], p[1] );
+          }
+        });
+      }
+      Vector<String[]> nextLevel = new Vector<String[]>();
+      try {
+        int i = 0;
+        for ( Future<PackageType> result : this.fetchers.invokeAll(tasks) ) {
+          String name = level.get( i++ )[0];
+          PackageType pkg = null;
+          try {
+            pkg = result.get();
+          } catch ( ExecutionException e ) {
+            logger.error
+              ( "Unable to fetch package '" + name + "'", e.getCause() );
+          }
+          if ( pkg == null ) {
+            allFetched = false;
+            continue;
+          }
+          String[] dependencies = pkg.getDependencies().getDependencyArray();
+          if ( dependencies.length < 1 ) {
+            logger.debug( "Package '" + name + "' has no dependencies" );
+          }
+          // no way to specify version for dependencies currently so we assume
+          // most current
+          for ( String d : dependencies ) {
+            if ( ! visited.add(d + "-" + null) ) {
+              continue;
+            }
+            if ( ! existsLocally(d, null) ) {
+              nextLevel.add( new String[] { d, null } );
+            } else {
+              logger.debug( "Dependency '" + d + "' exists" );
+            }
+          }
         }
-      } else {
-        logger.debug( "Dependency '" + d + "' exists" );
+      } catch ( InterruptedException e ) {
+        logger.warn( "Interrupted while fetching packages" );
+        Thread.currentThread().interrupt();
+        return false;
       }
+      level = nextLevel;
     }
-    return all_fetched;
+    return allFetched;
   }
 
   /**
@@ -398,6 +436,47 @@ public class RepositoryCache extends Thread {
     }
   }
 
+  /**
+   * Return the SHA-256 digest of the content of the specified package.
+   * The content of a package version does not change so digests are
+   * computed once.
+   *
+   * @param name  The name of the package.
+   *
+   * @param version The version of the package.
+   *
+   * @return  The digest as a hex string or null if the package content is
+   * not available.
+   *
+   * @throws IOException If there is an error retrieving the package.
+   */
+  public String getPackageDigest( String name, String version )
+    throws IOException {
+
+    String key = name + "-" + version;
+    String digest = this.digests.get( key );
+    if ( digest != null ) {
+      return digest;
+    }
+    byte[] content = getPackageContent( name, version );
+    if ( content == null ) {
+      return null;
+    }
+    try {
+      StringBuffer hex = new StringBuffer();
+      for ( byte b : MessageDigest.getInstance("SHA-256").digest(content) ) {
+        hex.append( String.format("%02x", b) );
+      }
+      digest = hex.toString();
+    } catch ( NoSuchAlgorithmException e ) {
+      throw new IOException( "Unable to compute package digest: " + e );
+    }
+    if ( version != null ) {
+      this.digests.put( key, digest );
+    }
+    return digest;
+  }
+
   public String getPackageNameByUri( String uri ) {
     if ( Pattern.matches( "^file:/\\w.*$", uri) ) {
       uri = uri.replaceFirst( "file:/", "file:///" );
@@ -626,6 +705,108 @@ public class RepositoryCache extends Thread {
   }
 
 
+  /**
+   * Fetch a single package (not its dependencies) from the available
+   * repositories and store it locally on disk, unless another thread has
+   * already done so.
+   *
+   * @param name The name of the repository package to fetch.
+   *
+   * @param version The version of the package to fetch or null for latest
+   *
+   * @return The cache catalog entry for the package or null if it could not
+   * be fetched.
+   */
+  private PackageType fetchSinglePackage( String name, String version ) {
+    synchronized ( getPackageLock(name) ) {
+      boolean latestVersion = version == null;
+      Repository repository = this.repositories.getRepositoryForPackage(
+        name, version
+      );
+      if ( repository == null ) {
+        return null;
+      }
+      if ( version == null ) {
+        version = repository.getLatestVersionOfPackage( name );
+      }
+      PackageType cached = getPackage( name, version );
+      if ( cached != null && (!latestVersion || cached.getLatestVersion()) ) {
+        logger.debug( "Package '" + name + "' version " + version + " cached" );
+        return cached;
+      }
+      Properties props = repository.getProperties(  name, version );
+      try {
+        logger.info(
+          "Fetching package '" + name + "' from repository '" +
+          repository.getURL() + "'"
+        );
+        byte[] fileText = repository.getReporter(
+          props.getProperty( Repositories.FILE_ATTR )
+        );
+        savePackageToDisk( fileText, name, version );
+      } catch ( IOException e ) {
+        logger.error( "Unable to update package '"+ name +"'", e );
+        return null;
+      }
+      return updateCacheCatalog(
+        name, repository.getURL().toString(), props, latestVersion
+      );
+    }
+  }
+
+  /**
+   * Return the lock used to serialize fetches of a package.
+   *
+   * @param name The name of the package
+   *
+   * @return The lock object for the package
+   */
+  private Object getPackageLock( String name ) {
+    Object lock = this.packageLocks.get( name );
+    if ( lock == null ) {
+      Object newLock = new Object();
+      lock = this.packageLocks.putIfAbsent( name, newLock );
+      if ( lock == null ) {
+        lock = newLock;
+      }
+    }
+    return lock;
+  }
+
+  /**
+   * Return true if a newer version of the package is available from the
+   * repositories and the package tracks the latest version.
+   *
+   * @param aPackage   A package that will be checked for an update.
+   *
+   * @return True if the package has an update and false if it does not.
+   */
+  private boolean hasPackageUpdate( PackageType aPackage ) {
+    String pkgName = aPackage.getName();
+    String pkgVersion = aPackage.getVersion();
+    if ( aPackage.isSetLatestVersion() && aPackage.getLatestVersion() ) {
+      logger.debug(
+        "Checking for package update for " + pkgName + "; current version = " +
+        pkgVersion
+      );
+      if ( this.repositories.hasPackageUpdated(pkgName, pkgVersion) ){
+        String newVer = this.repositories.getLatestVersionOfPackage(pkgName);
+        logger.info(
+          "Fetching update version=" + newVer + " for package '" + pkgName + "'"
+        );
+        return true;
+      } else {
+        logger.debug( "Package "  + pkgName + " up to date" );
+        return false;
+      }
+    } else {
+      logger.debug(
+        "Skipping package update for " + pkgName + ", version=" + pkgVersion
+      );
+      return false;
+    }
+  }
+
   /**
    * Return a File object for a package that will be cached locally.
    *
@@ -647,7 +828,7 @@ public class RepositoryCache extends Thread {
    *
    * @return True if the catalog was successfully saved and false otherwise.
    */
-  private boolean saveCatalog() {
+  private synchronized boolean saveCatalog() {
     try {
       XmlOptions xmloptions = new XmlOptions();
       xmloptions.setSavePrettyPrint();
@@ -675,7 +856,7 @@ public class RepositoryCache extends Thread {
    *
    * @return  True if the update was successful and false otherwise.
    */
-  private PackageType updateCacheCatalog(
+  private synchronized PackageType updateCacheCatalog(
     String name, String repoUrl, Properties properties, boolean latestVersion ){
 
     if ( repoUrl.matches("^file:/\\w.*") ) {
@@ -25,6 +25,11 @@ class SendPackage implements WorkItem<ReporterManagerController> {
 	}
 
 
+	public String getPackageName()
+	{
+		return packageName;
+	}
+
 	public void doWork(ReporterManagerController context) throws IOException, InterruptedException
 	{
 		context.sendPackage(packageName);
@@ -29,6 +29,11 @@ class SendSuite implements WorkItem<ReporterManagerController> {
 	}
 
 
+	public SuiteDocument getSuiteDocument()
+	{
+		return suiteDoc;
+	}
+
 	public void doWork(ReporterManagerController context) throws ConfigurationException, CrypterException, IOException, InterruptedException, ProtocolException
 	{
 		context.sendSuite(suiteDoc);
@@ -0,0 +1,153 @@
+package edu.sdsc.inca.agent;
+
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import edu.sdsc.inca.Agent;
+import edu.sdsc.inca.dataModel.suite.SuiteDocument;
+import edu.sdsc.inca.util.SuiteWrapper;
+
+/**
+ * Distributes suite changes to many reporter managers concurrently.  For
+ * each resource, the suite is either queued for the resource's register
+ * thread to send to the remote reporter manager (backing it up to disk
+ * first) or merged into the resource's proposed changes.  Each resource is
+ * handled by exactly one task per distribution and distribute does not
+ * return until all tasks have completed, so suites reach a reporter manager's
+ * queue in the order they were distributed as long as distributions are not
+ * run concurrently (the agent only distributes from synchronized methods).
+ * This class is thread-safe.
+ */
+public class SuiteDistributor {
+
+  // Constants
+  final static public int DEFAULT_PARALLELISM = 8;
+
+  private static Logger logger = Logger.getLogger( SuiteDistributor.class );
+
+  // Member variables
+  private Agent agent = null;
+  private ThreadPoolExecutor pool = null;
+
+  /**
+   * Creates a distributor with the default parallelism.
+   *
+   * @param agent  The agent whose reporter managers receive the suites
+   */
+  public SuiteDistributor( Agent agent ) {
+    this.agent = agent;
+    this.pool = AgentScheduler.createPool
+      ( "suite-distributor", DEFAULT_PARALLELISM );
+  }
+
+  /**
+   * Send the suites to their reporter managers.
+   *
+   * @param suites  A HashMap where the resources are the keys and
+   * each entry is the SuiteDocument that should be distributed to the
+   * resource.
+   *
+   * @return a map where the resources with proposed changes are the keys and
+   * the value is the number of changes.
+   */
+  public HashMap<String,Integer> distribute
+    ( HashMap<String,SuiteWrapper> suites ) {
+
+    Vector<String> resources = new Vector<String>( suites.keySet() );
+    Vector<Callable<Integer>> tasks = new Vector<Callable<Integer>>();
+    for ( final String resource : resources ) {
+      final SuiteDocument s = suites.get(resource).getSuiteDocument();
+      tasks.add( new Callable<Integer>() {
+        public Integer call() {
+          return distribute( resource, s );
+        }
+      });
+    }
+    logger.debug
+      ( "Distributing suites to " + tasks.size() + " resources using " +
+        this.getParallelism() + " threads" );
+
+    HashMap<String,Integer> proposedChangeCount = new HashMap<String,Integer>();
+    try {
+      int i = 0;
+      for ( Future<Integer> result : this.pool.invokeAll(tasks) ) {
+        String resource = resources.get( i++ );
+        try {
+          if ( result.get() != null ) {
+            proposedChangeCount.put( resource, result.get() );
+          }
+        } catch ( ExecutionException e ) {
+          logger.error
+            ( "Unable to distribute suite to " + resource, e.getCause() );
+        }
+      }
+    } catch ( InterruptedException e ) {
+      logger.warn( "Interrupted while distributing suites" );
+      Thread.currentThread().interrupt();
+    }
+    return proposedChangeCount;
+  }
+
+  /**
+   * Return the number of reporter managers that suites are distributed to
+   * concurrently.
+   *
+   * @return  The number of distribution threads
+   */
+  public int getParallelism() {
+    return this.pool.getMaximumPoolSize();
+  }
+
+  /**
+   * Set the number of reporter managers that suites are distributed to
+   * concurrently.
+   *
+   * @param parallelism  The number of distribution threads
+   */
+  public void setParallelism( int parallelism ) {
+    logger.info( "Setting suite distribution parallelism to " + parallelism );
+    AgentScheduler.resizePool( this.pool, parallelism );
+  }
+
+  /**
+   * Send the suite to the reporter manager for a single resource.
+   *
+   * @param resource  The name of the resource
+   * @param s  The suite for the resource
+   *
+   * @return the number of proposed changes if the resource requires changes
+   * to be approved and null otherwise
+   */
+  private Integer distribute( String resource, SuiteDocument s ) {
+    logger.debug( "Attempting to distribute suite to " + resource );
+    ReporterManagerController managerController =
+      this.agent.getReporterManager( resource );
+    if ( managerController == null ) {
+      logger.error
+        ( "Unable to retrieve controller for reporter manager " + resource );
+      return null;
+    }
+    logger.debug( "Adding suite "+s.getSuite().getGuid()+" to "+resource );
+    try {
+      if ( managerController.hasApprovalEmail() ) {
+        logger.debug
+          ( "Adding proposed suite " + s.getSuite().getGuid() + " to " +
+            resource );
+        return managerController.addProposedSuite( s );
+      } else {
+        logger.debug
+          ( "Adding suite " + s.getSuite().getGuid() + " to " + resource );
+        managerController.addSuite( s );
+      }
+    } catch (Exception e) {
+      logger.debug( "Unable to add suite " + s.getSuite().getGuid()  );
+    }
+    return null;
+  }
+}
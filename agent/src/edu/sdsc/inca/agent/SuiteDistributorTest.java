@@ -0,0 +1,245 @@
+package edu.sdsc.inca.agent;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.apache.xmlbeans.XmlException;
+
+import edu.sdsc.inca.Agent;
+import edu.sdsc.inca.ConfigurationException;
+import edu.sdsc.inca.dataModel.resourceConfig.ResourceConfigDocument;
+import edu.sdsc.inca.dataModel.suite.SuiteDocument;
+import edu.sdsc.inca.util.ResourcesWrapper;
+import edu.sdsc.inca.util.StringMethods;
+import edu.sdsc.inca.util.SuiteWrapper;
+
+/**
+ * Tests for SuiteDistributor.
+ */
+public class SuiteDistributorTest extends TestCase {
+  static Logger logger = Logger.getLogger(SuiteDistributorTest.class);
+
+  private File tempDir = null;
+  private HashMap<String,ReporterManagerController> controllers =
+    new HashMap<String,ReporterManagerController>();
+  private Agent agent = null;
+
+  /**
+   * A controller that records the suites it receives instead of queuing
+   * them for a reporter manager.  Each suite is held until the controller is
+   * released, so that concurrent distribution can be observed.
+   */
+  static class RecordingController extends ReporterManagerController {
+    final Vector<SuiteDocument> received = new Vector<SuiteDocument>();
+    boolean approval = false;
+    boolean fail = false;
+    CountDownLatch entered = null;
+    CountDownLatch release = null;
+
+    RecordingController( String resource, Agent agent )
+      throws ConfigurationException {
+      super( resource, agent );
+    }
+
+    @Override
+    public boolean hasApprovalEmail() {
+      return this.approval;
+    }
+
+    @Override
+    public int addProposedSuite( SuiteDocument suite )
+      throws IOException, XmlException {
+      this.addSuite( suite );
+      return suite.getSuite().getSeriesConfigs().sizeOfSeriesConfigArray();
+    }
+
+    @Override
+    public void addSuite( SuiteDocument suite ) throws IOException {
+      if ( this.entered != null ) {
+        this.entered.countDown();
+        try {
+          this.release.await();
+        } catch ( InterruptedException e ) {
+          throw new IOException( "interrupted" );
+        }
+      }
+      if ( this.fail ) {
+        throw new IOException( "unable to queue suite" );
+      }
+      this.received.add( suite );
+    }
+  }
+
+  public void setUp() throws Exception {
+    this.tempDir = File.createTempFile( "distributor", "" );
+    this.tempDir.delete();
+    this.tempDir.mkdirs();
+    this.agent = new Agent() {
+      @Override
+      public ReporterManagerController getReporterManager( String resource ) {
+        return controllers.get( resource );
+      }
+    };
+    this.agent.setAgentTempPath( this.tempDir.getAbsolutePath() );
+  }
+
+  public void tearDown() throws Exception {
+    StringMethods.deleteDirectory( this.tempDir );
+  }
+
+  /**
+   * Configures the agent with resources of the specified names.
+   *
+   * @param resources  The names of the resources
+   *
+   * @throws Exception if unable to set the resources
+   */
+  private void setResources( String... resources ) throws Exception {
+    String resourcesXml =
+      "<rc:resourceConfig xmlns:rc=\"http://inca.sdsc.edu/dataModel/resourceConfig_2.0\">\n" +
+      "  <resources>\n";
+    for ( String resource : resources ) {
+      resourcesXml += "    <resource><name>" + resource + "</name></resource>\n";
+    }
+    resourcesXml += "  </resources>\n</rc:resourceConfig>";
+    this.agent.setResources( new ResourcesWrapper
+      (ResourceConfigDocument.Factory.parse(resourcesXml)) );
+  }
+
+  /**
+   * Creates a controller for a resource and registers it with the agent.
+   *
+   * @param resource  The name of the resource
+   *
+   * @return  The controller
+   *
+   * @throws Exception if unable to create the controller
+   */
+  private RecordingController addController( String resource )
+    throws Exception {
+    RecordingController controller =
+      new RecordingController( resource, this.agent );
+    this.controllers.put( resource, controller );
+    return controller;
+  }
+
+  /**
+   * Returns a wrapper for a suite with the specified number of series.
+   *
+   * @param name  The name of the suite
+   * @param numSeries  The number of series configs in the suite
+   *
+   * @return  The suite wrapper
+   *
+   * @throws Exception if unable to create the suite
+   */
+  private SuiteWrapper createSuite( String name, int numSeries )
+    throws Exception {
+    SuiteDocument doc = DepotSuiteUpdateTest.createSuite( name, 1, "series0" );
+    for ( int i = 1; i < numSeries; i++ ) {
+      DepotSuiteUpdateTest.addSeriesConfig( doc, "series" + i );
+    }
+    return new SuiteWrapper( doc );
+  }
+
+  /**
+   * Test that each resource's suite reaches its controller, that resources
+   * are handled concurrently, and that resources requiring approval report
+   * their proposed changes.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testDistribute() throws Exception {
+    final SuiteDistributor distributor = new SuiteDistributor( this.agent );
+    distributor.setParallelism( 3 );
+    final CountDownLatch entered = new CountDownLatch( 3 );
+    final CountDownLatch release = new CountDownLatch( 1 );
+    final HashMap<String,SuiteWrapper> suites =
+      new HashMap<String,SuiteWrapper>();
+    setResources( "a", "b", "c" );
+    for ( String resource : new String[] { "a", "b", "c" } ) {
+      RecordingController controller = addController( resource );
+      controller.entered = entered;
+      controller.release = release;
+      suites.put( resource, createSuite(resource, 2) );
+    }
+    ((RecordingController)this.controllers.get( "c" )).approval = true;
+    suites.put( "missing", createSuite("missing", 1) );
+
+    final Vector<HashMap<String,Integer>> result =
+      new Vector<HashMap<String,Integer>>();
+    Thread distribution = new Thread() {
+      public void run() {
+        result.add( distributor.distribute(suites) );
+      }
+    };
+    distribution.start();
+    assertTrue
+      ( "resources handled concurrently", entered.await(10, TimeUnit.SECONDS) );
+    assertTrue( "distribute waits for all resources", distribution.isAlive() );
+    release.countDown();
+    distribution.join( 10000 );
+    assertEquals( "distribute returned", 1, result.size() );
+
+    for ( String resource : new String[] { "a", "b", "c" } ) {
+      RecordingController controller =
+        (RecordingController)this.controllers.get( resource );
+      assertEquals( resource + " received suite", 1, controller.received.size());
+      assertEquals
+        ( resource + " received its suite", resource,
+          controller.received.get(0).getSuite().getName() );
+    }
+    assertEquals( "only approval resources counted", 1, result.get(0).size() );
+    assertEquals
+      ( "proposed changes counted", new Integer(2), result.get(0).get("c") );
+  }
+
+  /**
+   * Test that a resource that fails to accept its suite does not keep the
+   * others from receiving theirs.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testDistributeError() throws Exception {
+    SuiteDistributor distributor = new SuiteDistributor( this.agent );
+    HashMap<String,SuiteWrapper> suites = new HashMap<String,SuiteWrapper>();
+    String[] resources = new String[10];
+    for ( int i = 0; i < resources.length; i++ ) {
+      resources[i] = "resource" + i;
+    }
+    setResources( resources );
+    for ( int i = 0; i < 10; i++ ) {
+      addController( "resource" + i ).fail = i % 2 == 0;
+      suites.put( "resource" + i, createSuite("resource" + i, 1) );
+    }
+    HashMap<String,Integer> proposed = distributor.distribute( suites );
+    assertTrue( "no proposed changes", proposed.isEmpty() );
+    for ( int i = 0; i < 10; i++ ) {
+      assertEquals
+        ( "resource" + i + " received suite", i % 2 == 0 ? 0 : 1,
+          ((RecordingController)this.controllers.get( "resource" + i )).
+            received.size() );
+    }
+  }
+
+  /**
+   * Test that the number of distribution threads can be changed.
+   *
+   * @throws Exception if trouble executing test
+   */
+  public void testParallelism() throws Exception {
+    SuiteDistributor distributor = new SuiteDistributor( this.agent );
+    assertEquals
+      ( "default parallelism", SuiteDistributor.DEFAULT_PARALLELISM,
+        distributor.getParallelism() );
+    distributor.setParallelism( 2 );
+    assertEquals( "parallelism changed", 2, distributor.getParallelism() );
+  }
+}
@@ -167,7 +167,8 @@ public class SuiteTable {
   /**
    * Store the named suite contained in the suiteStages object.  If
    * there is an existing suite in the table already, this suite will be
-   * applied to it.  This change will be persistent.
+   * applied to it.  This change will be persistent; only the changes made to
+   * the suite since it was last stored are written to disk.
    *
    * @param suiteStages The suiteStages object which contains the expanded
    * suite.
@@ -181,7 +182,7 @@ public class SuiteTable {
     if ( suiteStages.getSeriesConfigCount() > 0 ) {
       logger.info( "Putting suite " + suiteName + " in suite table" );
       suites.put( suiteName, suiteStages );
-      suiteStages.save();
+      suiteStages.saveChanges();
     } else {
       logger.info( "0 configs found in " + suiteName + "; deleting" );
       suites.remove( suiteName );
@@ -81,6 +81,28 @@ public abstract class AccessMethodTestCase extends TestCase {
     }
   }
 
+  /**
+   * Run thru the transfer and execution tests over a shared connection and
+   * make sure the access method still works after the connection is closed
+   *
+   * @throws Exception if problem executing test
+   */
+  public void testSharedConnection() throws Exception {
+    if ( ! hasRequirements() ) return;
+
+    deleteTempFiles();
+    for ( AccessMethod proc : procs ) {
+      proc.openConnection();
+      try {
+        execTransfers( proc );
+        execRun( proc );
+      } finally {
+        proc.closeConnection();
+      }
+      execRun( proc );
+    }
+  }
+
   /**
    * Need to make sure access methods are throwing InterruptedExceptions
    * when they get interrupted
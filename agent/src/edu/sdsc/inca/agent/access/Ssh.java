@@ -39,9 +39,22 @@ public abstract class Ssh extends AccessMethod {
   protected Logger logger = Logger.getLogger(this.getClass().toString());
   protected SshClient activeSsh = null;
   protected SshSession activeSession = null;
+  protected SshClient sharedSsh = null;
 
   // Public Methods
 
+  /**
+   * Close the shared connection opened by openConnection.
+   */
+  @Override
+  public synchronized void closeConnection() {
+    if ( sharedSsh != null ) {
+      logger.debug( "Closing shared connection to " + sshServer );
+      sharedSsh.disconnect();
+      sharedSsh = null;
+    }
+  }
+
   /**
    * Transfer a list of remote files to a directory on the local machine using
    * SSH.
@@ -57,7 +70,7 @@ public abstract class Ssh extends AccessMethod {
 
     SshClient ssh;
     try {
-      ssh = connect(true);
+      ssh = acquireConnection(true);
     } catch ( Exception e ) {
       throw new AccessMethodException( "Unable to connect to " + sshServer, e );
     }
@@ -75,7 +88,7 @@ public abstract class Ssh extends AccessMethod {
         sftp.get( remoteFile );
       }
       sftp.quit();
-      ssh.disconnect();
+      releaseConnection( ssh );
     } catch ( Exception e ) {
       throw new AccessMethodException( "Unable to put files", e );
     }
@@ -92,6 +105,30 @@ public abstract class Ssh extends AccessMethod {
     return activeSsh.isConnected() && !activeSession.isClosed();
   }
 
+  /**
+   * Open a connection to the remote resource which is shared by subsequent
+   * calls to get, put and run, each of which opens its own channel on the
+   * connection.  This saves a TCP connection, key exchange and
+   * authentication per call.
+   *
+   * @throws AccessMethodException if unable to connect to the resource
+   */
+  @Override
+  public synchronized void openConnection() throws AccessMethodException {
+    if ( sharedSsh != null && sharedSsh.isConnected() ) {
+      return;
+    }
+    try {
+      sharedSsh = connect(true);
+    } catch ( Exception e ) {
+      throw new AccessMethodException( "Unable to connect to " + sshServer, e );
+    }
+    if ( sharedSsh == null ) {
+      throw new AccessMethodException( "Unable to connect to " + sshServer );
+    }
+    logger.debug( "Opened shared connection to " + sshServer );
+  }
+
   /**
    * Given a path relative to the home directory, prepend the home directory
    * to the path and return the new string.
@@ -128,7 +165,7 @@ public abstract class Ssh extends AccessMethod {
     String stdout = null;
     String stderr = null;
     try {
-      SshClient ssh = connect(false);
+      SshClient ssh = acquireConnection(false);
       if ( ssh == null ) {
         throw new IOException( "Could not create ssh connection" );
       }
@@ -156,7 +193,7 @@ public abstract class Ssh extends AccessMethod {
         stderr += line;
       }
       session.close();
-      ssh.disconnect();
+      releaseConnection( ssh );
     } catch ( IOException e ) {
       // throws general IOException if interrupted, we want the interrupt
       if ( Pattern.matches("(?i)^.*interrupt.*$", e.getMessage()) ){
@@ -232,7 +269,7 @@ public abstract class Ssh extends AccessMethod {
 
     SshClient ssh;
     try {
-      ssh = connect(true);
+      ssh = acquireConnection(true);
     } catch ( Exception e ) {
       throw new AccessMethodException( "Unable to connect to " + sshServer, e );
     }
@@ -257,7 +294,7 @@ public abstract class Ssh extends AccessMethod {
         sftp.put( localFiles[i] );
       }
       sftp.quit();
-      ssh.disconnect();
+      releaseConnection( ssh );
     } catch ( Exception e ) {
       throw new AccessMethodException( "Unable to put files", e );
     }
@@ -282,6 +319,39 @@ public abstract class Ssh extends AccessMethod {
 
   // Private Methods
 
+  /**
+   * Return the shared connection if one is open or a new connection
+   * otherwise.
+   *
+   * @param noDelay
+   *
+   * @return An active SshClient connection to the remote resource.
+   *
+   * @throws IOException  if trouble connecting to ssh server
+   * @throws SshException
+   * @throws OperatorCreationException
+   * @throws GeneralSecurityException
+   * @throws ConfigurationException
+   */
+  private synchronized SshClient acquireConnection( boolean noDelay ) throws IOException, SshException, OperatorCreationException, GeneralSecurityException, ConfigurationException {
+    if ( sharedSsh != null && sharedSsh.isConnected() ) {
+      return sharedSsh;
+    }
+    return connect( noDelay );
+  }
+
+  /**
+   * Disconnect a connection returned by acquireConnection unless it is the
+   * shared connection.
+   *
+   * @param ssh  A connection returned by acquireConnection
+   */
+  private synchronized void releaseConnection( SshClient ssh ) {
+    if ( ssh != sharedSsh ) {
+      ssh.disconnect();
+    }
+  }
+
   /**
    * Send the specified command to the open ssh client and return the active
    * session.
@@ -69,6 +69,17 @@ public class Client extends Component {
     return this.dialog(Protocol.GET_LOG_COMMAND, "");
   }
 
+  /**
+   * Retrieve the server's timers and counters.
+   *
+   * @return the statistics, one timer or counter per line
+   * @throws IOException on read/write error
+   * @throws ProtocolException on an invalid message
+   */
+  public String commandGetStats() throws IOException, ProtocolException {
+    return this.dialog(Protocol.GET_STATS_COMMAND, "");
+  }
+
   /**
    * Send a log config message to the server.
    *
@@ -3,6 +3,7 @@ package edu.sdsc.inca;
 
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.net.URLEncoder;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Properties;
@@ -15,6 +16,7 @@ import edu.sdsc.inca.protocol.Protocol;
 import edu.sdsc.inca.protocol.ProtocolException;
 import edu.sdsc.inca.protocol.Statement;
 import edu.sdsc.inca.util.ConfigProperties;
+import edu.sdsc.inca.util.SeriesColumns;
 
 
 /**
@@ -35,9 +37,26 @@ public class DepotClient extends Client {
       "  D|depot  str  Depot specification; host:port\n",
       true);
 
+  /**
+   * Receives the results of a query one at a time as they are read from the
+   * Depot (see setQueryResultHandler).
+   */
+  public interface QueryResultHandler {
+    /**
+     * Handles the next result of a query.
+     *
+     * @param result the text of the QUERYRESULT statement
+     * @throws IOException if the result cannot be handled
+     */
+    public void handleResult(String result) throws IOException;
+  }
+
   // Protected class vars
   protected static final Logger logger = Logger.getLogger(DepotClient.class);
 
+  // Protected instance vars
+  protected QueryResultHandler resultHandler = null;
+
   /**
    * A convenience function for setting multiple configuration properties at
    * once.  In addition to the keys recognized by the superclass, recognizes:
@@ -228,6 +247,48 @@ public class DepotClient extends Client {
     return queryDialogWithNoSoTimeout(Protocol.QUERY_PERIOD_COMMAND, request);
   }
 
+  /**
+   * Asks the Depot for the instances collected over a given period of time
+   * for each series selected by an HQL WHERE clause expression, in the
+   * compact column format of SeriesColumns.  The columns are always
+   * returned, even if a query result handler is set.
+   *
+   * @param begin series instances collected before this time are ignored
+   * @param end series instances collected after this time are ignored
+   * @param metrics the names of statistics to extract from the report bodies
+   * @param expr an HQL WHERE clause expression specifying the desired series
+   * @return the columns of each series config
+   * @throws IOException on read/write error
+   * @throws ProtocolException on an invalid message
+   */
+  public SeriesColumns[] queryPeriodColumns
+    (Date begin, Date end, String[] metrics, String expr)
+    throws IOException, ProtocolException {
+    StringBuffer names = new StringBuffer();
+    for(String metric : metrics) {
+      if(names.length() > 0) {
+        names.append(",");
+      }
+      names.append(URLEncoder.encode(metric, "UTF-8"));
+    }
+    String request = begin.getTime() + " " + end.getTime() + " " +
+                     (names.length() == 0 ? "-" : names.toString()) + " " + expr;
+    QueryResultHandler handler = this.resultHandler;
+    String[] results;
+    this.resultHandler = null;
+    try {
+      results = queryDialogWithNoSoTimeout
+        (Protocol.QUERY_PERIOD_COLUMNS_COMMAND, request);
+    } finally {
+      this.resultHandler = handler;
+    }
+    SeriesColumns[] columns = new SeriesColumns[results.length];
+    for(int i = 0; i < results.length; i++) {
+      columns[i] = SeriesColumns.parse(results[i]);
+    }
+    return columns;
+  }
+
   /**
    * Asks the Depot for XML that summarizes the success/failure history over a
    * given period to today for each series selected by an HQL WHERE
@@ -383,6 +444,76 @@ public class DepotClient extends Client {
     return dialog(Protocol.QUERY_REPORTERS_DETAIL_COMMAND, "");
   }
 
+  /**
+   * Asks the Depot for the statistics of its query result cache
+   *
+   * @return the hit rates and other counts, one query command per line
+   * @throws IOException
+   * @throws ProtocolException
+   */
+  public String queryCacheStatistics() throws IOException, ProtocolException
+  {
+    return dialog(Protocol.QUERY_CACHE_STATS_COMMAND, "");
+  }
+
+  /**
+   * Sets a handler to receive the results of subsequent queries as they are
+   * read, so that a large result need not be held in memory as a whole.
+   * While a handler is set, the query methods that return an array of results
+   * pass each result to the handler and return an empty array.
+   *
+   * @param handler the handler for query results, or null to collect them
+   */
+  public void setQueryResultHandler(QueryResultHandler handler) {
+    this.resultHandler = handler;
+  }
+
+  /**
+   * Subscribes to the Depot's insert events.  After a successful subscribe
+   * the connection can only be used to read events (see readInsertEvent).
+   *
+   * @param timeout the maximum time to wait for an event or heartbeat from
+   *                the Depot, in milliseconds, before the connection is
+   *                considered dead; 0 waits forever
+   * @throws IOException on read/write error
+   * @throws ProtocolException on an invalid message
+   */
+  public void subscribe(int timeout) throws IOException, ProtocolException {
+    this.dialog(Protocol.SUBSCRIBE_COMMAND, "");
+    this.socket.setSoTimeout(timeout);
+  }
+
+  /**
+   * Waits for the next insert event from a subscribed Depot, skipping the
+   * Depot's heartbeats.
+   *
+   * @return the id of the series config and the id of its new latest
+   *         instance, or null if the Depot closed the connection
+   * @throws IOException on read error, or if the Depot went quiet for longer
+   *         than the subscribe timeout
+   * @throws ProtocolException if the Depot ended the subscription or sent an
+   *         invalid message
+   */
+  public long[] readInsertEvent() throws IOException, ProtocolException {
+    Statement event;
+    while((event = this.read()) != null) {
+      String command = new String(event.getCmd());
+      String data = new String(event.getData());
+      if(Protocol.PING_COMMAND.equals(command)) {
+        continue;
+      } else if(!Protocol.INSERTED_EVENT_COMMAND.equals(command)) {
+        throw new ProtocolException("Subscription ended: " + data);
+      }
+      String[] ids = data.split(" ");
+      try {
+        return new long[] {Long.parseLong(ids[0]), Long.parseLong(ids[1])};
+      } catch(RuntimeException e) {
+        throw new ProtocolException("Invalid insert event '" + data + "'");
+      }
+    }
+    return null;
+  }
+
   /**
    * An internal method that handles the functionality common to several
    * query methods.
@@ -406,7 +537,11 @@ public class DepotClient extends Client {
       } else if(!Protocol.QUERY_RESULT.equals(command)) {
         throw new ProtocolException("Received error: " + data);
       }
-      result.add(data);
+      if(this.resultHandler != null) {
+        this.resultHandler.handleResult(data);
+      } else {
+        result.add(data);
+      }
     }
     logger.debug(result.size() + " results returned from suite query");
     return result.toArray(new String[result.size()]);
@@ -452,7 +587,11 @@ public class DepotClient extends Client {
       } else if(!Protocol.QUERY_RESULT.equals(command)) {
         throw new ProtocolException("Received error: " + data);
       }
-      result.add(data);
+      if(this.resultHandler != null) {
+        this.resultHandler.handleResult(data);
+      } else {
+        result.add(data);
+      }
     }
     logger.debug(result.size() + " results returned from suite query");
     return result.toArray(new String[result.size()]);
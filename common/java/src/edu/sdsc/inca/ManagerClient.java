@@ -4,6 +4,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.commons.codec.binary.Base64OutputStream;
 import org.apache.log4j.Logger;
@@ -21,10 +22,15 @@ import edu.sdsc.inca.protocol.Statement;
  * @author Shava Smallen &lt;ssmallen@sdsc.edu&gt;
  */
 public class ManagerClient extends Client {
+  public static final int CHUNK_SIZE = 256 * 1024;
+  public static final long CONTENT_PRESENT = -1;
+  public static final long CONTENT_UNSUPPORTED = -2;
+  public static final int MAX_OUTSTANDING = 16;
   private static final int MAX_TIMEOUT_TRIES = 60; // 5 mins
   private static final byte[] LF = "\n".getBytes();
   private static Logger logger = Logger.getLogger( ManagerClient.class );
   public String resourceName = "manager";
+  private volatile long lastContact = 0;
 
   /**
    * Send a ping to the server and return the response data.  Differs from
@@ -66,6 +72,18 @@ public class ManagerClient extends Client {
   }
 
 
+  /**
+   * Return the last time a statement was received from the reporter manager
+   * (or the time the connection was set).  Any response counts as a
+   * heartbeat, so an explicit ping is only needed when the connection has
+   * been quiet.
+   *
+   * @return  The time of last contact in milliseconds since the epoch
+   */
+  public long getLastContact() {
+    return this.lastContact;
+  }
+
   /**
    * Return the reader connected to the remote reporter manager.
    *
@@ -121,65 +139,155 @@ public class ManagerClient extends Client {
     String permissions, String dependencies, String version )
     throws IOException, ProtocolException {
 
-    // send package to RM
-    this.writer.write( new Statement(Protocol.PACKAGE_COMMAND, name) );
-    this.writer.write(
-      new Statement(Protocol.PACKAGE_FILENAME_COMMAND, filename )
-    );
-    this.writer.write(
-      new Statement(Protocol.PACKAGE_VERSION_COMMAND, version)
-    );
-    this.writer.write(
-      new Statement(Protocol.PACKAGE_INSTALLPATH_COMMAND, installPath)
-    );
-    if ( permissions != null ) {
-      this.writer.write(
-        new Statement(Protocol.PACKAGE_PERMISSIONS_COMMAND, permissions)
-      );
-    }
-    if ( dependencies != null ) {
-      this.writer.write(
-        new Statement(Protocol.PACKAGE_DEPENDENCIES_COMMAND, dependencies)
-      );
-    }
+    writePackageHeader
+      ( filename, installPath, name, permissions, dependencies, version );
     String packageText;
     if ( filename.endsWith(".tar.gz") ) {
       // we encode a tar.gz before sending because we send data as character
       // stream (not as bytes)
-      ByteArrayOutputStream result = new ByteArrayOutputStream();
-      OutputStream encoder = new Base64OutputStream(result, true, 76, LF);
-
-      try {
-        encoder.write(packageContent);
-      }
-      finally {
-        encoder.close();
-      }
-
-      packageText = result.toString();
+      packageText = encode( packageContent );
     } else {
       packageText = new String( packageContent );
     }
     this.writer.write(
       new Statement(Protocol.PACKAGE_CONTENT_COMMAND, packageText)
     );
+    readSuccessResponse();
+  }
+
+  /**
+   * Send the provided package information to the manager and have it install
+   * the package from content it already has (see sendPackageContent).
+   *
+   * @param filename       The name of the file to store this package as.
+   *
+   * @param installPath    The path relative to the package cache directory to
+   *                       store this package at.
+   *
+   * @param name           The repository name for this package.
+   *
+   * @param digest         The SHA-256 digest of the package content
+   *
+   * @param permissions    The permissions to set on the package once installed
+   *                       or null to use default permissions.
+   *
+   * @param dependencies   The dependencies (space delimited) on this package or
+   *                       null if no dependencies.
+   *
+   * @param version        The version of this package.
+   *
+   * @throws IOException on read/write error
+   * @throws ProtocolException on an invalid message
+   */
+  public void sendPackageByDigest(
+    String filename, String installPath, String name, String digest,
+    String permissions, String dependencies, String version )
+    throws IOException, ProtocolException {
+
+    writePackageHeader
+      ( filename, installPath, name, permissions, dependencies, version );
+    this.writer.write(
+      new Statement(Protocol.PACKAGE_CONTENTDIGEST_COMMAND, digest)
+    );
+    readSuccessResponse();
+  }
+
+  /**
+   * Ask the manager whether it already has the package content with the
+   * specified digest.
+   *
+   * @param digest  The SHA-256 digest of the package content
+   *
+   * @return CONTENT_PRESENT if the manager has the content,
+   * CONTENT_UNSUPPORTED if the manager does not support content digests, or
+   * otherwise the number of bytes of gzipped content the manager received in
+   * an earlier transfer (the offset to resume sending from).
+   *
+   * @throws IOException on read/write error
+   * @throws ProtocolException on an invalid message
+   */
+  public long queryPackageContent( String digest )
+    throws IOException, ProtocolException {
+
+    this.writer.write( new Statement(Protocol.PACKAGE_DIGEST_COMMAND, digest) );
     Statement statement = this.readStatementWithSocketTimeout();
     if ( statement == null ) {
       throw new IOException
         ( "Lost connection to reporter manager " + resourceName );
     }
-    String manager_response = new String( statement.getCmd() );
-    if ( manager_response.equals(Protocol.FAILURE_COMMAND) ) {
-      throw new ProtocolException(
-        "Received error from reporter manager " + resourceName + ": " +
-        new String(statement.getData()) + "'"
-      );
-    } else if ( ! manager_response.equals(Protocol.SUCCESS_COMMAND) ) {
-      throw new ProtocolException(
-        "Unexpected response '" + statement.toString() +
-        "' from reporter manager " + resourceName
-      );
+    String response = new String( statement.getCmd() );
+    String responseData = new String( statement.getData() );
+    if ( response.equals(Protocol.FAILURE_COMMAND) ) {
+      logger.info
+        ( "Reporter manager " + resourceName + " does not support digests" );
+      return CONTENT_UNSUPPORTED;
+    } else if ( ! response.equals(Protocol.SUCCESS_COMMAND) ) {
+      throw new ProtocolException
+        ( "Unexpected response '" + statement.toString() +
+          "' from reporter manager " + resourceName );
+    }
+    String[] parts = responseData.split( " " );
+    if ( parts[0].equals(Protocol.PACKAGE_HAVE_RESPONSE) ) {
+      return CONTENT_PRESENT;
+    } else if ( parts[0].equals(Protocol.PACKAGE_NEED_RESPONSE) &&
+                parts.length == 2 ) {
+      try {
+        return Long.parseLong( parts[1] );
+      } catch ( NumberFormatException e ) {
+        // fall through to error
+      }
+    }
+    throw new ProtocolException
+      ( "Unexpected digest response '" + responseData +
+        "' from reporter manager " + resourceName );
+  }
+
+  /**
+   * Send the package content to the manager compressed and in chunks of
+   * CHUNK_SIZE bytes.  The compressed content is the same each time the
+   * content is sent, so a transfer that was interrupted can be resumed from
+   * the offset returned by queryPackageContent.
+   *
+   * @param digest         The SHA-256 digest of the package content
+   * @param packageContent The package content
+   * @param offset         The number of bytes of compressed content the
+   *                       manager already has
+   *
+   * @throws IOException on read/write error
+   * @throws ProtocolException on an invalid message
+   */
+  public void sendPackageContent
+    ( String digest, byte[] packageContent, long offset )
+    throws IOException, ProtocolException {
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    GZIPOutputStream gzip = new GZIPOutputStream( compressed );
+    try {
+      gzip.write( packageContent );
+    } finally {
+      gzip.close();
     }
+    byte[] content = compressed.toByteArray();
+    if ( offset < 0 || offset > content.length ) {
+      logger.warn
+        ( "Invalid resume offset " + offset + " from " + resourceName +
+          "; sending all of " + digest );
+      offset = 0;
+    }
+    logger.debug
+      ( "Sending " + (content.length - offset) + " of " + content.length +
+        " compressed bytes of " + digest + " to " + resourceName );
+    do {
+      int length = (int)Math.min( CHUNK_SIZE, content.length - offset );
+      byte[] chunk = new byte[length];
+      System.arraycopy( content, (int)offset, chunk, 0, length );
+      this.writer.write( new Statement(
+        Protocol.PACKAGE_CHUNK_COMMAND,
+        digest + " " + offset + " " + content.length + " " + encode(chunk)
+      ) );
+      readSuccessResponse();
+      offset += length;
+    } while ( offset < content.length );
   }
 
   /**
@@ -245,26 +353,49 @@ public class ManagerClient extends Client {
   public void sendSuite( String resource, SuiteDocument suite )
     throws IOException, ProtocolException {
 
-    logger.info
-      ( "Sending suite '" + suite.getSuite().getName() + "' to " + resource );
-    this.writer.write(
-      new Statement( Protocol.SUITE_UPDATE_COMMAND, suite.toString() )
-    );
-    Statement statement = this.readStatementWithSocketTimeout();
-    if ( statement == null ) {
-      throw new IOException
-        ( "Lost connection to reporter manager " + resourceName );
-    }
-    String manager_response = new String( statement.getCmd() );
-    if ( manager_response.equals(Protocol.FAILURE_COMMAND) ) {
+    if ( ! sendSuites(resource, new SuiteDocument[] { suite })[0] ) {
       throw new ProtocolException
         ( "Received error from reporter manager " + resourceName +
-          " during send of suite: " + new String(statement.getData()) + "'" );
-    } else if ( ! manager_response.equals(Protocol.SUCCESS_COMMAND) ) {
-      throw new ProtocolException
-        ( "Unexpected response '" + statement.toString() +
-          "' from reporter manager " + resourceName + " during send of suite" );
+          " during send of suite " + suite.getSuite().getName() );
+    }
+  }
+
+  /**
+   * Send the specified suite documents to the remote reporter manager without
+   * waiting for each one to be acknowledged before sending the next.  Up to
+   * MAX_OUTSTANDING suites are outstanding at a time.  The manager handles
+   * statements in the order they are received and tags each acknowledgement
+   * with the suite's guid, so the responses are matched to the suites in
+   * order and checked against their guids.
+   *
+   * @param resource The name of the resource the suites are being sent to.
+   * @param suites   The suites to send to the reporter manager.
+   *
+   * @return An array where each element is true if the corresponding suite
+   * was acknowledged by the manager and false if the manager returned an
+   * error for it.
+   *
+   * @throws IOException on read/write error or if the responses are out of
+   * sync with the requests
+   * @throws ProtocolException on an invalid message
+   */
+  public boolean[] sendSuites( String resource, SuiteDocument[] suites )
+    throws IOException, ProtocolException {
+
+    boolean[] acknowledged = new boolean[suites.length];
+    int sent = 0;
+    for ( int read = 0; read < suites.length; read++ ) {
+      for ( ; sent < suites.length && sent - read < MAX_OUTSTANDING; sent++ ) {
+        logger.info
+          ( "Sending suite '" + suites[sent].getSuite().getName() + "' to " +
+            resource );
+        this.writer.write( new Statement(
+          Protocol.SUITE_UPDATE_COMMAND, suites[sent].toString()
+        ) );
+      }
+      acknowledged[read] = readSuiteResponse( suites[read] );
     }
+    return acknowledged;
   }
 
   /**
@@ -274,6 +405,7 @@ public class ManagerClient extends Client {
    */
   public void setReader( ProtocolReader reader ) {
     this.reader = reader;
+    this.lastContact = System.currentTimeMillis();
   }
 
 
@@ -317,6 +449,9 @@ public class ManagerClient extends Client {
           throw new IOException( "Connection to reporter manager is lost" );
         }
         response = reader.readStatement();
+        if ( response != null ) {
+          this.lastContact = System.currentTimeMillis();
+        }
         return response;
       } catch ( SocketTimeoutException e ) {
         // do nothing (i.e., try read again)
@@ -332,4 +467,138 @@ public class ManagerClient extends Client {
     }
     return response;
   }
+
+  /**
+   * Base64 encode the provided bytes.
+   *
+   * @param bytes  The bytes to encode
+   *
+   * @return  The encoded bytes as a string broken into lines
+   *
+   * @throws IOException on encoding error
+   */
+  private String encode( byte[] bytes ) throws IOException {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    OutputStream encoder = new Base64OutputStream(result, true, 76, LF);
+
+    try {
+      encoder.write(bytes);
+    }
+    finally {
+      encoder.close();
+    }
+
+    return result.toString();
+  }
+
+  /**
+   * Read the manager's response to a command and throw an exception if it
+   * is not OK.
+   *
+   * @throws IOException on read error
+   * @throws ProtocolException on an error or unexpected response
+   */
+  private void readSuccessResponse() throws IOException, ProtocolException {
+    Statement statement = this.readStatementWithSocketTimeout();
+    if ( statement == null ) {
+      throw new IOException
+        ( "Lost connection to reporter manager " + resourceName );
+    }
+    String manager_response = new String( statement.getCmd() );
+    if ( manager_response.equals(Protocol.FAILURE_COMMAND) ) {
+      throw new ProtocolException(
+        "Received error from reporter manager " + resourceName + ": " +
+        new String(statement.getData()) + "'"
+      );
+    } else if ( ! manager_response.equals(Protocol.SUCCESS_COMMAND) ) {
+      throw new ProtocolException(
+        "Unexpected response '" + statement.toString() +
+        "' from reporter manager " + resourceName
+      );
+    }
+  }
+
+  /**
+   * Read the manager's response to a suite update.
+   *
+   * @param suite  The suite the response is for
+   *
+   * @return True if the manager acknowledged the suite and false if it
+   * returned an error.
+   *
+   * @throws IOException on read error or if the response is for another suite
+   * @throws ProtocolException on an unexpected response
+   */
+  private boolean readSuiteResponse( SuiteDocument suite )
+    throws IOException, ProtocolException {
+
+    Statement statement = this.readStatementWithSocketTimeout();
+    if ( statement == null ) {
+      throw new IOException
+        ( "Lost connection to reporter manager " + resourceName );
+    }
+    String manager_response = new String( statement.getCmd() );
+    String responseData = new String( statement.getData() );
+    if ( manager_response.equals(Protocol.FAILURE_COMMAND) ) {
+      logger.error
+        ( "Received error from reporter manager " + resourceName +
+          " during send of suite " + suite.getSuite().getName() + ": '" +
+          responseData + "'" );
+      return false;
+    } else if ( ! manager_response.equals(Protocol.SUCCESS_COMMAND) ) {
+      throw new ProtocolException
+        ( "Unexpected response '" + statement.toString() +
+          "' from reporter manager " + resourceName + " during send of suite" );
+    }
+    String guid = suite.getSuite().getGuid();
+    if ( guid != null && ! responseData.equals("") &&
+         ! responseData.equals(guid) ) {
+      throw new IOException
+        ( "Reporter manager " + resourceName + " acknowledged suite '" +
+          responseData + "' but expected '" + guid + "'" );
+    }
+    return true;
+  }
+
+  /**
+   * Send the statements that describe a package to the manager.
+   *
+   * @param filename       The name of the file to store this package as.
+   * @param installPath    The path relative to the package cache directory to
+   *                       store this package at.
+   * @param name           The repository name for this package.
+   * @param permissions    The permissions to set on the package once installed
+   *                       or null to use default permissions.
+   * @param dependencies   The dependencies (space delimited) on this package or
+   *                       null if no dependencies.
+   * @param version        The version of this package.
+   *
+   * @throws IOException on write error
+   */
+  private void writePackageHeader(
+    String filename, String installPath, String name, String permissions,
+    String dependencies, String version ) throws IOException {
+
+    // send package to RM
+    this.writer.write( new Statement(Protocol.PACKAGE_COMMAND, name) );
+    this.writer.write(
+      new Statement(Protocol.PACKAGE_FILENAME_COMMAND, filename )
+    );
+    this.writer.write(
+      new Statement(Protocol.PACKAGE_VERSION_COMMAND, version)
+    );
+    this.writer.write(
+      new Statement(Protocol.PACKAGE_INSTALLPATH_COMMAND, installPath)
+    );
+    if ( permissions != null ) {
+      this.writer.write(
+        new Statement(Protocol.PACKAGE_PERMISSIONS_COMMAND, permissions)
+      );
+    }
+    if ( dependencies != null ) {
+      this.writer.write(
+        new Statement(Protocol.PACKAGE_DEPENDENCIES_COMMAND, dependencies)
+      );
+    }
+  }
 }
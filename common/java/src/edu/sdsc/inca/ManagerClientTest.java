@@ -0,0 +1,334 @@
+package edu.sdsc.inca;
+
+import edu.sdsc.inca.dataModel.suite.SuiteDocument;
+import edu.sdsc.inca.protocol.Protocol;
+import edu.sdsc.inca.protocol.ProtocolException;
+import edu.sdsc.inca.protocol.ProtocolReader;
+import edu.sdsc.inca.protocol.ProtocolWriter;
+import edu.sdsc.inca.protocol.Statement;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.Vector;
+import java.util.zip.GZIPInputStream;
+import junit.framework.TestCase;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.log4j.Logger;
+
+/**
+ * Tests the pipelined requests and the package content transfers of the
+ * ManagerClient against stand-in reporter managers that answer statements in
+ * the order they are received.
+ */
+public class ManagerClientTest extends TestCase {
+
+  protected static Logger logger = Logger.getLogger(ManagerClientTest.class);
+
+  /**
+   * Stand-in reporter manager that acknowledges each suite with its guid
+   * except for the suite named reject, which it returns an error for.  If
+   * wrongTag is set, acknowledges suites with the wrong guid.
+   */
+  private class MockManager extends Thread {
+    private ServerSocket server;
+    private boolean wrongTag;
+    public volatile int received = 0;
+
+    public MockManager( boolean wrongTag ) throws IOException {
+      this.server = new ServerSocket( 0 );
+      this.wrongTag = wrongTag;
+    }
+
+    public int getPort() {
+      return server.getLocalPort();
+    }
+
+    public void run() {
+      try {
+        Socket socket = server.accept();
+        ProtocolReader reader = new ProtocolReader( socket.getInputStream() );
+        ProtocolWriter writer = new ProtocolWriter( socket.getOutputStream() );
+        Statement statement;
+        while ( (statement = reader.readStatement()) != null ) {
+          received++;
+          String cmd = new String( statement.getCmd() );
+          if ( ! cmd.equals(Protocol.SUITE_UPDATE_COMMAND) ) {
+            writer.write( Statement.getErrorStatement("unknown " + cmd) );
+            continue;
+          }
+          SuiteDocument suite =
+            SuiteDocument.Factory.parse( new String(statement.getData()) );
+          if ( suite.getSuite().getName().equals("reject") ) {
+            writer.write( Statement.getErrorStatement("bad suite") );
+          } else {
+            writer.write( Statement.getOkStatement(
+              wrongTag ? "other" : suite.getSuite().getGuid()
+            ) );
+          }
+        }
+        socket.close();
+      } catch ( Exception e ) {
+        logger.debug( "Mock manager exiting: " + e );
+      }
+    }
+
+    public void close() throws IOException {
+      server.close();
+    }
+  }
+
+  /**
+   * Stand-in reporter manager that keeps package content received in chunks
+   * the way the reporter cache does, across connections.  If dropAfter is
+   * set, the connection is closed without a response once that many chunks
+   * have been stored on it, as if the manager was restarted.
+   */
+  private class ContentManager extends Thread {
+    private ServerSocket server;
+    private int dropAfter;
+    private ByteArrayOutputStream partial = new ByteArrayOutputStream();
+    private Set<String> complete = new HashSet<String>();
+    public Vector<Long> offsets = new Vector<Long>();
+
+    public ContentManager( int dropAfter ) throws IOException {
+      this.server = new ServerSocket( 0 );
+      this.dropAfter = dropAfter;
+    }
+
+    public int getPort() {
+      return server.getLocalPort();
+    }
+
+    public void run() {
+      try {
+        while ( true ) {
+          Socket socket = server.accept();
+          serve( socket );
+          socket.close();
+        }
+      } catch ( Exception e ) {
+        logger.debug( "Mock manager exiting: " + e );
+      }
+    }
+
+    private void serve( Socket socket ) throws Exception {
+      ProtocolReader reader = new ProtocolReader( socket.getInputStream() );
+      ProtocolWriter writer = new ProtocolWriter( socket.getOutputStream() );
+      int chunks = 0;
+      Statement statement;
+      while ( (statement = reader.readStatement()) != null ) {
+        String cmd = new String( statement.getCmd() );
+        String data = new String( statement.getData() );
+        if ( cmd.equals(Protocol.PACKAGE_DIGEST_COMMAND) ) {
+          writer.write( Statement.getOkStatement(
+            complete.contains(data) ? Protocol.PACKAGE_HAVE_RESPONSE :
+            Protocol.PACKAGE_NEED_RESPONSE + " " + partial.size()
+          ) );
+        } else if ( cmd.equals(Protocol.PACKAGE_CHUNK_COMMAND) ) {
+          String[] parts = data.split( " ", 4 );
+          long offset = Long.parseLong( parts[1] );
+          if ( offset != partial.size() ) {
+            writer.write( Statement.getErrorStatement("bad offset") );
+            continue;
+          }
+          offsets.add( offset );
+          partial.write( Base64.decodeBase64(parts[3]) );
+          chunks++;
+          if ( chunks == dropAfter ) {
+            dropAfter = 0;
+            return;
+          }
+          if ( partial.size() == Long.parseLong(parts[2]) ) {
+            GZIPInputStream gunzip = new GZIPInputStream
+              ( new ByteArrayInputStream(partial.toByteArray()) );
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for ( int n; (n = gunzip.read(buffer)) >= 0; ) {
+              content.write( buffer, 0, n );
+            }
+            partial.reset();
+            if ( ! digest(content.toByteArray()).equals(parts[0]) ) {
+              writer.write( Statement.getErrorStatement("bad digest") );
+              continue;
+            }
+            complete.add( parts[0] );
+          }
+          writer.write( Statement.getOkStatement(parts[0]) );
+        } else if ( cmd.equals(Protocol.PACKAGE_COMMAND) ) {
+          while ( ! cmd.equals(Protocol.PACKAGE_CONTENTDIGEST_COMMAND) ) {
+            statement = reader.readStatement();
+            cmd = new String( statement.getCmd() );
+          }
+          if ( complete.contains(new String(statement.getData())) ) {
+            writer.write( Statement.getOkStatement(data) );
+          } else {
+            writer.write( Statement.getErrorStatement("content not received") );
+          }
+        } else {
+          writer.write( Statement.getErrorStatement("unknown " + cmd) );
+        }
+      }
+    }
+
+    public void close() throws IOException {
+      server.close();
+    }
+  }
+
+  /**
+   * Create a suite with the specified name.
+   *
+   * @param name  The name of the suite
+   *
+   * @return  A new suite document
+   */
+  private SuiteDocument createSuite( String name ) {
+    SuiteDocument suite = SuiteDocument.Factory.newInstance();
+    suite.addNewSuite();
+    suite.getSuite().setName( name );
+    suite.getSuite().setGuid( "incas://localhost:6323/" + name );
+    suite.getSuite().addNewSeriesConfigs();
+    return suite;
+  }
+
+  /**
+   * Connect a manager client to a mock manager.
+   *
+   * @param port  The port of the mock manager to connect to
+   *
+   * @return  A connected manager client
+   *
+   * @throws Exception if unable to connect
+   */
+  private ManagerClient connect( int port ) throws Exception {
+    Socket socket = new Socket( "localhost", port );
+    ManagerClient client = new ManagerClient();
+    client.setResourceName( "mock" );
+    client.setReader( new ProtocolReader(socket.getInputStream()) );
+    client.setWriter( new ProtocolWriter(socket.getOutputStream()) );
+    return client;
+  }
+
+  /**
+   * Return the SHA-256 digest of the specified content as a hex string.
+   *
+   * @param content  The content to digest
+   *
+   * @return  The digest of the content
+   *
+   * @throws Exception if SHA-256 is not available
+   */
+  private static String digest( byte[] content ) throws Exception {
+    StringBuilder result = new StringBuilder();
+    for ( byte b : MessageDigest.getInstance("SHA-256").digest(content) ) {
+      result.append( String.format("%02x", b) );
+    }
+    return result.toString();
+  }
+
+  /**
+   * Test that package content sent in chunks is resumed from where the
+   * manager stopped receiving it when the manager is restarted partway
+   * through, and that the package can then be installed by digest.
+   *
+   * @throws Exception if problem running test
+   */
+  public void testSendPackageContentResume() throws Exception {
+    // random content doesn't compress, so it spans four chunks
+    byte[] content = new byte[ManagerClient.CHUNK_SIZE * 3];
+    new Random( 0 ).nextBytes( content );
+    String digest = digest( content );
+    ContentManager manager = new ContentManager( 2 );
+    manager.start();
+
+    ManagerClient client = connect( manager.getPort() );
+    assertEquals( 0, client.queryPackageContent(digest) );
+    try {
+      client.sendPackageContent( digest, content, 0 );
+      fail( "lost connection should throw IOException" );
+    } catch ( IOException e ) {
+      // expected
+    }
+
+    client = connect( manager.getPort() );
+    try {
+      client.sendPackageByDigest( "pkg-1", "bin", "pkg", digest, null, null, "1" );
+      fail( "partial content should not be installed" );
+    } catch ( ProtocolException e ) {
+      // expected
+    }
+    long offset = client.queryPackageContent( digest );
+    assertEquals( 2 * ManagerClient.CHUNK_SIZE, offset );
+    client.sendPackageContent( digest, content, offset );
+    assertEquals( 4, manager.offsets.size() );
+    for ( int i = 0; i < manager.offsets.size(); i++ ) {
+      assertEquals( "chunk " + i + " sent once",
+                    (long)i * ManagerClient.CHUNK_SIZE,
+                    manager.offsets.get(i).longValue() );
+    }
+    assertEquals
+      ( ManagerClient.CONTENT_PRESENT, client.queryPackageContent(digest) );
+    client.sendPackageByDigest( "pkg-1", "bin", "pkg", digest, null, null, "1" );
+    manager.close();
+  }
+
+  /**
+   * Test that suites are pipelined and the responses are matched to the
+   * correct suites.
+   *
+   * @throws Exception if problem running test
+   */
+  public void testSendSuites() throws Exception {
+    MockManager manager = new MockManager( false );
+    manager.start();
+    ManagerClient client = connect( manager.getPort() );
+    long before = client.getLastContact();
+
+    int numSuites = ManagerClient.MAX_OUTSTANDING * 2 + 3;
+    SuiteDocument[] suites = new SuiteDocument[numSuites];
+    for ( int i = 0; i < numSuites; i++ ) {
+      suites[i] = createSuite( i == 5 ? "reject" : "suite" + i );
+    }
+    Thread.sleep( 10 );
+    boolean[] acked = client.sendSuites( "mock", suites );
+    assertEquals( numSuites, acked.length );
+    for ( int i = 0; i < numSuites; i++ ) {
+      assertEquals( "suite " + i + " acknowledged", i != 5, acked[i] );
+    }
+    assertEquals( numSuites, manager.received );
+    assertTrue( "last contact updated", client.getLastContact() > before );
+
+    client.sendSuite( "mock", createSuite("single") );
+    try {
+      client.sendSuite( "mock", createSuite("reject") );
+      fail( "rejected suite should throw exception" );
+    } catch ( Exception e ) {
+      // expected
+    }
+    manager.close();
+  }
+
+  /**
+   * Test that a response tagged for another suite is detected.
+   *
+   * @throws Exception if problem running test
+   */
+  public void testSendSuitesOutOfSync() throws Exception {
+    MockManager manager = new MockManager( true );
+    manager.start();
+    ManagerClient client = connect( manager.getPort() );
+    try {
+      client.sendSuites( "mock", new SuiteDocument[] { createSuite("a") } );
+      fail( "mismatched response should throw IOException" );
+    } catch ( IOException e ) {
+      // expected
+    }
+    manager.close();
+  }
+}
@@ -44,6 +44,8 @@ public class Server extends Component {
   static {
     MessageHandlerFactory.registerMessageHandler
       (Protocol.GET_LOG_COMMAND, "edu.sdsc.inca.protocol.GetLog");
+    MessageHandlerFactory.registerMessageHandler
+      (Protocol.GET_STATS_COMMAND, "edu.sdsc.inca.protocol.GetStats");
     MessageHandlerFactory.registerMessageHandler
       (Protocol.LOG_CONFIG_COMMAND, "edu.sdsc.inca.protocol.LogConfig");
     MessageHandlerFactory.registerMessageHandler
@@ -257,6 +259,8 @@ public class Server extends Component {
     } catch(IOException e) {
       logger.error("Error closing socket", e);
     }
+    // Make sure permission changes made by the workers are on disk
+    MessageHandler.flushPermissions();
   }
 
   /**
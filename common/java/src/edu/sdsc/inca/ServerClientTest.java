@@ -95,6 +95,32 @@ public class ServerClientTest extends TestCase {
     }
   }
 
+  /**
+   * Make sure the Client getStats command reports the commands run.
+   */
+  public void testStatsCommand() {
+    Client client = null;
+    String failure = null;
+    Server server = null;
+    try {
+      server = startServer();
+      client = connectClient("localhost", server.getPort());
+      client.commandPing(PING_DATA);
+      String stats = client.commandGetStats();
+      if(stats == null) {
+        failure = "Null reply from GETSTATS";
+      } else if(!stats.matches("(?s).*command\\.PING count [1-9].*")) {
+        failure = "No PING timer in GETSTATS reply '" + stats + "'";
+      }
+    } catch (Exception e) {
+      failure = "Unexpected exception " + e;
+    }
+    stopServer(server);
+    if(failure != null) {
+      fail(failure);
+    }
+  }
+
   /**
    * Make sure the Client getLog and logConfig commands work.
    */
@@ -9,6 +9,7 @@ import java.net.SocketTimeoutException;
 import edu.sdsc.inca.protocol.MessageHandler;
 import edu.sdsc.inca.protocol.MessageHandlerFactory;
 import edu.sdsc.inca.protocol.ProtocolReader;
+import edu.sdsc.inca.util.Metrics;
 import edu.sdsc.inca.util.Worker;
 import edu.sdsc.inca.util.WorkItem;
 
@@ -79,7 +80,19 @@ public class ServerInput implements WorkItem<Worker> {
           break;
         }
         logger.debug("Running "+ handler.getClass().getName());
-        handler.execute(reader, output, dn);
+        String command = reader.peekCommand();
+        Metrics.Timer timer = Metrics.getTimer("command." + command);
+        long start = timer.start();
+        boolean completed = false;
+        try {
+          handler.execute(reader, output, dn);
+          completed = true;
+        } finally {
+          timer.stop(start);
+          if(!completed) {
+            Metrics.getCounter("command." + command + ".errors").increment();
+          }
+        }
       }
     } catch(Exception e) {
       StackTraceElement[] trace = e.getStackTrace();
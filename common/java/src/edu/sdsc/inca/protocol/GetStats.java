@@ -0,0 +1,20 @@
+package edu.sdsc.inca.protocol;
+
+
+import edu.sdsc.inca.util.Metrics;
+
+
+/**
+ * This command retrieves the server's timers and counters, such as the time
+ * taken by each command.  Useful for watching server performance.
+ */
+public class GetStats extends StandardMessageHandler {
+
+  public void execute(ProtocolReader reader,
+                      ProtocolWriter writer,
+                      String dn) throws Exception {
+    reader.readStatement();
+    writer.write(Statement.getOkStatement(Metrics.getStatistics()));
+  }
+
+}
@@ -12,6 +12,9 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -19,6 +22,11 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -259,6 +267,80 @@ public abstract class MessageHandler {
 	}
 
 
+	/**
+	 * An immutable snapshot of the permittees that is read without locking.
+	 * Every change to the permittees builds a new snapshot and swaps it in,
+	 * so permission checks never wait on a change or a write of the
+	 * permissions file.
+	 */
+	private static class PermissionIndex {
+
+		private final boolean empty;
+		private final Set<String> peers = new HashSet<String>();
+		private final Map<String, Set<String>> actions = new HashMap<String, Set<String>>();
+		private final Set<String> restricted = new HashSet<String>();
+
+
+		// constructors
+
+
+		/**
+		 *
+		 * @param permits
+		 */
+		protected PermissionIndex(Map<String, Permittee> permits)
+		{
+			empty = permits.isEmpty();
+
+			for (Permittee permit : permits.values()) {
+				if (permit.group == PermitteeGroup.PEER) {
+					peers.add(permit.name);
+
+					continue;
+				}
+
+				Set<String> granted = ((StandardPermittee) permit).actions;
+
+				actions.put(permit.name, Collections.unmodifiableSet(new HashSet<String>(granted)));
+				restricted.addAll(granted);
+			}
+		}
+
+
+		// protected methods
+
+
+		/**
+		 * Returns true iff the DN has been granted permission to the action.
+		 *
+		 * @param name
+		 * @param action
+		 * @return
+		 */
+		protected boolean hasPermission(String name, String action)
+		{
+			if (peers.contains(name))
+				return true;
+
+			Set<String> granted = actions.get(name);
+
+			return granted != null && granted.contains(action);
+		}
+
+		/**
+		 * Returns true iff the action has been granted to some standard
+		 * permittee, i.e., only permittees may perform it.
+		 *
+		 * @param action
+		 * @return
+		 */
+		protected boolean isRestricted(String action)
+		{
+			return restricted.contains(action);
+		}
+	}
+
+
 	private static final String PEER_ACTION = "PEER";
 	private static final String SEPARATOR = "\n";
 
@@ -269,6 +351,18 @@ public abstract class MessageHandler {
 
 	private static final Lock permitteesLock = new ReentrantLock();
 	private static final Map<String, Permittee> permittees = new TreeMap<String, Permittee>();
+	private static volatile PermissionIndex permissionIndex = new PermissionIndex(permittees);
+	private static final AtomicBoolean storePending = new AtomicBoolean(false);
+	private static final ExecutorService permissionsWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, "permissions-writer");
+
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	});
 	private static String permissionsPath = null;
 
 
@@ -318,11 +412,11 @@ public abstract class MessageHandler {
 				if (permit.hasPermission(action))
 					return true;
 
-				if (grantedToMemberOfGroup(action, PermitteeGroup.STANDARD))
+				if (permissionIndex.isRestricted(action))
 					return false;
 			}
 			else {
-				if (grantedToMemberOfGroup(action, PermitteeGroup.STANDARD))
+				if (permissionIndex.isRestricted(action))
 					return false;
 
 				permit = new StandardPermittee(name);
@@ -334,7 +428,7 @@ public abstract class MessageHandler {
 
 			permit.grantPermission(action);
 
-			storePermissions();
+			permissionsChanged();
 
 			return true;
 		}
@@ -365,7 +459,7 @@ public abstract class MessageHandler {
 
 			logger.debug("Revoked permission to '" + action + "' from '" + name + "'");
 
-			storePermissions();
+			permissionsChanged();
 
 			return true;
 		}
@@ -397,7 +491,7 @@ public abstract class MessageHandler {
 			}
 
 			if (revoked)
-				storePermissions();
+				permissionsChanged();
 
 			return revoked;
 		}
@@ -429,7 +523,7 @@ public abstract class MessageHandler {
 
 			permittees.put(name, new PeerPermittee(name));
 
-			storePermissions();
+			permissionsChanged();
 
 			return true;
 		}
@@ -460,7 +554,7 @@ public abstract class MessageHandler {
 
 			permittees.remove(name);
 
-			storePermissions();
+			permissionsChanged();
 
 			return true;
 		}
@@ -473,7 +567,8 @@ public abstract class MessageHandler {
 	 * Returns true iff a specified DN may perform a specified action.  All DNs
 	 * are allowed to perform all actions by default; specific permission is
 	 * required only for actions where some entity has been granted specific
-	 * permission.
+	 * permission.  Does not lock; the check is made against the latest
+	 * snapshot of the permissions.
 	 *
 	 * @param name the entity DN
 	 * @param action the action to test
@@ -482,41 +577,39 @@ public abstract class MessageHandler {
 	public static boolean isPermitted(String name, String action)
 	{
 		if (name == null) {
-			logger.debug("Client anonymous allowed to '" + action + "'; non-ssl");
+			if (logger.isDebugEnabled())
+				logger.debug("Client anonymous allowed to '" + action + "'; non-ssl");
 
 			return true;
 		}
 
-		permitteesLock.lock();
+		PermissionIndex index = permissionIndex;
 
-		try {
-			if (permittees.isEmpty()) {
+		if (index.empty) {
+			if (logger.isDebugEnabled())
 				logger.debug("Client '" + name + "' allowed to '" + action + "'; no permissions");
 
-				return true;
-			}
-
-			Permittee permit = permittees.get(name);
+			return true;
+		}
 
-			if (permit != null && permit.hasPermission(action)) {
+		if (index.hasPermission(name, action)) {
+			if (logger.isDebugEnabled())
 				logger.debug("Client '" + name + "' allowed to '" + action + "'; specific permit");
 
-				return true;
-			}
+			return true;
+		}
 
-			if (grantedToMemberOfGroup(action, PermitteeGroup.STANDARD)) {
+		if (index.isRestricted(action)) {
+			if (logger.isDebugEnabled())
 				logger.debug("Client '" + name + "' forbidden to '" + action + "'");
 
-				return false;
-			}
+			return false;
+		}
 
+		if (logger.isDebugEnabled())
 			logger.debug("Client '" + name + "' allowed to '" + action + "'; global permit");
 
-			return true;
-		}
-		finally {
-			permitteesLock.unlock();
-		}
+		return true;
 	}
 
 	/**
@@ -709,13 +802,34 @@ public abstract class MessageHandler {
 				}
 			}
 
-			storePermissions();
+			permissionsChanged();
 		}
 		finally {
 			permitteesLock.unlock();
 		}
 	}
 
+	/**
+	 * Waits for any pending write of the permissions file to complete.
+	 */
+	public static void flushPermissions()
+	{
+		try {
+			permissionsWriter.submit(new Runnable() {
+				public void run()
+				{
+					// writes are run in order, so this runs after any pending write
+				}
+			}).get();
+		}
+		catch (InterruptedException interruptErr) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException execErr) {
+			logger.warn("Unable to flush permissions: " + execErr.getMessage());
+		}
+	}
+
 	/**
 	 * Removes all permissions--useful for testing.
 	 */
@@ -726,7 +840,7 @@ public abstract class MessageHandler {
 		try {
 			permittees.clear();
 
-			storePermissions();
+			permissionsChanged();
 		}
 		finally {
 			permitteesLock.unlock();
@@ -767,52 +881,68 @@ public abstract class MessageHandler {
 
 
 	/**
-	 *
-	 * @param action
-	 * @param group
-	 * @return
+	 * Publish a new snapshot of the permittees for permission checks and
+	 * schedule a write of the permissions file.  Must be called with
+	 * permitteesLock held.
 	 */
-	private static boolean grantedToMemberOfGroup(String action, PermitteeGroup group)
+	private static void permissionsChanged()
 	{
-		permitteesLock.lock();
+		permissionIndex = new PermissionIndex(permittees);
 
-		try {
-			for (Map.Entry<String, Permittee> entry : permittees.entrySet()) {
-				Permittee permit = entry.getValue();
+		storePermissions();
+	}
 
-				if (permit.group == group && permit.hasPermission(action))
-					return true;
-			}
+	/**
+	 * Schedule a write of the current permission set to a file.  Changes made
+	 * before the write starts are stored by the same write, so a burst of
+	 * changes results in few writes.
+	 */
+	private static void storePermissions()
+	{
+		if (!storePending.compareAndSet(false, true))
+			return;
 
-			return false;
-		}
-		finally {
-			permitteesLock.unlock();
-		}
+		permissionsWriter.execute(new Runnable() {
+			public void run()
+			{
+				storePending.set(false);
+
+				writePermissions();
+			}
+		});
 	}
 
 	/**
-	 * Store the current permission set to a file.
+	 * Store the current permission set to a file.  The permission set is
+	 * copied with permitteesLock held but written after it is released.
 	 */
-	private static void storePermissions()
+	private static void writePermissions()
 	{
+		String path;
+		Map<String, List<String>> perms = new TreeMap<String, List<String>>();
+
 		permitteesLock.lock();
 
 		try {
-			if (permissionsPath == null)
-				return;
+			path = permissionsPath;
 
-			if (permittees.isEmpty()) {
-				(new File(permissionsPath)).delete();
+			for (Permittee permit : permittees.values())
+				permit.addPermissions(perms);
+		}
+		finally {
+			permitteesLock.unlock();
+		}
 
-				return;
-			}
+		if (path == null)
+			return;
 
-			Map<String, List<String>> perms = new TreeMap<String, List<String>>();
+		if (perms.isEmpty()) {
+			(new File(path)).delete();
 
-			for (Permittee permit : permittees.values())
-				permit.addPermissions(perms);
+			return;
+		}
 
+		try {
 			Properties storedPerms = new Properties();
 
 			for (Map.Entry<String, List<String>> entry : perms.entrySet()) {
@@ -831,7 +961,7 @@ public abstract class MessageHandler {
 				storedPerms.setProperty(entry.getKey(), propValue.toString());
 			}
 
-			OutputStream outStream = new FileOutputStream(permissionsPath);
+			OutputStream outStream = new FileOutputStream(path);
 
 			try {
 				storedPerms.store(outStream, null);
@@ -843,9 +973,6 @@ public abstract class MessageHandler {
 		catch (IOException ioErr) {
 			logger.warn("Unable to store permissions: " + ioErr.getMessage());
 		}
-		finally {
-			permitteesLock.unlock();
-		}
 	}
 
 	/**
@@ -896,6 +1023,8 @@ public abstract class MessageHandler {
 			logger.warn("Unable to load permissions: " + ioErr.getMessage());
 		}
 		finally {
+			permissionIndex = new PermissionIndex(permittees);
+
 			permitteesLock.unlock();
 		}
 	}
@@ -119,6 +119,7 @@ public class PermitTest extends TestCase {
 
     String path = f.getAbsolutePath();
     MessageHandler.resetPermissions();
+    MessageHandler.flushPermissions();
     Properties p = new Properties();
     try {
       p.load(new FileInputStream(path));
@@ -139,6 +140,7 @@ public class PermitTest extends TestCase {
     String reply = sw.toString();
     assertNotNull(reply);
     assertTrue(reply.startsWith("OK"));
+    MessageHandler.flushPermissions();
     try {
       p.load(new FileInputStream(path));
     } catch(IOException e) {
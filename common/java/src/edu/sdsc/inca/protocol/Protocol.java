@@ -46,6 +46,15 @@ public class Protocol {
    */
   public static final String GET_LOG_COMMAND = "GETLOG";
 
+  /**
+   * Command: GETSTATS CRLF
+   * Response: OK SP stats CRLF.
+   * Returns the server's timers and counters, one per line, as the name
+   * followed by count N, or, for a timer, count N mean M p50 M p90 M p99 M
+   * max M with durations in milliseconds.
+   */
+  public static final String GET_STATS_COMMAND = "GETSTATS";
+
   /**
    * Command: LOGCONFIG SP property=level ,appender [,appender etc]
    * Response: OK CRLF.
@@ -237,13 +246,34 @@ public class Protocol {
 
   // Recognized Reporter Manager protocol commands.
 
+  /**
+   * Command: CHUNK SP digest SP offset SP total SP base64Content CRLF
+   * Response: OK CRLF
+   * Send part of the gzipped content of a package to the reporter manager.
+   * The manager appends the chunk to any content it already has for the
+   * digest; when offset plus the chunk length equals total, it uncompresses
+   * the content and checks it against the digest.
+   */
+  public static final String PACKAGE_CHUNK_COMMAND = "CHUNK";
+
+  /**
+   * Command: DIGEST SP digest CRLF
+   * Response: OK SP [HAVE|NEED SP offset] CRLF
+   * Ask the reporter manager whether it has the package content with the
+   * given SHA-256 digest.  If not, offset is the number of bytes of gzipped
+   * content it received in an earlier interrupted transfer.  Managers that
+   * predate content digests respond with ERROR.
+   */
+  public static final String PACKAGE_DIGEST_COMMAND = "DIGEST";
+
   /**
    * Command: PACKAGE SP uri CRLF
    *          FILENAME SP name CRLF
    *          VERSION SP version CRLF
    *          INSTALLPATH SP path CRLF
    *          [PERMISSION SP oct CRLF]
-   *          CONTENT SP packageContent CRLF
+   *          [DEPENDENCIES SP names CRLF]
+   *          [CONTENT SP packageContent | CONTENTDIGEST SP digest] CRLF
    * Response: OK CRLF
    * Send a reporter module or tar.gz package to the reporter manager.
    */
@@ -338,6 +368,18 @@ public class Protocol {
    */
   public static final String QUERY_PERIOD_COMMAND = "QUERYPERIOD";
 
+  /**
+   * Command: QUERYPERIODCOLUMNS SP begin SP end SP metrics SP expr CRLF
+   * Response: QUERYRESULT SP columns CRLF
+   *           QUERYEND CRLF.
+   * Like QUERYPERIOD, but returns one result per series config in the compact
+   * column format of SeriesColumns instead of one GraphSeries document per
+   * instance.  Metrics is a comma-separated list of URL-encoded names of
+   * statistics to extract from the report bodies, or "-" for none.
+   */
+  public static final String QUERY_PERIOD_COLUMNS_COMMAND =
+    "QUERYPERIODCOLUMNS";
+
   /**
    * Command: QUERYSQL SP sql CRLF
    * Response: [QUERYRESULT SP xml CRLF etc]
@@ -393,6 +435,29 @@ public class Protocol {
     */
    public static final String QUERY_REPORTERS_DETAIL_COMMAND = "QUERYREPORTERSDETAIL";
 
+   /**
+    * Command: QUERYCACHESTATS CRLF
+    * Response: OK SP stats CRLF
+    * Requests the hit rates of the depot's query result cache, one line per
+    * query command.
+    */
+   public static final String QUERY_CACHE_STATS_COMMAND = "QUERYCACHESTATS";
+
+   /**
+    * Command: SUBSCRIBE CRLF
+    * Response: OK CRLF, followed by
+    *           INSERTED SP config SP instance CRLF
+    *           each time a report becomes the latest instance of a series
+    *           config, and PING CRLF after each quiet period, until the
+    *           connection is closed.
+    * Subscribes to insert events.  If the subscriber falls too far behind, or
+    * the depot data is replaced, the depot sends ERROR SP message CRLF and
+    * ends the subscription; the subscriber should then assume it has missed
+    * events.
+    */
+   public static final String SUBSCRIBE_COMMAND = "SUBSCRIBE";
+   public static final String INSERTED_EVENT_COMMAND = "INSERTED";
+
   /**
    * Command: SUITE SP xml CRLF
    * Response: OK SP version CRLF.
@@ -457,6 +522,11 @@ public class Protocol {
   public static final String PACKAGE_PERMISSIONS_COMMAND = "PERMISSION";
   public static final String PACKAGE_DEPENDENCIES_COMMAND = "DEPENDENCIES";
   public static final String PACKAGE_CONTENT_COMMAND = "CONTENT";
+  public static final String PACKAGE_CONTENTDIGEST_COMMAND = "CONTENTDIGEST";
+
+  // Manager DIGEST command responses
+  public static final String PACKAGE_HAVE_RESPONSE = "HAVE";
+  public static final String PACKAGE_NEED_RESPONSE = "NEED";
 
   // Manager GET_PROXY_RENEW_INFO command "subcommands"
   public static final String PROXY_DN_COMMAND = "DN";
@@ -4,6 +4,12 @@ import edu.sdsc.inca.util.StringMethods;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
@@ -26,6 +32,7 @@ public class Repositories {
   public static final String FILE_ATTR = "file";
   public static final String NAME_ATTR = "name";
   public static final String VERSION_ATTR = "version";
+  public static final int MAX_REFRESH_THREADS = 8;
 
   private Hashtable repositories = new Hashtable();
   private String filePath = null;
@@ -231,16 +238,85 @@ public class Repositories {
   }
 
   /**
-   * Refresh the current catalog contents of all repositories.
+   * Refresh the current catalog contents of all repositories.  Catalogs are
+   * downloaded concurrently so one slow repository does not delay the others.
    *
-   * @throws IOException
+   * @throws IOException if any catalog could not be refreshed
    */
   public void refresh() throws IOException {
     logger.info( "Refreshing repository catalogs" );
-    for ( Enumeration e = this.repositories.elements(); e.hasMoreElements(); ) {
-      Repository repo = (Repository)e.nextElement();
-      logger.info( "Refreshing " + repo.getURL() );
-      repo.refresh();
+    refresh( this.getRepositories() );
+  }
+
+  /**
+   * Refresh the catalogs of a set of repositories concurrently using up to
+   * MAX_REFRESH_THREADS threads.  All repositories are refreshed even if some
+   * of them fail.
+   *
+   * @param repos  The repositories to refresh
+   *
+   * @throws IOException the first error encountered refreshing a catalog
+   */
+  protected static void refresh( Repository[] repos ) throws IOException {
+    if ( repos.length == 1 ) {
+      refresh( repos[0] );
+      return;
+    } else if ( repos.length < 1 ) {
+      return;
+    }
+    ExecutorService pool = Executors.newFixedThreadPool
+      ( Math.min(repos.length, MAX_REFRESH_THREADS) );
+    Vector<Future<Boolean>> results = new Vector<Future<Boolean>>();
+    for ( final Repository repo : repos ) {
+      results.add( pool.submit( new Callable<Boolean>() {
+        public Boolean call() throws IOException {
+          return refresh( repo );
+        }
+      }));
+    }
+    IOException error = null;
+    try {
+      for ( Future<Boolean> result : results ) {
+        try {
+          result.get();
+        } catch ( ExecutionException e ) {
+          if ( error == null ) {
+            error = e.getCause() instanceof IOException ?
+              (IOException)e.getCause() : new IOException( e.getCause() );
+          }
+        }
+      }
+    } catch ( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted while refreshing repositories" );
+    } finally {
+      pool.shutdownNow();
+    }
+    if ( error != null ) {
+      throw error;
+    }
+  }
+
+  /**
+   * Refresh the catalog of a single repository.
+   *
+   * @param repo  The repository to refresh
+   *
+   * @return true if the catalog changed and false if it was unchanged
+   *
+   * @throws IOException if the catalog could not be refreshed
+   */
+  private static boolean refresh( Repository repo ) throws IOException {
+    logger.info( "Refreshing " + repo.getURL() );
+    try {
+      boolean changed = repo.refresh();
+      if ( ! changed ) {
+        logger.debug( "Catalog for " + repo.getURL() + " not modified" );
+      }
+      return changed;
+    } catch ( IOException e ) {
+      logger.error( "Unable to refresh " + repo.getURL(), e );
+      throw e;
     }
   }
 
@@ -283,8 +359,8 @@ public class Repositories {
     this.repositories = new Hashtable();
     for ( int i = 0; i < repos.length; i++ ) {
       this.repositories.put( repos[i].getURL().toString(), repos[i] );
-      repos[i].refresh();
     }
+    refresh( repos );
     saveRepositories( this.filePath );
   }
 
@@ -1,12 +1,20 @@
 package edu.sdsc.inca.repository;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import edu.sdsc.inca.util.StringMethods;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Properties;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 import junit.framework.TestCase;
@@ -324,4 +332,90 @@ public class RepositoriesTest extends TestCase {
     Repositories repos2 = new Repositories( "/tmp/repos.txt" );
     assertEquals( "2 loaded", 2, repos2.getRepositories().length );
   }
+
+  /**
+   * Test that catalogs are only downloaded when they change and that
+   * repositories are refreshed even if one of them fails.
+   *
+   * @throws Exception if trouble running test
+   */
+  public void testConditionalRefresh() throws Exception {
+    CatalogHandler handler = new CatalogHandler();
+    HttpServer server = HttpServer.create( new InetSocketAddress(0), 0 );
+    server.createContext( "/", handler );
+    server.start();
+    try {
+      String base = "http://localhost:" + server.getAddress().getPort();
+      handler.setCatalog( "name: a\nversion: 1\n", "\"v1\"" );
+      Repository repo = new Repository( new URL(base + "/repo") );
+      assertEquals( "catalog downloaded", 1, handler.downloads );
+      assertEquals( "catalog read", "1", repo.getLatestVersionOfPackage("a") );
+
+      assertFalse( "unchanged catalog not reloaded", repo.refresh() );
+      assertEquals( "catalog not downloaded again", 1, handler.downloads );
+      assertEquals( "catalog kept", "1", repo.getLatestVersionOfPackage("a") );
+
+      handler.setCatalog( "name: a\nversion: 2\n", "\"v2\"" );
+      assertTrue( "changed catalog reloaded", repo.refresh() );
+      assertEquals( "catalog downloaded again", 2, handler.downloads );
+      assertEquals( "new catalog", "2", repo.getLatestVersionOfPackage("a") );
+
+      Repository missing = new Repository
+        ( new URL(base + "/missing"), new Properties[0] );
+      Repositories repos = new Repositories( null );
+      repos.addRepository( repo );
+      repos.addRepository( missing );
+      handler.setCatalog( "name: a\nversion: 3\n", "\"v3\"" );
+      try {
+        repos.refresh();
+        fail( "refresh of missing repository should fail" );
+      } catch ( IOException e ) {
+        // expected
+      }
+      assertEquals( "other repository refreshed", "3",
+                    repos.getLatestVersionOfPackage("a") );
+    } finally {
+      server.stop( 0 );
+    }
+  }
+
+  /**
+   * A stand-in for an http repository which serves a catalog under /repo and
+   * honors If-None-Match.
+   */
+  private static class CatalogHandler implements HttpHandler {
+    public int downloads = 0;
+    private byte[] catalog;
+    private String etag;
+
+    public synchronized void setCatalog( String packages, String etag )
+      throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      OutputStreamWriter output =
+        new OutputStreamWriter( new GZIPOutputStream(bytes) );
+      output.write( packages );
+      output.close();
+      this.catalog = bytes.toByteArray();
+      this.etag = etag;
+    }
+
+    public synchronized void handle( HttpExchange exchange )
+      throws IOException {
+      String path = exchange.getRequestURI().getPath();
+      if ( ! path.equals("/repo/" + Repository.CATALOG_NAME) ) {
+        exchange.sendResponseHeaders( 404, -1 );
+      } else if ( etag.equals
+                  (exchange.getRequestHeaders().getFirst("If-None-Match")) ) {
+        exchange.sendResponseHeaders( 304, -1 );
+      } else {
+        downloads++;
+        exchange.getResponseHeaders().set( "ETag", etag );
+        exchange.sendResponseHeaders( 200, catalog.length );
+        OutputStream out = exchange.getResponseBody();
+        out.write( catalog );
+        out.close();
+      }
+      exchange.close();
+    }
+  }
 }
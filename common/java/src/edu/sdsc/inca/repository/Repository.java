@@ -5,6 +5,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.Properties;
@@ -21,7 +22,9 @@ public class Repository {
 
   // Instance variables
   protected URL baseUrl;
-  protected Properties[] catalog;
+  protected volatile Properties[] catalog;
+  protected String catalogETag = null;
+  protected String catalogLastModified = null;
 
   /**
    * Instantiates a repository accessed via a base URL.
@@ -200,13 +203,30 @@ public class Repository {
 
   /**
    * Refresh the catalog contents by downloading the Packages.gz file and
-   * replacing the current contents.
+   * replacing the current contents.  For http(s) repositories, the request is
+   * made conditional on the ETag and Last-Modified values returned with the
+   * current catalog so an unchanged catalog is not downloaded or parsed again.
+   *
+   * @return true if the catalog was downloaded, false if it was unchanged
    *
    * @throws IOException if the repository does not exist or has no catalog
    */
-  public void refresh( ) throws IOException {
+  public synchronized boolean refresh( ) throws IOException {
     URL catalogUrl = new URL(this.baseUrl + "/" + CATALOG_NAME);
     URLConnection conn = catalogUrl.openConnection();
+    if(conn instanceof HttpURLConnection && this.catalog != null) {
+      if(this.catalogETag != null) {
+        conn.setRequestProperty("If-None-Match", this.catalogETag);
+      }
+      if(this.catalogLastModified != null) {
+        conn.setRequestProperty("If-Modified-Since", this.catalogLastModified);
+      }
+      if(((HttpURLConnection)conn).getResponseCode() ==
+         HttpURLConnection.HTTP_NOT_MODIFIED) {
+        ((HttpURLConnection)conn).disconnect();
+        return false;
+      }
+    }
     BufferedReader input = new BufferedReader(
       new InputStreamReader(new GZIPInputStream(conn.getInputStream()))
     );
@@ -238,6 +258,9 @@ public class Repository {
     input.close();
     this.catalog = (Properties [])
       catalogVector.toArray(new Properties[catalogVector.size()]);
+    this.catalogETag = conn.getHeaderField("ETag");
+    this.catalogLastModified = conn.getHeaderField("Last-Modified");
+    return true;
   }
 
   /**
@@ -246,8 +269,10 @@ public class Repository {
    * @param catalog an array of Properties, each element of which describes one
    *                reporter/package in the repository
    */
-  public void setCatalog(Properties[] catalog) {
+  public synchronized void setCatalog(Properties[] catalog) {
     this.catalog = catalog;
+    this.catalogETag = null;
+    this.catalogLastModified = null;
   }
 
   /** Override of the default toString method. */
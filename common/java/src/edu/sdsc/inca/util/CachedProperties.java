@@ -2,6 +2,9 @@ package edu.sdsc.inca.util;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.net.URL;
 import org.apache.log4j.Logger;
@@ -13,6 +16,8 @@ public class CachedProperties {
   private static Logger logger = Logger.getLogger(CachedProperties.class);
   private Properties prop = new Properties();
   private long lastRefresh = 0;
+  private volatile Map<String,String> snapshot = null;
+  private volatile long nextSnapshot = 0;
   private String fileName;
   private String defaultRefresh;
   private String propPrefix;
@@ -39,11 +44,7 @@ public class CachedProperties {
     if(propFile == null) {
       propFile  = fileName+".properties";
     }
-    String refresh = System.getProperty(propPrefix+fileName+"Refresh");
-    if(refresh == null) {
-      refresh  = defaultRefresh;
-    }
-    Integer refreshMins = Integer.parseInt(refresh);
+    int refreshMins = getRefreshMins();
     long minSinceLastRefresh = (System.currentTimeMillis()-lastRefresh)/60000;
     if (minSinceLastRefresh >= refreshMins){
       URL url = ClassLoader.getSystemClassLoader().getResource(propFile);
@@ -65,5 +66,40 @@ public class CachedProperties {
     }
     return prop;
   }
-}
 
+  /**
+   * Returns an unmodifiable copy of the property list.  The copy is replaced
+   * rather than changed when the cache expires, so callers may keep reading
+   * it without locking; only a caller that finds the cache expired waits
+   * while the file is fetched again.
+   *
+   * @return  cached property names and values
+   */
+  public Map<String,String> getSnapshot() {
+    if (snapshot == null || System.currentTimeMillis() >= nextSnapshot) {
+      synchronized(this) {
+        if (snapshot == null || System.currentTimeMillis() >= nextSnapshot) {
+          Properties loaded = getProperties();
+          Map<String,String> copy = new HashMap<String,String>();
+          for (String name : loaded.stringPropertyNames()) {
+            copy.put(name, loaded.getProperty(name));
+          }
+          snapshot = Collections.unmodifiableMap(copy);
+          nextSnapshot = lastRefresh + getRefreshMins() * 60000L;
+        }
+      }
+    }
+    return snapshot;
+  }
+
+  /**
+   * Returns the number of minutes between fetches of the properties file.
+   */
+  private int getRefreshMins() {
+    String refresh = System.getProperty(propPrefix+fileName+"Refresh");
+    if(refresh == null) {
+      refresh  = defaultRefresh;
+    }
+    return Integer.parseInt(refresh);
+  }
+}
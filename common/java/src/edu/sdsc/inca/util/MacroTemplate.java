@@ -0,0 +1,354 @@
+package edu.sdsc.inca.util;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.sdsc.inca.ConfigurationException;
+import edu.sdsc.inca.protocol.Protocol;
+
+
+/**
+ * A compiled form of a string that contains macros.  The string is scanned
+ * once and split into literal text and macro slots, so that it can be
+ * expanded for any number of resources without searching and rewriting the
+ * whole string for each macro value.  An expansion binds each slot to a
+ * resource and macro, and then generates the cross product of the macro
+ * values one string at a time, so callers that only need to process each
+ * expanded string in turn never hold all of them.  The strings are identical
+ * to, and in the same order as, those returned by ResourcesWrapper.expand.
+ */
+public class MacroTemplate {
+
+  private static final String PROXY = "@" + Protocol.PROXY_MACRO + "@";
+  private static final String PROXY_DISGUISED = "#" + Protocol.PROXY_MACRO + "#";
+
+  // Member variables
+  private String[] literals;
+  private String[] qualifiers;
+  private String[] macros;
+  private boolean[] resourceSlots;
+
+  /**
+   * Iterates over the expanded strings of a template for one resource.  If
+   * the template refers to macros of a resource group, the strings for each
+   * member of the group are returned in turn, along with the name of the
+   * member.
+   */
+  public class Expansion {
+
+    private ResourcesWrapper resources;
+    private String resource;
+    private String prevMacro;
+    private List<Map<String,String>> groupMembers;
+    private List<String> targets;
+    private int member = -1;
+    private String[] keys;
+    private int[] slotKeys;
+    private String[][] values;
+    private int[] positions;
+    private boolean pending = false;
+    private String target = null;
+
+    /**
+     * Bind the slots of the template to the given resource.
+     *
+     * @param resources  The resource configuration that defines the macros
+     * @param resource  The name of the resource to expand the template for
+     * @param prevMacro  The name of the previously expanded macro in order to
+     *                   detect infinite recursion, or null
+     *
+     * @throws ConfigurationException if unable to resolve resource groups
+     */
+    private Expansion( ResourcesWrapper resources, String resource,
+                       String prevMacro ) throws ConfigurationException {
+
+      this.resources = resources;
+      this.resource = resource;
+      this.prevMacro = prevMacro;
+
+      // resolve resource groups in the same order as
+      // ResourcesWrapper.normalizeResources so the results line up
+      Hashtable<String,String> rgroups = new Hashtable<String,String>();
+      for ( String qualifier : qualifiers ) {
+        if ( qualifier != null ) {
+          rgroups.put( qualifier, "" );
+        }
+      }
+      this.groupMembers = new ArrayList<Map<String,String>>();
+      this.groupMembers.add( new HashMap<String,String>() );
+      this.targets = new ArrayList<String>();
+      for ( String rgroup : rgroups.keySet() ) {
+        List<Map<String,String>> newMembers =
+          new ArrayList<Map<String,String>>();
+        for ( Map<String,String> members : this.groupMembers ) {
+          for ( String r : resources.getResources(rgroup, true) ) {
+            this.targets.add( r );
+            Map<String,String> newMember = new HashMap<String,String>(members);
+            newMember.put( rgroup, r );
+            newMembers.add( newMember );
+          }
+        }
+        this.groupMembers = newMembers;
+      }
+    }
+
+    /**
+     * Return the name of the target resource the last string returned by
+     * next was expanded for.
+     *
+     * @return  The name of a member of a resource group, or null if the
+     * template does not refer to a resource group
+     */
+    public String getTargetResource() {
+      return this.target;
+    }
+
+    /**
+     * Return true if there are more expanded strings.
+     *
+     * @return  True if next will return another string
+     *
+     * @throws ConfigurationException if a macro is not defined
+     */
+    public boolean hasNext() throws ConfigurationException {
+      while ( ! this.pending ) {
+        if ( this.keys != null && advance() ) {
+          this.pending = true;
+        } else if ( this.member + 1 < this.groupMembers.size() ) {
+          this.member++;
+          this.pending = bind( this.groupMembers.get(this.member) );
+        } else {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Return the next expanded string.
+     *
+     * @return  The template with the current value of each macro substituted
+     *
+     * @throws ConfigurationException if a macro is not defined
+     */
+    public String next() throws ConfigurationException {
+      if ( ! hasNext() ) {
+        throw new NoSuchElementException();
+      }
+      this.pending = false;
+      this.target = this.targets.size() > 0 ? this.targets.get(member) : null;
+
+      StringBuilder result = new StringBuilder( literals[0] );
+      for ( int i = 0; i < slotKeys.length; i++ ) {
+        if ( resourceSlots[i] ) {
+          result.append( XmlWrapper.escape(this.resource) );
+        } else {
+          int key = slotKeys[i];
+          result.append( this.values[key][this.positions[key]] );
+        }
+        result.append( literals[i + 1] );
+      }
+      return result.toString().replace( PROXY_DISGUISED, PROXY );
+    }
+
+    /**
+     * Move to the next combination of macro values of the current group
+     * member, with the last macro varying fastest.
+     *
+     * @return  False if all combinations have been returned
+     */
+    private boolean advance() {
+      for ( int i = this.keys.length - 1; i >= 0; i-- ) {
+        this.positions[i]++;
+        if ( this.positions[i] < this.values[i].length ) {
+          return true;
+        }
+        this.positions[i] = 0;
+      }
+      this.keys = null;
+      return false;
+    }
+
+    /**
+     * Bind the macro slots to the resources of a group member and look up
+     * their values.  Macros are looked up in the order they first appear,
+     * and lookups stop at the first macro without values since the cross
+     * product is then empty.
+     *
+     * @param members  The member chosen for each resource group
+     *
+     * @return  False if the cross product for the member is empty
+     *
+     * @throws ConfigurationException if a macro is not defined
+     */
+    private boolean bind( Map<String,String> members )
+      throws ConfigurationException {
+
+      LinkedHashMap<String,Integer> keyIndex =
+        new LinkedHashMap<String,Integer>();
+      List<String[]> keyParts = new ArrayList<String[]>();
+      this.slotKeys = new int[macros.length];
+      for ( int i = 0; i < macros.length; i++ ) {
+        if ( resourceSlots[i] ) {
+          this.slotKeys[i] = -1;
+          continue;
+        }
+        String r = qualifiers[i] == null ?
+          this.resource : members.get( qualifiers[i] );
+        String fullMacro = r + "->" + macros[i];
+        Integer index = keyIndex.get( fullMacro );
+        if ( index == null ) {
+          index = keyIndex.size();
+          keyIndex.put( fullMacro, index );
+          keyParts.add( new String[] { r, macros[i] } );
+        }
+        this.slotKeys[i] = index;
+      }
+      this.keys = keyIndex.keySet().toArray( new String[keyIndex.size()] );
+      this.values = new String[this.keys.length][];
+      this.positions = new int[this.keys.length];
+      if ( this.keys.length > 0 && this.keys[0].equals(this.prevMacro) ) {
+        throw new ConfigurationException
+          ( "Infinite recursion possibly detected on macro '" +
+            keyParts.get(0)[1] );
+      }
+      for ( int i = 0; i < this.keys.length; i++ ) {
+        String[] parts = keyParts.get( i );
+        this.values[i] = this.resources.getEscapedValues
+          ( parts[0], parts[1], this.keys[i] );
+        if ( this.values[i] == null ) {
+          throw new ConfigurationException
+            ( "Macro '" + parts[1] + "' not defined for targetResource '" +
+              parts[0] + "'");
+        }
+        if ( this.values[i].length == 0 ) {
+          this.keys = null;
+          return false;
+        }
+      }
+      // an empty key set is a single combination of no values
+      if ( this.keys.length == 0 ) {
+        this.keys = null;
+      }
+      return true;
+    }
+  }
+
+  // PUBLIC FUNCTIONS
+
+  /**
+   * Compile a string that may contain macros.
+   *
+   * @param aString  A string that may contain macros in the form @macro@ or
+   *                 @resource->macro@
+   */
+  public MacroTemplate( String aString ) {
+    this( aString, null );
+  }
+
+  /**
+   * Compile a string that may contain macros and a placeholder for the name
+   * of the resource it will be expanded for.
+   *
+   * @param aString  A string that may contain macros in the form @macro@ or
+   *                 @resource->macro@
+   * @param resourceToken  A string that is replaced by the name of the
+   *                       resource in each expanded string, or null
+   */
+  public MacroTemplate( String aString, String resourceToken ) {
+    // PROXY_MACRO is special so doesn't get expanded -- we disguise it here so
+    // it passes thru untouched
+    String text = aString.replace( PROXY, PROXY_DISGUISED );
+    String regex = "@(" + Protocol.MACRO_NAME_PATTERN + ")@";
+    if ( resourceToken != null ) {
+      regex = Pattern.quote( resourceToken ) + "|" + regex;
+    }
+    Matcher matcher = Pattern.compile( regex ).matcher( text );
+    List<String> literalList = new ArrayList<String>();
+    List<String> qualifierList = new ArrayList<String>();
+    List<String> macroList = new ArrayList<String>();
+    List<Boolean> resourceList = new ArrayList<Boolean>();
+    int start = 0;
+    while ( matcher.find() ) {
+      literalList.add( text.substring(start, matcher.start()) );
+      start = matcher.end();
+      String name = matcher.group( 1 );
+      if ( name == null ) {
+        resourceList.add( true );
+        qualifierList.add( null );
+        macroList.add( null );
+        continue;
+      }
+      resourceList.add( false );
+      int arrow = name.indexOf( "->" );
+      if ( arrow > 0 ) {
+        qualifierList.add( name.substring(0, arrow) );
+        macroList.add( name.substring(arrow + 2) );
+      } else {
+        qualifierList.add( null );
+        macroList.add( name );
+      }
+    }
+    literalList.add( text.substring(start) );
+
+    this.literals = literalList.toArray( new String[literalList.size()] );
+    this.qualifiers = qualifierList.toArray(new String[qualifierList.size()]);
+    this.macros = macroList.toArray( new String[macroList.size()] );
+    this.resourceSlots = new boolean[resourceList.size()];
+    for ( int i = 0; i < this.resourceSlots.length; i++ ) {
+      this.resourceSlots[i] = resourceList.get( i );
+    }
+  }
+
+  /**
+   * Start expanding the template for a resource.
+   *
+   * @param resources  The resource configuration that defines the macros
+   * @param resource  The name of the resource to expand the template for
+   *
+   * @return  An iterator over the expanded strings
+   *
+   * @throws ConfigurationException if unable to resolve resource groups
+   */
+  public Expansion expand( ResourcesWrapper resources, String resource )
+    throws ConfigurationException {
+
+    return new Expansion( resources, resource, null );
+  }
+
+  /**
+   * Start expanding the template for a resource.
+   *
+   * @param resources  The resource configuration that defines the macros
+   * @param resource  The name of the resource to expand the template for
+   * @param prevMacro  The name of the previously expanded macro in order to
+   *                   detect infinite recursion.
+   *
+   * @return  An iterator over the expanded strings
+   *
+   * @throws ConfigurationException if unable to resolve resource groups
+   */
+  public Expansion expand( ResourcesWrapper resources, String resource,
+                           String prevMacro ) throws ConfigurationException {
+
+    return new Expansion( resources, resource, prevMacro );
+  }
+
+  /**
+   * Return the number of macro slots in the template.
+   *
+   * @return  The number of macro references, counting repeats
+   */
+  public int getSlotCount() {
+    return this.macros.length;
+  }
+
+}
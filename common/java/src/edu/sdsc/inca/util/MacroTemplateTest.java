@@ -0,0 +1,110 @@
+package edu.sdsc.inca.util;
+
+import junit.framework.TestCase;
+import edu.sdsc.inca.ConfigurationException;
+import edu.sdsc.inca.dataModel.resourceConfig.ResourceConfigDocument;
+import edu.sdsc.inca.protocol.Protocol;
+
+import java.util.Vector;
+
+/**
+ * A tester class for MacroTemplate.  Checks that the expanded strings match
+ * those returned by ResourcesWrapper.expand.
+ */
+public class MacroTemplateTest extends TestCase {
+
+  /**
+   * Returns a small resource configuration without resource groups.
+   *
+   * @return A ResourcesWrapper object containing two resources
+   *
+   * @throws Exception
+   */
+  private ResourcesWrapper createResources() throws Exception {
+    String resources =
+      "<rc:resourceConfig xmlns:rc=\"http://inca.sdsc.edu/dataModel/resourceConfig_2.0\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n" +
+      "<resources>\n" +
+      "  <resource>\n" +
+      "    <name>hostA</name>\n" +
+      "    <macros>\n" +
+      "      <macro><name>port</name><value>1</value><value>2</value></macro>\n" +
+      "      <macro><name>dir</name><value>/tmp/@port@</value></macro>\n" +
+      "    </macros>\n" +
+      "  </resource>\n" +
+      "  <resource>\n" +
+      "    <name>hostB</name>\n" +
+      "    <macros>\n" +
+      "      <macro><name>port</name><value>7</value><value>8</value><value>9</value></macro>\n" +
+      "    </macros>\n" +
+      "  </resource>\n" +
+      "</resources>\n" +
+      "</rc:resourceConfig>\n";
+    return new ResourcesWrapper
+      ( ResourceConfigDocument.Factory.parse(resources) );
+  }
+
+  /**
+   * Drain an expansion into a vector.
+   */
+  private Vector<String> drain( MacroTemplate.Expansion expansion )
+    throws ConfigurationException {
+
+    Vector<String> result = new Vector<String>();
+    while ( expansion.hasNext() ) {
+      result.add( expansion.next() );
+    }
+    return result;
+  }
+
+  /**
+   * Test that expansions match ResourcesWrapper.expand
+   */
+  public void testExpand() throws Exception {
+    ResourcesWrapper resources = createResources();
+    String[] templates = {
+      "plain", "@port@", "a@port@b@dir@c@port@", "@hostB->port@ @port@",
+      "x @" + Protocol.PROXY_MACRO + "@ @port@"
+    };
+    for ( String template : templates ) {
+      MacroTemplate compiled = new MacroTemplate( template );
+      for ( String resource : new String[] { "hostA", "hostB" } ) {
+        if ( template.indexOf("@dir@") >= 0 && resource.equals("hostB") ) {
+          continue;
+        }
+        assertEquals
+          ( template + " on " + resource,
+            resources.expand( template, resource, null, new Vector<String>() ),
+            drain(compiled.expand(resources, resource)) );
+      }
+    }
+    // repeated macros take the same value in each string
+    Vector<String> expanded = drain
+      ( new MacroTemplate("@port@@port@@hostA->port@").expand(resources,"hostA") );
+    assertEquals( "repeated macro", 2, expanded.size() );
+    assertEquals( "222", expanded.get(1) );
+    expanded = drain
+      ( new MacroTemplate("@port@ @hostB->port@").expand(resources, "hostA") );
+    assertEquals( "cross product", 6, expanded.size() );
+    assertEquals( "1 9", expanded.get(2) );
+  }
+
+  /**
+   * Test the resource token and undefined macros
+   */
+  public void testResourceToken() throws Exception {
+    ResourcesWrapper resources = createResources();
+    MacroTemplate compiled = new MacroTemplate( "%R% @port@", "%R%" );
+    assertEquals( 2, compiled.getSlotCount() );
+    Vector<String> expanded = drain( compiled.expand(resources, "hostB") );
+    assertEquals( 3, expanded.size() );
+    assertEquals( "hostB 7", expanded.get(0) );
+    assertEquals( "hostB 9", expanded.get(2) );
+    try {
+      drain( new MacroTemplate("@dir@").expand(resources, "hostB") );
+      fail( "undefined macro not detected" );
+    } catch ( ConfigurationException e ) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,490 @@
+/*
+ * Metrics.java
+ */
+package edu.sdsc.inca.util;
+
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Named timers and counters shared by a component. A timer keeps a histogram
+ * of the durations it records, so that the median and tail latencies of a
+ * command or a stage of a pipeline can be reported, and a counter just counts
+ * events. Recording a value takes a few atomic increments and no locks, so
+ * timers can be used on every request. The values are available to clients
+ * through the GETSTATS command of every server, and to JMX consoles through
+ * the MBean named edu.sdsc.inca:type=Metrics.
+ */
+public class Metrics {
+
+  // nested classes
+
+
+  /**
+   * Records durations in a histogram whose buckets are about 1.5% of the
+   * value wide, from one microsecond to several days.
+   */
+  public static class Timer {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 34;
+    private static final int NUM_BUCKETS = 2 * SUB_BUCKETS + MAX_SHIFT * SUB_BUCKETS;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_total = new AtomicLong();
+    private final AtomicLong m_max = new AtomicLong();
+
+
+    // public methods
+
+
+    /**
+     * Returns a start time to pass to {@link #stop(long)}.
+     *
+     * @return the current value of the system timer, in nanoseconds
+     */
+    public long start()
+    {
+      return System.nanoTime();
+    }
+
+    /**
+     * Records the time elapsed since a call to {@link #start()}.
+     *
+     * @param start the value returned by <code>start</code>
+     * @return the elapsed time, in nanoseconds
+     */
+    public long stop(long start)
+    {
+      long elapsed = System.nanoTime() - start;
+
+      record(elapsed, TimeUnit.NANOSECONDS);
+
+      return elapsed;
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param duration the duration
+     * @param unit the unit of the duration
+     */
+    public void record(long duration, TimeUnit unit)
+    {
+      long micros = Math.max(unit.toMicros(duration), 0);
+
+      m_buckets.incrementAndGet(getIndex(micros));
+      m_count.incrementAndGet();
+      m_total.addAndGet(micros);
+
+      long max = m_max.get();
+
+      while (micros > max && !m_max.compareAndSet(max, micros))
+        max = m_max.get();
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     *
+     * @return the number of durations
+     */
+    public long getCount()
+    {
+      return m_count.get();
+    }
+
+    /**
+     * Returns the mean of the durations recorded.
+     *
+     * @return the mean duration, in milliseconds
+     */
+    public double getMean()
+    {
+      long count = m_count.get();
+
+      return count > 0 ? m_total.get() / 1000.0 / count : 0.0;
+    }
+
+    /**
+     * Returns the longest duration recorded.
+     *
+     * @return the maximum duration, in milliseconds
+     */
+    public double getMax()
+    {
+      return m_max.get() / 1000.0;
+    }
+
+    /**
+     * Returns the duration that the given percentage of the recorded
+     * durations do not exceed.
+     *
+     * @param percentile a percentage between 0 and 100
+     * @return the duration, in milliseconds
+     */
+    public double getPercentile(double percentile)
+    {
+      long[] counts = new long[NUM_BUCKETS];
+      long total = 0;
+
+      for (int i = 0 ; i < NUM_BUCKETS ; i += 1) {
+        counts[i] = m_buckets.get(i);
+        total += counts[i];
+      }
+
+      if (total == 0)
+        return 0.0;
+
+      long target = Math.max((long) Math.ceil(percentile / 100.0 * total), 1);
+      long seen = 0;
+
+      for (int i = 0 ; i < NUM_BUCKETS ; i += 1) {
+        seen += counts[i];
+
+        if (seen >= target)
+          return Math.min(getValue(i), m_max.get()) / 1000.0;
+      }
+
+      return getMax();
+    }
+
+    /**
+     * Discards the durations recorded.
+     */
+    public void reset()
+    {
+      for (int i = 0 ; i < NUM_BUCKETS ; i += 1)
+        m_buckets.set(i, 0);
+
+      m_count.set(0);
+      m_total.set(0);
+      m_max.set(0);
+    }
+
+
+    // private methods
+
+
+    /**
+     * Values below 2 * SUB_BUCKETS have a bucket each. Above that, each power
+     * of two is divided into SUB_BUCKETS buckets of equal width.
+     */
+    private static int getIndex(long value)
+    {
+      if (value < 2 * SUB_BUCKETS)
+        return (int) value;
+
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+
+      if (shift > MAX_SHIFT)
+        return NUM_BUCKETS - 1;
+
+      int top = (int) (value >>> shift);
+
+      return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    /**
+     * Returns the middle of the range of values counted by a bucket.
+     */
+    private static long getValue(int index)
+    {
+      if (index < 2 * SUB_BUCKETS)
+        return index;
+
+      int offset = index - 2 * SUB_BUCKETS;
+      int shift = offset / SUB_BUCKETS + 1;
+      long top = SUB_BUCKETS + offset % SUB_BUCKETS;
+
+      return (top << shift) + (1L << (shift - 1));
+    }
+  }
+
+  /**
+   * Counts events.
+   */
+  public static class Counter {
+
+    private final AtomicLong m_count = new AtomicLong();
+
+
+    // public methods
+
+
+    /**
+     * Counts one event.
+     */
+    public void increment()
+    {
+      m_count.incrementAndGet();
+    }
+
+    /**
+     * Counts several events.
+     *
+     * @param events the number of events
+     */
+    public void add(long events)
+    {
+      m_count.addAndGet(events);
+    }
+
+    /**
+     * Returns the number of events counted.
+     *
+     * @return the number of events
+     */
+    public long getCount()
+    {
+      return m_count.get();
+    }
+
+    /**
+     * Discards the events counted.
+     */
+    public void reset()
+    {
+      m_count.set(0);
+    }
+  }
+
+  /**
+   * Presents the timers and counters to JMX. A timer appears as the
+   * attributes <i>name</i>.count, .mean, .p50, .p90, .p99 and .max, with
+   * durations in milliseconds, and a counter as an attribute with its name.
+   */
+  private static class MetricsBean implements DynamicMBean {
+
+    private static final String[] TIMER_STATISTICS = { "count", "mean", "p50", "p90", "p99", "max" };
+
+
+    // public methods
+
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+      Counter counter = m_counters.get(attribute);
+
+      if (counter != null)
+        return counter.getCount();
+
+      int dot = attribute.lastIndexOf('.');
+      Timer timer = dot > 0 ? m_timers.get(attribute.substring(0, dot)) : null;
+
+      if (timer == null)
+        throw new AttributeNotFoundException(attribute);
+
+      String statistic = attribute.substring(dot + 1);
+
+      if (statistic.equals("count"))
+        return timer.getCount();
+      else if (statistic.equals("mean"))
+        return timer.getMean();
+      else if (statistic.equals("max"))
+        return timer.getMax();
+      else if (statistic.startsWith("p")) {
+        try {
+          return timer.getPercentile(Double.parseDouble(statistic.substring(1)));
+        }
+        catch (NumberFormatException formatErr) {
+          // fall through
+        }
+      }
+
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes)
+    {
+      AttributeList result = new AttributeList();
+
+      for (int i = 0 ; i < attributes.length ; i += 1) {
+        try {
+          result.add(new Attribute(attributes[i], getAttribute(attributes[i])));
+        }
+        catch (AttributeNotFoundException attrErr) {
+          // leave it out
+        }
+      }
+
+      return result;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+      throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes)
+    {
+      return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+      if (actionName.equals("reset")) {
+        reset();
+
+        return null;
+      }
+
+      throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo()
+    {
+      List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+
+      for (String name : new TreeMap<String, Timer>(m_timers).keySet()) {
+        for (int i = 0 ; i < TIMER_STATISTICS.length ; i += 1) {
+          String type = i == 0 ? Long.class.getName() : Double.class.getName();
+
+          attributes.add(new MBeanAttributeInfo(name + "." + TIMER_STATISTICS[i], type, TIMER_STATISTICS[i] + " of " + name, true, false, false));
+        }
+      }
+
+      for (String name : new TreeMap<String, Counter>(m_counters).keySet())
+        attributes.add(new MBeanAttributeInfo(name, Long.class.getName(), "count of " + name, true, false, false));
+
+      MBeanOperationInfo reset = new MBeanOperationInfo("reset", "Discards the recorded values", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+
+      return new MBeanInfo(Metrics.class.getName(), "Timers and counters", attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, new MBeanOperationInfo[] { reset }, null);
+    }
+  }
+
+
+  public static final String OBJECT_NAME = "edu.sdsc.inca:type=Metrics";
+
+  private static final Logger m_logger = Logger.getLogger(Metrics.class);
+  private static final ConcurrentMap<String, Timer> m_timers = new ConcurrentHashMap<String, Timer>();
+  private static final ConcurrentMap<String, Counter> m_counters = new ConcurrentHashMap<String, Counter>();
+
+
+  static {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsBean(), new ObjectName(OBJECT_NAME));
+    }
+    catch (Exception err) {
+      m_logger.warn("Unable to register " + OBJECT_NAME + ": " + err);
+    }
+  }
+
+
+  // public methods
+
+
+  /**
+   * Returns the timer with the given name, creating it if necessary.
+   *
+   * @param name the name of the timer
+   * @return the timer
+   */
+  public static Timer getTimer(String name)
+  {
+    Timer timer = m_timers.get(name);
+
+    if (timer == null) {
+      Timer newTimer = new Timer();
+
+      timer = m_timers.putIfAbsent(name, newTimer);
+
+      if (timer == null)
+        timer = newTimer;
+    }
+
+    return timer;
+  }
+
+  /**
+   * Returns the counter with the given name, creating it if necessary.
+   *
+   * @param name the name of the counter
+   * @return the counter
+   */
+  public static Counter getCounter(String name)
+  {
+    Counter counter = m_counters.get(name);
+
+    if (counter == null) {
+      Counter newCounter = new Counter();
+
+      counter = m_counters.putIfAbsent(name, newCounter);
+
+      if (counter == null)
+        counter = newCounter;
+    }
+
+    return counter;
+  }
+
+  /**
+   * Discards the values recorded by all of the timers and counters.
+   */
+  public static void reset()
+  {
+    for (Timer timer : m_timers.values())
+      timer.reset();
+
+    for (Counter counter : m_counters.values())
+      counter.reset();
+  }
+
+  /**
+   * Returns the timers and counters, one per line, sorted by name. Durations
+   * are in milliseconds.
+   *
+   * @return the statistics
+   */
+  public static String getStatistics()
+  {
+    StringBuilder result = new StringBuilder();
+
+    for (Map.Entry<String, Timer> entry : new TreeMap<String, Timer>(m_timers).entrySet()) {
+      Timer timer = entry.getValue();
+
+      if (result.length() > 0)
+        result.append('\n');
+
+      result.append(entry.getKey());
+      result.append(" count ");
+      result.append(timer.getCount());
+      result.append(String.format(" mean %.3f p50 %.3f p90 %.3f p99 %.3f max %.3f", timer.getMean(), timer.getPercentile(50), timer.getPercentile(90), timer.getPercentile(99), timer.getMax()));
+    }
+
+    for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(m_counters).entrySet()) {
+      if (result.length() > 0)
+        result.append('\n');
+
+      result.append(entry.getKey());
+      result.append(" count ");
+      result.append(entry.getValue().getCount());
+    }
+
+    return result.toString();
+  }
+}
@@ -0,0 +1,61 @@
+package edu.sdsc.inca.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the Metrics class
+ */
+public class MetricsTest extends TestCase {
+
+  /**
+   * Test that percentiles are within the precision of the histogram
+   */
+  public void testPercentiles() {
+    Metrics.Timer timer = new Metrics.Timer();
+    assertEquals(0.0, timer.getPercentile(99), 0.0);
+    for (int i = 1; i <= 1000; i++) {
+      timer.record(i, TimeUnit.MILLISECONDS);
+    }
+    assertEquals(1000, timer.getCount());
+    assertEquals(500.5, timer.getMean(), 0.001);
+    assertEquals(1000.0, timer.getMax(), 0.0);
+    assertEquals(500.0, timer.getPercentile(50), 500 * 0.016);
+    assertEquals(990.0, timer.getPercentile(99), 990 * 0.016);
+    assertEquals(1000.0, timer.getPercentile(100), 0.0);
+    timer.record(100, TimeUnit.MICROSECONDS);
+    assertEquals(0.1, timer.getPercentile(0), 0.0);
+    timer.record(Long.MAX_VALUE, TimeUnit.MICROSECONDS);
+    assertEquals(1002, timer.getCount());
+    timer.reset();
+    assertEquals(0, timer.getCount());
+    assertEquals(0.0, timer.getMax(), 0.0);
+  }
+
+  /**
+   * Test that timers and counters are reported as text and through JMX
+   */
+  public void testStatistics() throws Exception {
+    Metrics.getTimer("test.stage").record(2, TimeUnit.MILLISECONDS);
+    Metrics.getCounter("test.events").add(3);
+    assertSame(Metrics.getTimer("test.stage"), Metrics.getTimer("test.stage"));
+    String stats = Metrics.getStatistics();
+    assertTrue(stats, stats.matches(
+      "(?s).*test\\.stage count 1 mean 2\\.000 p50 2\\.0\\d\\d .*"));
+    assertTrue(stats, stats.matches("(?s).*test\\.events count 3.*"));
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+    assertEquals(1L, server.getAttribute(name, "test.stage.count"));
+    assertEquals(2.0, (Double)server.getAttribute(name, "test.stage.max"), 0.0);
+    assertEquals(3L, server.getAttribute(name, "test.events"));
+    assertTrue(server.getMBeanInfo(name).getAttributes().length >= 7);
+    server.invoke(name, "reset", new Object[0], new String[0]);
+    assertEquals(0L, server.getAttribute(name, "test.events"));
+  }
+}
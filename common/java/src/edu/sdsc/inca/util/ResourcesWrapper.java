@@ -4,7 +4,10 @@ package edu.sdsc.inca.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.Vector;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -39,13 +42,31 @@ public class ResourcesWrapper extends XmlWrapper {
   private ResourceConfigDocument rcDoc;
   private Hashtable<String, ResourceInfo> resources =
     new Hashtable<String, ResourceInfo>();
+  private Vector<String> resourceOrder = new Vector<String>();
+  private Hashtable<String, String[]> xpathMembers =
+    new Hashtable<String, String[]>();
 
+  /**
+   * Index entry for a resource, built once per resource configuration.
+   * Membership, parents and the macro inheritance chain are precomputed;
+   * macros and escapedMacros cache expanded macro values as they are used.
+   */
   public class ResourceInfo {
     public String[] childrenWithEquiv = new String[0];
     public String[] childrenWithoutEquiv = new String[0];
     public Hashtable<String,String[]> macros = new Hashtable<String,String[]>();
+    public Hashtable<String,String[]> escapedMacros =
+      new Hashtable<String,String[]>();
     public Resource resource = null;
     public String[] parents = new String[0];
+    // resources searched for macro definitions, innermost first
+    public String[] inheritance = new String[0];
+    // macros defined by the resource itself (not inherited)
+    public Hashtable<String,String[]> definedMacros =
+      new Hashtable<String,String[]>();
+    public boolean hostEquivalence = false;
+    public String[] immediateChildren = new String[0];
+    public String xml = null;
   }
 
   // PUBLIC FUNCTIONS
@@ -184,76 +205,64 @@ public class ResourcesWrapper extends XmlWrapper {
                                Vector<String> targetResources)
     throws ConfigurationException {
 
-      // holds expanded values
+    // holds expanded values
     Vector<String> allValues = new Vector<String>();
 
-    // PROXY_MACRO is special so doesn't get expanded -- we disguise it here so
-      // it passes thru untouched
-    aString = aString.replaceAll
-        ( "@" + Protocol.PROXY_MACRO + "@", "#" + Protocol.PROXY_MACRO + "#" );
-
-    Vector<String> newTargetResources = new Vector<String>();
-    Vector<String> nStrings = normalizeResources(aString, resource, newTargetResources);
-    for( int i = 0; i < nStrings.size(); i++ ) {
-      String nString = nStrings.get(i);
-
-      // holds expanded values for this iteration
-      Vector<String> eStrings = new Vector<String>();
-
-      // does stringValue contain a macro? (i.e., do we keep expanding)
-      Matcher macroMatcher = macroPattern.matcher(nString);
-      if ( macroMatcher.find() ) {
-        // extract macro name -- returns array of 3 elements: "", macro name, ""
-        String fullMacro = macroMatcher.group().split("@")[1];
-        String macro = fullMacro.substring(fullMacro.indexOf("->") + 2);
-        String targetResource = fullMacro.substring(0, fullMacro.indexOf("->"));
-        if ( fullMacro.equals(prevMacro)) {
-          throw new ConfigurationException
-            ( "Infinite recursion possibly detected on macro '" + macro );
-        }
-        String [] macro_values;
-        if(macro.equals(Protocol.HOSTS_MACRO)) {
-          macro_values = getResources(targetResource,false);
-        } else {
-          macro_values = getValues(targetResource, macro, fullMacro );
-        }
-        if ( macro_values == null ) {
-        throw new ConfigurationException
-          ( "Macro '" + macro + "' not defined for targetResource '" + targetResource + "'");
-        }
-        // replace the values and keep expanding
-        for ( String macroValue : macro_values) {
-          // clean up the value and make sure all special chars are escaped
-          String valEscaped = XmlWrapper.escape(XmlWrapper.unescape(macroValue));
-          // replace the macro with real value
-          String aStringSubst = nString.replaceAll("@" + fullMacro + "@", valEscaped);
-          // keep expanding if there are still macros in the string
-          eStrings.addAll( expand(aStringSubst, resource, fullMacro, new Vector<String>()) );
-        }
-      } else {
-        // no more macros to expand
-        eStrings.add(nString);
+    MacroTemplate.Expansion expansion =
+      new MacroTemplate( aString ).expand( this, resource, prevMacro );
+    while ( expansion.hasNext() ) {
+      allValues.add( expansion.next() );
+      if ( expansion.getTargetResource() != null ) {
+        targetResources.add( expansion.getTargetResource() );
       }
-      // add this iteration's values to the total
-      for ( String s : eStrings ) {
-        if ( newTargetResources.size() > 0) {
-          targetResources.add(newTargetResources.get(i));
-        }
-        allValues.add(s );
-      }
-    }
-
-    // restore special PROXY_MACRO in all expanded strings
-    for ( int i = 0; i < allValues.size(); i++ ) {
-      String value = allValues.elementAt(i);
-      value = value.replaceAll
-        ( "#" + Protocol.PROXY_MACRO + "#", "@" + Protocol.PROXY_MACRO + "@" );
-      allValues.setElementAt( value, i);
     }
 
     return allValues;
   }
 
+  /**
+   * Return the values of a macro for a resource, escaped for substitution
+   * into XML text.  The values are computed once per resource and macro.
+   *
+   * @param resource  The name of the resource contained in resourceConfig
+   * @param macro   The name of a macro contained in resourceConfig
+   * @param fullMacro  The qualified name of the macro (resource->macro) in
+   *                   order to detect infinite recursion.
+   *
+   * @return  A string array of escaped values for the macro or null if not
+   * found
+   *
+   * @throws ConfigurationException if resource not found
+   */
+  public String[] getEscapedValues( String resource, String macro,
+                                    String fullMacro )
+    throws ConfigurationException {
+
+    ResourceInfo resourceInfo = this.getResourceInfo( resource );
+    if ( resourceInfo != null &&
+         resourceInfo.escapedMacros.containsKey(macro) ) {
+      return resourceInfo.escapedMacros.get( macro );
+    }
+    String [] values;
+    if(macro.equals(Protocol.HOSTS_MACRO)) {
+      values = getResources(resource,false);
+    } else {
+      values = getValues(resource, macro, fullMacro );
+    }
+    if ( values == null ) {
+      return null;
+    }
+    String[] escaped = new String[values.length];
+    for ( int i = 0; i < values.length; i++ ) {
+      // clean up the value and make sure all special chars are escaped
+      escaped[i] = XmlWrapper.escape( XmlWrapper.unescape(values[i]) );
+    }
+    if ( resourceInfo != null ) {
+      resourceInfo.escapedMacros.put( macro, escaped );
+    }
+    return escaped;
+  }
+
   /**
    * Return the path to resources file if applicable.
    *
@@ -342,18 +351,29 @@ public class ResourcesWrapper extends XmlWrapper {
   public String[] getResourcesByXpath( String xpath, boolean hostEquivalence )
     throws ConfigurationException {
 
+    String key = hostEquivalence + " " + xpath;
+    String[] cached = this.xpathMembers.get( key );
+    if ( cached != null ) {
+      return cached;
+    }
     logger.debug( "Get resources at " + xpath );
     XmlObject[] objects = rcDoc.selectPath( xpath );
     if ( objects == null ) return new String[0];
-    Vector<String> members = new Vector<String>();
+    LinkedHashSet<String> members = new LinkedHashSet<String>();
     for ( XmlObject object : objects ) {
-      Resource targetResource = (Resource)object;
-      for( String member : getResources(targetResource, hostEquivalence) ) {
-        if ( ! members.contains(member) )
-          members.add(member);
+      String name = ((Resource)object).getName();
+      ResourceInfo info = this.getResourceInfo( name );
+      if ( info == null ) {
+        members.add( name );
+      } else if ( hostEquivalence ) {
+        members.addAll( Arrays.asList(info.childrenWithEquiv) );
+      } else {
+        members.addAll( Arrays.asList(info.childrenWithoutEquiv) );
       }
     }
-    return members.toArray(new String[members.size()]);
+    String[] result = members.toArray( new String[members.size()] );
+    this.xpathMembers.put( key, result );
+    return result;
   }
 
   /**
@@ -430,11 +450,7 @@ public class ResourcesWrapper extends XmlWrapper {
    * equivalent and false otherwise.
    */
   public boolean hasHostEquivalence( String resourceName ) {
-    Resource resource = this.getResourceInfo( resourceName ).resource;
-    String resourceXpath = "macros/macro[name='" + Protocol.EQUIVALENT_MACRO + "' " +
-      "and value='true']";
-    XmlObject[] objects = resource.selectPath( resourceXpath );
-    return objects.length >= 1;
+    return this.getResourceInfo( resourceName ).hostEquivalence;
   }
 
   /**
@@ -539,50 +555,114 @@ public class ResourcesWrapper extends XmlWrapper {
   // PRIVATE FUNCTIONS
 
   /**
-   * Find the parent resources of all resources
+   * Build the index entry for a resource from its own definition.  The entry
+   * of the previous resource configuration is reused if the resource has not
+   * changed.
+   *
+   * @param resource  A resource from the resource configuration
+   * @param previous  The index entry for the resource in the previous
+   *                  resource configuration or null
+   *
+   * @return  An index entry without membership or inheritance information
    */
-  private void getParentResources() {
-
-    // resources in document
-    Resource[] resources =
-      this.rcDoc.getResourceConfig().getResources().getResourceArray();
+  private ResourceInfo createResourceInfo( Resource resource,
+                                           ResourceInfo previous ) {
+    ResourceInfo resourceInfo = new ResourceInfo();
+    resourceInfo.resource = resource;
+    resourceInfo.xml = resource.xmlText();
+    if ( previous != null && resourceInfo.xml.equals(previous.xml) ) {
+      resourceInfo.definedMacros = previous.definedMacros;
+      resourceInfo.hostEquivalence = previous.hostEquivalence;
+      return resourceInfo;
+    }
+    if ( resource.isSetMacros() ) {
+      for ( Macro macro : resource.getMacros().getMacroArray() ) {
+        // macro definitions are unique within a resource
+        if ( ! resourceInfo.definedMacros.containsKey(macro.getName()) ) {
+          resourceInfo.definedMacros.put
+            ( macro.getName(), macro.getValueArray() );
+        }
+      }
+    }
+    String[] equivalent =
+      resourceInfo.definedMacros.get( Protocol.EQUIVALENT_MACRO );
+    if ( equivalent != null ) {
+      for ( String value : equivalent ) {
+        if ( value.equals("true") ) {
+          resourceInfo.hostEquivalence = true;
+        }
+      }
+    }
+    return resourceInfo;
+  }
 
-    // get immediate children for each resources
-    Hashtable<String, XmlObject[]> immediateChildren =
-      new Hashtable<String, XmlObject[]>();
-    for( Resource resource : resources ) {
-      Resource[] resourceChildren = new Resource[0];
-      if ( resource.isSetXpath() ) {
-        XmlObject[] results = rcDoc.selectPath(resource.getXpath());
-        if ( results.length > 0 ) {
-          resourceChildren = (Resource[])results;
+  /**
+   * Find the immediate children and parents of all resources.  Each distinct
+   * xpath expression is evaluated once.
+   *
+   * @param index  The index being built
+   * @param order  The names of the resources in document order
+   */
+  private void findImmediateChildren( Hashtable<String, ResourceInfo> index,
+                                      Vector<String> order ) {
+
+    Hashtable<String, String[]> evaluated = new Hashtable<String, String[]>();
+    Hashtable<String, Vector<String>> parents =
+      new Hashtable<String, Vector<String>>();
+    for ( String name : order ) {
+      ResourceInfo resourceInfo = index.get( name );
+      if ( ! resourceInfo.resource.isSetXpath() ) {
+        continue;
+      }
+      String xpath = resourceInfo.resource.getXpath();
+      String[] children = evaluated.get( xpath );
+      if ( children == null ) {
+        XmlObject[] results = rcDoc.selectPath( xpath );
+        children = new String[results.length];
+        for ( int i = 0; i < results.length; i++ ) {
+          children[i] = ((Resource)results[i]).getName();
         }
+        evaluated.put( xpath, children );
       }
-      immediateChildren.put( resource.getName(), resourceChildren );
-    }
-
-    // find parents for each resource by iterating thru all resources and seeing
-    // if a resource is part of any other resources immediate children
-    for( Resource resource : resources ) {
-      Vector<String> parents = new Vector<String>();
-      for( Resource otherResource : resources ) {
-        Resource[] candidateChildren =
-          (Resource[])immediateChildren.get(otherResource.getName());
-        for ( Resource candidateChild : candidateChildren ) {
-          if ( candidateChild.getName().equals(resource.getName()) ) {
-            logger.debug
-              (resource.getName() + " part of group "+ otherResource.getName());
-            parents.add( otherResource.getName() );
-            break;
-          }
+      resourceInfo.immediateChildren = children;
+      for ( String child : children ) {
+        if ( ! parents.containsKey(child) ) {
+          parents.put( child, new Vector<String>() );
+        }
+        if ( ! parents.get(child).contains(name) ) {
+          logger.debug( child + " part of group " + name );
+          parents.get( child ).add( name );
         }
       }
-      ResourceInfo resourceInfo = this.getResourceInfo(resource.getName());
-      resourceInfo.parents = parents.toArray( new String[parents.size()]);
+    }
+    for ( String name : order ) {
+      Vector<String> resourceParents = parents.get( name );
+      if ( resourceParents != null ) {
+        index.get( name ).parents =
+          resourceParents.toArray( new String[resourceParents.size()] );
+      }
       logger.debug
-        ("Parents of " + resource.getName() + ": " +
-          StringMethods.join( " ", resourceInfo.parents ) );
-      this.resources.put( resource.getName(), resourceInfo );
+        ("Parents of " + name + ": " +
+          StringMethods.join( " ", index.get(name).parents ) );
+    }
+  }
+
+  /**
+   * Resolve the chain of resources that is searched for a macro definition
+   * for a resource:  the resource itself followed by its parents in order,
+   * each followed by their own parents (i.e., a depth first search).
+   *
+   * @param index  The index being built
+   * @param name  The name of the resource
+   * @param chain  The chain being built
+   */
+  private void findInheritance( Hashtable<String, ResourceInfo> index,
+                                String name, LinkedHashSet<String> chain ) {
+    if ( ! chain.add(name) ) {
+      return;
+    }
+    for ( String parent : index.get(name).parents ) {
+      findInheritance( index, parent, chain );
     }
   }
 
@@ -592,9 +672,11 @@ public class ResourcesWrapper extends XmlWrapper {
 
   /**
    * Recursively find the unique resource members (i.e., not resource sets) for
-   * the provided resource set.
+   * the provided resource set using the immediate children in the index.
+   * Results are memoized in the index entries.
    *
-   * @param resource A resource set
+   * @param index  The index being built
+   * @param resourceInfo The index entry for a resource set
    * @param hostEquivalence  A value of true indicates that resources that have
    * the .equivalent macro defined as true should be treated as one
    * resource.  A value of false indicates that that resources that have the
@@ -603,26 +685,52 @@ public class ResourcesWrapper extends XmlWrapper {
    * reporter manager launched on a resource while the latter is good for
    * sending to the depot (because we don't know what resource the reporter
    * manager will be started on).
-
-   * @return  A vector of resource names belonging to the provided
+   * @param visiting  The resource sets currently being resolved in order to
+   * detect cycles
+   *
+   * @return  An array of resource names belonging to the provided
    * resource set.
    */
-  private String[] getResources( Resource resource, boolean hostEquivalence ) {
-    Vector<String> resource_members = new Vector<String>();
+  private String[] getResources( Hashtable<String, ResourceInfo> index,
+                                 ResourceInfo resourceInfo,
+                                 boolean hostEquivalence,
+                                 HashSet<String> visiting ) {
+
+    String[] members = hostEquivalence ?
+      resourceInfo.childrenWithEquiv : resourceInfo.childrenWithoutEquiv;
+    if ( members != null ) {
+      return members;
+    }
+    Resource resource = resourceInfo.resource;
+    LinkedHashSet<String> resourceMembers = new LinkedHashSet<String>();
     if ( ! resource.isSetXpath() ||
-      (hostEquivalence && hasHostEquivalence(resource.getName())) )  {
-      resource_members.add( resource.getName() );
+      (hostEquivalence && resourceInfo.hostEquivalence) )  {
+      resourceMembers.add( resource.getName() );
     } else {
-      XmlObject[] resources = rcDoc.selectPath( resource.getXpath() );
-      for ( XmlObject resourceObj : resources ) {
-        for ( String member : getResources( (Resource)resourceObj, hostEquivalence )) {
-          if ( ! resource_members.contains(member) )
-            resource_members.add( member );
+      visiting.add( resource.getName() );
+      for ( String child : resourceInfo.immediateChildren ) {
+        ResourceInfo childInfo = index.get( child );
+        if ( childInfo == null ) {
+          resourceMembers.add( child );
+        } else if ( visiting.contains(child) ) {
+          logger.warn
+            ( "Resource " + child + " is a member of itself; ignoring" );
+        } else {
+          for ( String member :
+                getResources(index, childInfo, hostEquivalence, visiting) ) {
+            resourceMembers.add( member );
+          }
         }
-
       }
+      visiting.remove( resource.getName() );
+    }
+    members = resourceMembers.toArray( new String[resourceMembers.size()] );
+    if ( hostEquivalence ) {
+      resourceInfo.childrenWithEquiv = members;
+    } else {
+      resourceInfo.childrenWithoutEquiv = members;
     }
-    return resource_members.toArray(new String[resource_members.size()]);
+    return members;
   }
 
   /**
@@ -675,14 +783,12 @@ public class ResourcesWrapper extends XmlWrapper {
     if ( this.getResourceInfo( resource ).macros.containsKey( macro ) ) {
       return this.getResourceInfo( resource ).macros.get( macro );
     }
-    Resource targetResource = this.getResourceInfo( resource ).resource;
     logger.debug(
       "Search for macro '" + macro + "' in resource " +  resource
     );
 
-    // we recursively find macro definition for this resource from
-    // parent resources
-    String[] values = getValuesRecurse( targetResource, macro );
+    // we find macro definition for this resource from its inheritance chain
+    String[] values = getValuesRecurse( this.getResourceInfo(resource), macro);
     if (values == null) return null;
     Vector<String> expandedValues = new Vector<String>();
     for ( String value : values ) {
@@ -698,67 +804,90 @@ public class ResourcesWrapper extends XmlWrapper {
   }
 
   /**
-   * Recursively discover the macro definition for a given resource.  Called
-   * by getValues.
+   * Discover the macro definition for a given resource by searching its
+   * inheritance chain.  Called by getValues.
    *
-   * @param resource Resource in which we are searching for the macro definition
+   * @param resourceInfo Index entry of the resource in which we are searching
+   *                     for the macro definition
    * @param macro The name of a macro defined for the given resource
    * @return  A string array of values for the macro or null if not found
    */
-  private String[] getValuesRecurse( Resource resource, String macro ) {
-
-    // query for macro - macro definitions are unique within a resource
-    XmlObject[] objects = resource.selectPath("macros/macro[name='"+macro+"']");
-
-    // if it exists, we return it because the innermost value wins and we're
-    // executing from innermost resource group to outermost
-    if ( objects.length == 1 ) {
-      return ((Macro)objects[0]).getValueArray();
-    }
-
-    // otherwise we keep searching to see if a parent resource contains the
-    // value
-    ResourceInfo resourceInfo = getResourceInfo( resource.getName() );
-    for( int i = 0; i < resourceInfo.parents.length; i++) {
-      ResourceInfo parentInfo = getResourceInfo( resourceInfo.parents[i] );
-      logger.debug
-        ( "Search for macro '" + macro + "' in parent resource " +
-          resourceInfo.parents[i] );
-      String[] values = getValuesRecurse( parentInfo.resource, macro );
-      if ( values != null ) { // macro found in parent class
+  private String[] getValuesRecurse( ResourceInfo resourceInfo, String macro ) {
+    // the innermost value wins and the chain is ordered from innermost
+    // resource group to outermost
+    for ( String name : resourceInfo.inheritance ) {
+      String[] values = getResourceInfo( name ).definedMacros.get( macro );
+      if ( values != null ) {
         return values;
       }
     }
     return null;
   }
 
+  /**
+   * Validate the resource configuration document and build the resource
+   * index.  If the document is unchanged from the previous one, the existing
+   * index (including its cached macro values) is kept.  Otherwise, index
+   * entries are reused for unchanged resources and membership and inheritance
+   * are recomputed.
+   *
+   * @throws XmlException if unable to validate document
+   */
   private void validateAndInitialize() throws XmlException {
     validate(this.rcDoc);
 
     // read in all resources for easy reference
+    Hashtable<String, ResourceInfo> previous = this.resources;
+    Hashtable<String, ResourceInfo> index =
+      new Hashtable<String, ResourceInfo>();
+    Vector<String> order = new Vector<String>();
+    boolean changed = false;
     Resource[] resources =
       this.rcDoc.getResourceConfig().getResources().getResourceArray();
     for ( Resource resource : resources ) {
-      ResourceInfo resourceInfo = new ResourceInfo();
-      resourceInfo.resource = resource;
-      this.resources.put( resource.getName(), resourceInfo );
+      ResourceInfo previousInfo = previous.get( resource.getName() );
+      ResourceInfo resourceInfo = createResourceInfo( resource, previousInfo );
+      if ( previousInfo == null || ! resourceInfo.xml.equals(previousInfo.xml)){
+        changed = true;
+      }
+      if ( ! index.containsKey(resource.getName()) ) {
+        order.add( resource.getName() );
+      }
+      index.put( resource.getName(), resourceInfo );
     }
-    getParentResources();
-    for ( Resource resource : resources ) {
-      ResourceInfo resourceInfo = this.getResourceInfo(resource.getName());
-      resourceInfo.childrenWithEquiv = getResources( resource, true );
+    if ( ! changed && order.equals(this.resourceOrder) ) {
+      logger.debug( "Resources unchanged; keeping resource index" );
+      for ( String name : order ) {
+        previous.get( name ).resource = index.get( name ).resource;
+      }
+      return;
+    }
+
+    findImmediateChildren( index, order );
+    for ( String name : order ) {
+      ResourceInfo resourceInfo = index.get( name );
+      LinkedHashSet<String> chain = new LinkedHashSet<String>();
+      findInheritance( index, name, chain );
+      resourceInfo.inheritance = chain.toArray( new String[chain.size()] );
+      resourceInfo.childrenWithEquiv = null;
+      resourceInfo.childrenWithoutEquiv = null;
+    }
+    for ( String name : order ) {
+      ResourceInfo resourceInfo = index.get( name );
+      getResources( index, resourceInfo, true, new HashSet<String>() );
       logger.debug(
-        "Member resources of " + resource.getName() + ": " +
+        "Member resources of " + name + ": " +
           StringMethods.join( " ", resourceInfo.childrenWithEquiv )
       );
-      resourceInfo.childrenWithoutEquiv = getResources(resource, false );
+      getResources( index, resourceInfo, false, new HashSet<String>() );
       logger.debug(
-        "Member hosts of " + resource.getName() + ": " +
+        "Member hosts of " + name + ": " +
           StringMethods.join( " ", resourceInfo.childrenWithoutEquiv )
       );
-      this.resources.put( resource.getName(), resourceInfo );
     }
-
+    this.xpathMembers = new Hashtable<String, String[]>();
+    this.resourceOrder = order;
+    this.resources = index;
   }
 
 } // END ResourceWrapper
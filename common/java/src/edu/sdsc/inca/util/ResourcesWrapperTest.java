@@ -929,6 +929,44 @@ public class ResourcesWrapperTest extends TestCase {
     );
   }
 
+  /**
+   * Test that resource membership is updated when the resource configuration
+   * document changes
+   */
+  public void testSetResourceConfigDocument() throws Exception {
+    ResourcesWrapper resources = createSampleResources();
+    assertEquals( "localhost member", 6,
+                  resources.getResources("teragrid", false).length );
+    ResourceConfigDocument doc = (ResourceConfigDocument)
+      resources.getResourceConfigDocument().copy();
+    Resource[] rs = doc.getResourceConfig().getResources().getResourceArray();
+    for ( int i = 0; i < rs.length; i++ ) {
+      if ( rs[i].getName().equals("localhost") ) {
+        doc.getResourceConfig().getResources().removeResource( i );
+      }
+    }
+    resources.setResourceConfigDocument( doc );
+    String[] resourceNames = resources.getResources( "teragrid", false );
+    String[] result = { "tg-login1.sdsc.teragrid.org",
+                        "tg-login2.sdsc.teragrid.org",
+                        "tg-login3.sdsc.teragrid.org", "dslogin.sdsc.edu",
+                        "tg-login.ncsa.teragrid.org" };
+    assertEquals( "localhost removed", result.length, resourceNames.length );
+    for ( int i = 0; i < result.length; i++ ) {
+      assertEquals( "getResources works", result[i], resourceNames[i] );
+    }
+    assertEquals( "localhost gone", 0,
+                  resources.getResources("localhost", false).length );
+
+    // an unchanged document keeps the index
+    resources.setResourceConfigDocument
+      ( (ResourceConfigDocument)doc.copy() );
+    assertEquals( "members unchanged", result.length,
+                  resources.getResources("teragrid", false).length );
+    assertTrue( "equivalence unchanged",
+                resources.hasHostEquivalence("tg-login.sdsc.teragrid.org") );
+  }
+
   /**
    * Test getValue[s]
    */
@@ -0,0 +1,486 @@
+package edu.sdsc.inca.util;
+
+import java.util.Arrays;
+
+import edu.sdsc.inca.protocol.ProtocolException;
+
+/**
+ * The instances of a series config collected over a period, stored as
+ * parallel arrays of primitive values (one column per field) rather than as
+ * one XML document per instance.  Used by the depot to answer period column
+ * queries and by consumers to graph them without parsing XML.
+ *
+ * The text form is a header line followed by one line per column:
+ * <pre>
+ *   nickname TAB resource TAB target TAB configId TAB count [TAB metric...]
+ *   collected times, comma separated, each after the first as a difference
+ *   instance ids, comma separated
+ *   exit status, one character (S or F) per instance
+ *   exit messages, tab separated
+ *   comparison results, tab separated
+ *   values of each metric, comma separated, empty if the instance has none
+ * </pre>
+ * Tabs, newlines and backslashes in strings are escaped with a backslash.
+ */
+public class SeriesColumns {
+
+  // Member variables
+  private long[] collected = new long[16];
+  private long configId = -1;
+  private String[] comparisonResults = new String[16];
+  private String[] exitMessages = new String[16];
+  private long[] instanceIds = new long[16];
+  private String[] metrics = null;
+  private float[][] metricValues = null;
+  private String nickname = null;
+  private String resource = null;
+  private int size = 0;
+  private boolean[] success = new boolean[16];
+  private String target = null;
+
+  /**
+   * Create an empty set of columns for a series config.
+   *
+   * @param nickname  The nickname of the series config
+   * @param resource  The resource the series runs on
+   * @param target  The target of the series or null if it has none
+   * @param configId  The id of the series config
+   * @param metrics  The names of the metrics whose values are stored
+   */
+  public SeriesColumns( String nickname, String resource, String target,
+                        long configId, String[] metrics ) {
+    this.nickname = nickname;
+    this.resource = resource;
+    this.target = target == null ? "" : target;
+    this.configId = configId;
+    this.metrics = metrics == null ? new String[0] : metrics;
+    this.metricValues = new float[this.metrics.length][16];
+  }
+
+  /**
+   * Append an instance to the columns.
+   *
+   * @param collected  The time the instance was collected in milliseconds
+   * @param instanceId  The id of the instance
+   * @param success  True if the instance passed
+   * @param exitMessage  The error message of the instance or an empty string
+   * @param comparisonResult  The result of comparing the instance with the
+   *                          acceptable output or an empty string
+   * @param values  The value of each metric or NaN where the instance has
+   *                no value
+   */
+  public void add( long collected, long instanceId, boolean success,
+                   String exitMessage, String comparisonResult,
+                   float[] values ) {
+    if ( size == this.collected.length ) {
+      int capacity = size * 2;
+      this.collected = Arrays.copyOf( this.collected, capacity );
+      this.instanceIds = Arrays.copyOf( this.instanceIds, capacity );
+      this.success = Arrays.copyOf( this.success, capacity );
+      this.exitMessages = Arrays.copyOf( this.exitMessages, capacity );
+      this.comparisonResults = Arrays.copyOf(this.comparisonResults, capacity);
+      for ( int i = 0; i < metricValues.length; i++ ) {
+        metricValues[i] = Arrays.copyOf( metricValues[i], capacity );
+      }
+    }
+    this.collected[size] = collected;
+    this.instanceIds[size] = instanceId;
+    this.success[size] = success;
+    this.exitMessages[size] = exitMessage == null ? "" : exitMessage;
+    this.comparisonResults[size] =
+      comparisonResult == null ? "" : comparisonResult;
+    for ( int i = 0; i < metricValues.length; i++ ) {
+      metricValues[i][size] = values == null ? Float.NaN : values[i];
+    }
+    size++;
+  }
+
+  /**
+   * Return the collection times of the instances.  Only the first getSize()
+   * entries of the array are used.
+   *
+   * @return  The collection times in milliseconds in collection order.
+   */
+  public long[] getCollected() {
+    return collected;
+  }
+
+  /**
+   * Return the comparison results of the instances.
+   *
+   * @return  The comparison results or empty strings.
+   */
+  public String[] getComparisonResults() {
+    return comparisonResults;
+  }
+
+  /**
+   * Return the id of the series config.
+   *
+   * @return  The series config id.
+   */
+  public long getConfigId() {
+    return configId;
+  }
+
+  /**
+   * Return the error messages of the instances.
+   *
+   * @return  The error messages or empty strings.
+   */
+  public String[] getExitMessages() {
+    return exitMessages;
+  }
+
+  /**
+   * Return the ids of the instances.
+   *
+   * @return  The instance ids.
+   */
+  public long[] getInstanceIds() {
+    return instanceIds;
+  }
+
+  /**
+   * Return the names of the metrics whose values are stored.
+   *
+   * @return  The metric names.
+   */
+  public String[] getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Return the values of a metric.
+   *
+   * @param metric  The name of the metric
+   *
+   * @return  The value of the metric for each instance or NaN where the
+   * instance has none, or null if the metric is not stored.
+   */
+  public float[] getMetricValues( String metric ) {
+    for ( int i = 0; i < metrics.length; i++ ) {
+      if ( metrics[i].equals(metric) ) {
+        return metricValues[i];
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the nickname of the series config.
+   *
+   * @return  The series config nickname.
+   */
+  public String getNickname() {
+    return nickname;
+  }
+
+  /**
+   * Return the resource of the series.
+   *
+   * @return  The resource name.
+   */
+  public String getResource() {
+    return resource;
+  }
+
+  /**
+   * Return the number of instances.
+   *
+   * @return  The number of instances in the columns.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * Return whether each instance passed.
+   *
+   * @return  The exit status of the instances.
+   */
+  public boolean[] getSuccess() {
+    return success;
+  }
+
+  /**
+   * Return the target of the series.
+   *
+   * @return  The target host or an empty string if the series has none.
+   */
+  public String getTarget() {
+    return target;
+  }
+
+  /**
+   * Return true if the columns belong to the specified series.
+   *
+   * @param nickname  The nickname of the series config
+   * @param resource  The resource the series runs on
+   * @param target  The target of the series or null or empty to match any
+   *                target
+   *
+   * @return  True if the columns belong to the series and false otherwise.
+   */
+  public boolean matches( String nickname, String resource, String target ) {
+    return this.nickname.equals( nickname ) &&
+           this.resource.equals( resource ) &&
+           ( target == null || target.equals("") ||
+             this.target.equals(target) );
+  }
+
+  /**
+   * Read columns from their text form.
+   *
+   * @param text  Columns returned by toString
+   *
+   * @return  The columns.
+   *
+   * @throws ProtocolException if the text is not in the expected format
+   */
+  public static SeriesColumns parse( String text ) throws ProtocolException {
+    String[] lines = text.split( "\n", -1 );
+    String[] header = lines[0].split( "\t", -1 );
+    if ( header.length < 5 ) {
+      throw new ProtocolException( "Invalid series columns header" );
+    }
+    String[] metrics = new String[header.length - 5];
+    for ( int i = 0; i < metrics.length; i++ ) {
+      metrics[i] = unescape( header[i + 5] );
+    }
+    if ( lines.length != 6 + metrics.length ) {
+      throw new ProtocolException( "Expected " + (6 + metrics.length) +
+                                   " series column lines; got " + lines.length );
+    }
+    SeriesColumns columns;
+    try {
+      columns = new SeriesColumns
+        ( unescape(header[0]), unescape(header[1]), unescape(header[2]),
+          Long.parseLong(header[3]), metrics );
+      int count = Integer.parseInt( header[4] );
+      columns.size = count;
+      columns.collected = parseLongs( lines[1], count );
+      for ( int i = 1; i < count; i++ ) {
+        columns.collected[i] += columns.collected[i - 1];
+      }
+      columns.instanceIds = parseLongs( lines[2], count );
+      if ( lines[3].length() != count ) {
+        throw new ProtocolException( "Expected " + count + " exit statuses" );
+      }
+      columns.success = new boolean[count];
+      for ( int i = 0; i < count; i++ ) {
+        columns.success[i] = lines[3].charAt( i ) == 'S';
+      }
+      columns.exitMessages = parseStrings( lines[4], count );
+      columns.comparisonResults = parseStrings( lines[5], count );
+      for ( int i = 0; i < metrics.length; i++ ) {
+        columns.metricValues[i] = parseFloats( lines[6 + i], count );
+      }
+    } catch ( NumberFormatException e ) {
+      throw new ProtocolException( "Invalid series column value: " + e );
+    }
+    return columns;
+  }
+
+  /**
+   * Return the text form of the columns (see parse).
+   *
+   * @return  A string containing the columns.
+   */
+  public String toString() {
+    StringBuilder text = new StringBuilder( size * 16 );
+    text.append( escape(nickname) ).append( '\t' );
+    text.append( escape(resource) ).append( '\t' );
+    text.append( escape(target) ).append( '\t' );
+    text.append( configId ).append( '\t' ).append( size );
+    for ( String metric : metrics ) {
+      text.append( '\t' ).append( escape(metric) );
+    }
+    text.append( '\n' );
+    for ( int i = 0; i < size; i++ ) {
+      if ( i > 0 ) text.append( ',' );
+      text.append( i == 0 ? collected[i] : collected[i] - collected[i - 1] );
+    }
+    text.append( '\n' );
+    for ( int i = 0; i < size; i++ ) {
+      if ( i > 0 ) text.append( ',' );
+      text.append( instanceIds[i] );
+    }
+    text.append( '\n' );
+    for ( int i = 0; i < size; i++ ) {
+      text.append( success[i] ? 'S' : 'F' );
+    }
+    text.append( '\n' );
+    for ( int i = 0; i < size; i++ ) {
+      if ( i > 0 ) text.append( '\t' );
+      text.append( escape(exitMessages[i]) );
+    }
+    text.append( '\n' );
+    for ( int i = 0; i < size; i++ ) {
+      if ( i > 0 ) text.append( '\t' );
+      text.append( escape(comparisonResults[i]) );
+    }
+    for ( float[] values : metricValues ) {
+      text.append( '\n' );
+      for ( int i = 0; i < size; i++ ) {
+        if ( i > 0 ) text.append( ',' );
+        if ( ! Float.isNaN(values[i]) ) text.append( values[i] );
+      }
+    }
+    return text.toString();
+  }
+
+  // Private Functions
+
+  /**
+   * Escape tabs, newlines and backslashes in a string.
+   *
+   * @param s  The string to escape
+   *
+   * @return  The escaped string.
+   */
+  private static String escape( String s ) {
+    if ( s.indexOf('\t') < 0 && s.indexOf('\n') < 0 &&
+         s.indexOf('\r') < 0 && s.indexOf('\\') < 0 ) {
+      return s;
+    }
+    StringBuilder escaped = new StringBuilder( s.length() + 8 );
+    for ( int i = 0; i < s.length(); i++ ) {
+      char c = s.charAt( i );
+      switch ( c ) {
+        case '\t': escaped.append( "\\t" ); break;
+        case '\n': escaped.append( "\\n" ); break;
+        case '\r': escaped.append( "\\r" ); break;
+        case '\\': escaped.append( "\\\\" ); break;
+        default: escaped.append( c );
+      }
+    }
+    return escaped.toString();
+  }
+
+  /**
+   * Parse a comma separated list of floats, where empty values are NaN.
+   *
+   * @param line  The list of values
+   * @param count  The expected number of values
+   *
+   * @return  An array of the values.
+   *
+   * @throws ProtocolException if the number of values is wrong
+   */
+  private static float[] parseFloats( String line, int count )
+    throws ProtocolException {
+    float[] values = new float[count];
+    int start = 0;
+    for ( int i = 0; i < count; i++ ) {
+      int end = nextSeparator( line, ',', start, i, count );
+      values[i] = end == start ?
+        Float.NaN : Float.parseFloat( line.substring(start, end) );
+      start = end + 1;
+    }
+    return values;
+  }
+
+  /**
+   * Parse a comma separated list of longs.
+   *
+   * @param line  The list of values
+   * @param count  The expected number of values
+   *
+   * @return  An array of the values.
+   *
+   * @throws ProtocolException if the number of values is wrong
+   */
+  private static long[] parseLongs( String line, int count )
+    throws ProtocolException {
+    long[] values = new long[count];
+    int start = 0;
+    for ( int i = 0; i < count; i++ ) {
+      int end = nextSeparator( line, ',', start, i, count );
+      values[i] = Long.parseLong( line.substring(start, end) );
+      start = end + 1;
+    }
+    return values;
+  }
+
+  /**
+   * Parse a tab separated list of escaped strings.
+   *
+   * @param line  The list of values
+   * @param count  The expected number of values
+   *
+   * @return  An array of the values.
+   *
+   * @throws ProtocolException if the number of values is wrong
+   */
+  private static String[] parseStrings( String line, int count )
+    throws ProtocolException {
+    String[] values = new String[count];
+    int start = 0;
+    for ( int i = 0; i < count; i++ ) {
+      int end = nextSeparator( line, '\t', start, i, count );
+      values[i] = unescape( line.substring(start, end) );
+      start = end + 1;
+    }
+    return values;
+  }
+
+  /**
+   * Return the index of the separator that ends a value in a list.
+   *
+   * @param line  The list of values
+   * @param separator  The character between values
+   * @param start  The index of the start of the value
+   * @param i  The index of the value in the list
+   * @param count  The expected number of values
+   *
+   * @return  The index of the separator or the end of the line for the last
+   * value.
+   *
+   * @throws ProtocolException if the number of values is wrong
+   */
+  private static int nextSeparator( String line, char separator, int start,
+                                    int i, int count )
+    throws ProtocolException {
+    int end = line.indexOf( separator, start );
+    if ( i == count - 1 ) {
+      if ( end >= 0 || start > line.length() ) {
+        throw new ProtocolException( "Expected " + count + " column values" );
+      }
+      return line.length();
+    }
+    if ( end < 0 ) {
+      throw new ProtocolException( "Expected " + count + " column values" );
+    }
+    return end;
+  }
+
+  /**
+   * Reverse the escaping done by escape.
+   *
+   * @param s  The escaped string
+   *
+   * @return  The original string.
+   */
+  private static String unescape( String s ) {
+    if ( s.indexOf('\\') < 0 ) {
+      return s;
+    }
+    StringBuilder unescaped = new StringBuilder( s.length() );
+    for ( int i = 0; i < s.length(); i++ ) {
+      char c = s.charAt( i );
+      if ( c == '\\' && i + 1 < s.length() ) {
+        c = s.charAt( ++i );
+        if ( c == 't' ) {
+          c = '\t';
+        } else if ( c == 'n' ) {
+          c = '\n';
+        } else if ( c == 'r' ) {
+          c = '\r';
+        }
+      }
+      unescaped.append( c );
+    }
+    return unescaped.toString();
+  }
+}
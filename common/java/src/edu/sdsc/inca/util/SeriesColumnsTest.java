@@ -0,0 +1,68 @@
+package edu.sdsc.inca.util;
+
+import junit.framework.TestCase;
+
+import edu.sdsc.inca.protocol.ProtocolException;
+
+/**
+ * Tests the SeriesColumns class.
+ */
+public class SeriesColumnsTest extends TestCase {
+
+  /**
+   * Verify that columns survive the conversion to text and back, including
+   * strings that need escaping and missing metric values.
+   */
+  public void testRoundTrip() throws Exception {
+    SeriesColumns columns = new SeriesColumns
+      ( "ssl\tcheck", "host\\a", null, 12, new String[] { "bw", "lat ms" } );
+    for ( int i = 0; i < 100; i++ ) {
+      columns.add( 1000000L + i * 3600000L, 500 + i, i % 3 != 0,
+                   i % 3 == 0 ? "line one\nline\ttwo\r\n" : "", "",
+                   new float[] { i / 2.0f, i % 2 == 0 ? Float.NaN : -i } );
+    }
+    SeriesColumns copy = SeriesColumns.parse( columns.toString() );
+    assertEquals( "ssl\tcheck", copy.getNickname() );
+    assertEquals( "host\\a", copy.getResource() );
+    assertEquals( "", copy.getTarget() );
+    assertEquals( 12, copy.getConfigId() );
+    assertEquals( 100, copy.getSize() );
+    assertTrue( copy.matches("ssl\tcheck", "host\\a", null) );
+    assertFalse( copy.matches("ssl\tcheck", "host\\a", "other") );
+    for ( int i = 0; i < 100; i++ ) {
+      assertEquals( columns.getCollected()[i], copy.getCollected()[i] );
+      assertEquals( columns.getInstanceIds()[i], copy.getInstanceIds()[i] );
+      assertEquals( columns.getSuccess()[i], copy.getSuccess()[i] );
+      assertEquals( columns.getExitMessages()[i], copy.getExitMessages()[i] );
+      assertEquals
+        ( columns.getComparisonResults()[i], copy.getComparisonResults()[i] );
+      assertEquals( i / 2.0f, copy.getMetricValues("bw")[i], 0 );
+      if ( i % 2 == 0 ) {
+        assertTrue( Float.isNaN(copy.getMetricValues("lat ms")[i]) );
+      } else {
+        assertEquals( -i, copy.getMetricValues("lat ms")[i], 0 );
+      }
+    }
+    assertNull( copy.getMetricValues("other") );
+  }
+
+  /**
+   * Verify that empty columns and malformed text are handled.
+   */
+  public void testParse() throws Exception {
+    SeriesColumns empty = new SeriesColumns( "a", "b", "c", 1, null );
+    assertEquals( 0, SeriesColumns.parse(empty.toString()).getSize() );
+    try {
+      SeriesColumns.parse( "a\tb\tc\t1\t2\n5\n1,2\nSS\n\t\n\t" );
+      fail( "parsed too few values" );
+    } catch ( ProtocolException e ) {
+      // expected
+    }
+    try {
+      SeriesColumns.parse( "a\tb" );
+      fail( "parsed bad header" );
+    } catch ( ProtocolException e ) {
+      // expected
+    }
+  }
+}
@@ -66,12 +66,28 @@ public class SuiteStagesWrapper extends XmlWrapper {
   private static Pattern ANY_EVERY = Pattern.compile( "\\?\\/(\\d+)" );
   private static Pattern ANY_EVERY_NEW =
     Pattern.compile( "\\?-(\\d+)(\\/(\\d+))?" );
+  private static Pattern CHOSEN = Pattern.compile( "\\?=" );
+  private static Pattern JOURNAL_RECORD_END =
+    Pattern.compile( "</([\\w.-]+:)?suiteStages>" );
+  // the journal is compacted into the suite file when it holds more changes
+  // than the suite has series configs, or this many, whichever is larger
+  private static final int MIN_JOURNAL_LENGTH = 100;
+  final public static String JOURNAL_SUFFIX = ".journal";
+  // when the journal is compacted, the suite file is written next to itself
+  // and the journal is set aside before the new file is moved into place
+  final public static String COMPACTED_SUFFIX = ".compacted";
+  final public static String RETIRED_SUFFIX = ".retired";
 
   private SuiteStagesDocument suiteStages = null;
   private ResourcesWrapper resources = null;
   private String filePath = null;
   private String passphrase = null;
+  private Vector<MultiResourceConfig> unsavedChanges =
+    new Vector<MultiResourceConfig>();
+  private int journalLength = 0;
   private static Logger logger = Logger.getLogger(SuiteStagesWrapper.class);
+  // stands in for the resource name when a series config is compiled
+  private static final String RESOURCE_TOKEN = "#__incaResource__#";
 
     /**
    * Create a SuiteStagesWrapper object with an existing SuiteStages document.
@@ -152,6 +168,7 @@ public class SuiteStagesWrapper extends XmlWrapper {
     this.filePath = filename;
     this.passphrase = passphrase;
     File suiteFile  = new File( filename );
+    this.recoverCompaction();
     if ( suiteFile.exists() ) {
       String xml = read( filename, passphrase );
       this.suiteStages = SuiteStagesDocument.Factory.parse( xml, (new XmlOptions()).setLoadStripWhitespace() );
@@ -159,6 +176,7 @@ public class SuiteStagesWrapper extends XmlWrapper {
         "Loading suite '" + this.suiteStages.getSuiteStages().getName() +
         "' at " + filename
       );
+      this.replayJournal();
     } else {
       this.suiteStages = SuiteStagesDocument.Factory.newInstance();
       this.suiteStages.addNewSuiteStages().addNewMultiResourceConfigs();
@@ -502,14 +520,32 @@ public class SuiteStagesWrapper extends XmlWrapper {
 
   /**
    * Iterate through the per resource series configs and extract suites
-   * for each of the resources.
+   * for each of the resources.  When called on the changes returned by
+   * modify, the suites only contain the per resource configs that were added
+   * or deleted, so they can be sent to the reporter managers as is.
    *
    * @return A HashMap where the keys are resource names and the entries are
    * the suite wrapper objects.
    *
    */
   public HashMap<String, SuiteWrapper> getResourceSuites( ) {
-    return getResourceSuites( this.getPerResourceSuiteDocument() );
+    HashMap<String, SuiteWrapper> suites = new HashMap<String, SuiteWrapper>();
+    for ( MultiResourceConfig multiConfig : this.suiteStages.getSuiteStages().
+          getMultiResourceConfigs().getMultiResourceConfigArray() ) {
+      for ( SeriesConfig seriesConfig :
+            multiConfig.getPerResourceConfigs().getConfigArray() ) {
+        String resource = seriesConfig.getResourceHostname();
+        SuiteWrapper suite = suites.get( resource );
+        if ( suite == null ) {
+          suite = new SuiteWrapper();
+          copySuiteAttributes( suite );
+          suites.put( resource, suite );
+        }
+        suite.appendSeriesConfig
+          ( clearChosenTimes((SeriesConfig)seriesConfig.copy()) );
+      }
+    }
+    return suites;
   }
 
 
@@ -535,23 +571,7 @@ public class SuiteStagesWrapper extends XmlWrapper {
         suite.copySuiteAttributes( suiteDoc );
         suites.put( resource, suite );
       }
-      Schedule sched = newConfig.getSchedule();
-      if(sched.getCron() != null) {
-        sched.getCron().setMin( sched.getCron().getMin().replaceAll("\\?=", "") );
-        sched.getCron().setHour(
-          sched.getCron().getHour().replaceAll("\\?=", "")
-        );
-        sched.getCron().setMday(
-          sched.getCron().getMday().replaceAll("\\?=", "")
-        );
-        sched.getCron().setWday(
-          sched.getCron().getWday().replaceAll("\\?=", "")
-        );
-        sched.getCron().setMonth(
-          sched.getCron().getMonth().replaceAll("\\?=", "")
-        );
-      }
-      suites.get(resource).appendSeriesConfig( newConfig );
+      suites.get(resource).appendSeriesConfig( clearChosenTimes(newConfig) );
     }
     return suites;
   }
@@ -666,6 +686,7 @@ public class SuiteStagesWrapper extends XmlWrapper {
         continue;
       }
       committedChanges.appendMultiResourceConfig( committedConfigChange );
+      this.unsavedChanges.add( committedConfigChange );
     }
 
     return committedChanges;
@@ -685,10 +706,15 @@ public class SuiteStagesWrapper extends XmlWrapper {
     } else {
       logger.error( "Unable to delete file " + this.filePath );
     }
+    this.removeJournal();
   }
 
   /**
-   * Save the suite document to disk.
+   * Save the suite document to disk.  The document is written to a file next
+   * to the suite file, then the journal, whose changes the document already
+   * includes, is set aside and the new file is moved into place.  If the
+   * agent stops partway through, the journal is only replayed onto a suite
+   * file that doesn't include its changes (see recoverCompaction).
    *
    * @throws CrypterException if unable to encrypt document
    * @throws IOException if unable to write to disk
@@ -698,11 +724,73 @@ public class SuiteStagesWrapper extends XmlWrapper {
     if ( this.filePath == null ) return;
 
     String xml = this.suiteStages.xmlText((new XmlOptions()).setSavePrettyPrint());
-    save( xml, this.filePath, this.passphrase );
+    File compacted = new File( this.filePath + COMPACTED_SUFFIX );
+    save( xml, compacted.getPath(), this.passphrase );
+    File journal = new File( this.filePath + JOURNAL_SUFFIX );
+    File retired = new File( this.filePath + RETIRED_SUFFIX );
+    if ( journal.exists() && ! journal.renameTo(retired) ) {
+      compacted.delete();
+      throw new IOException
+        ( "Unable to rename " + journal.getPath() + " to " + retired.getPath() );
+    }
+    this.journalLength = 0;
+    if ( ! compacted.renameTo(new File(this.filePath)) ) {
+      throw new IOException
+        ( "Unable to rename " + compacted.getPath() + " to " + this.filePath );
+    }
+    if ( retired.exists() && ! retired.delete() ) {
+      logger.error( "Unable to delete file " + retired.getPath() );
+    }
     logger.debug(
       "Saved suite '" + suiteStages.getSuiteStages().getName() +
       "' to file '" + filePath + "'"
     );
+    // the suite file now includes everything in the journal
+    this.unsavedChanges.clear();
+
+  }
+
+  /**
+   * Save the changes made by modify since the last save to disk.  Rather than
+   * rewriting the whole suite document, the expanded changes and the top
+   * level suite attributes are appended to a journal file next to it, which
+   * is replayed when the suite is read back in.  Once the journal holds more
+   * changes than the suite has series configs, the suite document is saved
+   * in full instead and the journal is discarded.
+   *
+   * @throws CrypterException if unable to encrypt changes
+   * @throws IOException if unable to write to disk
+   */
+  public void saveChanges() throws CrypterException, IOException {
+
+    if ( this.filePath == null ) return;
+
+    int length = this.journalLength + this.unsavedChanges.size() + 1;
+    if ( ! new File(this.filePath).exists() ||
+         length > Math.max(MIN_JOURNAL_LENGTH, this.getSeriesConfigCount()) ) {
+      logger.debug( "Compacting journal of suite '" +
+                    suiteStages.getSuiteStages().getName() + "'" );
+      this.save();
+      return;
+    }
+
+    SuiteStagesDocument record = SuiteStagesDocument.Factory.newInstance();
+    record.addNewSuiteStages().addNewMultiResourceConfigs();
+    copySuiteAttributes( this.suiteStages, record );
+    for ( int i = 0; i < this.unsavedChanges.size(); i++ ) {
+      record.getSuiteStages().getMultiResourceConfigs().
+        insertNewMultiResourceConfig( i );
+      record.getSuiteStages().getMultiResourceConfigs().
+        setMultiResourceConfigArray( i, this.unsavedChanges.get(i) );
+    }
+    append( record.xmlText() + "\n", this.filePath + JOURNAL_SUFFIX,
+            this.passphrase );
+    logger.debug(
+      "Journaled " + this.unsavedChanges.size() + " changes to suite '" +
+      suiteStages.getSuiteStages().getName() + "'"
+    );
+    this.journalLength = length;
+    this.unsavedChanges.clear();
 
   }
 
@@ -725,21 +813,12 @@ public class SuiteStagesWrapper extends XmlWrapper {
     SeriesConfig seriesConfig, String resource
     ) throws ConfigurationException {
 
-    Vector<String> targetResources = new Vector<String>();
-    Vector<String> seriesConfigCPText = this.resources.expand(
-      seriesConfig.toString(), resource, null, targetResources
-    );
     Vector<SeriesConfig> seriesConfigCP = new Vector<SeriesConfig>();
-    for ( int i = 0; i < seriesConfigCPText.size(); i++ ) {
-      try {
-        SeriesConfig config = SeriesConfig.Factory.parse(seriesConfigCPText.get(i), (new XmlOptions()).setLoadStripWhitespace());
-        if ( targetResources.size() > 0 ) {
-          config.setTargetHostname(targetResources.get(i));
-        }
-        seriesConfigCP.add( config );
-      } catch ( XmlException e ) {
-        logger.error( "Unexpected xml exception parsing series config", e );
-      }
+    MacroTemplate template = new MacroTemplate( seriesConfig.toString() );
+    MacroTemplate.Expansion expansion = template.expand(this.resources, resource);
+    SeriesConfig config;
+    while ( (config = nextSeriesConfig(expansion)) != null ) {
+      seriesConfigCP.add( config );
     }
     return seriesConfigCP;
   }
@@ -856,6 +935,38 @@ public class SuiteStagesWrapper extends XmlWrapper {
     }
   }
 
+  /**
+   * Remove the '?=' markers from the cron fields of an expanded series config.
+   * The markers record which fields had their running times chosen by the
+   * agent and are not understood by the reporter managers.
+   *
+   * @param config  An expanded per resource series config
+   *
+   * @return  The same series config, for convenience
+   */
+  private static SeriesConfig clearChosenTimes( SeriesConfig config ) {
+    Cron cron = config.getSchedule().getCron();
+    if ( cron == null ) {
+      return config;
+    }
+    if ( CHOSEN.matcher(cron.getMin()).find() ) {
+      cron.setMin( CHOSEN.matcher(cron.getMin()).replaceAll("") );
+    }
+    if ( CHOSEN.matcher(cron.getHour()).find() ) {
+      cron.setHour( CHOSEN.matcher(cron.getHour()).replaceAll("") );
+    }
+    if ( CHOSEN.matcher(cron.getMday()).find() ) {
+      cron.setMday( CHOSEN.matcher(cron.getMday()).replaceAll("") );
+    }
+    if ( CHOSEN.matcher(cron.getWday()).find() ) {
+      cron.setWday( CHOSEN.matcher(cron.getWday()).replaceAll("") );
+    }
+    if ( CHOSEN.matcher(cron.getMonth()).find() ) {
+      cron.setMonth( CHOSEN.matcher(cron.getMonth()).replaceAll("") );
+    }
+    return config;
+  }
+
   /**
    * Copy the top level suite attributes: name, guid, and description to
    * supplied suite document.
@@ -885,6 +996,28 @@ public class SuiteStagesWrapper extends XmlWrapper {
     );
   }
 
+  /**
+   * Copy the top level suite attributes: name, guid, description, and version
+   * from one suite stages document to another.
+   *
+   * @param from  The suite stages document to copy the attributes from
+   * @param to  The suite stages document to copy the attributes to
+   */
+  private static void copySuiteAttributes( SuiteStagesDocument from,
+                                           SuiteStagesDocument to ) {
+    if ( from.getSuiteStages().isSetName() ) {
+      to.getSuiteStages().setName( from.getSuiteStages().getName() );
+    }
+    if ( from.getSuiteStages().isSetDescription() ) {
+      to.getSuiteStages().setDescription
+        ( from.getSuiteStages().getDescription() );
+    }
+    if ( from.getSuiteStages().isSetVersion() ) {
+      to.getSuiteStages().setVersion( from.getSuiteStages().getVersion() );
+    }
+    to.getSuiteStages().setGuid( from.getSuiteStages().getGuid() );
+  }
+
   /**
    * Converts suite to a suiteExpanded document using the information in the
    * resource configuration object to expand the supplied resources
@@ -948,13 +1081,19 @@ public class SuiteStagesWrapper extends XmlWrapper {
     } else {
       resources = new String[] { config.getResourceHostname() };
     }
+    // compile the series config once with a placeholder for the resource
+    // name and expand it for each resource, parsing each expanded config only
+    // when it is appended
+    resourceConfig.setResourceHostname( RESOURCE_TOKEN );
+    MacroTemplate template =
+      new MacroTemplate( resourceConfig.toString(), RESOURCE_TOKEN );
     for ( String resource : resources ) {
-      resourceConfig.setResourceHostname( resource );
-      Vector<SeriesConfig> seriesConfigCP = seriesConfigCrossProduct
-        ( resourceConfig, resource );
+      MacroTemplate.Expansion expansion =
+        template.expand( this.resources, resource );
       // for each expanded series config, select a schedule and create a per
       // resource series config
-      for( SeriesConfig expandedConfig : seriesConfigCP ) {
+      SeriesConfig expandedConfig;
+      while ( (expandedConfig = nextSeriesConfig(expansion)) != null ) {
         expandedConfig.setSchedule(
           chooseSchedule( expandedConfig.getSchedule() )
         );
@@ -983,6 +1122,34 @@ public class SuiteStagesWrapper extends XmlWrapper {
     return multiResourceConfig;
   }
 
+  /**
+   * Parse the next expanded series config of a macro template expansion.
+   * Strings that fail to parse are logged and skipped.
+   *
+   * @param expansion  An expansion of a series config template
+   *
+   * @return  The next series config or null if there are no more
+   *
+   * @throws ConfigurationException if unable to expand series config
+   */
+  private SeriesConfig nextSeriesConfig( MacroTemplate.Expansion expansion )
+    throws ConfigurationException {
+
+    while ( expansion.hasNext() ) {
+      String text = expansion.next();
+      try {
+        SeriesConfig config = SeriesConfig.Factory.parse(text, (new XmlOptions()).setLoadStripWhitespace());
+        if ( expansion.getTargetResource() != null ) {
+          config.setTargetHostname(expansion.getTargetResource());
+        }
+        return config;
+      } catch ( XmlException e ) {
+        logger.error( "Unexpected xml exception parsing series config", e );
+      }
+    }
+    return null;
+  }
+
   /**
     * Retrieve series configs using the specified xpath expression and return
     * as a suite document.
@@ -1033,7 +1200,14 @@ public class SuiteStagesWrapper extends XmlWrapper {
       getMultiResourceConfigArray();
     int i = 0;
     for( ; i < multiResourceConfigs.length; i++) {
-      if ( configEqual( config, multiResourceConfigs[i].getConfig() )) {
+      // configEqual is expensive so rule out configs for other series first
+      SeriesConfig existing = multiResourceConfigs[i].getConfig();
+      if ( ! existing.getSeries().getName().equals(id) ||
+           ! String.valueOf(existing.getNickname()).equals
+             (String.valueOf(config.getNickname())) ) {
+        continue;
+      }
+      if ( configEqual( config, existing )) {
         logger.debug( "Deleting series config " + id );
         deletedMultiResourceConfig =
         (MultiResourceConfig)multiResourceConfigs[i].copy();
@@ -1174,6 +1348,98 @@ public class SuiteStagesWrapper extends XmlWrapper {
 
   }
 
+  /**
+   * Delete the journal of changes saved since the suite file was last written
+   * in full.
+   */
+  private void removeJournal() {
+    this.journalLength = 0;
+    File journal = new File( this.filePath + JOURNAL_SUFFIX );
+    if ( journal.exists() && ! journal.delete() ) {
+      logger.error( "Unable to delete file " + journal.getPath() );
+    }
+  }
+
+  /**
+   * Finish or undo a save that was interrupted.  If the journal was set
+   * aside, the new suite file was completely written first, so it is moved
+   * into place if it isn't already and the journal is discarded.
+   * Otherwise, a new suite file that may be incomplete is discarded and the
+   * journal is still current.
+   *
+   * @throws IOException if unable to move the new suite file into place
+   */
+  private void recoverCompaction() throws IOException {
+    File compacted = new File( this.filePath + COMPACTED_SUFFIX );
+    File retired = new File( this.filePath + RETIRED_SUFFIX );
+    if ( retired.exists() ) {
+      if ( compacted.exists() &&
+           ! compacted.renameTo(new File(this.filePath)) ) {
+        throw new IOException
+          ( "Unable to rename " + compacted.getPath() + " to " + this.filePath );
+      }
+      logger.info( "Completing interrupted save of " + this.filePath );
+      if ( ! retired.delete() ) {
+        logger.error( "Unable to delete file " + retired.getPath() );
+      }
+    } else if ( compacted.exists() ) {
+      logger.info( "Discarding interrupted save of " + this.filePath );
+      if ( ! compacted.delete() ) {
+        logger.error( "Unable to delete file " + compacted.getPath() );
+      }
+    }
+  }
+
+  /**
+   * Apply the changes recorded in the journal to the suite document read in
+   * from the suite file.  The changes were expanded before they were
+   * journaled, so they are applied as is and the running times chosen for
+   * them are kept.  A record that was only partially written is ignored.
+   *
+   * @throws CrypterException if unable to decrypt the journal
+   * @throws IOException if unable to read the journal
+   */
+  private void replayJournal() throws CrypterException, IOException {
+
+    File journal = new File( this.filePath + JOURNAL_SUFFIX );
+    if ( ! journal.exists() ) return;
+
+    String text = read( journal.getPath(), this.passphrase );
+    Matcher matcher = JOURNAL_RECORD_END.matcher( text );
+    int start = 0;
+    int records = 0;
+    int changes = 0;
+    while ( matcher.find() ) {
+      String xml = text.substring( start, matcher.end() );
+      start = matcher.end();
+      SuiteStagesDocument record;
+      try {
+        record = SuiteStagesDocument.Factory.parse
+          ( xml, (new XmlOptions()).setLoadStripWhitespace() );
+      } catch ( XmlException e ) {
+        logger.error( "Skipping unreadable record in " + journal.getPath(), e );
+        continue;
+      }
+      copySuiteAttributes( record, this.suiteStages );
+      for ( MultiResourceConfig change : record.getSuiteStages().
+            getMultiResourceConfigs().getMultiResourceConfigArray() ) {
+        if ( change.getConfig().getAction().equals("add") ) {
+          this.appendMultiResourceConfig( change );
+        } else {
+          try {
+            this.deleteMultiResourceConfig( change.getConfig() );
+          } catch ( SuiteModificationException e ) {
+            logger.error( "Skipping journaled delete: " + e.getMessage() );
+          }
+        }
+        changes++;
+      }
+      records++;
+    }
+    this.journalLength = records + changes;
+    logger.debug( "Replayed " + changes + " changes from " + journal.getPath() );
+  }
+
   /**
    * Provide a command line interface to examining existing suite stage
    * wrapper files or expanding them.
@@ -12,12 +12,15 @@ import edu.sdsc.inca.dataModel.util.Macro;
 import edu.sdsc.inca.dataModel.util.Schedule;
 import edu.sdsc.inca.dataModel.resourceConfig.ResourceConfigDocument;
 import edu.sdsc.inca.dataModel.suite.SuiteDocument;
+import edu.sdsc.inca.dataModel.suiteStages.MultiResourceConfig;
+import edu.sdsc.inca.dataModel.suiteStages.SuiteStagesDocument;
 import edu.sdsc.inca.protocol.Protocol;
 import edu.sdsc.inca.ConfigurationException;
 import edu.sdsc.inca.repository.Repositories;
 import edu.sdsc.inca.repository.RepositoriesTest;
 
 import java.io.File;
+import java.io.FileWriter;
 import java.util.Vector;
 import java.util.HashMap;
 import java.util.Calendar;
@@ -771,6 +774,127 @@ public class SuiteStagesWrapperTest extends TestCase {
     assertFalse( "encrypted file deleted", encryptedFile.exists() );
   }
 
+  /**
+   * Test that changes saved to the journal are replayed when the suite is
+   * read back in
+   *
+   * @throws Exception if trouble running test
+   */
+  public void testJournal() throws Exception {
+    Repositories repositories = RepositoriesTest.createSampleRepository(null);
+    ResourcesWrapper resources = ResourcesWrapperTest.createSampleResources();
+    File suiteFile = File.createTempFile( "inca", ".xml" );
+    if ( suiteFile.exists() ) suiteFile.delete();
+    File journalFile = new File
+      ( suiteFile.getAbsolutePath() + SuiteStagesWrapper.JOURNAL_SUFFIX );
+    SuiteStagesWrapper suiteStagesWrapper = new SuiteStagesWrapper
+      ( suiteFile.getAbsolutePath(), resources );
+    String blank = StringMethods.fileContents( suiteFile.getAbsolutePath() );
+
+    suiteStagesWrapper.modify
+      ( SuiteWrapperTest.createSampleSuite(repositories) );
+    suiteStagesWrapper.saveChanges();
+    suiteStagesWrapper.modify
+      ( SuiteWrapperTest.createSampleSuiteModification(repositories) );
+    suiteStagesWrapper.saveChanges();
+    assertTrue( "journal written", journalFile.exists() );
+    assertEquals( "suite file not rewritten", blank,
+                  StringMethods.fileContents(suiteFile.getAbsolutePath()) );
+
+    SuiteStagesWrapper reloaded = new SuiteStagesWrapper
+      ( suiteFile.getAbsolutePath(), resources );
+    assertEquals( "have 3 series configs", 3, reloaded.getSeriesConfigCount() );
+    XmlOptions pretty = (new XmlOptions()).setSavePrettyPrint();
+    assertEquals( "journal replayed",
+                  suiteStagesWrapper.getDocument().xmlText(pretty),
+                  reloaded.getDocument().xmlText(pretty) );
+
+    reloaded.save();
+    assertFalse( "journal compacted", journalFile.exists() );
+    reloaded.remove();
+    assertFalse( "suite file gone", suiteFile.exists() );
+  }
+
+  /**
+   * Replace the contents of a file.
+   *
+   * @param path  The path of the file to write
+   * @param text  The new contents of the file
+   *
+   * @throws Exception if trouble writing the file
+   */
+  private static void writeFile( String path, String text ) throws Exception {
+    FileWriter writer = new FileWriter( path );
+    writer.write( text );
+    writer.close();
+  }
+
+  /**
+   * Test that a save interrupted after the journal was set aside neither
+   * loses the journaled changes nor replays them a second time
+   *
+   * @throws Exception if trouble running test
+   */
+  public void testInterruptedCompaction() throws Exception {
+    File suiteFile = File.createTempFile( "inca", ".xml" );
+    if ( suiteFile.exists() ) suiteFile.delete();
+    String path = suiteFile.getAbsolutePath();
+    File journalFile = new File( path + SuiteStagesWrapper.JOURNAL_SUFFIX );
+    File compactedFile = new File( path + SuiteStagesWrapper.COMPACTED_SUFFIX );
+    File retiredFile = new File( path + SuiteStagesWrapper.RETIRED_SUFFIX );
+    SuiteStagesWrapper suiteStagesWrapper = new SuiteStagesWrapper( path, null );
+    String blank = StringMethods.fileContents( path );
+
+    // a journal record that adds two series configs
+    SuiteStagesDocument record = SuiteStagesDocument.Factory.newInstance();
+    record.addNewSuiteStages().addNewMultiResourceConfigs();
+    record.getSuiteStages().setName( "UnnamedSuite" );
+    record.getSuiteStages().setGuid( "UnnamedSuite" );
+    SeriesConfig[] configs = SuiteWrapperTest.createSampleSuite( null ).
+      getSuiteDocument().getSuite().getSeriesConfigs().getSeriesConfigArray();
+    for ( int i = 0; i < 2; i++ ) {
+      MultiResourceConfig change = record.getSuiteStages().
+        getMultiResourceConfigs().addNewMultiResourceConfig();
+      change.setConfig( configs[i] );
+      change.getConfig().setAction( "add" );
+      change.addNewPerResourceConfigs();
+    }
+    String journal = record.xmlText() + "\n";
+    writeFile( journalFile.getPath(), journal );
+    suiteStagesWrapper = new SuiteStagesWrapper( path, null );
+    assertEquals( "journal replayed",
+                  2, suiteStagesWrapper.getSeriesConfigCount() );
+    suiteStagesWrapper.save();
+    String compacted = StringMethods.fileContents( path );
+    assertFalse( "journal retired", journalFile.exists() );
+    assertFalse( "retired journal removed", retiredFile.exists() );
+    assertFalse( "compacted file moved", compactedFile.exists() );
+
+    // stopped after the journal was set aside
+    writeFile( path, blank );
+    writeFile( compactedFile.getPath(), compacted );
+    writeFile( retiredFile.getPath(), journal );
+    SuiteStagesWrapper reloaded = new SuiteStagesWrapper( path, null );
+    assertEquals( "changes kept", 2, reloaded.getSeriesConfigCount() );
+    assertFalse( "compacted file moved", compactedFile.exists() );
+    assertFalse( "retired journal removed", retiredFile.exists() );
+
+    // stopped after the new suite file was moved into place
+    writeFile( retiredFile.getPath(), journal );
+    reloaded = new SuiteStagesWrapper( path, null );
+    assertEquals( "changes not replayed twice",
+                  2, reloaded.getSeriesConfigCount() );
+
+    // stopped while writing the new suite file
+    writeFile( path, blank );
+    writeFile( journalFile.getPath(), journal );
+    writeFile( compactedFile.getPath(), "<partial" );
+    reloaded = new SuiteStagesWrapper( path, null );
+    assertEquals( "journal replayed", 2, reloaded.getSeriesConfigCount() );
+    assertFalse( "partial file removed", compactedFile.exists() );
+    reloaded.remove();
+  }
+
   /**
    * Test set ResourceCOnfigDAO function
    *
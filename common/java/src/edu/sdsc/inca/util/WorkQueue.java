@@ -1,8 +1,10 @@
 package edu.sdsc.inca.util;
 
 
+import java.util.Deque;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.ListIterator;
 
 import org.apache.log4j.Logger;
 
@@ -16,7 +18,7 @@ import org.apache.log4j.Logger;
 public class WorkQueue<T> {
 
     private static Logger logger = Logger.getLogger(WorkQueue.class);
-    private final Queue<WorkItem<T>> queue = new LinkedList<WorkItem<T>>();
+    private final Deque<WorkItem<T>> queue = new LinkedList<WorkItem<T>>();
     private final int maxSize;
 
 
@@ -73,6 +75,27 @@ public class WorkQueue<T> {
         return true;
     }
 
+    /**
+     * Put work that was retrieved but could not be completed back at the
+     * front of the workQueue, ahead of any work added since, so that it is
+     * retrieved again in the same order.  The maximum size is not enforced.
+     *
+     * @param work The units of work to put back, in the order they were
+     *             retrieved.
+     */
+    public synchronized void requeueWork(List<WorkItem<T>> work) {
+        ListIterator<WorkItem<T>> it = work.listIterator(work.size());
+        while (it.hasPrevious()) {
+            WorkItem<T> o = it.previous();
+            if (o == null) {
+                throw new NullPointerException
+                        ("attempting to push null onto work queue");
+            }
+            queue.addFirst(o);
+        }
+        notify();
+    }
+
     /**
      * retrieve work from the workQueue.
      * blocks if empty.
@@ -89,6 +112,46 @@ public class WorkQueue<T> {
         return queue.remove();
     }
 
+    /**
+     * retrieve all of the work currently in the workQueue, up to max units,
+     * so that it can be handled as one batch.  Does not block.
+     *
+     * @param max the maximum number of units of work to retrieve.
+     * @return The units of work in the order they were added (may be empty).
+     */
+    public synchronized List<WorkItem<T>> drainWork(int max) {
+        List<WorkItem<T>> work = new LinkedList<WorkItem<T>>();
+        while (work.size() < max && ! queue.isEmpty()) {
+            work.add(queue.remove());
+        }
+        return work;
+    }
+
+    /**
+     * retrieve work from the workQueue.
+     * waits at most timeout milliseconds for work to be added or for a call
+     * to wakeUp.
+     *
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return The next unit of work or null if none is available.
+     * @throws InterruptedException
+     */
+    public synchronized WorkItem<T> getWork(long timeout)
+        throws InterruptedException {
+        if (queue.isEmpty() && timeout > 0) {
+            wait(timeout);
+        }
+        return queue.poll();
+    }
+
+    /**
+     * wake any thread waiting for work so that it can check for other
+     * events (e.g., a shutdown).
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
     /**
      * check to see if there is any work to be done.
      *
@@ -1,5 +1,7 @@
 package edu.sdsc.inca.util;
 
+import java.util.List;
+
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -116,6 +118,73 @@ public class WorkQueueTest extends TestCase {
         }
     }
 
+    /**
+     * Tests drainWork
+     */
+    public void testDrainWork() throws Exception {
+        WorkQueue<IntegerReader> wq = new WorkQueue<IntegerReader>();
+        Assert.assertTrue(wq.drainWork(10).isEmpty());
+        for (int i = 0; i < 5; i++) {
+            wq.addWork(new IntegerWork(i));
+        }
+        List<WorkItem<IntegerReader>> work = wq.drainWork(3);
+        Assert.assertEquals(3, work.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i, ((IntegerWork) work.get(i)).work.intValue());
+        }
+        Assert.assertEquals(2, wq.drainWork(10).size());
+        Assert.assertTrue(wq.isEmpty());
+    }
+
+    /**
+     * Tests that requeued work is retrieved again in order, ahead of work
+     * added since it was drained
+     */
+    public void testRequeueWork() throws Exception {
+        WorkQueue<IntegerReader> wq = new WorkQueue<IntegerReader>();
+        for (int i = 0; i < 3; i++) {
+            wq.addWork(new IntegerWork(i));
+        }
+        List<WorkItem<IntegerReader>> work = wq.drainWork(10);
+        wq.addWork(new IntegerWork(3));
+        wq.requeueWork(work.subList(1, 3));
+        work = wq.drainWork(10);
+        Assert.assertEquals(3, work.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i + 1, ((IntegerWork) work.get(i)).work.intValue());
+        }
+    }
+
+    /**
+     * Tests getWork with a timeout and wakeUp
+     */
+    public void testGetWorkTimeout() throws Exception {
+        final WorkQueue<IntegerReader> wq = new WorkQueue<IntegerReader>();
+        long start = System.currentTimeMillis();
+        Assert.assertNull(wq.getWork(200));
+        Assert.assertTrue(System.currentTimeMillis() - start >= 150);
+
+        wq.addWork(new IntegerWork(3));
+        WorkItem<IntegerReader> i = wq.getWork(10000);
+        Assert.assertEquals(((IntegerWork) i).work.intValue(), 3);
+
+        Thread waker = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    // do nothing
+                }
+                wq.wakeUp();
+            }
+        };
+        start = System.currentTimeMillis();
+        waker.start();
+        Assert.assertNull(wq.getWork(10000));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        waker.join();
+    }
+
     /**
      * Class to assist with testing the queue.
      */
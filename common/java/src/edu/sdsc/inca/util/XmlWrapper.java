@@ -242,6 +242,36 @@ abstract public class XmlWrapper {
     }
   }
 
+  /**
+   * Append XML text to a file on disk, encrypting any passwords/passphrases
+   * contained in it.  The file is created if it does not exist.
+   *
+   * @param xmlText  The XML text to append to the file.
+   * @param filePath  A string containing a path to the file.
+   * @param passphrase A string containing the passphrase to use to encrypt
+   * the passwords.
+   *
+   * @throws CrypterException if trouble encrypting password
+   * @throws IOException if trouble writing file
+   */
+  public static void append( String xmlText, String filePath,
+                             String passphrase )
+    throws CrypterException, IOException {
+
+    File appendFile = new File( filePath );
+    if ( ! appendFile.exists() ) {
+      save( xmlText, filePath, passphrase );
+      return;
+    }
+    String encryptedXml = xmlText;
+    if ( passphrase != null ) {
+      encryptedXml = cryptSensitive(xmlText, passphrase, false);
+    }
+    BufferedWriter bw = new BufferedWriter( new FileWriter(appendFile, true) );
+    bw.write(encryptedXml);
+    bw.close();
+  }
+
   /**
    * Unescape escaped XML characters in a string.  The following characters
    * need to be unescaped:
@@ -81,9 +81,12 @@ public class Consumer extends Component {
     Component.COMPONENT_OPTS,
       "a|agent       str  URI to the Inca agent\n" +
       "d|depot       str  URI to the Inca depot\n" +
+      "e|eventReload int  Full reload period for suites updated by depot events\n"+
       "m|maxWait     int  Max wait time a JSP tag should wait on a cached item\n"+
       "r|reload      int  Reload period for cached objects (e.g., suites)\n" +
       "R|reloadTime  str  Reload time for cached histories\n" +
+      "T|refreshThreads int Number of cached queries to refresh concurrently\n"+
+      "o|refreshTimeout int Max time to refresh a cached query\n" +
       "v|var         path Path to temporary directory\n",
     true
   );
@@ -231,10 +231,16 @@ public class AgentBean extends Thread implements java.io.Serializable {
           logger.error( "Received a null inca configuration from agent" );
           continue;
         }
+        boolean changed;
         synchronized( this ) {
+          changed = incaDoc == null ||
+                    ! incaDoc.xmlText().equals( tempDoc.xmlText() );
           incaDoc = tempDoc;
         }
         this.configUpdated( this.getIncaDoc() );
+        if ( changed ) {
+          ResponseCacheFilter.invalidate();
+        }
         logger.debug(
           "Inca config cache thread sleeping " + this.cacheReloadPeriod + " ms"
         );
@@ -4,16 +4,19 @@ package edu.sdsc.inca.consumer;
 import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Properties;
-import java.util.Timer;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 import org.apache.xmlbeans.XmlAnySimpleType;
 import org.apache.xmlbeans.XmlDate;
 import org.apache.xmlbeans.XmlInteger;
 import org.apache.xmlbeans.XmlLong;
+import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
 import org.apache.xmlbeans.XmlString;
 
@@ -26,7 +29,6 @@ import edu.sdsc.inca.dataModel.queryStore.QueryStoreDocument;
 import edu.sdsc.inca.dataModel.queryStore.Type;
 import edu.sdsc.inca.protocol.Protocol;
 import edu.sdsc.inca.util.Constants;
-import edu.sdsc.inca.util.CronSchedule;
 import edu.sdsc.inca.util.CrypterException;
 import edu.sdsc.inca.util.StringMethods;
 import edu.sdsc.inca.util.XmlWrapper;
@@ -46,14 +48,17 @@ public class DepotBean extends Thread {
 
   private String cacheReloadAt = "*:23:0";
   private int cacheReloadPeriod = 5 * Constants.SECONDS_TO_MINUTE;
+  private int eventReloadPeriod = Constants.SECONDS_TO_HOUR;
+  private DepotSubscriber subscriber = null;
   private String ignoreErrorPattern = "(^DOWNTIME:.*|^NOT_AT_FAULT.*|.*Inca error.*|.*Unable to fetch proxy for reporter execution.*)";
   private File qsFile = null;
   private QueryStoreDocument queryStore = null;
   private String tempDir = "/tmp";
   Hashtable<String,DepotQuery> cachedQueries =
     new Hashtable<String,DepotQuery>();
-  private Timer periodTimer = new Timer( "DepotBeanPeriodTimer" );
-  private Timer periodAtTimer = new Timer( "DepotBeanPeriodAtTimer" );
+  private int refreshThreads = QueryScheduler.DEFAULT_THREADS;
+  private int refreshTimeout = QueryScheduler.DEFAULT_TIMEOUT;
+  private QueryScheduler scheduler = null;
 
 
   public DepotBean() {
@@ -116,21 +121,11 @@ public class DepotBean extends Thread {
     logger.debug( "Adding query " + query );
     cachedQueries.put( name, query );
     if ( cachePeriod > 0 ) {
-      if ( reloadAt.equals("*") || reloadAt.equals("*:*") ||
-           reloadAt.equals("*:*:*") ) {
-        periodTimer.schedule
-          (query,query.getNextRefresh(),cachePeriod*Constants.MILLIS_TO_SECOND);
-      } else {
-        try {
-          periodAtTimer.schedule
-            (query, CronSchedule.parseWHM( reloadAt ).nextEvent(),
-              cachePeriod * Constants.MILLIS_TO_SECOND);
-        } catch (ParseException e) {
-          logger.error( "Unable to add query " + name, e );
-          return false;
-        }
+      if ( ! this.getScheduler().schedule(query) ) {
+        logger.error( "Unable to add query " + name );
+        return false;
       }
-      logger.debug( "Adding query " + query.getQueryName() + " as timer task");
+      logger.debug( "Adding query " + query.getQueryName() + " to scheduler");
     }
     try {
       this.save();
@@ -155,7 +150,7 @@ public class DepotBean extends Thread {
       if ( queries[i].getName().equals(name) ) {
         DepotQuery query = cachedQueries.remove( queries[i].getName() );
         logger.info( "Deleted query " + query );
-        query.cancel();
+        this.getScheduler().cancel( query );
         queryStore.getQueryStore().removeQuery(i);
         try {
           this.save();
@@ -169,6 +164,22 @@ public class DepotBean extends Thread {
     return false;
   }
 
+  /**
+   * Return the cached queries, e.g., to display their refresh statistics.
+   *
+   * @return  The queries that are prefetched from the depot, sorted by name.
+   */
+  public List<DepotQuery> getCachedQueries() {
+    List<DepotQuery> queries = new ArrayList<DepotQuery>();
+    for( String name : new TreeSet<String>(cachedQueries.keySet()) ) {
+      DepotQuery query = cachedQueries.get( name );
+      if ( query != null && query.getPeriod() > 0 ) {
+        queries.add( query );
+      }
+    }
+    return queries;
+  }
+
   /**
    * Return the period of refreshSuiteCaching for the suite and resources in the
    * Consumer's cache.
@@ -229,9 +240,28 @@ public class DepotBean extends Thread {
   }
 
 
+  /**
+   * Retrieve the parsed result for the named cached query, so that pages
+   * which transform a single cached result do not parse it again.  The
+   * document is shared by all callers and must not be modified.
+   *
+   * @param name  The name of the query to retrieve the results for
+   *
+   * @return  An XmlBean containing the result of the query or null if the
+   * query is not cached or has no result yet.
+   */
+  public XmlObject getQueryDocument( String name ) {
+    DepotQuery query = cachedQueries.get( name );
+    if ( query == null || query.getPeriod() <= 0 ) {
+      return null;
+    }
+    QueryResult result = query.getStoredQueryResult();
+    return result == null ? null : result.getDocument();
+  }
+
   /**
    * Retrieve a result for the named query.  The result will either be
-   * fetched directly from the depot or from disk (if it is cached).
+   * fetched directly from the depot or from memory (if it is cached).
    * This is a blocking function.
    *
    * @param name  The name of the query to retrieve the results for
@@ -299,6 +329,24 @@ public class DepotBean extends Thread {
     return names;
   }
 
+  /**
+   * Update the cached latest-instance queries with the new instances of the
+   * specified series configs.  Called by the DepotSubscriber as insert events
+   * arrive from the depot.
+   *
+   * @param configIds  The ids of the series configs that have new instances
+   */
+  public void patchQueries( Set<Long> configIds ) {
+    for( DepotQuery query : cachedQueries.values() ) {
+      if ( ! query.isEventDriven() ) continue;
+      try {
+        query.patch( configIds );
+      } catch (Exception e) {
+        logger.error( "Unable to patch query " + query.getQueryName(), e );
+      }
+    }
+  }
+
   /**
    * Refresh the cached result for the named query.
    *
@@ -327,6 +375,20 @@ public class DepotBean extends Thread {
     }
   }
 
+  /**
+   * Refresh all cached latest-instance queries.  Called when a subscription
+   * to depot insert events starts, since events may have been missed before.
+   * The refreshes are handed to the query scheduler, so the subscriber can
+   * start reading events right away.
+   */
+  public void refreshEventQueries() {
+    for( DepotQuery query : cachedQueries.values() ) {
+      if ( query.isEventDriven() && query.getPeriod() > 0 ) {
+        this.getScheduler().refresh( query );
+      }
+    }
+  }
+
   /**
    * Query the depot and make sure there is a cache entry for each suite
    * and remove those that are no longer around
@@ -388,6 +450,10 @@ public class DepotBean extends Thread {
   public void run() {
     this.refreshSuiteCaching();
     this.startQueries();
+    if ( this.eventReloadPeriod > 0 ) {
+      this.subscriber = new DepotSubscriber( this, this.eventReloadPeriod );
+      this.subscriber.start();
+    }
     long sleepTime = this.cacheReloadPeriod * Constants.MILLIS_TO_SECOND;
 
     try {
@@ -403,6 +469,16 @@ public class DepotBean extends Thread {
     }
   }
 
+  /**
+   * Return the number of cached query refreshes waiting for a free refresh
+   * thread.
+   *
+   * @return  The number of queued refreshes.
+   */
+  public int getRefreshQueueLength() {
+    return this.getScheduler().getQueueLength();
+  }
+
   /**
    * Save the query store configuration to disk.
    *
@@ -444,6 +520,15 @@ public class DepotBean extends Thread {
     if((prop = beanConfig.getProperty("reloadAt")) != null) {
       cacheReloadAt = prop;
     }
+    if((prop = beanConfig.getProperty("eventReload")) != null) {
+      eventReloadPeriod = Integer.parseInt(prop);
+    }
+    if((prop = beanConfig.getProperty("refreshThreads")) != null) {
+      refreshThreads = Integer.parseInt(prop);
+    }
+    if((prop = beanConfig.getProperty("refreshTimeout")) != null) {
+      refreshTimeout = Integer.parseInt(prop);
+    }
 
     // errors to mark neutrally
     if((prop = beanConfig.getProperty("ignoreErrors")) != null) {
@@ -492,21 +577,8 @@ public class DepotBean extends Thread {
   public void startQueries()  {
     logger.debug( "Starting queries" );
     for( DepotQuery q : cachedQueries.values() ) {
-      if ( q.getPeriod() > 0 && q.scheduledExecutionTime() <= 0 ) {
-        logger.debug( "Adding query " + q + " to timer");
-        if ( q.getReloadAt() == null || q.getReloadAt().equals("*") ||
-             q.getReloadAt().equals("*:*") || q.getReloadAt().equals("*:*:*") ){
-          periodTimer.schedule
-            (q, q.getNextRefresh(), q.getPeriod() * Constants.MILLIS_TO_SECOND);
-        } else {
-          try {
-            periodAtTimer.schedule
-            ( q, CronSchedule.parseWHM(q.getReloadAt()).nextEvent(),
-                q.getPeriod() * Constants.MILLIS_TO_SECOND );
-          } catch (ParseException e) {
-            logger.error( "Unable to start query " + q, e );
-          }
-        }
+      if ( q.getPeriod() > 0 && this.getScheduler().schedule(q) ) {
+        logger.debug( "Adding query " + q + " to scheduler");
       }
     }
   }
@@ -515,8 +587,16 @@ public class DepotBean extends Thread {
    * Stop prefetching query results from the depot.
    */
   public void stopQueries() {
-    periodTimer.cancel();
-    periodAtTimer.cancel();
+    if ( subscriber != null ) {
+      subscriber.shutdown();
+      subscriber = null;
+    }
+    synchronized ( this ) {
+      if ( scheduler != null ) {
+        scheduler.shutdown();
+        scheduler = null;
+      }
+    }
   }
 
   // Private Functions
@@ -677,6 +757,19 @@ public class DepotBean extends Thread {
     }
     return query;
   }
+  /**
+   * Return the scheduler that refreshes the cached queries, creating it on
+   * first use so that the configured number of threads is used.
+   *
+   * @return  The query scheduler.
+   */
+  private synchronized QueryScheduler getScheduler() {
+    if ( scheduler == null ) {
+      scheduler = new QueryScheduler( refreshThreads, refreshTimeout );
+    }
+    return scheduler;
+  }
+
   /**
    * Read in query store file and set temp dir
    *
@@ -9,6 +9,7 @@ import java.io.File;
 import edu.sdsc.inca.util.StringMethods;
 import edu.sdsc.inca.util.ConfigProperties;
 import edu.sdsc.inca.ConsumerTest;
+import org.apache.xmlbeans.XmlObject;
 
 /**
  * Test the class used to store queries.
@@ -112,6 +113,7 @@ public class DepotBeanTest extends TestCase {
     long secondResult = DepotQueryTest.getAndVerifyResult
       ( bean.getQueryResult( "q3") );
     assertTrue( "Results successfully retrieved", secondResult > firstResult );
+    assertNull( "uncached query not parsed", bean.getQueryDocument("q3") );
 
     // verify ability to get cached query (fresh and not)
     bean = new DepotBean();
@@ -128,6 +130,13 @@ public class DepotBeanTest extends TestCase {
     logger.info( "Got cached result 2 "  + r );
     secondResult = DepotQueryTest.getAndVerifyResult( r );
     assertEquals( "Results successfully retrieved", secondResult, firstResult );
+    XmlObject doc = bean.getQueryDocument( "q4" );
+    assertNotNull( "parsed cached result", doc );
+    assertSame( "parsed result reused", doc, bean.getQueryDocument("q4") );
+    assertEquals(
+      "parsed result matches serialized result", secondResult,
+      DepotQueryTest.getAndVerifyResult( doc.xmlText() )
+    );
     Thread.sleep(5000);
     long thirdResult = DepotQueryTest.getAndVerifyResult
       ( bean.getQueryResult( "q4") );
@@ -4,13 +4,25 @@ package edu.sdsc.inca.consumer;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.TimerTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.xml.namespace.QName;
+
 import org.apache.log4j.Logger;
+import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
@@ -18,10 +30,9 @@ import org.apache.xmlbeans.XmlOptions;
 import edu.sdsc.inca.ConfigurationException;
 import edu.sdsc.inca.DepotClient;
 import edu.sdsc.inca.dataModel.queryResults.ObjectDocument;
-import edu.sdsc.inca.dataModel.queryResults.Row;
-import edu.sdsc.inca.dataModel.queryResults.Rows;
 import edu.sdsc.inca.protocol.ProtocolException;
-import edu.sdsc.inca.util.StringMethods;
+import edu.sdsc.inca.queryResult.ReportSummaryDocument;
+import edu.sdsc.inca.util.SeriesColumns;
 
 
 /**
@@ -33,16 +44,40 @@ import edu.sdsc.inca.util.StringMethods;
  * the latest cached data can be returned immediately rather than waiting for
  * the lengthy query to complete.  Furthermore, it will reduce the load on the
  * consumer and depot.  If a cached query has parameters, it is a template
- * for cached queries (e.g., get latest suite results for suite X)
+ * for cached queries (e.g., get latest suite results for suite X).  The
+ * latest result is held in memory (see QueryResult) and replaced as a whole
+ * on each refresh; the file on disk is only a snapshot used to warm start the
+ * cache after a consumer restart.  Latest-instance queries can also be
+ * patched with the summaries of just the series configs that the depot
+ * reported changed (see DepotSubscriber); while the depot's insert events
+ * are being received, those queries are only fully refreshed every
+ * eventRefreshPeriod as a safety net.  Query results are written into the
+ * queryResults envelope as they are read from the depot (see
+ * QueryResultWriter) and only parsed if their document is requested.
  *
  * @author Shava Smallen &lt;ssmallen@sdsc.edu&gt;
  */
 public class DepotQuery extends TimerTask {
   public final static String QUERYDIR = "queries";
+  public final static String LATEST_COMMAND = "queryLatest";
+  private static Map<String,Method> clientMethods =
+    new ConcurrentHashMap<String,Method>();
   private static Properties depotConfig = null;
+  private static volatile int eventRefreshPeriod = 0; // millis
   private static Logger logger = Logger.getLogger( DepotQuery.class );
 
   private File resultFile = null;
+  private volatile QueryResult result = null;
+  private volatile boolean snapshotRead = false;
+  private volatile long lastFullRefresh = 0;
+  private volatile DepotClient activeClient = null;
+  private volatile boolean aborted = false;
+  private volatile long refreshStart = 0;
+  private volatile long lastRefreshTime = 0; // millis
+  private volatile String lastError = null;
+  private Set<Long> patchedDuringRefresh = null;
+  private int failureCount = 0;
+  private int refreshCount = 0;
   private Object[] params = new Object[0];
   private String command = null;
   private String name = null;
@@ -75,9 +110,24 @@ public class DepotQuery extends TimerTask {
   }
 
   /**
-   * Return the handle of the file used to store the query result.
+   * Abort a refresh in progress by closing its connection to the depot.  The
+   * stored result is left as is and the refresh is counted as a failure,
+   * even if the depot had already answered.
+   */
+  public void abort() {
+    this.aborted = true;
+    DepotClient client = this.activeClient;
+    if ( client != null && client.isConnected() ) {
+      logger.info( "Aborting refresh of query " + name );
+      client.close();
+    }
+  }
+
+  /**
+   * Return the handle of the file used to store a snapshot of the query
+   * result.
    *
-   * @return The file handle to the query result.
+   * @return The file handle to the query result snapshot.
    */
   public File getCacheFile() {
     return resultFile;
@@ -129,8 +179,9 @@ public class DepotQuery extends TimerTask {
    * @return Number of milliseconds before next refresh
    */
   public long getNextRefresh() {
-    if ( resultFile.exists() && resultFile.length() > 0 ) {
-      long age = Util.getTimeNow() - resultFile.lastModified();
+    QueryResult stored = this.getStoredQueryResult();
+    if ( stored != null ) {
+      long age = Util.getTimeNow() - stored.getTimestamp();
       if ( age < period ) {
         return period - age;
       }
@@ -147,6 +198,119 @@ public class DepotQuery extends TimerTask {
     return this.params;
   }
 
+  /**
+   * Returns true if the result of this query can be patched using insert
+   * events from the depot.
+   *
+   * @return  True if this is a latest-instance query and false otherwise.
+   */
+  public boolean isEventDriven() {
+    return LATEST_COMMAND.equals( this.command );
+  }
+
+  /**
+   * Update the summaries of the specified series configs in the stored
+   * result, leaving the rest of the result as is.  Configs that are not part
+   * of the stored result are ignored.
+   *
+   * @param configIds  The ids of the series configs that have new instances
+   *
+   * @return  True if the stored result was updated and false otherwise.
+   *
+   * @throws ConfigurationException if unable to read depot config params
+   * @throws IOException if unable to contact depot
+   */
+  public boolean patch( Collection<Long> configIds )
+    throws ConfigurationException, IOException {
+
+    QueryResult current = this.getStoredQueryResult();
+    if ( ! this.isEventDriven() || current == null ) {
+      return false;
+    }
+    Set<Long> changed = new HashSet<Long>( configIds );
+    changed.retainAll( getSummaries(current.getDocument()).keySet() );
+    if ( changed.size() < 1 ) {
+      return false;
+    }
+
+    StringBuffer where = new StringBuffer( "(" + this.params[0] + ")" );
+    where.append( " AND config.id IN (" );
+    String separator = "";
+    for ( Long id : changed ) {
+      where.append( separator );
+      where.append( id );
+      separator = ",";
+    }
+    where.append( ")" );
+    StringWriter out = new StringWriter();
+    if ( ! DepotQuery.fetchResult(null, out, LATEST_COMMAND, where.toString()) ) {
+      return false;
+    }
+    Map<Long,String> fresh;
+    try {
+      fresh = getSummaries( XmlObject.Factory.parse(out.toString()) );
+    } catch ( XmlException e ) {
+      throw new IOException( "Unable to parse summaries: " + e.getMessage() );
+    }
+
+    // a full refresh may replace the result while we're querying; the fresh
+    // summaries are at least as new as it is, so merge them into whichever
+    // result is current
+    while ( true ) {
+      Map<Long,String> summaries = getSummaries( current.getDocument() );
+      summaries.putAll( fresh );
+      StringWriter patched = new StringWriter();
+      QueryResultWriter writer = new QueryResultWriter( patched );
+      for ( String summary : summaries.values() ) {
+        writer.handleResult( summary );
+      }
+      writer.finish();
+      QueryResult update =
+        new QueryResult( patched.toString(), Util.getTimeNow() );
+      synchronized ( this ) {
+        if ( this.result == current ) {
+          this.result = update;
+          if ( this.patchedDuringRefresh != null ) {
+            this.patchedDuringRefresh.addAll( fresh.keySet() );
+          }
+          this.notifyAll();
+          break;
+        }
+        current = this.result;
+      }
+    }
+    logger.debug( "Patched " + fresh.size() + " summaries in query " + name );
+    this.writeSnapshot( this.result );
+    return true;
+  }
+
+  /**
+   * Returns the number of refreshes of this query that failed.
+   *
+   * @return  The number of failed refreshes since the consumer started.
+   */
+  public synchronized int getFailureCount() {
+    return failureCount;
+  }
+
+  /**
+   * Returns the reason the last refresh of this query failed.
+   *
+   * @return  An error message or null if the last refresh succeeded.
+   */
+  public String getLastError() {
+    return lastError;
+  }
+
+  /**
+   * Returns how long the last completed refresh of this query took.
+   *
+   * @return  The duration of the last refresh in milliseconds.
+   */
+  public long getLastRefreshTime() {
+    return lastRefreshTime;
+  }
+
   /**
    * Returns the frequency of queries to the depot.
    *
@@ -156,6 +320,27 @@ public class DepotQuery extends TimerTask {
     return period / 1000;
   }
 
+  /**
+   * Returns the number of refreshes of this query that were attempted.
+   *
+   * @return  The number of refreshes since the consumer started.
+   */
+  public synchronized int getRefreshCount() {
+    return refreshCount;
+  }
+
+  /**
+   * Returns how long the stored result has been held, which is how out of
+   * date it may be.
+   *
+   * @return  The age of the stored result in milliseconds or -1 if nothing
+   * has been cached yet.
+   */
+  public long getStaleness() {
+    QueryResult stored = this.getStoredQueryResult();
+    return stored == null ? -1 : Util.getTimeNow() - stored.getTimestamp();
+  }
+
   /**
    * Returns the name of the query.
    *
@@ -176,24 +361,43 @@ public class DepotQuery extends TimerTask {
   }
 
   /**
-   * Returns the latest result of the query stored in the file cache.  Does
-   * a synchronized read of the data from file and returns it.
+   * Returns true if a refresh of this query is in progress.  The stored
+   * result continues to be served while it is.
+   *
+   * @return  True if the query is being refreshed and false otherwise.
+   */
+  public boolean isRefreshing() {
+    return refreshStart > 0;
+  }
+
+  /**
+   * Returns the latest result of the query stored in the cache.
    *
    * @return  An XML document containing the results of the query or null if
-   * nothing has been cached yet or there are problems reading the file from
-   * disk.
+   * nothing has been cached yet.
    */
-  public synchronized String getStoredResult() {
-    logger.debug( "Fetching results from " + resultFile.getAbsolutePath() );
-    if ( ! resultFile.exists() ) {
-      return null;
-    }
-    try {
-      return StringMethods.fileContents( resultFile.getAbsolutePath() );
-    } catch ( IOException e ) {
-      logger.error( "Problem reading cached query " + name + " from disk", e );
-      return null;
+  public String getStoredResult() {
+    QueryResult stored = this.getStoredQueryResult();
+    return stored == null ? null : stored.getXml();
+  }
+
+  /**
+   * Returns the latest result of the query stored in the cache.  The first
+   * call reads the snapshot on disk if nothing has been fetched from the
+   * depot yet; afterwards the result is returned without locking.  The read
+   * is recorded so that pages rendered from the result can be cached until
+   * it is replaced (see ResponseCacheFilter).
+   *
+   * @return  The latest result of the query or null if nothing has been
+   * cached yet.
+   */
+  public QueryResult getStoredQueryResult() {
+    if ( ! snapshotRead ) {
+      this.readSnapshot();
     }
+    QueryResult stored = result;
+    ResponseCacheFilter.recordResult( this, stored );
+    return stored;
   }
 
   /**
@@ -211,32 +415,6 @@ public class DepotQuery extends TimerTask {
     return this.query();
   }
 
-  private static String wrapResults(String[] queryresult) {
-    ObjectDocument doc = ObjectDocument.Factory.newInstance();
-    ObjectDocument.Object object = doc.addNewObject();
-    if ( queryresult != null && queryresult.length > 0 ) {
-      if ( queryresult.length == 1 ) {
-        try {
-          object.set(XmlObject.Factory.parse( queryresult[0].trim(), (new XmlOptions()).setLoadStripWhitespace() ) );
-        } catch ( XmlException e ) {
-          logger.error( "Unable to parse query result", e );
-        }
-      } else {
-        Rows rows = Rows.Factory.newInstance();
-        for ( int i = 0; i < queryresult.length; i++ ) {
-          Row row = rows.addNewRow();
-          try {
-            row.set( XmlObject.Factory.parse( queryresult[i].trim(), (new XmlOptions()).setLoadStripWhitespace() ) );
-          } catch ( XmlException e ) {
-            logger.error( "Unable to parse query result " + i, e );
-          }
-        }
-        object.set( rows );
-      }
-    }
-    return doc.xmlText();
-  }
-
   /**
    * Send a query to the depot.
    *
@@ -266,56 +444,73 @@ public class DepotQuery extends TimerTask {
   public static String query( String command, Object... params )
     throws ConfigurationException, IOException {
 
-    DepotClient[] clients = getDepotClients();
-    Object results = null;
-    boolean methodFound = false;
+    StringWriter out = new StringWriter();
+    if ( ! DepotQuery.fetchResult(null, out, command, params) ) {
+      return "";
+    }
+    return out.toString();
+  }
+
+  /**
+   * Send a query to the depot and write the results to a stream as they are
+   * received, without holding the whole result in memory.
+   *
+   * @param out  The stream to write the query result to; if the query fails
+   *             part of the result may have been written
+   * @param command The query command to call on the depot client
+   * (e.g., querySuite, queryHql, etc.)
+   *
+   * @param params The parameters for the query command
+   *
+   * @return  True if an XML document complying to the queryResults schema
+   * was written and false if no results were returned.
+   *
+   * @throws ConfigurationException if problem with depot contact info
+   * @throws IOException iif trouble connecting to depot or writing results
+   */
+  public static boolean query( Writer out, String command, Object... params )
+    throws ConfigurationException, IOException {
+
+    return DepotQuery.fetchResult( null, out, command, params );
+  }
+
+  /**
+   * Ask the depot for the instances collected over a period in the compact
+   * column format, which graphs can read without parsing XML.
+   *
+   * @param begin  Instances collected before this time are ignored
+   * @param end  Instances collected after this time are ignored
+   * @param metrics  The names of statistics to extract from the reports
+   * @param expr  An HQL WHERE clause expression selecting the series
+   *
+   * @return  The columns of each selected series config, or an empty array
+   * if the depot could not be queried.
+   *
+   * @throws ConfigurationException if problem with depot contact info
+   */
+  public static SeriesColumns[] queryColumns( Date begin, Date end,
+                                              String[] metrics, String expr )
+    throws ConfigurationException {
 
+    ResponseCacheFilter.recordDirectQuery();
+    DepotClient[] clients = getDepotClients();
     for (int i = 0 ; i < clients.length ; i += 1) {
       logger.info( "Contacting depot " + clients[i].getUri() );
       long startTime = Util.getTimeNow();
       try {
         clients[i].connect();
-        for( Method m : DepotClient.class.getMethods() ) {
-          if ( m.getName().equals( command ) && m.getParameterTypes().length == params.length ) {
-            methodFound = true;
-            try {
-              logger.info( "Fetching results for " + command );
-              results = m.invoke( clients[i], params );
-              Util.printElapsedTime( startTime, command + " query" );
-            } catch (Exception e) {
-              logger.error( "Problem invoking method " + command, e );
-              int j = 0;
-              for( Class<?> c : m.getParameterTypes() ) {
-                if ( params[j].getClass().isAssignableFrom(c) ) {
-                  logger.info( "param " + j + " is of type " + c );
-                } else {
-                  logger.error( "param " + j + " not of type " + c + "; type is " + params[j].getClass() );
-                }
-                j++;
-              }
-            }
-            break;
-          }
-        }
-        break;
+        SeriesColumns[] columns =
+          clients[i].queryPeriodColumns( begin, end, metrics, expr );
+        Util.printElapsedTime( startTime, "queryPeriodColumns query" );
+        return columns;
       } catch (Exception e) {
-        logger.error( "Unable to connect to depot " + clients[i].getUri(), e );
-      }
-      finally {
+        logger.error( "Unable to query depot " + clients[i].getUri(), e );
+      } finally {
         if (clients[i].isConnected())
           clients[i].close();
       }
     }
-
-    if ( ! methodFound ) logger.warn( "Unknown depot command: " + command );
-    if ( results == null ) return "";
-    if ( results.getClass().isArray() ) {
-      return DepotQuery.wrapResults( (String[])results );
-    } else if ( XmlObject.class.isInstance(results) ) {
-      return DepotQuery.wrapResults( new String[] { ((XmlObject)results).xmlText() } );
-    } else {
-      return DepotQuery.wrapResults( new String[] { ((String)results) } );
-    }
+    return new SeriesColumns[0];
   }
 
   /**
@@ -327,6 +522,11 @@ public class DepotQuery extends TimerTask {
    */
   @Override
   public void run() {
+    long sinceRefresh = Util.getTimeNow() - this.lastFullRefresh;
+    if ( this.isEventDriven() && sinceRefresh < eventRefreshPeriod ) {
+      logger.debug( "Query " + name + " kept current by insert events" );
+      return;
+    }
     try {
       refresh();
     } catch ( Exception e ) {
@@ -349,20 +549,65 @@ public class DepotQuery extends TimerTask {
     }
     logger.info( "Refreshing query " + this.getQueryName() );
     long queryStart = Util.getTimeNow();
-    String result = this.getFreshResult();
-    long lastCacheTime = (Util.getTimeNow() - queryStart)/1000;
-    logger.info
-          ( "Query time for " + this + " = " + lastCacheTime + " secs" );
-    if ( result != null && ! result.equals("") ) {
+    synchronized (this) {
+      this.refreshCount++;
+      this.patchedDuringRefresh = new HashSet<Long>();
+    }
+    this.refreshStart = queryStart;
+    this.aborted = false;
+    String error = "no result from depot";
+    try {
+      StringWriter out = new StringWriter();
+      boolean fetched = DepotQuery.fetchResult
+        ( this, out, this.getCommand(), this.getParams() );
+      long lastCacheTime = (Util.getTimeNow() - queryStart)/1000;
+      logger.info
+            ( "Query time for " + this + " = " + lastCacheTime + " secs" );
+      if ( this.aborted ) {
+        logger.warn( "Refresh of query " + name + " aborted; keeping previous" );
+      } else if ( fetched ) {
+        QueryResult fresh = new QueryResult( out.toString(), Util.getTimeNow() );
+        Set<Long> missed;
+        synchronized (this) {
+          this.result = fresh;
+          this.snapshotRead = true;
+          this.lastFullRefresh = fresh.getTimestamp();
+          missed = this.patchedDuringRefresh;
+          this.patchedDuringRefresh = null;
+          this.notifyAll();
+        }
+        this.writeSnapshot( fresh );
+        error = null;
+        logger.info( "New query result for " + name + " stored" );
+        // patches made while the depot was answering are newer than the
+        // fresh result and were replaced by it, so apply them again
+        if ( missed != null && missed.size() > 0 ) {
+          try {
+            this.patch( missed );
+          } catch ( Exception e ) {
+            logger.error( "Unable to reapply patches to query " + name, e );
+          }
+        }
+      } else {
+        logger.warn( "No new result for query " + name + "; keeping previous" );
+      }
+    } catch ( Exception e ) {
+      error = e.toString();
+      throw e;
+    } finally {
+      this.lastRefreshTime = Util.getTimeNow() - queryStart;
+      if ( this.aborted ) {
+        error = "refresh aborted after " + lastRefreshTime / 1000 + " secs";
+      }
+      this.lastError = error;
       synchronized (this) {
-        FileWriter writer = new FileWriter( resultFile );
-        writer.write( result );
-        writer.close();
-        this.notifyAll();
+        this.patchedDuringRefresh = null;
+        if ( error != null ) {
+          this.failureCount++;
+        }
       }
+      this.refreshStart = 0;
     }
-    logger.info( "New query result for " + name + " stored in " +
-                 resultFile.getAbsolutePath() );
   }
 
   /**
@@ -395,6 +640,18 @@ public class DepotQuery extends TimerTask {
     this.params = params;
   }
 
+  /**
+   * Set how often latest-instance queries are fully refreshed while they are
+   * being kept current by insert events from the depot.
+   *
+   * @param seconds  The full refresh period in seconds, or 0 if insert events
+   *                 are not being received and queries should be refreshed at
+   *                 their regular period
+   */
+  public static void setEventRefreshPeriod( int seconds ) {
+    DepotQuery.eventRefreshPeriod = seconds * 1000;
+  }
+
   /**
    * Set the frequency of queries to the depot.
    *
@@ -433,6 +690,194 @@ public class DepotQuery extends TimerTask {
     this.reloadAt = reloadAt;
   }
 
+  /**
+   * Send a query to the depot on behalf of a cached query, which can abort
+   * it (see abort), and stream the results to the provided writer.
+   *
+   * @param owner  The cached query being refreshed or null
+   * @param out  The stream to write the query result to
+   * @param command The query command to call on the depot client
+   * @param params The parameters for the query command
+   *
+   * @return  True if the query result was written and false if no results
+   * were returned
+   *
+   * @throws ConfigurationException if problem with depot contact info
+   * @throws IOException iif trouble connecting to depot or writing results
+   */
+  private static boolean fetchResult
+    ( DepotQuery owner, Writer out, String command, Object... params )
+    throws ConfigurationException, IOException {
+
+    if ( owner == null ) {
+      ResponseCacheFilter.recordDirectQuery();
+    }
+    Method m = DepotQuery.getClientMethod( command, params.length );
+    if ( m == null ) {
+      logger.warn( "Unknown depot command: " + command );
+      return false;
+    }
+    DepotClient[] clients = getDepotClients();
+    QueryResultWriter writer = new QueryResultWriter( out );
+    Object results = null;
+
+    for (int i = 0 ; i < clients.length ; i += 1) {
+      logger.info( "Contacting depot " + clients[i].getUri() );
+      long startTime = Util.getTimeNow();
+      try {
+        clients[i].connect();
+        if ( owner != null ) {
+          owner.activeClient = clients[i];
+          if ( owner.aborted ) return false;
+        }
+        clients[i].setQueryResultHandler( writer );
+        try {
+          logger.info( "Fetching results for " + command );
+          results = m.invoke( clients[i], params );
+          Util.printElapsedTime( startTime, command + " query" );
+        } catch (Exception e) {
+          logger.error( "Problem invoking method " + command, e );
+          int j = 0;
+          for( Class<?> c : m.getParameterTypes() ) {
+            if ( params[j].getClass().isAssignableFrom(c) ) {
+              logger.info( "param " + j + " is of type " + c );
+            } else {
+              logger.error( "param " + j + " not of type " + c + "; type is " + params[j].getClass() );
+            }
+            j++;
+          }
+          return false;
+        }
+        break;
+      } catch (Exception e) {
+        logger.error( "Unable to connect to depot " + clients[i].getUri(), e );
+      }
+      finally {
+        if ( owner != null ) owner.activeClient = null;
+        clients[i].setQueryResultHandler( null );
+        if (clients[i].isConnected())
+          clients[i].close();
+      }
+    }
+
+    // results of methods that don't read QUERYRESULT statements are returned
+    if ( results != null && writer.getCount() == 0 ) {
+      if ( results.getClass().isArray() ) {
+        for ( String result : (String[])results ) {
+          writer.handleResult( result );
+        }
+      } else if ( XmlObject.class.isInstance(results) ) {
+        writer.handleResult( ((XmlObject)results).xmlText() );
+      } else {
+        writer.handleResult( (String)results );
+      }
+    } else if ( results == null && writer.getCount() == 0 ) {
+      return false;
+    }
+    writer.finish();
+    return true;
+  }
+
+  /**
+   * Return the depot client method for a query command.  Methods are looked
+   * up once per command and number of parameters.
+   *
+   * @param command The query command to call on the depot client
+   * @param numParams The number of parameters for the query command
+   *
+   * @return  The depot client method or null if there is none.
+   */
+  private static Method getClientMethod( String command, int numParams ) {
+    String key = command + "/" + numParams;
+    Method method = clientMethods.get( key );
+    if ( method == null ) {
+      for( Method m : DepotClient.class.getMethods() ) {
+        if ( m.getName().equals(command) &&
+             m.getParameterTypes().length == numParams ) {
+          method = m;
+          clientMethods.put( key, method );
+          break;
+        }
+      }
+    }
+    return method;
+  }
+
+  /**
+   * Return the report summaries in a latest-instance query result.
+   *
+   * @param doc  A latest-instance query result
+   *
+   * @return  The serialized summaries keyed by series config id, in document
+   * order.
+   */
+  private static Map<Long,String> getSummaries( XmlObject doc ) {
+    QName summaryName = ReportSummaryDocument.type.getDocumentElementName();
+    XmlObject[] summaries = doc.selectPath
+      ( "declare namespace rs='" + summaryName.getNamespaceURI() + "' " +
+        "$this//rs:reportSummary" );
+    Map<Long,String> result = new LinkedHashMap<Long,String>();
+    for ( XmlObject summary : summaries ) {
+      XmlCursor cursor = summary.newCursor();
+      try {
+        if ( cursor.toChild(new QName("", "seriesConfigId")) ) {
+          result.put
+            ( Long.valueOf(cursor.getTextValue().trim()),
+              summary.xmlText((new XmlOptions()).setSaveOuter()) );
+        }
+      } finally {
+        cursor.dispose();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Read the snapshot of the last query result from disk if nothing has been
+   * fetched from the depot yet.
+   */
+  private synchronized void readSnapshot() {
+    if ( snapshotRead ) return;
+    snapshotRead = true;
+    if ( result != null || ! resultFile.exists() ) return;
+    logger.debug( "Reading snapshot " + resultFile.getAbsolutePath() );
+    try {
+      ObjectDocument doc = ObjectDocument.Factory.parse( resultFile );
+      result = new QueryResult
+        ( doc.xmlText(), doc, resultFile.lastModified() );
+      lastFullRefresh = result.getTimestamp();
+    } catch ( Exception e ) {
+      logger.error( "Problem reading cached query " + name + " from disk", e );
+    }
+  }
+
+  /**
+   * Write a snapshot of the query result to disk so that it can be used after
+   * a restart.  The snapshot is written to a temporary file and renamed so
+   * that a partial snapshot is never read.
+   *
+   * @param snapshot  The query result to write
+   */
+  private void writeSnapshot( QueryResult snapshot ) {
+    synchronized ( resultFile ) {
+      File tmpFile = new File( resultFile.getAbsolutePath() + ".tmp" );
+      try {
+        FileWriter writer = new FileWriter( tmpFile );
+        try {
+          writer.write( snapshot.getXml() );
+        } finally {
+          writer.close();
+        }
+        if ( ! tmpFile.renameTo(resultFile) ) {
+          throw new IOException( "unable to rename " + tmpFile );
+        }
+      } catch ( IOException e ) {
+        logger.error( "Problem writing snapshot of query " + name, e );
+        tmpFile.delete();
+      }
+    }
+  }
+
   /**
    * Return the query information as a string
    *
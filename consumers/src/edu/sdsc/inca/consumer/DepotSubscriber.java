@@ -0,0 +1,179 @@
+package edu.sdsc.inca.consumer;
+
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import edu.sdsc.inca.DepotClient;
+
+
+/**
+ * Keeps the cached latest-instance queries of a DepotBean current using the
+ * depot's insert events (see the depot SUBSCRIBE command) instead of polling.
+ * Events are collected as they arrive and applied in batches every
+ * PATCH_PERIOD, so a burst of inserts for the same suite costs only one small
+ * query to the depot.  Whenever a subscription starts, the cached queries are
+ * fully refreshed, since events may have been missed while there was none.
+ * While subscribed, the regular refresh of those queries is reduced to a
+ * safety net that runs every event refresh period (see
+ * DepotQuery.setEventRefreshPeriod).
+ */
+public class DepotSubscriber extends Thread {
+  final static public int PATCH_PERIOD = 5000;
+  final static public int RETRY_PERIOD = 60000;
+  final static public int TIMEOUT = 120000;
+  private static Logger logger = Logger.getLogger( DepotSubscriber.class );
+
+  // Member variables
+  private DepotBean bean = null;
+  private volatile DepotClient client = null;
+  private int eventRefreshPeriod = 0;
+  private Set<Long> pending = new HashSet<Long>();
+  private Thread patcher = null;
+
+  /**
+   * Create a new subscriber for a depot bean.
+   *
+   * @param bean  The bean whose cached queries should be kept current
+   * @param eventRefreshPeriod  The period in seconds to fully refresh the
+   *                            cached queries while subscribed
+   */
+  public DepotSubscriber( DepotBean bean, int eventRefreshPeriod ) {
+    super( "DepotSubscriber" );
+    this.bean = bean;
+    this.eventRefreshPeriod = eventRefreshPeriod;
+    this.setDaemon( true );
+  }
+
+  /**
+   * Subscribe to the depot's insert events and collect the changed series
+   * configs until interrupted, resubscribing if the subscription is lost.
+   */
+  public void run() {
+    this.patcher = new Thread( "DepotSubscriberPatcher" ) {
+      public void run() {
+        applyPatches();
+      }
+    };
+    this.patcher.setDaemon( true );
+    this.patcher.start();
+    try {
+      while ( ! this.isInterrupted() ) {
+        if ( this.subscribe() ) {
+          this.readEvents();
+        }
+        Thread.sleep( RETRY_PERIOD );
+      }
+    } catch ( InterruptedException e ) {
+      logger.info( "Depot subscriber received interrupt" );
+    } finally {
+      this.patcher.interrupt();
+    }
+  }
+
+  /**
+   * Stop receiving events.  The cached queries go back to their regular
+   * refresh period.
+   */
+  public void shutdown() {
+    this.interrupt();
+    this.close();
+  }
+
+  // Private Functions
+
+  /**
+   * Apply the collected events to the cached queries every PATCH_PERIOD
+   * until interrupted.
+   */
+  private void applyPatches() {
+    try {
+      while ( true ) {
+        Thread.sleep( PATCH_PERIOD );
+        Set<Long> configIds;
+        synchronized ( this.pending ) {
+          if ( this.pending.size() < 1 ) continue;
+          configIds = this.pending;
+          this.pending = new HashSet<Long>();
+        }
+        logger.debug( "Applying events for " + configIds.size() + " configs" );
+        this.bean.patchQueries( configIds );
+      }
+    } catch ( InterruptedException e ) {
+      logger.debug( "Depot subscriber patcher received interrupt" );
+    }
+  }
+
+  /**
+   * Close the connection to the depot, if any.
+   */
+  private void close() {
+    DepotClient current = this.client;
+    this.client = null;
+    if ( current != null && current.isConnected() ) {
+      current.close();
+    }
+  }
+
+  /**
+   * Read events from the depot until the subscription ends.
+   */
+  private void readEvents() {
+    try {
+      long[] event;
+      while ( (event = this.client.readInsertEvent()) != null ) {
+        synchronized ( this.pending ) {
+          this.pending.add( event[0] );
+        }
+      }
+      logger.info( "Depot closed insert event subscription" );
+    } catch ( Exception e ) {
+      if ( ! this.isInterrupted() ) {
+        logger.warn( "Lost insert event subscription: " + e );
+      }
+    } finally {
+      DepotQuery.setEventRefreshPeriod( 0 );
+      this.close();
+    }
+  }
+
+  /**
+   * Subscribe to the insert events of the first depot that accepts the
+   * subscription and then bring the cached queries up to date.
+   *
+   * @return  True if subscribed and false otherwise.
+   */
+  private boolean subscribe() {
+    DepotClient[] clients = DepotQuery.getDepotClients();
+    if ( clients == null ) {
+      return false;
+    }
+    for ( DepotClient depot : clients ) {
+      try {
+        depot.connect();
+        depot.subscribe( TIMEOUT );
+        this.client = depot;
+        logger.info( "Subscribed to insert events from " + depot.getUri() );
+        break;
+      } catch ( Exception e ) {
+        logger.warn
+          ( "Unable to subscribe to insert events from " + depot.getUri() +
+            ": " + e );
+        if ( depot.isConnected() ) {
+          depot.close();
+        }
+      }
+    }
+    if ( this.client == null ) {
+      return false;
+    }
+    DepotQuery.setEventRefreshPeriod( this.eventRefreshPeriod );
+    synchronized ( this.pending ) {
+      this.pending.clear();
+    }
+    this.bean.refreshEventQueries();
+    return true;
+  }
+}
@@ -2,7 +2,7 @@ package edu.sdsc.inca.consumer;
 
 
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Vector;
 
@@ -18,6 +18,7 @@ import de.laures.cewolf.DatasetProduceException;
 import de.laures.cewolf.DatasetProducer;
 import de.laures.cewolf.tooltips.CategoryToolTipGenerator;
 import edu.sdsc.inca.dataModel.queryResults.ObjectDocument;
+import edu.sdsc.inca.util.SeriesColumns;
 
 
 /**
@@ -39,6 +40,17 @@ public class DistributionBean extends DefaultCategoryDataset
   private Vector<String> rowKeys = new Vector<String>();
   private String id = null;
 
+  /**
+   * Create a new distribution dataset whose rows will be added from query
+   * columns
+   *
+   * @param id   A unique id that can be used for a graph id
+   */
+  public DistributionBean( String id ) {
+    logger.info( "Creating distribution dataset bean " + id );
+    this.id = id;
+  }
+
   /**
    * Create a new distribution dataset which will pull data from the provided
    * xml document
@@ -72,31 +84,57 @@ public class DistributionBean extends DefaultCategoryDataset
     XmlObject[] objects = doc.selectPath( NAMESPACE_DECLS + xpath );
     if ( objects == null ) return;
     logger.debug( "Found " + objects.length + " row key values" );
-    HashMap<String,Integer> valueMap = new HashMap<String,Integer>();
+    LinkedHashMap<String,Integer> valueMap =
+      new LinkedHashMap<String,Integer>();
     for( XmlObject object : objects ) {
       String value = statusAsFloat ?
         Float.toString(TimeSeriesBean.getResult(object)) :
         ((XmlAnyTypeImpl)object).getStringValue();
-      if ( ! this.colKeys.contains(value) ) {
-        logger.debug( "Adding col key " + value );
-        this.colKeys.add( value );
-        for( String existingRowKey : this.rowKeys ) {
-          this.addValue
-            ( (java.lang.Number)0, existingRowKey, this.colKeys.size()-1 );
-        }
-      }
-      if ( ! valueMap.containsKey(value) ) {
-        valueMap.put( value, 0 );
-      }
-      valueMap.put( value, (valueMap.get(value)) + 1 );
+      Integer count = valueMap.get( value );
+      valueMap.put( value, count == null ? 1 : count + 1 );
     }
-    for( int i = 0; i < colKeys.size(); i++ ) {
-      int count = 0;
-      if ( valueMap.containsKey(colKeys.get(i)) ) {
-        count = valueMap.get(colKeys.get(i));
+    this.addCounts( rowKey, valueMap );
+  }
+
+  /**
+   * Add a new row to the dataset from query columns, containing either the
+   * distribution of the pass/fail/unknown status of a series or of the error
+   * messages of its failed reports.
+   *
+   * @param columns  The columns returned by a period columns query
+   * @param nickname  The nickname of the series config
+   * @param resource  The resource of the series
+   * @param target  The target of the series or null or empty for any target
+   * @param rowKey  an identifier to use for the row (or series)
+   * @param statusAsFloat if true, the status of each report interpreted as a
+   * float is counted; otherwise the error messages of failed reports are
+   */
+  public void add( SeriesColumns[] columns, String nickname, String resource,
+                   String target, String rowKey, boolean statusAsFloat ) {
+    logger.debug( "Adding row key " + rowKey + " from columns" );
+    rowKeys.add( rowKey );
+    LinkedHashMap<String,Integer> valueMap =
+      new LinkedHashMap<String,Integer>();
+    for ( SeriesColumns c : columns ) {
+      if ( ! c.matches(nickname, resource, target) ) continue;
+      for ( int i = 0; i < c.getSize(); i++ ) {
+        String value;
+        if ( statusAsFloat ) {
+          value = Float.toString( TimeSeriesBean.getResult
+            ( c.getSuccess()[i] ? "Success" : "Failure",
+              c.getExitMessages()[i], c.getComparisonResults()[i]) );
+        } else if ( c.getSuccess()[i] ) {
+          continue;
+        } else if ( c.getExitMessages()[i].equals("") ) {
+          value = c.getComparisonResults()[i];
+        } else {
+          value = c.getExitMessages()[i];
+        }
+        Integer count = valueMap.get( value );
+        valueMap.put( value, count == null ? 1 : count + 1 );
       }
-      this.addValue( (java.lang.Number)count, rowKey, i );
     }
+    this.addCounts( rowKey, valueMap );
   }
 
   /**
@@ -191,4 +229,33 @@ public class DistributionBean extends DefaultCategoryDataset
   public Object produceDataset(Map params) throws DatasetProduceException {
     return this;
   }
+
+  // Private Functions
+
+  /**
+   * Add the counts of a row to the dataset, adding a column for each value
+   * not seen before in the order the values were found.
+   *
+   * @param rowKey  The row (or series) the counts belong to
+   * @param valueMap  The number of times each value was found
+   */
+  private void addCounts( String rowKey, Map<String,Integer> valueMap ) {
+    for( String value : valueMap.keySet() ) {
+      if ( ! this.colKeys.contains(value) ) {
+        logger.debug( "Adding col key " + value );
+        this.colKeys.add( value );
+        for( String existingRowKey : this.rowKeys ) {
+          this.addValue
+            ( (java.lang.Number)0, existingRowKey, this.colKeys.size()-1 );
+        }
+      }
+    }
+    for( int i = 0; i < colKeys.size(); i++ ) {
+      int count = 0;
+      if ( valueMap.containsKey(colKeys.get(i)) ) {
+        count = valueMap.get(colKeys.get(i));
+      }
+      this.addValue( (java.lang.Number)count, rowKey, i );
+    }
+  }
 }
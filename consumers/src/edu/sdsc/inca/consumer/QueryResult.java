@@ -0,0 +1,83 @@
+package edu.sdsc.inca.consumer;
+
+
+import org.apache.log4j.Logger;
+import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
+
+
+/**
+ * An immutable result of a cached depot query.  Holds both the serialized
+ * result and the parsed document so that neither has to be recreated while
+ * the result is being served.  Results streamed from the depot are only
+ * parsed the first time their document is requested.  A DepotQuery replaces
+ * its result as a whole on refresh, so readers never see a partial result.
+ */
+public class QueryResult {
+  private static Logger logger = Logger.getLogger( QueryResult.class );
+  private XmlObject document;
+  private final long timestamp;
+  private final String xml;
+
+  /**
+   * Create a new query result.
+   *
+   * @param xml  The serialized query result
+   * @param document  The parsed query result (XmlBeans documents are
+   *                  synchronized, so may be read by several threads)
+   * @param timestamp  The time the result was fetched from the depot in
+   *                   milliseconds
+   */
+  public QueryResult( String xml, XmlObject document, long timestamp ) {
+    this.xml = xml;
+    this.document = document;
+    this.timestamp = timestamp;
+  }
+
+  /**
+   * Create a new query result that is parsed when its document is first
+   * requested.
+   *
+   * @param xml  The serialized query result
+   * @param timestamp  The time the result was fetched from the depot in
+   *                   milliseconds
+   */
+  public QueryResult( String xml, long timestamp ) {
+    this( xml, null, timestamp );
+  }
+
+  /**
+   * Return the parsed query result.  The document must not be modified.
+   *
+   * @return  An XmlBean containing the query result or null if the result
+   * cannot be parsed.
+   */
+  public synchronized XmlObject getDocument() {
+    if ( document == null && xml != null ) {
+      try {
+        document = XmlObject.Factory.parse( xml );
+      } catch ( XmlException e ) {
+        logger.error( "Unable to parse query result", e );
+      }
+    }
+    return document;
+  }
+
+  /**
+   * Return the time the result was fetched from the depot.
+   *
+   * @return  The time of the query in milliseconds.
+   */
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  /**
+   * Return the serialized query result.
+   *
+   * @return  An XML document containing the query result.
+   */
+  public String getXml() {
+    return xml;
+  }
+}
@@ -0,0 +1,165 @@
+package edu.sdsc.inca.consumer;
+
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.log4j.Logger;
+
+import edu.sdsc.inca.DepotClient;
+import edu.sdsc.inca.dataModel.queryResults.ObjectDocument;
+
+
+/**
+ * Writes the results of a depot query to a stream as they are read from the
+ * depot, wrapped in the same queryResults envelope that an ObjectDocument
+ * would produce: a single result is placed directly in the object element and
+ * multiple results are each placed in a row element.  Each result is copied
+ * with a pull parser, dropping whitespace between elements, so the whole
+ * result is never held in memory or parsed into a DOM.  A result that is not
+ * well-formed XML is logged and left out, leaving an empty row.
+ */
+public class QueryResultWriter implements DepotClient.QueryResultHandler {
+  final static public String NAMESPACE =
+    ObjectDocument.type.getDocumentElementName().getNamespaceURI();
+  final static private String OBJECT_START =
+    "<quer:object xmlns:quer=\"" + NAMESPACE + "\">";
+  final static private String OBJECT_END = "</quer:object>";
+  final static private String OBJECT_EMPTY =
+    "<quer:object xmlns:quer=\"" + NAMESPACE + "\"/>";
+  private static XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+  private static XMLOutputFactory outputFactory =
+    XMLOutputFactory.newInstance();
+  private static Logger logger = Logger.getLogger( QueryResultWriter.class );
+
+  static {
+    inputFactory.setProperty( XMLInputFactory.IS_COALESCING, Boolean.TRUE );
+    inputFactory.setProperty( XMLInputFactory.SUPPORT_DTD, Boolean.FALSE );
+  }
+
+  // Member variables
+  private int count = 0;
+  private String first = null;
+  private Writer out = null;
+
+  /**
+   * Create a new writer for a query result.
+   *
+   * @param out  The stream to write the wrapped query result to
+   */
+  public QueryResultWriter( Writer out ) {
+    this.out = out;
+  }
+
+  /**
+   * Complete the query result.  Must be called after the last result has
+   * been handled.
+   *
+   * @return  The number of results written.
+   *
+   * @throws IOException if unable to write to the stream
+   */
+  public int finish() throws IOException {
+    if ( count == 0 ) {
+      out.write( OBJECT_EMPTY );
+    } else if ( count == 1 ) {
+      out.write( OBJECT_START );
+      out.write( copy(first) );
+      out.write( OBJECT_END );
+      first = null;
+    } else {
+      out.write( OBJECT_END );
+    }
+    out.flush();
+    return count;
+  }
+
+  /**
+   * Return the number of results handled so far.
+   *
+   * @return  The number of results.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Write the next result of the query.  The first result is held back until
+   * it is known whether there are more.
+   *
+   * @param result  The XML text of a depot query result
+   *
+   * @throws IOException if unable to write to the stream
+   */
+  public void handleResult( String result ) throws IOException {
+    count++;
+    if ( count == 1 ) {
+      first = result;
+      return;
+    }
+    if ( count == 2 ) {
+      out.write( OBJECT_START );
+      this.writeRow( first );
+      first = null;
+    }
+    this.writeRow( result );
+  }
+
+  // Private Functions
+
+  /**
+   * Copy a query result without its XML declaration and whitespace between
+   * elements.
+   *
+   * @param result  The XML text of a depot query result
+   *
+   * @return  The copied result or an empty string if it is not well-formed.
+   */
+  private static String copy( String result ) {
+    StringWriter copy = new StringWriter( result.length() );
+    try {
+      XMLEventReader reader =
+        inputFactory.createXMLEventReader( new StringReader(result.trim()) );
+      XMLEventWriter writer = outputFactory.createXMLEventWriter( copy );
+      while ( reader.hasNext() ) {
+        XMLEvent event = reader.nextEvent();
+        if ( event.isStartDocument() || event.isEndDocument() ||
+             event.getEventType() == XMLEvent.DTD ) {
+          continue;
+        }
+        if ( event.isCharacters() && event.asCharacters().isWhiteSpace() ) {
+          continue;
+        }
+        writer.add( event );
+      }
+      writer.flush();
+      reader.close();
+    } catch ( XMLStreamException e ) {
+      logger.error( "Unable to parse query result", e );
+      return "";
+    }
+    return copy.toString();
+  }
+
+  /**
+   * Write a query result wrapped in a row element.
+   *
+   * @param result  The XML text of a depot query result
+   *
+   * @throws IOException if unable to write to the stream
+   */
+  private void writeRow( String result ) throws IOException {
+    out.write( "<row>" );
+    out.write( copy(result) );
+    out.write( "</row>" );
+  }
+}
@@ -0,0 +1,68 @@
+package edu.sdsc.inca.consumer;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+
+import edu.sdsc.inca.dataModel.queryResults.ObjectDocument;
+
+/**
+ * Tests the QueryResultWriter class.
+ */
+public class QueryResultWriterTest extends TestCase {
+  private static String SUMMARY =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+    "<rs:reportSummary xmlns:rs=\"http://inca.sdsc.edu/queryResult/reportSummary_2.0\">\n" +
+    "  <seriesConfigId>5</seriesConfigId>\n" +
+    "  <body a=\"1 &lt; 2\">one &amp; two</body>\n" +
+    "</rs:reportSummary>";
+  private static String SUMMARY_COPY =
+    "<rs:reportSummary xmlns:rs=\"http://inca.sdsc.edu/queryResult/reportSummary_2.0\">" +
+    "<seriesConfigId>5</seriesConfigId>" +
+    "<body a=\"1 &lt; 2\">one &amp; two</body>" +
+    "</rs:reportSummary>";
+
+  /**
+   * Write the results to a string with a QueryResultWriter.
+   *
+   * @param results  The depot query results
+   *
+   * @return  The wrapped query result.
+   */
+  private static String write( String... results ) throws Exception {
+    StringWriter out = new StringWriter();
+    QueryResultWriter writer = new QueryResultWriter( out );
+    for ( String result : results ) {
+      writer.handleResult( result );
+    }
+    assertEquals( "count", results.length, writer.finish() );
+    ObjectDocument.Factory.parse( out.toString() );
+    return out.toString();
+  }
+
+  /**
+   * Verify the envelope matches the one XmlBeans produces for no results,
+   * one result and several results.
+   */
+  public void testEnvelope() throws Exception {
+    String start =
+      "<quer:object xmlns:quer=\"" + QueryResultWriter.NAMESPACE + "\">";
+    assertEquals
+      ( "<quer:object xmlns:quer=\"" + QueryResultWriter.NAMESPACE + "\"/>",
+        write() );
+    assertEquals( start + SUMMARY_COPY + "</quer:object>", write(SUMMARY) );
+    assertEquals
+      ( start + "<row>" + SUMMARY_COPY + "</row><row>" + SUMMARY_COPY +
+        "</row><row>" + SUMMARY_COPY + "</row></quer:object>",
+        write(SUMMARY, SUMMARY, SUMMARY) );
+  }
+
+  /**
+   * Verify that a result that is not XML leaves an empty row.
+   */
+  public void testBadResult() throws Exception {
+    String xml = write( SUMMARY, "not xml" );
+    assertTrue( "empty row",
+                xml.endsWith("</row><row></row></quer:object>") );
+  }
+}
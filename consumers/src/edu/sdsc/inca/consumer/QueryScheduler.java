@@ -0,0 +1,313 @@
+package edu.sdsc.inca.consumer;
+
+
+import java.text.ParseException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import edu.sdsc.inca.util.Constants;
+import edu.sdsc.inca.util.CronSchedule;
+
+
+/**
+ * Schedules the periodic refresh of cached depot queries.  A single timer
+ * thread decides when each query is due and hands the refresh to a fixed
+ * pool of worker threads, so a slow query (e.g., the status history) only
+ * occupies one worker and the other queries keep being refreshed on time.
+ * At most one refresh of a query is queued or running at a time; if a query
+ * is still being refreshed when it is due again, that refresh is skipped.
+ * A refresh that runs longer than the timeout, measured from when a worker
+ * starts it, is aborted and counted as a failed refresh of the query; the
+ * previous result of the query continues to be served until a refresh
+ * succeeds.
+ * The first refresh of each query is delayed by a random jitter of up to a
+ * tenth of its period (at most MAX_JITTER) so that queries with the same
+ * reload time do not all hit the depot at once.
+ */
+public class QueryScheduler {
+  final static public int DEFAULT_THREADS = 4;
+  final static public int DEFAULT_TIMEOUT = 30 * Constants.SECONDS_TO_MINUTE;
+  final static public long MAX_JITTER = 60000;
+  private static Logger logger = Logger.getLogger( QueryScheduler.class );
+
+  // Member variables
+  private ConcurrentMap<DepotQuery,Future<?>> refreshing =
+    new ConcurrentHashMap<DepotQuery,Future<?>>();
+  private Map<DepotQuery,ScheduledFuture<?>> scheduled =
+    new ConcurrentHashMap<DepotQuery,ScheduledFuture<?>>();
+  private Random random = new Random();
+  private long timeout = 0;
+  private ScheduledThreadPoolExecutor timer = null;
+  private ThreadPoolExecutor workers = null;
+
+  /**
+   * Create a new scheduler.
+   *
+   * @param threads  The number of queries that may be refreshed concurrently
+   * @param timeout  The maximum time in seconds a refresh may take
+   */
+  public QueryScheduler( int threads, int timeout ) {
+    this.timeout = timeout * Constants.MILLIS_TO_SECOND;
+    this.timer = new ScheduledThreadPoolExecutor
+      ( 1, new NamedThreadFactory("DepotBeanScheduler") );
+    this.timer.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+    this.timer.setRemoveOnCancelPolicy( true );
+    this.workers = new ThreadPoolExecutor
+      ( threads, threads, 0, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(),
+        new NamedThreadFactory("DepotBeanRefresh") );
+  }
+
+  /**
+   * Stop refreshing the specified query.  A refresh already in progress is
+   * allowed to finish.
+   *
+   * @param query  The query to stop refreshing
+   */
+  public void cancel( DepotQuery query ) {
+    ScheduledFuture<?> future = this.scheduled.remove( query );
+    if ( future != null ) {
+      future.cancel( false );
+    }
+  }
+
+  /**
+   * Return the number of query refreshes waiting for a worker thread.
+   *
+   * @return  The number of queued refreshes.
+   */
+  public int getQueueLength() {
+    return this.workers.getQueue().size();
+  }
+
+  /**
+   * Returns true if the specified query is queued or being refreshed.
+   *
+   * @param query  A cached query
+   *
+   * @return  True if a refresh of the query is pending and false otherwise.
+   */
+  public boolean isRefreshing( DepotQuery query ) {
+    return this.refreshing.containsKey( query );
+  }
+
+  /**
+   * Returns true if the specified query is scheduled for periodic refresh.
+   *
+   * @param query  A cached query
+   *
+   * @return  True if the query is scheduled and false otherwise.
+   */
+  public boolean isScheduled( DepotQuery query ) {
+    return this.scheduled.containsKey( query );
+  }
+
+  /**
+   * Refresh a query now, outside of its schedule, on a worker thread.  The
+   * refresh is subject to the timeout and is skipped if a refresh of the
+   * query is already pending, like a scheduled one.  Returns immediately.
+   *
+   * @param query  The query to refresh
+   */
+  public void refresh( final DepotQuery query ) {
+    this.submit( query, new Runnable() {
+      public void run() {
+        try {
+          query.refresh();
+        } catch ( Exception e ) {
+          logger.error( "Unable to refresh query " + query.getQueryName(), e );
+        }
+      }
+    });
+  }
+
+  /**
+   * Schedule the periodic refresh of a cached query.  Queries with a reload
+   * time are first refreshed at the next reload time; other queries are
+   * first refreshed when their stored result expires.
+   *
+   * @param query  The query to refresh periodically
+   *
+   * @return  True if the query was scheduled and false if it is already
+   * scheduled or its reload time is invalid.
+   */
+  public synchronized boolean schedule( final DepotQuery query ) {
+    if ( query.getPeriod() < 1 || this.isScheduled(query) ) {
+      return false;
+    }
+    long period = query.getPeriod() * Constants.MILLIS_TO_SECOND;
+    long delay;
+    String reloadAt = query.getReloadAt();
+    if ( reloadAt == null || reloadAt.equals("*") || reloadAt.equals("*:*") ||
+         reloadAt.equals("*:*:*") ) {
+      delay = query.getNextRefresh();
+    } else {
+      try {
+        delay = CronSchedule.parseWHM(reloadAt).nextEvent().getTime() -
+                Util.getTimeNow();
+      } catch ( ParseException e ) {
+        logger.error( "Unable to schedule query " + query, e );
+        return false;
+      }
+    }
+    delay = Math.max( 0, delay ) + this.getJitter( period );
+    logger.debug( "Scheduling query " + query + " in " + delay + " millis" );
+    this.scheduled.put( query, this.timer.scheduleAtFixedRate( new Runnable() {
+      public void run() {
+        submit( query, query );
+      }
+    }, delay, period, TimeUnit.MILLISECONDS) );
+    return true;
+  }
+
+  /**
+   * Stop refreshing all queries and abort any refreshes in progress.
+   */
+  public void shutdown() {
+    this.timer.shutdownNow();
+    this.workers.shutdownNow();
+    for ( DepotQuery query : this.refreshing.keySet() ) {
+      query.abort();
+    }
+    this.scheduled.clear();
+  }
+
+  // Private Functions
+
+  /**
+   * Return a random delay to spread the refreshes of queries with the same
+   * period or reload time.
+   *
+   * @param period  The refresh period of the query in milliseconds
+   *
+   * @return  A delay in milliseconds.
+   */
+  private long getJitter( long period ) {
+    long range = Math.min( MAX_JITTER, period / 10 );
+    if ( range < 1 ) {
+      return 0;
+    }
+    synchronized ( this.random ) {
+      return (long)(this.random.nextDouble() * range);
+    }
+  }
+
+  /**
+   * Arrange for a refresh that has just been started by a worker thread to
+   * be aborted if it is still running after the timeout.
+   *
+   * @param query  The query being refreshed
+   * @param future  The refresh that was started
+   *
+   * @return  The pending abort, which should be cancelled when the refresh
+   * completes, or null if there is no timeout.
+   */
+  private ScheduledFuture<?> scheduleAbort( final DepotQuery query,
+                                            final Future<?> future ) {
+    if ( this.timeout <= 0 ) {
+      return null;
+    }
+    try {
+      return this.timer.schedule( new Runnable() {
+        public void run() {
+          abortIfPending( query, future );
+        }
+      }, this.timeout, TimeUnit.MILLISECONDS );
+    } catch ( RejectedExecutionException e ) {
+      return null; // shutting down
+    }
+  }
+
+  /**
+   * Hand the refresh of a query to a worker thread, unless a refresh of the
+   * query is already pending.  The refresh is aborted if it runs longer than
+   * the timeout once a worker starts it, so time spent waiting for a worker
+   * does not count against it.  Must not throw, since it runs in the timer
+   * thread.
+   *
+   * @param query  The query to refresh
+   * @param task  The task that refreshes the query
+   */
+  private void submit( final DepotQuery query, Runnable task ) {
+    if ( this.isRefreshing(query) ) {
+      logger.warn
+        ( "Skipping refresh of query " + query.getQueryName() +
+          "; previous refresh still pending" );
+      return;
+    }
+    final FutureTask<Object> future = new FutureTask<Object>( task, null ) {
+      public void run() {
+        ScheduledFuture<?> abort = scheduleAbort( query, this );
+        try {
+          super.run();
+        } finally {
+          if ( abort != null ) {
+            abort.cancel( false );
+          }
+        }
+      }
+      protected void done() {
+        refreshing.remove( query, this );
+      }
+    };
+    this.refreshing.put( query, future );
+    try {
+      this.workers.execute( future );
+    } catch ( RejectedExecutionException e ) {
+      logger.debug( "Not refreshing query " + query + " after shutdown" );
+      this.refreshing.remove( query, future );
+    }
+  }
+
+  /**
+   * Abort the refresh of a query that has not completed within the timeout.
+   * The query counts the aborted refresh as a failure.  The refresh is only
+   * forgotten when it has exited (see submit), so another refresh of the
+   * query cannot start while the aborted one is still winding down.
+   *
+   * @param query  The query whose refresh was started a timeout ago
+   * @param future  The refresh that was started
+   */
+  private void abortIfPending( DepotQuery query, Future<?> future ) {
+    if ( this.refreshing.get(query) != future ) {
+      return;
+    }
+    logger.error
+      ( "Refresh of query " + query.getQueryName() + " exceeded " +
+        this.timeout / Constants.MILLIS_TO_SECOND + " secs; aborting" );
+    query.abort();
+  }
+
+  /**
+   * Names the scheduler threads and makes them daemons so they do not keep
+   * the consumer running.
+   */
+  private static class NamedThreadFactory implements ThreadFactory {
+    private AtomicInteger count = new AtomicInteger( 0 );
+    private String prefix = null;
+
+    public NamedThreadFactory( String prefix ) {
+      this.prefix = prefix;
+    }
+
+    public Thread newThread( Runnable r ) {
+      Thread thread = new Thread( r, prefix + "-" + count.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    }
+  }
+}
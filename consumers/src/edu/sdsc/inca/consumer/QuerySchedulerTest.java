@@ -0,0 +1,192 @@
+package edu.sdsc.inca.consumer;
+
+import junit.framework.TestCase;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the QueryScheduler class.
+ */
+public class QuerySchedulerTest extends TestCase {
+  private static Logger logger = Logger.getLogger( QuerySchedulerTest.class );
+
+  /**
+   * A cached query that counts its refreshes instead of querying a depot.
+   * A refresh counts down the refreshed latch and then waits for the release
+   * latch or until it is aborted.
+   */
+  private static class CountingQuery extends DepotQuery {
+    AtomicInteger aborts = new AtomicInteger( 0 );
+    AtomicInteger refreshes = new AtomicInteger( 0 );
+    CountDownLatch aborted = new CountDownLatch( 1 );
+    CountDownLatch refreshed = null;
+    CountDownLatch release = new CountDownLatch( 0 );
+    volatile boolean interruptOnAbort = true;
+    volatile Thread worker = null;
+
+    public CountingQuery( String name, int expectedRefreshes ) {
+      super( 1, "*", "var", name, "queryGuids" );
+      this.refreshed = new CountDownLatch( expectedRefreshes );
+    }
+
+    public void abort() {
+      aborts.incrementAndGet();
+      aborted.countDown();
+      Thread thread = worker;
+      if ( thread != null && interruptOnAbort ) {
+        thread.interrupt();
+      }
+    }
+
+    public void run() {
+      refresh();
+    }
+
+    public void refresh() {
+      worker = Thread.currentThread();
+      refreshes.incrementAndGet();
+      refreshed.countDown();
+      try {
+        release.await();
+      } catch ( InterruptedException e ) {
+        logger.debug( "Refresh of " + getQueryName() + " interrupted" );
+      } finally {
+        worker = null;
+      }
+    }
+  }
+
+  /**
+   * Verify that a slow query does not delay the refresh of other queries and
+   * is not refreshed again while its previous refresh is pending.
+   */
+  public void testConcurrentRefresh() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler( 2, 0 );
+    CountingQuery slow = new CountingQuery( "slowQuery", 1 );
+    slow.release = new CountDownLatch( 1 );
+    CountingQuery fast = new CountingQuery( "fastQuery", 3 );
+    try {
+      assertTrue( "slow query scheduled", scheduler.schedule(slow) );
+      assertTrue( "fast query scheduled", scheduler.schedule(fast) );
+      assertFalse( "query scheduled once", scheduler.schedule(fast) );
+      assertTrue( "slow query started", slow.refreshed.await(10, TimeUnit.SECONDS) );
+      assertTrue
+        ( "fast query refreshed", fast.refreshed.await(10, TimeUnit.SECONDS) );
+      assertEquals( "slow query refreshed once", 1, slow.refreshes.get() );
+      assertTrue( "slow query pending", scheduler.isRefreshing(slow) );
+      scheduler.cancel( fast );
+      assertFalse( "fast query cancelled", scheduler.isScheduled(fast) );
+    } finally {
+      slow.release.countDown();
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Verify that a refresh requested outside the schedule returns right away,
+   * is skipped while the query is still being refreshed and is subject to
+   * the timeout.
+   */
+  public void testRefresh() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler( 1, 1 );
+    CountingQuery query = new CountingQuery( "eventQuery", 1 );
+    query.release = new CountDownLatch( 1 );
+    try {
+      long start = System.currentTimeMillis();
+      scheduler.refresh( query );
+      assertTrue
+        ( "refresh did not wait", System.currentTimeMillis() - start < 1000 );
+      assertTrue
+        ( "query refreshed", query.refreshed.await(10, TimeUnit.SECONDS) );
+      scheduler.refresh( query );
+      assertTrue
+        ( "refresh aborted", query.aborted.await(10, TimeUnit.SECONDS) );
+      assertEquals( "refresh not repeated", 1, query.refreshes.get() );
+      assertFalse( "query not scheduled", scheduler.isScheduled(query) );
+    } finally {
+      query.release.countDown();
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Verify that a refresh that exceeds the timeout is aborted and the query
+   * refreshed again afterwards.
+   */
+  public void testTimeout() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler( 1, 1 );
+    CountingQuery slow = new CountingQuery( "timeoutQuery", 2 );
+    slow.release = new CountDownLatch( 1 );
+    try {
+      scheduler.schedule( slow );
+      assertTrue( "refresh aborted", slow.aborted.await(10, TimeUnit.SECONDS) );
+      assertTrue
+        ( "refreshed after abort", slow.refreshed.await(10, TimeUnit.SECONDS) );
+    } finally {
+      slow.release.countDown();
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Verify that an aborted refresh stays pending until it exits, so the
+   * query is not refreshed again alongside it.
+   */
+  public void testAbortedRefreshPending() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler( 2, 1 );
+    CountingQuery slow = new CountingQuery( "stuckQuery", 2 );
+    slow.release = new CountDownLatch( 1 );
+    slow.interruptOnAbort = false;
+    try {
+      scheduler.schedule( slow );
+      assertTrue( "refresh aborted", slow.aborted.await(10, TimeUnit.SECONDS) );
+      // the query is due every second; wait for a couple of periods
+      Thread.sleep( 2500 );
+      assertTrue( "aborted refresh still pending", scheduler.isRefreshing(slow) );
+      assertEquals( "not refreshed alongside", 1, slow.refreshes.get() );
+      slow.release.countDown();
+      assertTrue
+        ( "refreshed after exit", slow.refreshed.await(10, TimeUnit.SECONDS) );
+    } finally {
+      slow.release.countDown();
+      scheduler.shutdown();
+    }
+  }
+
+  /**
+   * Verify that the timeout of a refresh starts when a worker starts it, not
+   * while it waits behind another refresh.
+   */
+  public void testTimeoutStartsWhenRun() throws Exception {
+    QueryScheduler scheduler = new QueryScheduler( 1, 1 );
+    CountingQuery blocker = new CountingQuery( "blockingQuery", 1 );
+    blocker.release = new CountDownLatch( 1 );
+    CountingQuery queued = new CountingQuery( "queuedQuery", 1 );
+    queued.release = new CountDownLatch( 1 );
+    try {
+      scheduler.schedule( blocker );
+      assertTrue
+        ( "blocker started", blocker.refreshed.await(10, TimeUnit.SECONDS) );
+      scheduler.cancel( blocker );
+      scheduler.schedule( queued );
+      // wait for the blocker to be aborted, well past the time the queued
+      // query was submitted
+      assertTrue
+        ( "blocker aborted", blocker.aborted.await(10, TimeUnit.SECONDS) );
+      assertTrue
+        ( "queued query started", queued.refreshed.await(10, TimeUnit.SECONDS) );
+      assertFalse
+        ( "queued query not aborted on start",
+          queued.aborted.await(500, TimeUnit.MILLISECONDS) );
+      assertTrue
+        ( "queued query aborted later", queued.aborted.await(10, TimeUnit.SECONDS) );
+    } finally {
+      blocker.release.countDown();
+      queued.release.countDown();
+      scheduler.shutdown();
+    }
+  }
+}
@@ -0,0 +1,490 @@
+package edu.sdsc.inca.consumer;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import org.apache.log4j.Logger;
+
+import edu.sdsc.inca.util.Constants;
+
+
+/**
+ * Caches the rendered responses of pages that are generated from cached
+ * depot queries (e.g., rest.jsp and status.jsp) so that clients polling the
+ * same URL do not rerun the parse-and-transform pipeline each time.
+ * Responses are keyed by URL and stored along with a gzip compressed copy
+ * that is sent to clients that accept it.  Each response gets a strong ETag
+ * and a Last-Modified time, so a client that already has the response gets a
+ * 304 (Not Modified) for If-None-Match or If-Modified-Since requests.
+ *
+ * While a response is rendered, the filter records which cached depot query
+ * results it read (see recordResult).  The response stays valid until one of
+ * those queries has a new result, i.e., until DepotQuery.refresh or patch
+ * swaps in a new result, or until the agent configuration changes (see
+ * invalidate).  A response that also queried the depot directly (e.g., a
+ * REST history request) is only served for maxAge seconds.  Only successful
+ * GET responses are stored.
+ *
+ * Init params: maxAge (default 120 secs), maxEntries (default 256) and
+ * maxSize (default 32 MB).
+ */
+public class ResponseCacheFilter implements Filter {
+  final static public int DEFAULT_MAX_AGE = 2 * Constants.SECONDS_TO_MINUTE;
+  final static public int DEFAULT_MAX_ENTRIES = 256;
+  final static public long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+  private static ThreadLocal<Dependencies> rendering =
+    new ThreadLocal<Dependencies>();
+  private static AtomicLong version = new AtomicLong( 0 );
+  private static Logger logger = Logger.getLogger( ResponseCacheFilter.class );
+
+  // Member variables
+  private LinkedHashMap<String,CachedResponse> cache =
+    new LinkedHashMap<String,CachedResponse>( 16, 0.75f, true );
+  private long cacheSize = 0;
+  private long maxAge = DEFAULT_MAX_AGE * Constants.MILLIS_TO_SECOND;
+  private int maxEntries = DEFAULT_MAX_ENTRIES;
+  private long maxSize = DEFAULT_MAX_SIZE;
+
+  /**
+   * Discard all cached responses, e.g., because the agent configuration has
+   * changed.  Responses being rendered at the time are not stored.
+   */
+  public static void invalidate() {
+    version.incrementAndGet();
+  }
+
+  /**
+   * Note that the response being rendered by the current thread, if any,
+   * queried the depot directly and so may change at any time.
+   */
+  public static void recordDirectQuery() {
+    Dependencies render = rendering.get();
+    if ( render != null ) {
+      render.direct = true;
+    }
+  }
+
+  /**
+   * Note that the response being rendered by the current thread, if any,
+   * read the result of a cached depot query, so it remains valid only as long
+   * as that result is current.
+   *
+   * @param query  The cached depot query
+   * @param result  The result that was read, possibly null
+   */
+  public static void recordResult( DepotQuery query, QueryResult result ) {
+    Dependencies render = rendering.get();
+    if ( render != null && ! render.results.containsKey(query) ) {
+      render.results.put( query, result );
+    }
+  }
+
+  public void init( FilterConfig config ) throws ServletException {
+    String prop;
+    try {
+      if ( (prop = config.getInitParameter("maxAge")) != null ) {
+        maxAge = Long.parseLong( prop ) * Constants.MILLIS_TO_SECOND;
+      }
+      if ( (prop = config.getInitParameter("maxEntries")) != null ) {
+        maxEntries = Integer.parseInt( prop );
+      }
+      if ( (prop = config.getInitParameter("maxSize")) != null ) {
+        maxSize = Long.parseLong( prop );
+      }
+    } catch ( NumberFormatException e ) {
+      throw new ServletException( "Bad response cache parameter", e );
+    }
+  }
+
+  public void destroy() {
+    synchronized ( cache ) {
+      cache.clear();
+      cacheSize = 0;
+    }
+  }
+
+  /**
+   * Serve the request from the cache if possible and otherwise render the
+   * response, store it and serve it.
+   */
+  public void doFilter
+    ( ServletRequest req, ServletResponse res, FilterChain chain )
+    throws IOException, ServletException {
+
+    if ( ! (req instanceof HttpServletRequest) ||
+         ! "GET".equals(((HttpServletRequest)req).getMethod()) ) {
+      chain.doFilter( req, res );
+      return;
+    }
+    HttpServletRequest request = (HttpServletRequest)req;
+    HttpServletResponse response = (HttpServletResponse)res;
+    String key = request.getRequestURI();
+    if ( request.getQueryString() != null ) {
+      key += "?" + request.getQueryString();
+    }
+
+    CachedResponse cached = this.get( key );
+    if ( cached != null ) {
+      logger.debug( "Serving cached response for " + key );
+      this.serve( request, response, cached );
+      return;
+    }
+
+    Dependencies render = new Dependencies( version.get() );
+    CapturingResponse capture = new CapturingResponse( response );
+    rendering.set( render );
+    try {
+      chain.doFilter( request, capture );
+    } finally {
+      rendering.remove();
+    }
+    byte[] body = capture.getBody();
+    if ( response.isCommitted() ) {
+      return;
+    } else if ( ! capture.isCacheable() ) {
+      if ( body.length > 0 ) response.getOutputStream().write( body );
+      return;
+    }
+    cached = new CachedResponse( body, response.getContentType(), render );
+    if ( this.isValid(cached) ) {
+      this.put( key, cached );
+    }
+    this.serve( request, response, cached );
+  }
+
+  // Private Functions
+
+  /**
+   * Return the cached response for a URL if it is still valid.
+   *
+   * @param key  The URL of the request
+   *
+   * @return  The cached response or null if there is none.
+   */
+  private CachedResponse get( String key ) {
+    synchronized ( cache ) {
+      CachedResponse cached = cache.get( key );
+      if ( cached != null && ! this.isValid(cached) ) {
+        cache.remove( key );
+        cacheSize -= cached.size();
+        return null;
+      }
+      return cached;
+    }
+  }
+
+  /**
+   * Returns true if the data a response was rendered from has not changed.
+   *
+   * @param cached  A cached response
+   *
+   * @return  True if the response can be served and false otherwise.
+   */
+  private boolean isValid( CachedResponse cached ) {
+    Dependencies render = cached.dependencies;
+    if ( render.version != version.get() ) {
+      return false;
+    }
+    if ( render.direct && Util.getTimeNow() - cached.created >= maxAge ) {
+      return false;
+    }
+    for ( Map.Entry<DepotQuery,QueryResult> read : render.results.entrySet() ) {
+      if ( read.getKey().getStoredQueryResult() != read.getValue() ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Store a response, evicting the least recently used responses if the
+   * cache is full.
+   *
+   * @param key  The URL of the request
+   * @param cached  The response to store
+   */
+  private void put( String key, CachedResponse cached ) {
+    if ( cached.size() > maxSize / 4 ) {
+      return;
+    }
+    synchronized ( cache ) {
+      CachedResponse previous = cache.put( key, cached );
+      if ( previous != null ) cacheSize -= previous.size();
+      cacheSize += cached.size();
+      Iterator<Map.Entry<String,CachedResponse>> it =
+        cache.entrySet().iterator();
+      while ( (cache.size() > maxEntries || cacheSize > maxSize) &&
+              it.hasNext() ) {
+        cacheSize -= it.next().getValue().size();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Send a cached response to the client, or a 304 if the client already
+   * has it.
+   *
+   * @param request  The client request
+   * @param response  The response to the client
+   * @param cached  The cached response
+   *
+   * @throws IOException if unable to write the response
+   */
+  private void serve
+    ( HttpServletRequest request, HttpServletResponse response,
+      CachedResponse cached ) throws IOException {
+
+    String encodings = request.getHeader( "Accept-Encoding" );
+    boolean gzip = cached.gzipped != null && encodings != null &&
+                   encodings.toLowerCase().contains( "gzip" );
+    String etag = gzip ? cached.gzipEtag : cached.etag;
+    response.setHeader( "ETag", etag );
+    response.setDateHeader( "Last-Modified", cached.lastModified );
+    response.setHeader( "Vary", "Accept-Encoding" );
+    response.setHeader( "Cache-Control", "no-cache" );
+
+    String ifNoneMatch = request.getHeader( "If-None-Match" );
+    boolean notModified;
+    if ( ifNoneMatch != null ) {
+      notModified = ifNoneMatch.trim().equals( "*" ) ||
+                    ifNoneMatch.contains( etag );
+    } else {
+      long ifModifiedSince = -1;
+      try {
+        ifModifiedSince = request.getDateHeader( "If-Modified-Since" );
+      } catch ( IllegalArgumentException e ) {
+        logger.debug( "Ignoring bad If-Modified-Since header" );
+      }
+      notModified = ifModifiedSince >= cached.lastModified;
+    }
+    if ( notModified ) {
+      response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+      return;
+    }
+
+    byte[] body = gzip ? cached.gzipped : cached.body;
+    if ( cached.contentType != null ) {
+      response.setContentType( cached.contentType );
+    }
+    if ( gzip ) {
+      response.setHeader( "Content-Encoding", "gzip" );
+    }
+    response.setContentLength( body.length );
+    response.getOutputStream().write( body );
+  }
+
+  /**
+   * The data a response was rendered from.
+   */
+  private static class Dependencies {
+    boolean direct = false;
+    final Map<DepotQuery,QueryResult> results =
+      new IdentityHashMap<DepotQuery,QueryResult>();
+    final long version;
+
+    Dependencies( long version ) {
+      this.version = version;
+    }
+  }
+
+  /**
+   * A rendered response along with its compressed copy and validators.
+   */
+  private static class CachedResponse {
+    final byte[] body;
+    final String contentType;
+    final long created;
+    final Dependencies dependencies;
+    final String etag;
+    final byte[] gzipped;
+    final String gzipEtag;
+    final long lastModified;
+
+    CachedResponse( byte[] body, String contentType, Dependencies dependencies )
+      throws IOException {
+
+      this.body = body;
+      this.contentType = contentType;
+      this.dependencies = dependencies;
+      this.created = Util.getTimeNow();
+      // HTTP dates have a resolution of seconds
+      this.lastModified = created - created % Constants.MILLIS_TO_SECOND;
+      String hash = digest( body );
+      this.etag = "\"" + hash + "\"";
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream gzip = new GZIPOutputStream( compressed );
+      gzip.write( body );
+      gzip.close();
+      if ( compressed.size() < body.length ) {
+        this.gzipped = compressed.toByteArray();
+        this.gzipEtag = "\"" + hash + "-gzip\"";
+      } else {
+        this.gzipped = null;
+        this.gzipEtag = null;
+      }
+    }
+
+    long size() {
+      return body.length + (gzipped == null ? 0 : gzipped.length);
+    }
+
+    private static String digest( byte[] body ) {
+      try {
+        MessageDigest md = MessageDigest.getInstance( "SHA-256" );
+        StringBuffer hex = new StringBuffer();
+        for ( byte b : md.digest(body) ) {
+          hex.append( String.format("%02x", b) );
+        }
+        return hex.substring( 0, 32 );
+      } catch ( NoSuchAlgorithmException e ) {
+        throw new IllegalStateException( "SHA-256 not supported", e );
+      }
+    }
+  }
+
+  /**
+   * Captures the body of a response so it can be stored, and notes anything
+   * that makes the response unsuitable for caching.  Headers and the status
+   * are passed through to the client response.
+   */
+  private static class CapturingResponse extends HttpServletResponseWrapper {
+    private ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private boolean cacheable = true;
+    private ServletOutputStream stream = null;
+    private PrintWriter writer = null;
+
+    CapturingResponse( HttpServletResponse response ) {
+      super( response );
+    }
+
+    byte[] getBody() {
+      if ( writer != null ) writer.flush();
+      return body.toByteArray();
+    }
+
+    boolean isCacheable() {
+      return cacheable;
+    }
+
+    public void addCookie( Cookie cookie ) {
+      cacheable = false;
+      super.addCookie( cookie );
+    }
+
+    public void flushBuffer() throws IOException {
+      if ( writer != null ) writer.flush();
+    }
+
+    public ServletOutputStream getOutputStream() {
+      if ( stream == null ) {
+        stream = new ServletOutputStream() {
+          public void write( int b ) {
+            body.write( b );
+          }
+          public void write( byte[] b, int off, int len ) {
+            body.write( b, off, len );
+          }
+          public boolean isReady() {
+            return true;
+          }
+          public void setWriteListener( WriteListener listener ) {
+            // the body is captured in memory, so writing is always possible
+            try {
+              listener.onWritePossible();
+            } catch ( IOException e ) {
+              listener.onError( e );
+            }
+          }
+        };
+      }
+      return stream;
+    }
+
+    public PrintWriter getWriter() throws UnsupportedEncodingException {
+      if ( writer == null ) {
+        writer = new PrintWriter( new OutputStreamWriter
+          ( this.getOutputStream(), this.getCharacterEncoding() ) );
+      }
+      return writer;
+    }
+
+    public boolean isCommitted() {
+      return false;
+    }
+
+    public void reset() {
+      super.reset();
+      this.resetBuffer();
+    }
+
+    public void resetBuffer() {
+      if ( writer != null ) writer.flush();
+      body.reset();
+    }
+
+    public void sendError( int sc ) throws IOException {
+      cacheable = false;
+      super.sendError( sc );
+    }
+
+    public void sendError( int sc, String msg ) throws IOException {
+      cacheable = false;
+      super.sendError( sc, msg );
+    }
+
+    public void sendRedirect( String location ) throws IOException {
+      cacheable = false;
+      super.sendRedirect( location );
+    }
+
+    public void setContentLength( int len ) {
+      // the length is set when the response is sent
+    }
+
+    public void setContentLengthLong( long len ) {
+      // the length is set when the response is sent
+    }
+
+    public void setHeader( String name, String value ) {
+      if ( name.equalsIgnoreCase("Content-Length") ) return;
+      if ( ! name.equalsIgnoreCase("Content-Type") ) cacheable = false;
+      super.setHeader( name, value );
+    }
+
+    public void addHeader( String name, String value ) {
+      cacheable = false;
+      super.addHeader( name, value );
+    }
+
+    public void setStatus( int sc ) {
+      if ( sc != SC_OK ) cacheable = false;
+      super.setStatus( sc );
+    }
+  }
+}
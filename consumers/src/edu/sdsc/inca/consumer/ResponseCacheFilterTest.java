@@ -0,0 +1,203 @@
+package edu.sdsc.inca.consumer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tests the ResponseCacheFilter class.
+ */
+public class ResponseCacheFilterTest extends TestCase {
+
+  /**
+   * A cached query whose result is set by the test.
+   */
+  private static class TestQuery extends DepotQuery {
+    QueryResult current = new QueryResult( "<a/>", 0 );
+
+    TestQuery() {
+      super( 60, "*", "var", "responseCacheQuery", "queryGuids" );
+    }
+
+    public QueryResult getStoredQueryResult() {
+      ResponseCacheFilter.recordResult( this, current );
+      return current;
+    }
+  }
+
+  /**
+   * A page that reads the result of a cached query and counts how often it
+   * is rendered.
+   */
+  private static class Page implements FilterChain {
+    TestQuery query = new TestQuery();
+    int renders = 0;
+
+    public void doFilter( ServletRequest req, ServletResponse res )
+      throws IOException {
+      renders++;
+      query.getStoredQueryResult();
+      res.setContentType( "text/plain" );
+      StringBuffer text = new StringBuffer();
+      for ( int i = 0; i < 100; i++ ) {
+        text.append( "render " );
+      }
+      res.getWriter().print( text );
+    }
+  }
+
+  /**
+   * Records what is sent to the client.
+   */
+  private static class Client implements InvocationHandler {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    Map<String,String> headers = new HashMap<String,String>();
+    int status = 200;
+
+    HttpServletResponse response() {
+      return (HttpServletResponse)Proxy.newProxyInstance
+        ( getClass().getClassLoader(),
+          new Class<?>[] { HttpServletResponse.class }, this );
+    }
+
+    public Object invoke( Object proxy, Method m, Object[] args ) {
+      String name = m.getName();
+      if ( name.equals("setHeader") || name.equals("setDateHeader") ) {
+        headers.put( (String)args[0], String.valueOf(args[1]) );
+      } else if ( name.equals("setStatus") ) {
+        status = (Integer)args[0];
+      } else if ( name.equals("getOutputStream") ) {
+        return new ServletOutputStream() {
+          public void write( int b ) {
+            body.write( b );
+          }
+          public boolean isReady() {
+            return true;
+          }
+          public void setWriteListener( WriteListener listener ) {
+          }
+        };
+      } else if ( name.equals("getCharacterEncoding") ) {
+        return "ISO-8859-1";
+      } else if ( m.getReturnType() == boolean.class ) {
+        return false;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Create a GET request for the specified URL.
+   *
+   * @param headers  Request header names and values
+   */
+  private static HttpServletRequest request( final String... headers ) {
+    return (HttpServletRequest)Proxy.newProxyInstance
+      ( ResponseCacheFilterTest.class.getClassLoader(),
+        new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+      public Object invoke( Object proxy, Method m, Object[] args ) {
+        String name = m.getName();
+        if ( name.equals("getMethod") ) return "GET";
+        if ( name.equals("getRequestURI") ) return "/inca/CSV/rest/suite";
+        if ( name.equals("getDateHeader") ) return -1L;
+        if ( name.equals("getHeader") ) {
+          for ( int i = 0; i < headers.length; i += 2 ) {
+            if ( headers[i].equals(args[0]) ) return headers[i + 1];
+          }
+        }
+        return null;
+      }
+    } );
+  }
+
+  /**
+   * Verify that a page written from a write listener is captured.
+   */
+  public void testWriteListener() throws Exception {
+    ResponseCacheFilter filter = new ResponseCacheFilter();
+    final TestQuery query = new TestQuery();
+    FilterChain page = new FilterChain() {
+      public void doFilter( ServletRequest req, final ServletResponse res )
+        throws IOException {
+        query.getStoredQueryResult();
+        res.setContentType( "text/plain" );
+        final ServletOutputStream out = res.getOutputStream();
+        out.setWriteListener( new WriteListener() {
+          public void onWritePossible() throws IOException {
+            out.print( "async" );
+          }
+          public void onError( Throwable t ) {
+            fail( "write error " + t );
+          }
+        } );
+      }
+    };
+    Client client = new Client();
+    filter.doFilter( request(), client.response(), page );
+    assertEquals( "body", "async", client.body.toString() );
+  }
+
+  /**
+   * Verify responses are served from the cache until the query result they
+   * were rendered from is replaced, and that validators and compression work.
+   */
+  public void testCache() throws Exception {
+    ResponseCacheFilter filter = new ResponseCacheFilter();
+    Page page = new Page();
+
+    Client first = new Client();
+    filter.doFilter( request(), first.response(), page );
+    assertEquals( "rendered", 1, page.renders );
+    assertTrue( "body", first.body.toString().startsWith("render") );
+    String etag = first.headers.get( "ETag" );
+    assertNotNull( "etag", etag );
+
+    Client second = new Client();
+    filter.doFilter( request(), second.response(), page );
+    assertEquals( "served from cache", 1, page.renders );
+    assertEquals( "same body", first.body.toString(), second.body.toString() );
+
+    Client conditional = new Client();
+    filter.doFilter
+      ( request("If-None-Match", etag), conditional.response(), page );
+    assertEquals( "not modified", 304, conditional.status );
+    assertEquals( "no body", 0, conditional.body.size() );
+
+    Client gzip = new Client();
+    filter.doFilter
+      ( request("Accept-Encoding", "gzip, deflate"), gzip.response(), page );
+    assertEquals( "gzip", "gzip", gzip.headers.get("Content-Encoding") );
+    assertFalse( "gzip etag", etag.equals(gzip.headers.get("ETag")) );
+    GZIPInputStream in = new GZIPInputStream
+      ( new ByteArrayInputStream(gzip.body.toByteArray()) );
+    ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+    for ( int b; (b = in.read()) >= 0; ) unzipped.write( b );
+    assertEquals( "unzipped", first.body.toString(), unzipped.toString() );
+
+    page.query.current = new QueryResult( "<b/>", 1 );
+    Client third = new Client();
+    filter.doFilter( request(), third.response(), page );
+    assertEquals( "rendered after new result", 2, page.renders );
+
+    ResponseCacheFilter.invalidate();
+    Client fourth = new Client();
+    filter.doFilter( request(), fourth.response(), page );
+    assertEquals( "rendered after invalidate", 3, page.renders );
+  }
+}
@@ -1,8 +1,10 @@
 package edu.sdsc.inca.consumer;
 
 
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Map;
+import java.util.TimeZone;
 import java.util.Vector;
 import java.util.regex.Pattern;
 
@@ -12,6 +14,7 @@ import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
 import org.apache.xmlbeans.impl.values.XmlObjectBase;
+import org.jfree.data.general.SeriesException;
 import org.jfree.data.time.Minute;
 import org.jfree.data.time.TimeSeries;
 import org.jfree.data.time.TimeSeriesCollection;
@@ -22,6 +25,7 @@ import de.laures.cewolf.DatasetProducer;
 import de.laures.cewolf.links.XYItemLinkGenerator;
 import de.laures.cewolf.tooltips.XYToolTipGenerator;
 import edu.sdsc.inca.dataModel.queryResults.ObjectDocument;
+import edu.sdsc.inca.util.SeriesColumns;
 
 
 /**
@@ -42,13 +46,97 @@ public class TimeSeriesBean extends TimeSeriesCollection
     "declare namespace q='http://inca.sdsc.edu/dataModel/queryResults_2.0';";
 
 
+  /**
+   * The tooltips and links of a series added from query columns, which are
+   * only built when they are requested.
+   */
+  private static class ColumnLabels {
+    private int[] column = new int[16];
+    private Vector<SeriesColumns> columns = null;
+    private String metric = null;
+    private int[] row = new int[16];
+    private int size = 0;
+
+    /**
+     * Create the labels for a series.
+     *
+     * @param columns  The columns the series values are read from
+     * @param metric  The graphed metric or null if the status is graphed
+     */
+    public ColumnLabels( Vector<SeriesColumns> columns, String metric ) {
+      this.columns = columns;
+      this.metric = metric;
+    }
+
+    /**
+     * Record the instance of the next data point in the series.
+     *
+     * @param c  The index of the columns containing the instance
+     * @param r  The index of the instance in the columns
+     */
+    public void add( int c, int r ) {
+      if ( size == column.length ) {
+        column = Arrays.copyOf( column, size * 2 );
+        row = Arrays.copyOf( row, size * 2 );
+      }
+      column[size] = c;
+      row[size] = r;
+      size++;
+    }
+
+    /**
+     * Return the link to the instance of a data point.
+     *
+     * @param index  The index of the data point in the series
+     *
+     * @return  A url for the instance.
+     */
+    public String getLink( int index ) {
+      SeriesColumns c = columns.get( column[index] );
+      XmlCalendar collected =
+        new XmlCalendar( new Date(c.getCollected()[row[index]]) );
+      return "instance.jsp?nickname=" + c.getNickname() + "&resource=" +
+             c.getResource() + "&target=" + c.getTarget() + "&collected=" +
+             collected;
+    }
+
+    /**
+     * Return the tooltip of a data point: the error of a failed instance or
+     * the metric value, and the collection time.
+     *
+     * @param index  The index of the data point in the series
+     *
+     * @return  The tooltip text.
+     */
+    public String getToolTip( int index ) {
+      SeriesColumns c = columns.get( column[index] );
+      int r = row[index];
+      String tooltip = "";
+      if ( metric != null ) {
+        float[] values = c.getMetricValues( metric );
+        String value = values == null || Float.isNaN(values[r]) ?
+          "" : Float.toString( values[r] );
+        tooltip = Util.formatStringAsTooltip( metric + "=" + value ) + " @ ";
+      } else if ( ! c.getSuccess()[r] ) {
+        String message = c.getExitMessages()[r];
+        if ( message.equals("") ) {
+          message = c.getComparisonResults()[r];
+        }
+        tooltip = Util.formatStringAsTooltip( message ) + " @ ";
+      }
+      return tooltip + "(" + new Date(c.getCollected()[r]).toString() + ") ";
+    }
+  }
+
   private static Logger logger = Logger.getLogger(TimeSeriesBean.class);
+  private Vector<ColumnLabels> columnLabels = new Vector<ColumnLabels>();
   private float failedValue = -1;
   private String id = null;
   private boolean hasFailedValue = false;
   private Vector<Vector<String>> links = new Vector<Vector<String>>();
   private Vector<Vector<String>> tooltips = new Vector<Vector<String>>();
   static String ignorePattern = null;
+  private static Pattern ignoreRegex = null;
 
 
   /**
@@ -143,7 +231,7 @@ public class TimeSeriesBean extends TimeSeriesCollection
 
       try {
         Date date = new XmlCalendar( timestampObject.getStringValue() ).getTime();
-        series.add( new Minute(date), value );
+        series.add( new Minute(date), value, false );
         String tooltip = "";
         if ( tooltipObject != null ) {
           tooltip = Util.formatStringAsTooltip(tooltipObject.getStringValue()) +
@@ -157,12 +245,88 @@ public class TimeSeriesBean extends TimeSeriesCollection
         logger.warn( "Unable to add instance " + e );
       }
     }
+    series.fireSeriesChanged();
     links.add( seriesLinks );
     tooltips.add( seriesTooltips );
+    columnLabels.add( null );
     this.addSeries(series);
     Util.printElapsedTime( startTime, "time series " + this.id );
   }
 
+  /**
+   * Add a new series to the time series collection from the columns returned
+   * by a period columns query.  Values are read straight from the column
+   * arrays without parsing XML, and tooltips and links are only built when
+   * they are requested.
+   *
+   * @param columns  The columns returned by the query
+   * @param nickname  The nickname of the series config to graph
+   * @param resource  The resource of the series to graph
+   * @param target  The target of the series to graph or null or empty for
+   *                any target
+   * @param metric  The name of the metric to graph or null to graph the
+   *                pass/fail status of the reports
+   * @param label  The name to use in the legend for the time series.
+   */
+  public void addSeries( SeriesColumns[] columns, String nickname,
+                         String resource, String target, String metric,
+                         String label ) {
+
+    logger.debug( "Generating column data for time series " + this.id );
+    Vector<SeriesColumns> selected = new Vector<SeriesColumns>();
+    for ( SeriesColumns c : columns ) {
+      if ( c.matches(nickname, resource, target) ) {
+        selected.add( c );
+      }
+    }
+    TimeSeries series = new TimeSeries( label, Minute.class );
+    long startTime = Util.getTimeNow();
+    ColumnLabels labels = new ColumnLabels( selected, metric );
+    TimeZone zone = TimeZone.getDefault();
+    int[] next = new int[selected.size()];
+    while ( true ) {
+      // merge the instances of the selected configs by collection time
+      int c = -1;
+      for ( int i = 0; i < selected.size(); i++ ) {
+        if ( next[i] < selected.get(i).getSize() &&
+             (c < 0 || selected.get(i).getCollected()[next[i]] <
+                       selected.get(c).getCollected()[next[c]]) ) {
+          c = i;
+        }
+      }
+      if ( c < 0 ) break;
+      SeriesColumns col = selected.get( c );
+      int row = next[c]++;
+      float value;
+      if ( metric == null ) {
+        value = getResult( col.getSuccess()[row] ? "Success" : "Failure",
+                           col.getExitMessages()[row],
+                           col.getComparisonResults()[row] );
+      } else {
+        float[] values = col.getMetricValues( metric );
+        value = values == null ? Float.NaN : values[row];
+        if ( Float.isNaN(value) ) {
+          if ( ! hasFailedValue ) continue;
+          value = this.failedValue;
+        }
+      }
+      try {
+        Date date = new Date( col.getCollected()[row] );
+        series.add( new Minute(date, zone), value, false );
+        labels.add( c, row );
+      } catch ( SeriesException e ) {
+        logger.warn( "Unable to add instance " + e );
+      }
+    }
+    series.fireSeriesChanged();
+    logger.debug( "Added " + series.getItemCount() + " values for " + this.id );
+    links.add( null );
+    tooltips.add( null );
+    columnLabels.add( labels );
+    this.addSeries( series );
+    Util.printElapsedTime( startTime, "time series " + this.id );
+  }
+
    /**
    * Return the link to use when the cursor is hovered over a data point
    *
@@ -189,6 +353,9 @@ public class TimeSeriesBean extends TimeSeriesCollection
    * @return  A url for the given datapoint
    */
   public String generateLink( int series, int index ) {
+    if ( this.columnLabels.get(series) != null ) {
+      return this.columnLabels.get(series).getLink( index );
+    }
     return this.links.get(series).get(index);
   }
 
@@ -219,6 +386,9 @@ public class TimeSeriesBean extends TimeSeriesCollection
    */
 
   public String generateToolTip( int series, int index ) {
+    if ( columnLabels.get(series) != null ) {
+      return columnLabels.get(series).getToolTip( index );
+    }
     return tooltips.get(series).get(index);
   }
 
@@ -241,16 +411,32 @@ public class TimeSeriesBean extends TimeSeriesCollection
     * err message indicates downtime or Inca error
     */
    public static float getResult(XmlObject gi) {
-     float value;
      XmlObject[] exitValueObj = gi.selectPath( "exit_status" );
      String exit_status = ((XmlObjectBase)exitValueObj[0]).getStringValue();
      exitValueObj = gi.selectPath( "exit_message" );
      String exit_message = ((XmlObjectBase)exitValueObj[0]).getStringValue();
      exitValueObj = gi.selectPath( "comparisonResult" );
      String cr = ((XmlObjectBase)exitValueObj[0]).getStringValue();
+     return getResult( exit_status, exit_message, cr );
+   }
+
+  /**
+   * Determine pass/fail/unknown status for a report from its exit status,
+   * error message and comparison result.
+   *
+   * @param exit_status  Success or Failure
+   * @param exit_message  The error message of the report
+   * @param cr  The comparison result of the report
+   *
+   * @return  1 if completed is true or the comparison result is Success.
+   * -1 if comparison is Failure or completed is false.  Neutral (0) if
+   * err message indicates downtime or Inca error
+   */
+   public static float getResult
+     ( String exit_status, String exit_message, String cr ) {
+     Pattern ignore = ignoreRegex;
      float result;
-     if (ignorePattern != null &&
-         Pattern.compile(ignorePattern, Pattern.MULTILINE).matcher(exit_message).find()) {
+     if (ignore != null && ignore.matcher(exit_message).find()) {
        result = 0;
      }else if (cr != null && Pattern.matches("^Success.*$", cr)){
        result = 1;
@@ -259,8 +445,7 @@ public class TimeSeriesBean extends TimeSeriesCollection
      }else{
        result = exit_status.equals("Success") ? 1 : -1;
      }
-     value = result;
-     return value;
+     return result;
    }
 
   /**
@@ -308,5 +493,7 @@ public class TimeSeriesBean extends TimeSeriesCollection
    */
   public static void setIgnorePattern(String ignoreErrors) {
     ignorePattern = ignoreErrors;
+    ignoreRegex = ignoreErrors == null ?
+      null : Pattern.compile( ignoreErrors, Pattern.MULTILINE );
   }
 }
@@ -3,7 +3,9 @@ package edu.sdsc.inca.consumer;
 import org.apache.log4j.Logger;
 
 import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
 
+import edu.sdsc.inca.util.Metrics;
 import edu.sdsc.inca.util.XmlWrapper;
 
 /**
@@ -54,16 +56,20 @@ public class Util {
   }
 
   /**
-   * Small convenience function for printing out timing information.
+   * Small convenience function for recording timing information.  The time
+   * is added to the consumer timer named after the id, so that it shows up
+   * in the consumer's JMX metrics.
    *
    * @param startTime  The time at which to compute the elapsed time from now.
    *
-   * @param id  A small identifier string that can be used in the debug
-   * statement.
+   * @param id  A small identifier string that names the timer and can be
+   * used in the debug statement.
    */
   public static void printElapsedTime( long startTime, String id ) {
-    float elapsed = getElapsedTime( startTime );
-    logger.info( id + " time = " + (elapsed / 1000) );
+    long elapsed = getElapsedTime( startTime );
+    Metrics.getTimer( "consumer." + id ).record
+      ( elapsed, TimeUnit.MILLISECONDS );
+    logger.debug( id + " time = " + (elapsed / 1000.0) );
   }
 
 }
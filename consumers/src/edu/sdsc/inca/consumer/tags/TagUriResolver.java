@@ -5,8 +5,11 @@ package edu.sdsc.inca.consumer.tags;
 
 
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.jsp.PageContext;
 import javax.xml.transform.Source;
@@ -26,15 +29,29 @@ class TagUriResolver implements URIResolver {
 
 
   private static final Pattern m_urlPattern = Pattern.compile("^[a-zA-Z0-9+.-]+:[a-zA-Z0-9+.-/]*");
-  private final PageContext m_context;
+  private final ServletContext m_context;
+  private final String m_pagePath;
+  private final List<String> m_targets = new ArrayList<String>();
 
 
   // constructors
 
 
   public TagUriResolver(PageContext context)
+  {
+    this(context.getServletContext(), ((HttpServletRequest)context.getRequest()).getServletPath());
+  }
+
+  /**
+   *
+   * @param context the context of the web application
+   * @param pagePath the servlet path of the page, against which relative
+   * targets are resolved
+   */
+  TagUriResolver(ServletContext context, String pagePath)
   {
     m_context = context;
+    m_pagePath = pagePath;
   }
 
 
@@ -67,17 +84,28 @@ class TagUriResolver implements URIResolver {
     String target = base + href;
 
     if (!target.startsWith("/")) {
-      String pagePath = ((HttpServletRequest)m_context.getRequest()).getServletPath();
-      String basePath = pagePath.substring(0, pagePath.lastIndexOf("/"));
+      String basePath = m_pagePath.substring(0, m_pagePath.lastIndexOf("/"));
 
       target = basePath + "/" + target;
     }
 
-    InputStream inStream = m_context.getServletContext().getResourceAsStream(target);
+    InputStream inStream = m_context.getResourceAsStream(target);
 
     if (inStream == null)
       throw new TransformerException("unable to resolve entity " + target);
 
+    m_targets.add(target);
+
     return new StreamSource(inStream);
   }
+
+  /**
+   * Returns the context paths of the resources this resolver has resolved.
+   *
+   * @return
+   */
+  public List<String> getTargets()
+  {
+    return m_targets;
+  }
 }
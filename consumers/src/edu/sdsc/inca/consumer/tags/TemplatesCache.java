@@ -0,0 +1,373 @@
+/*
+ * TemplatesCache.java
+ */
+package edu.sdsc.inca.consumer.tags;
+
+
+import java.io.File;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.jsp.PageContext;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.TransformerFactoryImpl;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * A process-wide cache of compiled stylesheets.  Pages pass the content of
+ * a stylesheet to the transform tag, so stylesheets are keyed by a digest of
+ * their content along with the directory of the page, since relative
+ * includes are resolved against it.  A change to a stylesheet file produces
+ * a new key; a change to a file it includes is detected by checking the
+ * modification times of the included files, at most once every
+ * CHECK_INTERVAL milliseconds.  The least recently used stylesheets are
+ * discarded once the cache holds MAX_ENTRIES of them.
+ */
+public class TemplatesCache {
+
+  // nested classes
+
+
+  /**
+   * Compile and transform timings for one cached stylesheet.
+   */
+  public static class Statistics {
+
+    private final String m_name;
+    private final long m_compiles;
+    private final long m_compileMillis;
+    private final long m_transforms;
+    private final long m_transformMillis;
+
+
+    // constructors
+
+
+    private Statistics(Entry entry)
+    {
+      m_name = entry.m_name;
+      m_compiles = entry.m_compiles.get();
+      m_compileMillis = entry.m_compileMillis.get();
+      m_transforms = entry.m_transforms.get();
+      m_transformMillis = entry.m_transformMillis.get();
+    }
+
+
+    // public methods
+
+
+    /**
+     * Returns the servlet path of the page that first used the stylesheet,
+     * followed by a prefix of the stylesheet digest.
+     *
+     * @return
+     */
+    public String getName()
+    {
+      return m_name;
+    }
+
+    public long getCompiles()
+    {
+      return m_compiles;
+    }
+
+    public long getCompileMillis()
+    {
+      return m_compileMillis;
+    }
+
+    public long getTransforms()
+    {
+      return m_transforms;
+    }
+
+    public long getTransformMillis()
+    {
+      return m_transformMillis;
+    }
+  }
+
+  /**
+   * A cached stylesheet.  Compiled Templates are thread-safe, so one is
+   * shared by every page that uses the stylesheet.
+   */
+  static class Entry {
+
+    private final String m_name;
+    private final AtomicLong m_compiles = new AtomicLong();
+    private final AtomicLong m_compileMillis = new AtomicLong();
+    private final AtomicLong m_transforms = new AtomicLong();
+    private final AtomicLong m_transformMillis = new AtomicLong();
+    private Templates m_templates;
+    private Map<String, Long> m_includes;
+    private long m_lastCheck;
+
+
+    // constructors
+
+
+    private Entry(String name)
+    {
+      m_name = name;
+    }
+
+
+    // public methods
+
+
+    /**
+     * Returns the compiled stylesheet, compiling it if it has not been
+     * compiled yet or if one of the files it includes has changed.
+     *
+     * @param xslt
+     * @param context
+     * @return
+     * @throws TransformerConfigurationException
+     */
+    public Templates getTemplates(String xslt, PageContext context) throws TransformerConfigurationException
+    {
+      String pagePath = ((HttpServletRequest)context.getRequest()).getServletPath();
+
+      return getTemplates(xslt, context.getServletContext(), pagePath);
+    }
+
+    /**
+     * Returns the compiled stylesheet, resolving its includes against the
+     * given page.
+     *
+     * @param xslt
+     * @param servletContext
+     * @param pagePath
+     * @return
+     * @throws TransformerConfigurationException
+     */
+    synchronized Templates getTemplates(String xslt, ServletContext servletContext, String pagePath) throws TransformerConfigurationException
+    {
+      long now = System.currentTimeMillis();
+
+      if (m_templates != null && now - m_lastCheck >= CHECK_INTERVAL) {
+        m_lastCheck = now;
+
+        for (Map.Entry<String, Long> include : m_includes.entrySet()) {
+          if (getLastModified(servletContext, include.getKey()) != include.getValue()) {
+            m_logger.info("Recompiling stylesheet " + m_name + "; " + include.getKey() + " changed");
+
+            m_templates = null;
+
+            break;
+          }
+        }
+      }
+
+      if (m_templates == null) {
+        TagUriResolver resolver = new TagUriResolver(servletContext, pagePath);
+        long start = System.currentTimeMillis();
+
+        synchronized (m_factory) {
+          m_factory.setURIResolver(resolver);
+
+          try {
+            m_templates = m_factory.newTemplates(new StreamSource(new StringReader(xslt)));
+          }
+          finally {
+            m_factory.setURIResolver(null);
+          }
+        }
+
+        long elapsed = System.currentTimeMillis() - start;
+
+        m_compiles.incrementAndGet();
+        m_compileMillis.addAndGet(elapsed);
+
+        m_includes = new HashMap<String, Long>();
+
+        for (String target : resolver.getTargets())
+          m_includes.put(target, getLastModified(servletContext, target));
+
+        m_lastCheck = now;
+
+        if (m_logger.isDebugEnabled())
+          m_logger.debug("Compiled stylesheet " + m_name + " in " + elapsed + " ms");
+      }
+
+      return m_templates;
+    }
+
+    /**
+     * Records the time taken by a transform using the stylesheet.
+     *
+     * @param millis
+     */
+    public void recordTransform(long millis)
+    {
+      m_transforms.incrementAndGet();
+      m_transformMillis.addAndGet(millis);
+    }
+  }
+
+
+  // data fields
+
+
+  public static final int MAX_ENTRIES = 64;
+  public static final long CHECK_INTERVAL = 5000;
+  private static final Logger m_logger = Logger.getLogger(TemplatesCache.class);
+  private static final TransformerFactory m_factory = new TransformerFactoryImpl();
+  private static final Map<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+    private static final long serialVersionUID = 1L;
+
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest)
+    {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+
+  // constructors
+
+
+  private TemplatesCache()
+  {
+    // only static methods
+  }
+
+
+  // public methods
+
+
+  /**
+   * Returns the cache entry for a stylesheet used by a page, creating it if
+   * the stylesheet has not been seen before.
+   *
+   * @param xslt the content of the stylesheet
+   * @param context the context of the page using the stylesheet
+   * @return
+   */
+  static Entry getEntry(String xslt, PageContext context)
+  {
+    return getEntry(xslt, ((HttpServletRequest)context.getRequest()).getServletPath());
+  }
+
+  /**
+   * Returns the cache entry for a stylesheet used by the page at the given
+   * servlet path.
+   *
+   * @param xslt the content of the stylesheet
+   * @param pagePath the servlet path of the page using the stylesheet
+   * @return
+   */
+  static Entry getEntry(String xslt, String pagePath)
+  {
+    String basePath = pagePath.substring(0, pagePath.lastIndexOf("/") + 1);
+    String digest = getDigest(xslt);
+    String key = basePath + digest;
+
+    synchronized (m_entries) {
+      Entry entry = m_entries.get(key);
+
+      if (entry == null) {
+        entry = new Entry(pagePath + ":" + digest.substring(0, 8));
+
+        m_entries.put(key, entry);
+      }
+
+      return entry;
+    }
+  }
+
+  /**
+   * Returns the compile and transform timings of the cached stylesheets.
+   *
+   * @return
+   */
+  public static List<Statistics> getStatistics()
+  {
+    List<Entry> entries;
+
+    synchronized (m_entries) {
+      entries = new ArrayList<Entry>(m_entries.values());
+    }
+
+    List<Statistics> result = new ArrayList<Statistics>();
+
+    for (Entry entry : entries)
+      result.add(new Statistics(entry));
+
+    return result;
+  }
+
+  /**
+   * Discards all of the cached stylesheets.
+   */
+  public static void clear()
+  {
+    synchronized (m_entries) {
+      m_entries.clear();
+    }
+  }
+
+
+  // private methods
+
+
+  /**
+   *
+   * @param xslt
+   * @return
+   */
+  private static String getDigest(String xslt)
+  {
+    try {
+      StringBuilder hex = new StringBuilder();
+
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(xslt.getBytes("UTF-8")))
+        hex.append(String.format("%02x", b));
+
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException digestErr) {
+      throw new RuntimeException(digestErr);
+    }
+    catch (UnsupportedEncodingException encodeErr) {
+      throw new RuntimeException(encodeErr);
+    }
+  }
+
+  /**
+   * Returns the modification time of a web application resource, or 0 if the
+   * resource is not a file.
+   *
+   * @param context
+   * @param target
+   * @return
+   */
+  private static long getLastModified(ServletContext context, String target)
+  {
+    String path = context.getRealPath(target);
+
+    if (path == null)
+      return 0;
+
+    return (new File(path)).lastModified();
+  }
+}
@@ -0,0 +1,173 @@
+package edu.sdsc.inca.consumer.tags;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.ServletContext;
+import javax.xml.transform.Templates;
+
+import edu.sdsc.inca.util.StringMethods;
+
+/**
+ * Tests the TemplatesCache class.
+ */
+public class TemplatesCacheTest extends TestCase {
+  private static final String INCLUDE = "/xsl/include.xsl";
+
+  private File root = null;
+  private ServletContext context = null;
+
+  /**
+   * Returns a stylesheet that is unique to the specified number.
+   *
+   * @param number  A number to put in the stylesheet
+   *
+   * @return  The content of the stylesheet
+   */
+  private static String createStylesheet( int number ) {
+    return
+      "<xsl:stylesheet version=\"2.0\" " +
+      "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n" +
+      "  <xsl:template match=\"/\">" + number + "</xsl:template>\n" +
+      "</xsl:stylesheet>\n";
+  }
+
+  /**
+   * Write a stylesheet with a named template to the include file.
+   *
+   * @param result  The text the template produces
+   *
+   * @throws Exception if unable to write the file
+   */
+  private void writeInclude( String result ) throws Exception {
+    File file = new File( root, INCLUDE );
+    FileWriter writer = new FileWriter( file );
+    writer.write(
+      "<xsl:stylesheet version=\"2.0\" " +
+      "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n" +
+      "  <xsl:template name=\"included\">" + result + "</xsl:template>\n" +
+      "</xsl:stylesheet>\n"
+    );
+    writer.close();
+  }
+
+  public void setUp() throws Exception {
+    TemplatesCache.clear();
+    root = File.createTempFile( "templates", "" );
+    root.delete();
+    new File( root, "xsl" ).mkdirs();
+    // a servlet context that serves resources from the temp directory
+    context = (ServletContext)Proxy.newProxyInstance(
+      ServletContext.class.getClassLoader(),
+      new Class[] { ServletContext.class },
+      new InvocationHandler() {
+        public Object invoke( Object proxy, Method method, Object[] args )
+          throws Exception {
+          File file = new File( root, (String)args[0] );
+          if ( method.getName().equals("getRealPath") ) {
+            return file.getPath();
+          } else if ( method.getName().equals("getResourceAsStream") ) {
+            return file.exists() ? new FileInputStream( file ) : null;
+          }
+          throw new UnsupportedOperationException( method.getName() );
+        }
+      }
+    );
+  }
+
+  public void tearDown() throws Exception {
+    TemplatesCache.clear();
+    StringMethods.deleteDirectory( root );
+  }
+
+  /**
+   * Verify that pages in the same directory share the entry for a
+   * stylesheet and that other content or directories get their own.
+   */
+  public void testContentKey() throws Exception {
+    String xslt = createStylesheet( 0 );
+    TemplatesCache.Entry entry = TemplatesCache.getEntry( xslt, "/jsp/a.jsp" );
+    assertSame
+      ( "same content reused", entry,
+        TemplatesCache.getEntry(xslt, "/jsp/b.jsp") );
+    assertNotSame
+      ( "other directory", entry,
+        TemplatesCache.getEntry(xslt, "/other/a.jsp") );
+    assertNotSame
+      ( "other content", entry,
+        TemplatesCache.getEntry(createStylesheet(1), "/jsp/a.jsp") );
+
+    Templates templates = entry.getTemplates( xslt, context, "/jsp/a.jsp" );
+    assertNotNull( "compiled", templates );
+    assertSame
+      ( "compiled once", templates,
+        entry.getTemplates(xslt, context, "/jsp/b.jsp") );
+    assertEquals
+      ( "one entry per key", 3, TemplatesCache.getStatistics().size() );
+  }
+
+  /**
+   * Verify that the least recently used stylesheet is discarded once the
+   * cache is full.
+   */
+  public void testEviction() throws Exception {
+    TemplatesCache.Entry[] entries =
+      new TemplatesCache.Entry[TemplatesCache.MAX_ENTRIES];
+    for ( int i = 0; i < entries.length; i++ ) {
+      entries[i] = TemplatesCache.getEntry( createStylesheet(i), "/jsp/a.jsp" );
+    }
+    // use the first stylesheet again so the second is the eldest
+    assertSame
+      ( "first entry cached", entries[0],
+        TemplatesCache.getEntry(createStylesheet(0), "/jsp/a.jsp") );
+    TemplatesCache.getEntry( createStylesheet(entries.length), "/jsp/a.jsp" );
+    assertEquals
+      ( "cache bounded", TemplatesCache.MAX_ENTRIES,
+        TemplatesCache.getStatistics().size() );
+    assertSame
+      ( "recently used entry kept", entries[0],
+        TemplatesCache.getEntry(createStylesheet(0), "/jsp/a.jsp") );
+    assertNotSame
+      ( "least recently used entry discarded", entries[1],
+        TemplatesCache.getEntry(createStylesheet(1), "/jsp/a.jsp") );
+  }
+
+  /**
+   * Verify that a stylesheet is recompiled when a file it includes changes.
+   */
+  public void testIncludeChanged() throws Exception {
+    writeInclude( "before" );
+    String xslt =
+      "<xsl:stylesheet version=\"2.0\" " +
+      "xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n" +
+      "  <xsl:include href=\"" + INCLUDE + "\"/>\n" +
+      "  <xsl:template match=\"/\"><xsl:call-template name=\"included\"/>" +
+      "</xsl:template>\n" +
+      "</xsl:stylesheet>\n";
+    TemplatesCache.Entry entry = TemplatesCache.getEntry( xslt, "/jsp/a.jsp" );
+    Templates templates = entry.getTemplates( xslt, context, "/jsp/a.jsp" );
+    assertSame
+      ( "unchanged include", templates,
+        entry.getTemplates(xslt, context, "/jsp/a.jsp") );
+
+    writeInclude( "after" );
+    File include = new File( root, INCLUDE );
+    include.setLastModified( include.lastModified() + 10000 );
+    assertSame
+      ( "include not checked before interval", templates,
+        entry.getTemplates(xslt, context, "/jsp/a.jsp") );
+    Thread.sleep( TemplatesCache.CHECK_INTERVAL + 100 );
+    assertNotSame
+      ( "recompiled after include changed", templates,
+        entry.getTemplates(xslt, context, "/jsp/a.jsp") );
+    TemplatesCache.Statistics stats = TemplatesCache.getStatistics().get( 0 );
+    assertEquals( "compiled twice", 2, stats.getCompiles() );
+    assertTrue( "named after page", stats.getName().startsWith("/jsp/a.jsp:") );
+  }
+}
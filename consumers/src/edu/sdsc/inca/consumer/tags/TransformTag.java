@@ -13,20 +13,24 @@ import javax.servlet.jsp.JspException;
 import javax.servlet.jsp.JspTagException;
 import javax.servlet.jsp.PageContext;
 import javax.servlet.jsp.tagext.BodyTagSupport;
-//import javax.xml.XMLConstants;
 import javax.xml.transform.Source;
-import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 
-import net.sf.saxon.TransformerFactoryImpl;
+import org.apache.xmlbeans.XmlObject;
+import org.w3c.dom.Node;
 
 
 /**
+ * Transforms a document with a stylesheet.  The compiled stylesheets are
+ * shared across pages and requests (see TemplatesCache).  The document may
+ * be given as a string, or as an already parsed XmlBean or DOM node (e.g., a
+ * cached query result exported by the queryCache tag) so that it is not
+ * parsed again.
  *
  * @author Paul Hoover
  *
@@ -77,6 +81,7 @@ public class TransformTag extends BodyTagSupport {
   private String m_var;
   private int m_scope;
   private Transformer m_transformer;
+  private TemplatesCache.Entry m_templates;
   private TagUriResolver m_resolver;
 
 
@@ -108,16 +113,12 @@ public class TransformTag extends BodyTagSupport {
     if (xslt.isEmpty())
       throw new JspTagException("transform xslt attribute is empty");
 
-    Source source = new StreamSource(new StringReader(xslt));
-    TransformerFactory factory = new TransformerFactoryImpl();
+    m_templates = TemplatesCache.getEntry(xslt, pageContext);
 
     try {
-      //factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-      factory.setURIResolver(m_resolver);
+      m_transformer = m_templates.getTemplates(xslt, pageContext).newTransformer();
 
-      Templates templates = factory.newTemplates(source);
-
-      m_transformer = templates.newTransformer();
+      m_transformer.setURIResolver(m_resolver);
     }
     catch (TransformerConfigurationException configErr) {
       throw new JspException(configErr);
@@ -131,7 +132,11 @@ public class TransformTag extends BodyTagSupport {
   {
     Source source;
 
-    if (m_doc != null) {
+    if (m_doc instanceof XmlObject)
+      source = new DOMSource(((XmlObject)m_doc).getDomNode());
+    else if (m_doc instanceof Node)
+      source = new DOMSource((Node)m_doc);
+    else if (m_doc != null) {
       if (m_doc instanceof String == false)
         throw new JspTagException("transform doc attribute is an unsupported type");
 
@@ -160,6 +165,8 @@ public class TransformTag extends BodyTagSupport {
     else
       throw new JspTagException("no input document provided");
 
+    long start = System.currentTimeMillis();
+
     try {
       if (m_var != null && !m_var.isEmpty()) {
         ByteArrayOutputStream outStream = new ByteArrayOutputStream();
@@ -177,6 +184,8 @@ public class TransformTag extends BodyTagSupport {
       throw new JspException(err);
     }
 
+    m_templates.recordTransform(System.currentTimeMillis() - start);
+
     return EVAL_PAGE;
   }
 
@@ -242,6 +251,7 @@ public class TransformTag extends BodyTagSupport {
     m_var = null;
     m_scope = PageContext.PAGE_SCOPE;
     m_transformer = null;
+    m_templates = null;
     m_resolver = null;
   }
 }
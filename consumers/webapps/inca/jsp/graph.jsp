@@ -49,8 +49,17 @@ graph.jsp?series=testName,resourceName,target[,label][&amp;series=testName,resou
     <c:set var="targetClause" value="${seriesParts[2] == '' ? '' : targetClause}"/>
     (config.nickname='<c:out value="${seriesParts[0]}"/>' AND 
     config.series.resource='<c:out value="${seriesParts[1]}"/>' <c:out value="${targetClause}" escapeXml="false"/> ) OR</c:forEach></c:set>
-<c:set var="xml"><inca:query command="period" params="${fn:substring(query,0,fn:length(query)-3)}"/></c:set>
-<c:if test="${empty xml}">
+<c:set var="query" value="${fn:substring(query,0,fn:length(query)-3)}"/>
+<%-- Graphs are built from columns of values; xml is only fetched when it is
+     printed --%>
+<c:choose><c:when test="${empty param.printXML and empty param.printCSV}">
+  <inca:queryColumns var="columns" params="${query}" metrics="${allmetrics}"/>
+  <c:set var="found" value="${! empty columns}"/>
+</c:when><c:otherwise>
+  <c:set var="xml"><inca:query command="period" params="${query}"/></c:set>
+  <c:set var="found" value="${! empty xml}"/>
+</c:otherwise></c:choose>
+<c:if test="${! found}">
   <jsp:forward page="error.jsp">
     <jsp:param name="msg" value="No data found for series ${fn:join(paramValues.series, ', ')})" />
   </jsp:forward>
@@ -86,14 +95,14 @@ graph.jsp?series=testName,resourceName,target[,label][&amp;series=testName,resou
 <table cellpadding="10">
 <tr><td valign="top">
   <c:choose><c:when test="${allmetrics != ''}">
-    <inca:chartPlotMetric xml="${xml}" series="${paramValues.series}" 
+    <inca:chartPlotMetric columns="${columns}" series="${paramValues.series}" 
                      showlinks="${map}" showmouseovers="${map}" 
                      width="${width}" height="${height}" bgcolor="${bgcolor}" 
                      metric="${allmetrics}"
                      showlegend="${param.legend}" chart="${chart}"
                      legendanchor="${legendAnchor}"/>
   </c:when><c:otherwise>
-    <inca:historyGraph xml="${xml}" series="${paramValues.series}" 
+    <inca:historyGraph columns="${columns}" series="${paramValues.series}" 
                      showlinks="${map}" showmouseovers="${map}" 
                      width="${width}" bgcolor="${bgcolor}" 
                      showlegend="${param.legend}" 
@@ -220,7 +229,7 @@ graph.jsp?series=testName,resourceName,target[,label][&amp;series=testName,resou
 
 </td></tr></table>
   <c:if test="${allmetrics == ''}">
-    <inca:errorGraph xml="${xml}" series="${paramValues.series}" 
+    <inca:errorGraph columns="${columns}" series="${paramValues.series}" 
                  showmouseovers="${map}" height="${height}"
                  width="${width}" bgcolor="${bgcolor}"
                  showlegend="${param.legend}" legendanchor="${legendAnchor}"/>
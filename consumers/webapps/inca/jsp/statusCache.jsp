@@ -1,6 +1,9 @@
+<%@ page import="edu.sdsc.inca.consumer.tags.TemplatesCache" %>
+
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 <%@ taglib prefix="x" uri="http://java.sun.com/jsp/jstl/xml" %>
 <%@ taglib prefix="fn" uri="http://java.sun.com/jsp/jstl/functions" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
 <%@ taglib prefix="inca" tagdir="/WEB-INF/tags/inca" %>
 
 <jsp:useBean id="agentBean" scope="application" 
@@ -35,4 +38,62 @@
   </combo>
 </c:set>
 <inca:printXmlOrHtml xsl="${xslt}" xml="${xml}"/>
+
+<%-- Refresh statistics of the cached queries --%>
+<h2>Cached queries</h2>
+<p>Refreshes waiting for a thread: ${depotBean.refreshQueueLength}</p>
+<table class="sortable">
+  <tr>
+    <th>query</th><th>period (secs)</th><th>result age (secs)</th>
+    <th>last refresh (secs)</th><th>refreshes</th><th>failures</th>
+    <th>status</th>
+  </tr>
+  <c:forEach var="query" items="${depotBean.cachedQueries}">
+  <tr>
+    <td>${fn:escapeXml(query.queryName)}</td>
+    <td>${query.period}</td>
+    <td><c:choose>
+      <c:when test="${query.staleness < 0}">none</c:when>
+      <c:otherwise><fmt:formatNumber value="${query.staleness / 1000}"
+                                     maxFractionDigits="0"/></c:otherwise>
+    </c:choose></td>
+    <td><fmt:formatNumber value="${query.lastRefreshTime / 1000}"
+                          maxFractionDigits="1"/></td>
+    <td>${query.refreshCount}</td>
+    <td>${query.failureCount}</td>
+    <td><c:choose>
+      <c:when test="${query.refreshing}">refreshing</c:when>
+      <c:when test="${not empty query.lastError}">
+        <span class="error">${fn:escapeXml(query.lastError)}</span>
+      </c:when>
+      <c:otherwise>ok</c:otherwise>
+    </c:choose></td>
+  </tr>
+  </c:forEach>
+</table>
+
+<%-- Compile and transform timings of the cached stylesheets --%>
+<% pageContext.setAttribute("stylesheets", TemplatesCache.getStatistics()); %>
+<h2>Compiled stylesheets</h2>
+<table class="sortable">
+  <tr>
+    <th>stylesheet</th><th>compiles</th><th>compile time (secs)</th>
+    <th>transforms</th><th>average transform (secs)</th>
+  </tr>
+  <c:forEach var="stylesheet" items="${stylesheets}">
+  <tr>
+    <td>${fn:escapeXml(stylesheet.name)}</td>
+    <td>${stylesheet.compiles}</td>
+    <td><fmt:formatNumber value="${stylesheet.compileMillis / 1000}"
+                          maxFractionDigits="1"/></td>
+    <td>${stylesheet.transforms}</td>
+    <td><c:choose>
+      <c:when test="${stylesheet.transforms == 0}">none</c:when>
+      <c:otherwise><fmt:formatNumber
+        value="${stylesheet.transformMillis / stylesheet.transforms / 1000}"
+        maxFractionDigits="2"/></c:otherwise>
+    </c:choose></td>
+  </tr>
+  </c:forEach>
+</table>
 <jsp:include page="footer.jsp"/>
@@ -36,9 +36,7 @@ on individual bars to show the percentages broken down further for each
 individual resource or suite.</p>
 
 <%-- get summary data --%>
-<c:set var="xml">
-  <inca:queryCache bean="${depotBean}" name='incaQueryStatus'/>
-</c:set>
+<inca:queryCache bean="${depotBean}" name='incaQueryStatus' var="xml"/>
 
 <%-- compute series pass percentage via a stylesheet --%>
 <c:import var="computeSeriesAverages" url="/xsl/seriesAverages.xsl"/>
@@ -42,9 +42,7 @@ previous 7 days.  The bar label text color is green if the average series pass
 rate is better, red if the average series pass rate is worse, and gray if
 there was no change. </p>
 
-<c:set var="xml">
-  <inca:queryCache bean="${depotBean}" name='incaQueryStatus'/>
-</c:set>
+<inca:queryCache bean="${depotBean}" name='incaQueryStatus' var="xml"/>
 
 <%-- compute series pass percentage via a stylesheet --%>
 <c:import var="computeSeriesAverages" url="/xsl/seriesAverages.xsl"/>
@@ -50,10 +50,8 @@ filterSuite: displays suite info from specific suites
        value="${empty param.lines ? 'multiple' : param.lines}"/>
 
 <%-- get series history from cache --%>
-<c:set var="xml">
-  <inca:queryCache bean="${depotBean}" name='incaQueryStatus'/>
-</c:set>
-<c:if test="${empty xml or xml == 'null'}">
+<inca:queryCache bean="${depotBean}" name='incaQueryStatus' var="xml"/>
+<c:if test="${empty xml}">
   <jsp:forward page="error.jsp">
     <jsp:param name="msg" value="Missing query...wait 30 seconds and reload" />
   </jsp:forward>
@@ -32,9 +32,15 @@ import edu.sdsc.inca.depot.PurgeDatabase;
 import edu.sdsc.inca.depot.ScheduledPurge;
 import edu.sdsc.inca.depot.SyncResponseParser;
 import edu.sdsc.inca.depot.UpdateDBSchema;
+import edu.sdsc.inca.depot.archive.InstanceArchive;
 import edu.sdsc.inca.depot.persistent.ConnectionManager;
+import edu.sdsc.inca.depot.persistent.ConnectionSource;
 import edu.sdsc.inca.depot.persistent.DatabaseTools;
 import edu.sdsc.inca.depot.util.AmqpNotifier;
+import edu.sdsc.inca.depot.util.InsertEvents;
+import edu.sdsc.inca.depot.util.QueryCache;
+import edu.sdsc.inca.depot.util.QueryExecutor;
+import edu.sdsc.inca.depot.util.ReportFilterChain;
 import edu.sdsc.inca.depot.util.ReportNotifier;
 import edu.sdsc.inca.depot.util.ScriptNotifier;
 import edu.sdsc.inca.protocol.MessageHandler;
@@ -74,6 +80,8 @@ public class Depot extends Server {
       (Protocol.QUERY_LATEST_COMMAND, "edu.sdsc.inca.depot.commands.Query");
     MessageHandlerFactory.registerMessageHandler
       (Protocol.QUERY_PERIOD_COMMAND, "edu.sdsc.inca.depot.commands.Query");
+    MessageHandlerFactory.registerMessageHandler
+      (Protocol.QUERY_PERIOD_COLUMNS_COMMAND, "edu.sdsc.inca.depot.commands.Query");
     MessageHandlerFactory.registerMessageHandler
       (Protocol.QUERY_SQL_COMMAND, "edu.sdsc.inca.depot.commands.Query");
     MessageHandlerFactory.registerMessageHandler
@@ -96,6 +104,8 @@ public class Depot extends Server {
     MessageHandlerFactory.registerMessageHandler(Protocol.QUERY_DEPOT_PEERS_COMMAND, "edu.sdsc.inca.depot.commands.Query");
     MessageHandlerFactory.registerMessageHandler(Protocol.QUERY_REPORTERS_COMMAND, "edu.sdsc.inca.depot.commands.Query");
     MessageHandlerFactory.registerMessageHandler(Protocol.QUERY_REPORTERS_DETAIL_COMMAND, "edu.sdsc.inca.depot.commands.Query");
+    MessageHandlerFactory.registerMessageHandler(Protocol.QUERY_CACHE_STATS_COMMAND, "edu.sdsc.inca.depot.commands.Query");
+    MessageHandlerFactory.registerMessageHandler(Protocol.SUBSCRIBE_COMMAND, "edu.sdsc.inca.depot.commands.Subscribe");
   }
 
 
@@ -110,6 +120,9 @@ public class Depot extends Server {
   // Protected class variables
   protected static final Logger logger = Logger.getLogger(Depot.class);
 
+  // Size in MB of the query result cache, if not configured
+  private static final int DEFAULT_QUERY_CACHE_SIZE = 32;
+
   // Command-line options
   protected static final String DEPOT_OPTS =
     ConfigProperties.mergeValidOptions(
@@ -135,6 +148,7 @@ public class Depot extends Server {
   private boolean recover = false;
   private DepotSyncState syncState = DepotSyncState.NOT_SYNCHRONIZING;
   private String[] reportFilters = null;
+  private volatile ReportFilterChain reportFilterChain = null;
   private Date purgeCutoff = null;
   private final List<ReportNotifier> reportNotifiers = new ArrayList<ReportNotifier>();
   private final List<Properties> peerConfigs = new ArrayList<Properties>();
@@ -196,8 +210,10 @@ public class Depot extends Server {
 
       prop = config.getProperty("reportFilter");
 
-      if (prop != null)
+      if (prop != null) {
         reportFilters = prop.split("[\\s,;]+");
+        reportFilterChain = new ReportFilterChain(reportFilters);
+      }
 
       reportNotifiers.add(new ScriptNotifier());
 
@@ -258,6 +274,45 @@ public class Depot extends Server {
         purgeThread = new ScheduledPurge(hour, period, cutoff);
       }
 
+      prop = config.getProperty("archiveDir");
+
+      if (prop != null)
+        InstanceArchive.setArchive(new InstanceArchive(new File(prop)));
+
+      // by default, leave half of the database connections for the worker
+      // threads and the message handlers that don't fan out
+      int queryThreads = 0;
+      ConnectionSource connSource = ConnectionManager.getConnectionSource();
+
+      if (connSource != null)
+        queryThreads = connSource.getMaximumConnections() / 2;
+
+      prop = config.getProperty("queryThreads");
+
+      if (prop != null)
+        queryThreads = Integer.parseInt(prop);
+
+      if (queryThreads > 0) {
+        int requestLimit = Math.max(1, queryThreads / 4);
+
+        prop = config.getProperty("queryRequestThreads");
+
+        if (prop != null)
+          requestLimit = Integer.parseInt(prop);
+
+        QueryExecutor.setExecutor(new QueryExecutor(queryThreads, requestLimit));
+      }
+
+      int cacheSize = DEFAULT_QUERY_CACHE_SIZE;
+
+      prop = config.getProperty("queryCacheSize");
+
+      if (prop != null)
+        cacheSize = Integer.parseInt(prop);
+
+      if (cacheSize > 0)
+        QueryCache.setCache(new QueryCache(cacheSize * 1024L * 1024L));
+
       prop = config.getProperty("expunge");
 
       if (prop != null) {
@@ -446,6 +501,17 @@ public class Depot extends Server {
     return reportFilters;
   }
 
+  /**
+   * Returns the filters named in the configuration, loaded when the
+   * configuration was last set.
+   *
+   * @return the report filter chain, or <code>null</code> if no filters are configured
+   */
+  public ReportFilterChain getReportFilterChain()
+  {
+    return reportFilterChain;
+  }
+
   /**
    *
    * @return
@@ -632,6 +698,11 @@ public class Depot extends Server {
 
     parseSyncData(fileName);
 
+    if (QueryCache.getCache() != null)
+      QueryCache.getCache().invalidateAll();
+
+    InsertEvents.loseAll();
+
     if (!(new File(fileName)).delete())
       logger.warn("Couldn't delete " + fileName);
   }
@@ -709,6 +780,12 @@ public class Depot extends Server {
 
     super.shutdown();
 
+    if (QueryExecutor.getExecutor() != null)
+      QueryExecutor.getExecutor().shutdown();
+
+    if (reportFilterChain != null)
+      reportFilterChain.flush();
+
     if (purgeThread != null && purgeThread.isAlive())
       logger.warn("Shutdown for " + purgeThread.getName() + " failed");
   }
@@ -4,6 +4,7 @@
 package edu.sdsc.inca.depot;
 
 
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -17,7 +18,10 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import edu.sdsc.inca.depot.archive.InstanceArchive;
 import edu.sdsc.inca.depot.persistent.ConnectionManager;
+import edu.sdsc.inca.depot.persistent.InstanceRecord;
+import edu.sdsc.inca.depot.util.QueryCache;
 
 
 /**
@@ -59,6 +63,7 @@ public class PurgeDatabase {
 
 
   private static final int FETCH_SIZE = 100;
+  private static final int MAX_SEGMENT_ROWS = 10000;
   private static final Logger m_logger = Logger.getLogger(PurgeDatabase.class);
 
 
@@ -82,6 +87,7 @@ public class PurgeDatabase {
       int currentSeries = 1;
       int totalInstancesDeleted = 0;
       int totalReportsDeleted = 0;
+      int totalInstancesArchived = 0;
 
       for (SeriesRecord record : names) {
         m_logger.debug("examining Series " + record.seriesId + " (" + currentSeries + " of " + numSeries + ")... ");
@@ -109,9 +115,59 @@ public class PurgeDatabase {
         else
           instanceCutoff = cutoff;
 
-        deleteInstanceLinks(dbConn, record.instanceTableName, record.linkTableName, instanceCutoff);
+        InstanceArchive archive = InstanceArchive.getArchive();
+        InstanceArchive.PendingSegments archived = null;
 
-        int numInstancesDeleted = deleteInstances(dbConn, record.instanceTableName, instanceCutoff);
+        if (archive != null) {
+          archived = archive.begin();
+
+          try {
+            archiveInstances(dbConn, archived, record, instanceCutoff);
+          }
+          catch (IOException ioErr) {
+            archived.abort();
+
+            m_logger.error("unable to archive instances of Series " + record.seriesId + ", skipping purge: " + ioErr.getMessage());
+
+            continue;
+          }
+        }
+
+        // the archived instances are moved into place before they're deleted
+        // from the database, so they're never missing from both, and they
+        // are removed again if the delete is rolled back
+        int numArchived = 0;
+
+        if (archived != null) {
+          numArchived = archived.getNumRecords();
+
+          try {
+            archived.commit();
+          }
+          catch (IOException ioErr) {
+            m_logger.error("unable to add " + numArchived + " archived instances of Series " + record.seriesId + " to the archive, skipping purge: " + ioErr.getMessage());
+
+            continue;
+          }
+        }
+
+        int numInstancesDeleted;
+
+        try {
+          deleteInstanceLinks(dbConn, record.instanceTableName, record.linkTableName, instanceCutoff);
+
+          numInstancesDeleted = deleteInstances(dbConn, record.instanceTableName, instanceCutoff);
+        }
+        catch (SQLException sqlErr) {
+          if (archived != null)
+            archived.abort();
+
+          dbConn.rollback();
+
+          throw sqlErr;
+        }
+
+        totalInstancesArchived += numArchived;
 
         resetLatestIds(dbConn, record.seriesId, record.instanceTableName);
         int numReportsDeleted = deleteOrphanedReports(dbConn, record.seriesId, record.instanceTableName);
@@ -130,6 +186,12 @@ public class PurgeDatabase {
 
       deleteOrphanedRunInfo(dbConn);
 
+      if (totalInstancesArchived > 0)
+        m_logger.info("archived " + totalInstancesArchived + " InstanceInfo records");
+
+      if (QueryCache.getCache() != null)
+        QueryCache.getCache().invalidateAll();
+
       m_logger.info("finished purge, deleted " + totalInstancesDeleted + " InstanceInfo records and " + totalReportsDeleted +  " Reports");
     }
   }
@@ -259,6 +321,80 @@ public class PurgeDatabase {
   }
 
   /**
+   * Copies the instances of a series that were collected before the cutoff,
+   * along with the status of their reports and their comparison results, to
+   * a set of pending archive segments. Instances are written one series config
+   * at a time, in segments of at most <code>MAX_SEGMENT_ROWS</code> rows.
+   *
+   * @param dbConn
+   * @param archived
+   * @param record
+   * @param cutoff
+   * @throws SQLException
+   * @throws IOException
+   */
+  private void archiveInstances(Connection dbConn, InstanceArchive.PendingSegments archived, SeriesRecord record, Date cutoff) throws SQLException, IOException
+  {
+    StringBuilder queryBuilder = new StringBuilder();
+
+    queryBuilder.append("SELECT link.incaseriesconfig_id, ");
+    queryBuilder.append(InstanceRecord.getSelectColumns(true));
+    queryBuilder.append(" FROM ");
+    queryBuilder.append(record.linkTableName);
+    queryBuilder.append(" link INNER JOIN ");
+    queryBuilder.append(record.instanceTableName);
+    queryBuilder.append(
+      " instance ON link.incainstance_id = instance.incaid " +
+        "INNER JOIN incareport report ON instance.incareportid = report.incaid " +
+        "LEFT OUTER JOIN incacomparisonresult comparison ON comparison.incareportid = instance.incareportid " +
+          "AND comparison.incaseriesconfigid = link.incaseriesconfig_id " +
+      "WHERE instance.incacollected < ? " +
+      "ORDER BY link.incaseriesconfig_id, instance.incacollected, instance.incaid, comparison.incaid DESC"
+    );
+
+    try (PreparedStatement selectStmt = dbConn.prepareStatement(queryBuilder.toString())) {
+      selectStmt.setFetchSize(FETCH_SIZE);
+      selectStmt.setTimestamp(1, new Timestamp(cutoff.getTime()));
+
+      ResultSet rows = selectStmt.executeQuery();
+      List<InstanceRecord> records = new ArrayList<InstanceRecord>();
+      long currentConfig = -1;
+      long lastInstance = -1;
+
+      while (rows.next()) {
+        long configId = rows.getLong(1);
+
+        if (configId != currentConfig) {
+          archived.add(currentConfig, records);
+          records.clear();
+
+          currentConfig = configId;
+          lastInstance = -1;
+        }
+
+        // only the latest comparison result of an instance is kept
+        if (rows.getLong(2) == lastInstance)
+          continue;
+
+        InstanceRecord instance = InstanceRecord.read(rows, 2, true);
+
+        records.add(instance);
+
+        lastInstance = instance.instanceId;
+
+        if (records.size() >= MAX_SEGMENT_ROWS) {
+          archived.add(currentConfig, records);
+          records.clear();
+        }
+      }
+
+      archived.add(currentConfig, records);
+    }
+  }
+
+  /**
+   * Deletes the links to the instances that were collected before the cutoff.
+   * The change is committed along with the deletion of the instances.
    *
    * @param dbConn
    * @param instanceTable
@@ -280,11 +416,7 @@ public class PurgeDatabase {
     try (PreparedStatement deleteStmt = dbConn.prepareStatement(queryBuilder.toString())) {
       deleteStmt.setTimestamp(1, new Timestamp(cutoff.getTime()));
 
-      int numDeleted = deleteStmt.executeUpdate();
-
-      dbConn.commit();
-
-      return numDeleted;
+      return deleteStmt.executeUpdate();
     }
   }
 
@@ -0,0 +1,647 @@
+/*
+ * ArchiveSegment.java
+ */
+package edu.sdsc.inca.depot.archive;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import edu.sdsc.inca.depot.persistent.InstanceRecord;
+
+
+/**
+ * Reads and writes a single archive segment: a compressed, columnar,
+ * time-sorted file holding the instances of one series config.
+ * <p/>
+ * A segment starts with an uncompressed header containing the row count, the
+ * range of collection times and a sparse index that records, for each block
+ * of <code>INDEX_INTERVAL</code> rows, the collection time of its first row
+ * and the position of the block in the file. Each block is deflated on its own
+ * and holds one column each for the collection times, instance ids, report
+ * references, memory, cpu and wall clock usage of its rows. Times and ids are
+ * delta encoded as variable length integers. The blocks are followed by a
+ * deflated dictionary of the distinct reports referenced by the segment. A
+ * read only inflates the blocks that overlap the requested interval, and only
+ * decodes the reports that those rows refer to.
+ */
+public class ArchiveSegment {
+
+  // nested classes
+
+
+  /**
+   *
+   */
+  private static class ReportEntry {
+
+    public final long reportId;
+    public final boolean exitStatus;
+    public final String exitMessage;
+    public final String comparison;
+    public final String body;
+
+
+    /**
+     *
+     * @param id
+     * @param status
+     * @param message
+     * @param cmp
+     * @param text
+     */
+    public ReportEntry(long id, boolean status, String message, String cmp, String text)
+    {
+      reportId = id;
+      exitStatus = status;
+      exitMessage = message;
+      comparison = cmp;
+      body = text;
+    }
+  }
+
+
+  // data fields
+
+
+  public static final String FILE_SUFFIX = ".seg";
+  private static final int MAGIC = 0x494e4341;
+  private static final short VERSION = 2;
+  private static final int INDEX_INTERVAL = 128;
+  private static final int BUFFER_SIZE = 8192;
+
+  private final File m_file;
+  private final int m_numRows;
+  private final long m_firstCollected;
+  private final long m_lastCollected;
+  private final long[] m_index;
+  private final long[] m_blockOffsets;
+  private final long m_dictionaryOffset;
+  private final int m_numReports;
+
+
+  // constructors
+
+
+  /**
+   * Opens an existing segment and reads its header.
+   *
+   * @param file the segment file
+   * @throws IOException
+   */
+  public ArchiveSegment(File file) throws IOException
+  {
+    m_file = file;
+
+    try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE))) {
+      if (input.readInt() != MAGIC)
+        throw new IOException(file.getPath() + " is not an archive segment");
+
+      short version = input.readShort();
+
+      if (version != VERSION)
+        throw new IOException("Unsupported version " + version + " for archive segment " + file.getPath());
+
+      m_numRows = input.readInt();
+      m_firstCollected = input.readLong();
+      m_lastCollected = input.readLong();
+      m_index = new long[input.readInt()];
+      m_blockOffsets = new long[m_index.length];
+
+      for (int i = 0 ; i < m_index.length ; i += 1) {
+        m_index[i] = input.readLong();
+        m_blockOffsets[i] = input.readLong();
+      }
+
+      m_dictionaryOffset = input.readLong();
+      m_numReports = input.readInt();
+    }
+  }
+
+
+  // public methods
+
+
+  /**
+   *
+   * @return
+   */
+  public File getFile()
+  {
+    return m_file;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public int getNumRows()
+  {
+    return m_numRows;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public long getFirstCollected()
+  {
+    return m_firstCollected;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public long getLastCollected()
+  {
+    return m_lastCollected;
+  }
+
+  /**
+   * Indicates whether any row of the segment could have been collected within
+   * the given interval.
+   *
+   * @param begin the beginning of the interval, inclusive
+   * @param end the end of the interval, inclusive
+   * @return <code>true</code> if the segment overlaps the interval
+   */
+  public boolean overlaps(long begin, long end)
+  {
+    return m_numRows > 0 && m_firstCollected <= end && m_lastCollected >= begin;
+  }
+
+  /**
+   * Reads the rows of the segment that were collected within the given
+   * interval, in collection order.
+   *
+   * @param begin the beginning of the interval, inclusive
+   * @param end the end of the interval, inclusive
+   * @param result the list to which the matching rows are appended
+   * @throws IOException
+   */
+  public void read(long begin, long end, List<InstanceRecord> result) throws IOException
+  {
+    if (!overlaps(begin, end))
+      return;
+
+    // use the sparse index to find the blocks that may hold rows within the
+    // interval. The block before the first one that starts at or after begin
+    // may end with rows collected at begin.
+    int firstBlock = 0;
+
+    while (firstBlock < m_index.length && m_index[firstBlock] < begin)
+      firstBlock += 1;
+
+    firstBlock = Math.max(0, firstBlock - 1);
+
+    int lastBlock = firstBlock;
+
+    while (lastBlock + 1 < m_index.length && m_index[lastBlock + 1] <= end)
+      lastBlock += 1;
+
+    List<long[]> rows = new ArrayList<long[]>();
+    List<float[]> usage = new ArrayList<float[]>();
+    boolean[] referenced = new boolean[m_numReports];
+
+    try (RandomAccessFile input = new RandomAccessFile(m_file, "r")) {
+      long bodyStart = getHeaderSize();
+
+      for (int block = firstBlock ; block <= lastBlock ; block += 1) {
+        long blockEnd = block + 1 < m_index.length ? m_blockOffsets[block + 1] : m_dictionaryOffset;
+        DataInputStream blockInput = inflate(input, bodyStart + m_blockOffsets[block], blockEnd - m_blockOffsets[block]);
+        int numRows = Math.min(INDEX_INTERVAL, m_numRows - block * INDEX_INTERVAL);
+        long[] collected = readDeltaColumn(blockInput, numRows);
+        long[] instanceIds = readDeltaColumn(blockInput, numRows);
+        int[] reportRefs = new int[numRows];
+
+        for (int row = 0 ; row < numRows ; row += 1)
+          reportRefs[row] = readVarInt(blockInput);
+
+        float[] memory = readFloatColumn(blockInput, numRows);
+        float[] cpu = readFloatColumn(blockInput, numRows);
+        float[] wallClock = readFloatColumn(blockInput, numRows);
+
+        for (int row = 0 ; row < numRows ; row += 1) {
+          if (collected[row] < begin || collected[row] > end)
+            continue;
+
+          rows.add(new long[] { instanceIds[row], collected[row], reportRefs[row] });
+          usage.add(new float[] { memory[row], cpu[row], wallClock[row] });
+
+          referenced[reportRefs[row]] = true;
+        }
+      }
+
+      if (rows.isEmpty())
+        return;
+
+      ReportEntry[] reports = readReports(input, bodyStart + m_dictionaryOffset, referenced);
+
+      for (int i = 0 ; i < rows.size() ; i += 1) {
+        long[] row = rows.get(i);
+        float[] rowUsage = usage.get(i);
+        ReportEntry report = reports[(int) row[2]];
+
+        result.add(new InstanceRecord(row[0], row[1], rowUsage[0], rowUsage[1], rowUsage[2],
+                                      report.reportId, report.exitStatus, report.exitMessage, report.body, report.comparison));
+      }
+    }
+  }
+
+  /**
+   * Writes a new segment containing the given rows. The rows must already be
+   * sorted by collection time.
+   *
+   * @param file the segment file to create
+   * @param records the rows to store
+   * @throws IOException
+   */
+  public static void write(File file, List<InstanceRecord> records) throws IOException
+  {
+    int numRows = records.size();
+    int numBlocks = (numRows + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+    Map<Long, Integer> reportRefs = new HashMap<Long, Integer>();
+    List<InstanceRecord> reports = new ArrayList<InstanceRecord>();
+
+    for (InstanceRecord record : records) {
+      if (!reportRefs.containsKey(record.reportId)) {
+        reportRefs.put(record.reportId, reports.size());
+        reports.add(record);
+      }
+    }
+
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    byte[][] blocks = new byte[numBlocks][];
+    byte[] dictionary;
+
+    try {
+      for (int block = 0 ; block < numBlocks ; block += 1) {
+        List<InstanceRecord> blockRecords = records.subList(block * INDEX_INTERVAL, Math.min(numRows, (block + 1) * INDEX_INTERVAL));
+
+        blocks[block] = deflate(deflater, writeBlock(blockRecords, reportRefs));
+      }
+
+      ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+      DataOutputStream dictionaryOutput = new DataOutputStream(dictionaryBytes);
+
+      for (InstanceRecord report : reports) {
+        dictionaryOutput.writeLong(report.reportId);
+        dictionaryOutput.writeBoolean(report.exitStatus);
+        writeString(dictionaryOutput, report.exitMessage);
+        writeString(dictionaryOutput, report.comparisonResult);
+        writeString(dictionaryOutput, report.body);
+      }
+
+      dictionaryOutput.flush();
+
+      dictionary = deflate(deflater, dictionaryBytes.toByteArray());
+    }
+    finally {
+      deflater.end();
+    }
+
+    try (OutputStream fileStream = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+      DataOutputStream output = new DataOutputStream(fileStream);
+      long offset = 0;
+
+      output.writeInt(MAGIC);
+      output.writeShort(VERSION);
+      output.writeInt(numRows);
+      output.writeLong(numRows > 0 ? records.get(0).collected : 0);
+      output.writeLong(numRows > 0 ? records.get(numRows - 1).collected : 0);
+      output.writeInt(numBlocks);
+
+      for (int block = 0 ; block < numBlocks ; block += 1) {
+        output.writeLong(records.get(block * INDEX_INTERVAL).collected);
+        output.writeLong(offset);
+
+        offset += blocks[block].length;
+      }
+
+      output.writeLong(offset);
+      output.writeInt(reports.size());
+
+      for (byte[] block : blocks)
+        output.write(block);
+
+      output.write(dictionary);
+      output.flush();
+    }
+  }
+
+
+  // private methods
+
+
+  /**
+   *
+   * @return
+   */
+  private long getHeaderSize()
+  {
+    return 4 + 2 + 4 + 8 + 8 + 4 + 16L * m_index.length + 8 + 4;
+  }
+
+  /**
+   * Reads the dictionary of reports, decoding only the ones that are
+   * referenced. The other entries are left <code>null</code>.
+   *
+   * @param input
+   * @param offset
+   * @param referenced
+   * @return
+   * @throws IOException
+   */
+  private ReportEntry[] readReports(RandomAccessFile input, long offset, boolean[] referenced) throws IOException
+  {
+    DataInputStream dictionary = inflate(input, offset, input.length() - offset);
+    ReportEntry[] result = new ReportEntry[m_numReports];
+
+    for (int i = 0 ; i < m_numReports ; i += 1) {
+      long reportId = dictionary.readLong();
+      boolean exitStatus = dictionary.readBoolean();
+
+      if (!referenced[i]) {
+        skipString(dictionary);
+        skipString(dictionary);
+        skipString(dictionary);
+
+        continue;
+      }
+
+      String exitMessage = readString(dictionary);
+      String comparison = readString(dictionary);
+      String body = readString(dictionary);
+
+      result[i] = new ReportEntry(reportId, exitStatus, exitMessage, comparison, body);
+    }
+
+    return result;
+  }
+
+  /**
+   *
+   * @param input
+   * @param offset
+   * @param length
+   * @return
+   * @throws IOException
+   */
+  private DataInputStream inflate(RandomAccessFile input, long offset, long length) throws IOException
+  {
+    if (offset + length > input.length())
+      throw new EOFException("Truncated archive segment " + m_file.getPath());
+
+    byte[] compressed = new byte[(int) length];
+
+    input.seek(offset);
+    input.readFully(compressed);
+
+    return new DataInputStream(new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)), BUFFER_SIZE));
+  }
+
+  /**
+   *
+   * @param deflater
+   * @param data
+   * @return
+   * @throws IOException
+   */
+  private static byte[] deflate(Deflater deflater, byte[] data) throws IOException
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    DeflaterOutputStream compressed = new DeflaterOutputStream(result, deflater, BUFFER_SIZE);
+
+    deflater.reset();
+    compressed.write(data);
+    compressed.finish();
+
+    return result.toByteArray();
+  }
+
+  /**
+   *
+   * @param records
+   * @param reportRefs
+   * @return
+   * @throws IOException
+   */
+  private static byte[] writeBlock(List<InstanceRecord> records, Map<Long, Integer> reportRefs) throws IOException
+  {
+    ByteArrayOutputStream result = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(result);
+    long previous = 0;
+
+    for (InstanceRecord record : records) {
+      writeVarLong(output, record.collected - previous);
+
+      previous = record.collected;
+    }
+
+    previous = 0;
+
+    for (InstanceRecord record : records) {
+      writeVarLong(output, record.instanceId - previous);
+
+      previous = record.instanceId;
+    }
+
+    for (InstanceRecord record : records)
+      writeVarInt(output, reportRefs.get(record.reportId));
+
+    for (InstanceRecord record : records)
+      output.writeFloat(record.memoryUsageMB);
+
+    for (InstanceRecord record : records)
+      output.writeFloat(record.cpuUsageSec);
+
+    for (InstanceRecord record : records)
+      output.writeFloat(record.wallClockTimeSec);
+
+    output.flush();
+
+    return result.toByteArray();
+  }
+
+  /**
+   *
+   * @param input
+   * @param numRows
+   * @return
+   * @throws IOException
+   */
+  private static long[] readDeltaColumn(DataInputStream input, int numRows) throws IOException
+  {
+    long[] result = new long[numRows];
+    long previous = 0;
+
+    for (int row = 0 ; row < numRows ; row += 1) {
+      previous += readVarLong(input);
+      result[row] = previous;
+    }
+
+    return result;
+  }
+
+  /**
+   *
+   * @param input
+   * @param numRows
+   * @return
+   * @throws IOException
+   */
+  private static float[] readFloatColumn(DataInputStream input, int numRows) throws IOException
+  {
+    float[] result = new float[numRows];
+
+    for (int row = 0 ; row < numRows ; row += 1)
+      result[row] = input.readFloat();
+
+    return result;
+  }
+
+  /**
+   *
+   * @param output
+   * @param value
+   * @throws IOException
+   */
+  private static void writeString(DataOutputStream output, String value) throws IOException
+  {
+    if (value == null) {
+      writeVarInt(output, 0);
+
+      return;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    writeVarInt(output, bytes.length + 1);
+    output.write(bytes);
+  }
+
+  /**
+   *
+   * @param input
+   * @return
+   * @throws IOException
+   */
+  private static String readString(DataInputStream input) throws IOException
+  {
+    int length = readVarInt(input);
+
+    if (length == 0)
+      return null;
+
+    byte[] bytes = new byte[length - 1];
+
+    input.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   *
+   * @param input
+   * @throws IOException
+   */
+  private static void skipString(DataInputStream input) throws IOException
+  {
+    int length = readVarInt(input);
+
+    for (int remaining = length - 1 ; remaining > 0 ; ) {
+      int skipped = input.skipBytes(remaining);
+
+      if (skipped <= 0)
+        throw new EOFException("Truncated report in archive segment");
+
+      remaining -= skipped;
+    }
+  }
+
+  /**
+   *
+   * @param output
+   * @param value
+   * @throws IOException
+   */
+  private static void writeVarInt(DataOutputStream output, int value) throws IOException
+  {
+    writeVarLong(output, value);
+  }
+
+  /**
+   *
+   * @param input
+   * @return
+   * @throws IOException
+   */
+  private static int readVarInt(DataInputStream input) throws IOException
+  {
+    return (int) readVarLong(input);
+  }
+
+  /**
+   * Writes a zigzag encoded, variable length integer.
+   *
+   * @param output
+   * @param value
+   * @throws IOException
+   */
+  private static void writeVarLong(DataOutputStream output, long value) throws IOException
+  {
+    long encoded = (value << 1) ^ (value >> 63);
+
+    while ((encoded & ~0x7FL) != 0) {
+      output.writeByte((int) ((encoded & 0x7F) | 0x80));
+
+      encoded >>>= 7;
+    }
+
+    output.writeByte((int) encoded);
+  }
+
+  /**
+   *
+   * @param input
+   * @return
+   * @throws IOException
+   */
+  private static long readVarLong(DataInputStream input) throws IOException
+  {
+    long encoded = 0;
+    int shift = 0;
+    int next;
+
+    do {
+      if (shift > 63)
+        throw new IOException("Malformed variable length integer");
+
+      next = input.readUnsignedByte();
+      encoded |= (long) (next & 0x7F) << shift;
+      shift += 7;
+    } while ((next & 0x80) != 0);
+
+    return (encoded >>> 1) ^ -(encoded & 1);
+  }
+}
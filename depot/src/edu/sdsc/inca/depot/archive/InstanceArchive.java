@@ -0,0 +1,471 @@
+/*
+ * InstanceArchive.java
+ */
+package edu.sdsc.inca.depot.archive;
+
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.log4j.Logger;
+
+import edu.sdsc.inca.depot.persistent.InstanceRecord;
+
+
+/**
+ * Manages the archive tier of the depot: a local directory of segment files
+ * that hold instances which have aged out of the per-series instance tables.
+ * Each series config has its own subdirectory, and each segment in it is named
+ * after the range of collection times that it covers, so that queries can skip
+ * segments without opening them.
+ */
+public class InstanceArchive {
+
+  // nested classes
+
+
+  /**
+   * A set of segments that have been written but are not yet part of the
+   * archive. A purge adds the instances it is about to delete, and only
+   * commits the segments once the delete has been committed to the database,
+   * so that instances which stay in the database aren't archived as well.
+   */
+  public class PendingSegments {
+
+    private final List<File> m_tempFiles = new ArrayList<File>();
+    private final List<File> m_configDirs = new ArrayList<File>();
+    private final List<String> m_baseNames = new ArrayList<String>();
+    private final List<File> m_segmentFiles = new ArrayList<File>();
+    private int m_numRecords = 0;
+
+
+    /**
+     * Writes a set of instances for a series config to a new segment that
+     * won't be read until it is committed.
+     *
+     * @param configId the id of the series config
+     * @param records the instances to store, sorted by collection time
+     * @throws IOException
+     */
+    public void add(long configId, List<InstanceRecord> records) throws IOException
+    {
+      if (records.isEmpty())
+        return;
+
+      File configDir = getConfigDirectory(configId);
+
+      if (!configDir.isDirectory() && !configDir.mkdirs())
+        throw new IOException("Unable to create archive directory " + configDir.getPath());
+
+      long first = records.get(0).collected;
+      long last = records.get(records.size() - 1).collected;
+      String baseName = first + "-" + last;
+      File tempFile = File.createTempFile(baseName + ".", ".tmp", configDir);
+
+      try {
+        ArchiveSegment.write(tempFile, records);
+      }
+      catch (IOException ioErr) {
+        tempFile.delete();
+
+        throw ioErr;
+      }
+
+      m_tempFiles.add(tempFile);
+      m_configDirs.add(configDir);
+      m_baseNames.add(baseName);
+
+      m_numRecords += records.size();
+    }
+
+    /**
+     *
+     * @return the number of instances in the pending segments
+     */
+    public int getNumRecords()
+    {
+      return m_numRecords;
+    }
+
+    /**
+     * Makes the pending segments part of the archive. This is done before the
+     * instances are deleted from the database, so that they are always in
+     * one or the other. If any segment can't be moved into place, the ones
+     * that were are removed again, and the instances should be left in the
+     * database.
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException
+    {
+      boolean committed = false;
+
+      try {
+        for (int i = 0 ; i < m_tempFiles.size() ; i += 1) {
+          File tempFile = m_tempFiles.get(i);
+          File configDir = m_configDirs.get(i);
+          String baseName = m_baseNames.get(i);
+          File segmentFile = new File(configDir, baseName + ArchiveSegment.FILE_SUFFIX);
+
+          for (int j = 1 ; segmentFile.exists() ; j += 1)
+            segmentFile = new File(configDir, baseName + "." + j + ArchiveSegment.FILE_SUFFIX);
+
+          if (!tempFile.renameTo(segmentFile))
+            throw new IOException("Unable to rename " + tempFile.getPath() + " to " + segmentFile.getPath());
+
+          m_tempFiles.set(i, null);
+          m_segmentFiles.add(segmentFile);
+
+          m_logger.debug("archived instances of SeriesConfig " + configDir.getName() + " to " + segmentFile.getPath());
+        }
+
+        committed = true;
+      }
+      finally {
+        if (!committed)
+          abort();
+      }
+    }
+
+    /**
+     * Discards the segments, including any that were committed, because the
+     * instances in them are still in the database. A committed segment that
+     * can't be removed leaves copies of its instances in both places, which
+     * readers of the archive skip (see {@link RecordIterator}), and which
+     * the next purge archives again.
+     */
+    public void abort()
+    {
+      for (File tempFile : m_tempFiles) {
+        if (tempFile != null && !tempFile.delete())
+          m_logger.warn("Unable to delete archive segment " + tempFile.getPath());
+      }
+
+      for (File segmentFile : m_segmentFiles) {
+        if (!segmentFile.delete())
+          m_logger.error("Unable to remove archive segment " + segmentFile.getPath() + ", its instances are still in the database");
+      }
+
+      m_tempFiles.clear();
+      m_configDirs.clear();
+      m_baseNames.clear();
+      m_segmentFiles.clear();
+
+      m_numRecords = 0;
+    }
+  }
+
+  /**
+   * Iterates over the rows of a list of segments, reading one segment at a
+   * time. Segments are usually disjoint, but the depot may have stopped
+   * between committing the segments of a purge and deleting their instances
+   * from the database, leaving the segments of a later purge to overlap
+   * them, so rows that don't follow the last one returned are skipped.
+   */
+  public static class RecordIterator {
+
+    private final Iterator<File> m_segmentFiles;
+    private final long m_begin;
+    private final long m_end;
+    private Iterator<InstanceRecord> m_rows;
+    private InstanceRecord m_next;
+    private InstanceRecord m_last;
+
+
+    /**
+     *
+     * @param segmentFiles
+     * @param begin
+     * @param end
+     */
+    private RecordIterator(List<File> segmentFiles, long begin, long end)
+    {
+      m_segmentFiles = segmentFiles.iterator();
+      m_begin = begin;
+      m_end = end;
+      m_rows = Collections.<InstanceRecord>emptyList().iterator();
+    }
+
+
+    /**
+     *
+     * @return
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException
+    {
+      while (m_next == null) {
+        while (!m_rows.hasNext()) {
+          if (!m_segmentFiles.hasNext())
+            return false;
+
+          List<InstanceRecord> rows = new ArrayList<InstanceRecord>();
+
+          (new ArchiveSegment(m_segmentFiles.next())).read(m_begin, m_end, rows);
+
+          m_rows = rows.iterator();
+        }
+
+        InstanceRecord row = m_rows.next();
+
+        if (m_last == null || row.compareTo(m_last) > 0)
+          m_next = row;
+      }
+
+      return true;
+    }
+
+    /**
+     *
+     * @return
+     * @throws IOException
+     */
+    public InstanceRecord next() throws IOException
+    {
+      if (!hasNext())
+        throw new NoSuchElementException();
+
+      m_last = m_next;
+      m_next = null;
+
+      return m_last;
+    }
+  }
+
+
+  // data fields
+
+
+  private static final Logger m_logger = Logger.getLogger(InstanceArchive.class);
+  private static InstanceArchive m_archive;
+  private final File m_directory;
+
+
+  // constructors
+
+
+  /**
+   *
+   * @param directory the root directory of the archive
+   * @throws IOException
+   */
+  public InstanceArchive(File directory) throws IOException
+  {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create archive directory " + directory.getPath());
+
+    m_directory = directory;
+  }
+
+
+  // public methods
+
+
+  /**
+   * Returns the global archive, or <code>null</code> if archiving hasn't been
+   * configured.
+   *
+   * @return the archive
+   */
+  public static InstanceArchive getArchive()
+  {
+    return m_archive;
+  }
+
+  /**
+   * Sets the global archive.
+   *
+   * @param archive the archive
+   */
+  public static void setArchive(InstanceArchive archive)
+  {
+    m_archive = archive;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public File getDirectory()
+  {
+    return m_directory;
+  }
+
+  /**
+   * Stores a set of instances for a series config in a new segment.
+   *
+   * @param configId the id of the series config
+   * @param records the instances to store
+   * @throws IOException
+   */
+  public void append(long configId, List<InstanceRecord> records) throws IOException
+  {
+    List<InstanceRecord> sorted = new ArrayList<InstanceRecord>(records);
+
+    Collections.sort(sorted);
+
+    PendingSegments segments = new PendingSegments();
+
+    try {
+      segments.add(configId, sorted);
+    }
+    catch (IOException ioErr) {
+      segments.abort();
+
+      throw ioErr;
+    }
+
+    segments.commit();
+  }
+
+  /**
+   * Starts a set of segments that will be added to the archive together.
+   *
+   * @return the pending segments
+   */
+  public PendingSegments begin()
+  {
+    return new PendingSegments();
+  }
+
+  /**
+   * Returns the archived instances of a series config that were collected
+   * within the given interval, in collection order.
+   *
+   * @param configId the id of the series config
+   * @param begin the beginning of the interval, inclusive
+   * @param end the end of the interval, inclusive
+   * @return the archived instances
+   * @throws IOException
+   */
+  public List<InstanceRecord> read(long configId, Date begin, Date end) throws IOException
+  {
+    List<InstanceRecord> result = new ArrayList<InstanceRecord>();
+    RecordIterator records = iterate(configId, begin, end);
+
+    while (records.hasNext())
+      result.add(records.next());
+
+    return result;
+  }
+
+  /**
+   * Returns an iterator over the archived instances of a series config that
+   * were collected within the given interval, in collection order. Only one
+   * segment at a time is held in memory.
+   *
+   * @param configId the id of the series config
+   * @param begin the beginning of the interval, inclusive
+   * @param end the end of the interval, inclusive
+   * @return an iterator over the archived instances
+   */
+  public RecordIterator iterate(long configId, Date begin, Date end)
+  {
+    return new RecordIterator(getSegmentFiles(configId, begin.getTime(), end.getTime()), begin.getTime(), end.getTime());
+  }
+
+  /**
+   * Removes all of the archived instances of a series config.
+   *
+   * @param configId the id of the series config
+   */
+  public void delete(long configId)
+  {
+    File configDir = getConfigDirectory(configId);
+    File[] segments = configDir.listFiles();
+
+    if (segments == null)
+      return;
+
+    for (File segmentFile : segments) {
+      if (!segmentFile.delete())
+        m_logger.warn("Unable to delete archive segment " + segmentFile.getPath());
+    }
+
+    configDir.delete();
+  }
+
+
+  // private methods
+
+
+  /**
+   *
+   * @param configId
+   * @return
+   */
+  private File getConfigDirectory(long configId)
+  {
+    return new File(m_directory, String.valueOf(configId));
+  }
+
+  /**
+   * Lists the segment files of a series config whose names indicate that they
+   * overlap the given interval, ordered by their first collection time.
+   *
+   * @param configId
+   * @param begin
+   * @param end
+   * @return
+   */
+  private List<File> getSegmentFiles(long configId, final long begin, final long end)
+  {
+    File[] files = getConfigDirectory(configId).listFiles(new FileFilter() {
+      @Override
+      public boolean accept(File file)
+      {
+        long[] range = parseRange(file.getName());
+
+        return range != null && range[0] <= end && range[1] >= begin;
+      }
+    });
+
+    List<File> result = new ArrayList<File>();
+
+    if (files == null)
+      return result;
+
+    Collections.addAll(result, files);
+
+    Collections.sort(result, new Comparator<File>() {
+      @Override
+      public int compare(File first, File second)
+      {
+        return Long.compare(parseRange(first.getName())[0], parseRange(second.getName())[0]);
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   *
+   * @param name
+   * @return
+   */
+  private static long[] parseRange(String name)
+  {
+    if (!name.endsWith(ArchiveSegment.FILE_SUFFIX))
+      return null;
+
+    String[] pieces = name.substring(0, name.length() - ArchiveSegment.FILE_SUFFIX.length()).split("[-.]");
+
+    if (pieces.length < 2)
+      return null;
+
+    try {
+      return new long[] { Long.parseLong(pieces[0]), Long.parseLong(pieces[1]) };
+    }
+    catch (NumberFormatException formatErr) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package edu.sdsc.inca.depot.archive;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import edu.sdsc.inca.depot.persistent.InstanceRecord;
+import edu.sdsc.inca.util.StringMethods;
+
+/**
+ * Tests for the InstanceArchive and ArchiveSegment classes
+ */
+public class InstanceArchiveTest extends TestCase {
+
+  private static final long START = 1184000000000L;
+  private static final long STEP = 5L * 60L * 1000L;
+  private File archiveDir = new File("var/archiveTest");
+
+  public void setUp() throws Exception {
+    StringMethods.deleteDirectory(archiveDir);
+  }
+
+  public void tearDown() throws Exception {
+    StringMethods.deleteDirectory(archiveDir);
+  }
+
+  /**
+   * Create a set of records collected every five minutes that alternate
+   * between two reports.
+   */
+  private List<InstanceRecord> makeRecords(int first, int count) {
+    List<InstanceRecord> result = new ArrayList<InstanceRecord>();
+    for(int i = first; i < first + count; i++) {
+      boolean passed = i % 2 == 0;
+      result.add(new InstanceRecord(
+        1000 + i, START + i * STEP, 1.5F * i, 0.25F, 2.0F, passed ? 7 : 8,
+        passed, passed ? "\t" : "failed " + (i % 2), "<body>" + (i % 2) + "</body>",
+        passed ? "Success" : null
+      ));
+    }
+    return result;
+  }
+
+  /**
+   * Test that records written to the archive are read back intact
+   *
+   * @throws Exception
+   */
+  public void testRoundTrip() throws Exception {
+    InstanceArchive archive = new InstanceArchive(archiveDir);
+    List<InstanceRecord> records = makeRecords(0, 1000);
+    archive.append(42, records);
+    List<InstanceRecord> read = archive.read
+      (42, new Date(START), new Date(START + 1000 * STEP));
+    assertEquals(1000, read.size());
+    for(int i = 0; i < read.size(); i++) {
+      InstanceRecord expected = records.get(i);
+      InstanceRecord actual = read.get(i);
+      assertEquals(expected.instanceId, actual.instanceId);
+      assertEquals(expected.collected, actual.collected);
+      assertEquals(expected.memoryUsageMB, actual.memoryUsageMB, 0.0F);
+      assertEquals(expected.reportId, actual.reportId);
+      assertEquals(expected.exitStatus, actual.exitStatus);
+      assertEquals(expected.exitMessage, actual.exitMessage);
+      assertEquals(expected.body, actual.body);
+      assertEquals(expected.comparisonResult, actual.comparisonResult);
+    }
+    assertEquals(0, archive.read(43, new Date(START), new Date()).size());
+  }
+
+  /**
+   * Test that reads of an interval return only the records within it, across
+   * several segments
+   *
+   * @throws Exception
+   */
+  public void testInterval() throws Exception {
+    InstanceArchive archive = new InstanceArchive(archiveDir);
+    archive.append(42, makeRecords(0, 500));
+    archive.append(42, makeRecords(500, 500));
+    List<InstanceRecord> read = archive.read
+      (42, new Date(START + 300 * STEP), new Date(START + 700 * STEP));
+    assertEquals(401, read.size());
+    assertEquals(START + 300 * STEP, read.get(0).collected);
+    assertEquals(START + 700 * STEP, read.get(400).collected);
+    read = archive.read
+      (42, new Date(START + 2000 * STEP), new Date(START + 3000 * STEP));
+    assertEquals(0, read.size());
+  }
+
+  /**
+   * Test that reads of a single segment only return the rows of the interval,
+   * with the reports they refer to, when every row has its own report
+   *
+   * @throws Exception
+   */
+  public void testIntervalWithinSegment() throws Exception {
+    InstanceArchive archive = new InstanceArchive(archiveDir);
+    List<InstanceRecord> records = new ArrayList<InstanceRecord>();
+    for(int i = 0; i < 1000; i++) {
+      records.add(new InstanceRecord(
+        1000 + i, START + (i / 2) * STEP, 0.0F, 0.0F, 0.0F, 5000 + i, true,
+        null, "<body>" + i + "</body>", null
+      ));
+    }
+    archive.append(42, records);
+    List<InstanceRecord> read = archive.read
+      (42, new Date(START + 128 * STEP), new Date(START + 130 * STEP));
+    assertEquals(6, read.size());
+    for(int i = 0; i < read.size(); i++) {
+      assertEquals(1256 + i, read.get(i).instanceId);
+      assertEquals(5256 + i, read.get(i).reportId);
+      assertEquals("<body>" + (256 + i) + "</body>", read.get(i).body);
+    }
+  }
+
+  /**
+   * Test that pending segments are only read once they are committed, and
+   * that aborting removes them even once committed
+   *
+   * @throws Exception
+   */
+  public void testPending() throws Exception {
+    InstanceArchive archive = new InstanceArchive(archiveDir);
+    InstanceArchive.PendingSegments pending = archive.begin();
+    pending.add(42, makeRecords(0, 100));
+    assertEquals(100, pending.getNumRecords());
+    assertEquals(0, archive.read(42, new Date(START), new Date()).size());
+    pending.abort();
+    assertEquals(0, archive.read(42, new Date(START), new Date()).size());
+    assertEquals(0, new File(archiveDir, "42").list().length);
+    pending = archive.begin();
+    pending.add(42, makeRecords(0, 100));
+    pending.add(42, makeRecords(100, 100));
+    pending.commit();
+    assertEquals(200, archive.read(42, new Date(START), new Date()).size());
+    pending.abort();
+    assertEquals(0, archive.read(42, new Date(START), new Date()).size());
+    assertEquals(0, new File(archiveDir, "42").list().length);
+  }
+
+  /**
+   * Test that records archived twice are only returned once
+   *
+   * @throws Exception
+   */
+  public void testDuplicates() throws Exception {
+    InstanceArchive archive = new InstanceArchive(archiveDir);
+    archive.append(42, makeRecords(0, 200));
+    archive.append(42, makeRecords(100, 200));
+    List<InstanceRecord> read = archive.read
+      (42, new Date(START), new Date(START + 1000 * STEP));
+    assertEquals(300, read.size());
+    archive.delete(42);
+    assertEquals(0, archive.read(42, new Date(START), new Date()).size());
+  }
+
+}
@@ -8,7 +8,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringReader;
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -30,7 +31,10 @@ import edu.sdsc.inca.depot.DepotPeerClient;
 import edu.sdsc.inca.depot.persistent.*;
 import edu.sdsc.inca.depot.util.ExprComparitor;
 import edu.sdsc.inca.depot.util.HibernateMessageHandler;
-import edu.sdsc.inca.depot.util.ReportFilter;
+import edu.sdsc.inca.depot.util.InsertEvents;
+import edu.sdsc.inca.depot.util.QueryCache;
+import edu.sdsc.inca.depot.util.FilteredReport;
+import edu.sdsc.inca.depot.util.ReportFilterChain;
 import edu.sdsc.inca.depot.util.ReportNotifier;
 import edu.sdsc.inca.depot.persistent.Row;
 import edu.sdsc.inca.protocol.MessageHandler;
@@ -39,6 +43,7 @@ import edu.sdsc.inca.protocol.ProtocolException;
 import edu.sdsc.inca.protocol.ProtocolReader;
 import edu.sdsc.inca.protocol.ProtocolWriter;
 import edu.sdsc.inca.protocol.Statement;
+import edu.sdsc.inca.util.Metrics;
 import edu.sdsc.inca.util.WorkItem;
 import edu.sdsc.inca.util.Worker;
 
@@ -108,6 +113,12 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
 
 
   private static final Logger logger = Logger.getLogger(Insert.class);
+  private static final Metrics.Timer READ_TIMER = Metrics.getTimer("insert.read");
+  private static final Metrics.Timer FILTER_TIMER = Metrics.getTimer("insert.filter");
+  private static final Metrics.Timer PARSE_TIMER = Metrics.getTimer("insert.parse");
+  private static final Metrics.Timer RECORDS_TIMER = Metrics.getTimer("insert.records");
+  private static final Metrics.Timer CONFIG_UPDATE_TIMER = Metrics.getTimer("insert.configUpdate");
+  private static final Metrics.Timer COMPARE_TIMER = Metrics.getTimer("insert.compare");
   private String command;
   private String resource;
   private String context;
@@ -115,7 +126,6 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
   private String stdErr;
   private String sysUsage;
   private edu.sdsc.inca.dataModel.util.Report report;
-  private Properties timings = new Properties();
 
 
   /**
@@ -131,7 +141,7 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
     ProtocolReader reader, ProtocolWriter writer, String dn) throws Exception {
 
     Statement stmt = null;
-    long before = System.currentTimeMillis();
+    long before = READ_TIMER.start();
 
     // read everything needed from the socket
     stmt = reader.readStatement();
@@ -172,7 +182,6 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
     stmt = reader.readStatement();
 
     String origStdOut = new String(stmt.getData());
-    String stdOut = origStdOut;
 
     subCommand = reader.peekCommand();
 
@@ -185,51 +194,33 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
     String origSysUsage = new String(stmt.getData());
 
     sysUsage = origSysUsage;
-    timings.setProperty("Read", (System.currentTimeMillis()-before) + "");
-    before = System.currentTimeMillis();
+    READ_TIMER.stop(before);
+    before = FILTER_TIMER.start();
 
-    String[] reportFilterNames = Depot.getRunningDepot().getReportFilters();
-    if(reportFilterNames != null) {
-      ClassLoader cl = ClassLoader.getSystemClassLoader();
+    FilteredReport filtered =
+      new FilteredReport(context, resource, stdErr, origStdOut, sysUsage, hostname);
+    ReportFilterChain filters = Depot.getRunningDepot().getReportFilterChain();
+    if(filters != null) {
       String origContext = context;
-      ReportFilter rf = null;
-      for(int i = 0; i < reportFilterNames.length; i++) {
-        try {
-          rf = (ReportFilter)(cl.loadClass(reportFilterNames[i]).getDeclaredConstructor().newInstance());
-        } catch(Exception e) {
-          logger.warn
-            ("Unable to load ReportFilter '" + reportFilterNames[i] + "' " + e);
-          continue;
-        }
-        rf.setContext(context);
-        rf.setResource(resource);
-        rf.setStderr(stdErr);
-        rf.setStdout(stdOut);
-        rf.setSysusage(sysUsage);
-        rf.setTargetHostname(hostname);
-        context = rf.getContext();
-        resource = rf.getResource();
-        stdErr = rf.getStderr();
-        stdOut = rf.getStdout();
-        sysUsage = rf.getSysusage();
-        hostname = rf.getTargetHostname();
-        if(context==null || resource==null || stdOut==null || sysUsage==null ) {
-          logger.warn("Report '" + context + "' from " + resource +
-                      " suppressed by filter " + reportFilterNames[i]);
-          writer.write(Statement.getOkStatement(origContext));
-          return;
-        }
+      if(!filters.filter(filtered)) {
+        writer.write(Statement.getOkStatement(origContext));
+        return;
       }
+      context = filtered.getContext();
+      resource = filtered.getResource();
+      stdErr = filtered.getStderr();
+      sysUsage = filtered.getSysusage();
+      hostname = filtered.getTargetHostname();
     }
-    timings.setProperty("Filter", (System.currentTimeMillis()-before) + "");
-    before = System.currentTimeMillis();
+    FILTER_TIMER.stop(before);
+    before = PARSE_TIMER.start();
 
     try {
-      report = parseReportXml(stdOut);
+      report = parseReportXml(filtered);
     } catch(XmlException e) {
       throw new ProtocolException("Unable to parse report XML: " + e);
     }
-    timings.setProperty("Parse", (System.currentTimeMillis()-before) + "");
+    PARSE_TIMER.stop(before);
 
     if(!MessageHandler.isPermitted(dn, Protocol.INSERT_ACTION+" "+resource)) {
       throw new ProtocolException
@@ -278,10 +269,6 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
       String text = xpath.evaluate("/insertState/report", stateDoc);
 
       report = parseReportXml(text);
-
-      text = xpath.evaluate("/insertState/timings", stateDoc);
-
-      timings.load(new StringReader(text));
     }
     catch (Exception err) {
       ByteArrayOutputStream logMessage = new ByteArrayOutputStream();
@@ -305,10 +292,6 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
   @Override
   public String getState() throws IOException
   {
-    ByteArrayOutputStream timingBytes = new ByteArrayOutputStream();
-
-    timings.store(timingBytes, null);
-
     ReportDocument reportDoc = ReportDocument.Factory.newInstance();
 
     reportDoc.setReport(report);
@@ -329,9 +312,7 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
     builder.append(sysUsage);
     builder.append("</sysUsage><report>");
     builder.append(createCdataValue(reportDoc.xmlText()));
-    builder.append("</report><timings>");
-    builder.append(timingBytes.toString());
-    builder.append("</timings></insertState>");
+    builder.append("</report></insertState>");
 
     return builder.toString();
   }
@@ -377,6 +358,31 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
     return doc.getReport();
   }
 
+  /**
+   * Parses the report XML as it is read from the filtered report, so that
+   * the text changed by the report filters is never copied.
+   *
+   * @param filtered
+   * @return
+   * @throws XmlException
+   */
+  private edu.sdsc.inca.dataModel.util.Report parseReportXml(FilteredReport filtered) throws XmlException
+  {
+    ReportDocument doc;
+
+    try {
+      doc = ReportDocument.Factory.parse(filtered.getStdoutReader(), (new XmlOptions()).setLoadStripWhitespace());
+    }
+    catch (IOException ioErr) {
+      throw new XmlException(ioErr);
+    }
+
+    if (!doc.validate())
+      throw new XmlException("Invalid report XML '" + filtered.getStdout() + "'");
+
+    return doc.getReport();
+  }
+
   /**
    *
    * @param value
@@ -416,7 +422,7 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
     Report dbReport = null;
     RunInfo dbRunInfo = null;
     Series dbSeries = null;
-    long before = System.currentTimeMillis();
+    long before = RECORDS_TIMER.start();
 
     // Retrieve them from (existing) or store them in (new) the DB.
     if((dbSeries = Series.find(s)) == null) {
@@ -444,8 +450,7 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
       ii.setLog(report.getLog().xmlText());
     ii.setReportId(dbReport.getId());
     ii.save();
-    timings.setProperty("DB Records", (System.currentTimeMillis()-before) + "");
-    before = System.currentTimeMillis();
+    RECORDS_TIMER.stop(before);
 
     // Update all related SeriesConfigs
     if(dbSeries.getSeriesConfigs().size() < 1) {
@@ -460,78 +465,89 @@ public class Insert extends HibernateMessageHandler implements DelayedWork {
         notifier.notify(command, report, dbSeries, ii);
     }
 
-    int i = 0;
+    List<Long> configIds = new ArrayList<Long>();
+    List<Long> latestConfigIds = new ArrayList<Long>();
 
     for (SeriesConfig dbSc : dbSeries.getSeriesConfigs()) {
-      i++;
+      boolean isLatest;
 
-      // If multiple configs feed into the same series, we could receive
-      // reports attached to deactivated series.  Do no processing for these.
-      if(dbSc.getDeactivated() != null) {
-        continue;
-      }
+      before = CONFIG_UPDATE_TIMER.start();
+      try {
+        configIds.add(dbSc.getId());
 
-      ii.getSeriesConfigs().add(dbSc);
-      ii.save();
-
-      boolean isLatest =
-        command.equals(Protocol.INSERT_COMMAND) ||
-        dbSc.getLatestInstanceId() < 0 ||
-        (new InstanceInfo(dbSeries, dbSc.getLatestInstanceId())).getCollected().
-          before(ii.getCollected());
-      if(isLatest) {
-        // Update the SeriesConfig's latest instance field
-        dbSc.setLatestInstanceId(ii.getId());
-        try {
-          dbSc.save();
-        } catch(PersistenceException e) {
-          logger.error("Error storing report series config:" + e);
+        // If multiple configs feed into the same series, we could receive
+        // reports attached to deactivated series.  Do no processing for these.
+        if(dbSc.getDeactivated() != null) {
+          continue;
         }
-      }
-      timings.setProperty("SC update "+i, (System.currentTimeMillis()-before) + "");
-      before = System.currentTimeMillis();
 
-      // Generate and save any comparison the SeriesConfig specifies
-      AcceptedOutput ao = dbSc.getAcceptedOutput();
-      if(ao == null) {
-        continue;
-      }
-      String comparitor = ao.getComparitor();
-      if(comparitor == null || comparitor.equals("") ||
-         comparitor.equals(Row.DB_EMPTY_STRING)) {
-        continue;
+        ii.getSeriesConfigs().add(dbSc);
+        ii.save();
+
+        isLatest =
+          command.equals(Protocol.INSERT_COMMAND) ||
+          dbSc.getLatestInstanceId() < 0 ||
+          (new InstanceInfo(dbSeries, dbSc.getLatestInstanceId())).getCollected().
+            before(ii.getCollected());
+        if(isLatest) {
+          // Update the SeriesConfig's latest instance field
+          dbSc.setLatestInstanceId(ii.getId());
+          try {
+            dbSc.save();
+          } catch(PersistenceException e) {
+            logger.error("Error storing report series config:" + e);
+          }
+          latestConfigIds.add(dbSc.getId());
+        }
+      } finally {
+        CONFIG_UPDATE_TIMER.stop(before);
       }
 
-      String result = new ExprComparitor().compare(ao, dbReport);
-      ComparisonResult dbCr = null;
+      before = COMPARE_TIMER.start();
       try {
-        dbCr = new ComparisonResult(result, dbReport.getId(), dbSc.getId());
-        dbCr.save();
-      } catch(Exception e) {
-        logger.error("Error storing comparison result:" + e);
-      }
+        // Generate and save any comparison the SeriesConfig specifies
+        AcceptedOutput ao = dbSc.getAcceptedOutput();
+        if(ao == null) {
+          continue;
+        }
+        String comparitor = ao.getComparitor();
+        if(comparitor == null || comparitor.equals("") ||
+           comparitor.equals(Row.DB_EMPTY_STRING)) {
+          continue;
+        }
 
-      // Update the id in the SeriesConfig if the comparison result changed
-      Long priorComparisonId = dbSc.getLatestComparisonId();
-      if(!isLatest ||
-         dbCr.getId() == priorComparisonId.longValue()) {
-        continue;
-      }
-      try {
-        dbSc.setLatestComparisonId(dbCr.getId());
-        dbSc.save();
-      } catch(Exception e) {
-        logger.error("Error updating series config:" + e);
+        String result = new ExprComparitor().compare(ao, dbReport);
+        ComparisonResult dbCr = null;
+        try {
+          dbCr = new ComparisonResult(result, dbReport.getId(), dbSc.getId());
+          dbCr.save();
+        } catch(Exception e) {
+          logger.error("Error storing comparison result:" + e);
+        }
+
+        // Update the id in the SeriesConfig if the comparison result changed
+        Long priorComparisonId = dbSc.getLatestComparisonId();
+        if(!isLatest ||
+           dbCr.getId() == priorComparisonId.longValue()) {
+          continue;
+        }
+        try {
+          dbSc.setLatestComparisonId(dbCr.getId());
+          dbSc.save();
+        } catch(Exception e) {
+          logger.error("Error updating series config:" + e);
+        }
+      } finally {
+        COMPARE_TIMER.stop(before);
       }
-      timings.setProperty("SC compare "+i, (System.currentTimeMillis()-before) + "");
     }
 
-    StringBuffer timeString = new StringBuffer();
-    for(Enumeration<?> e = timings.propertyNames(); e.hasMoreElements(); ) {
-      String key = (String)e.nextElement();
-      timeString.append(" ").append(key).append(" ")
-                .append(timings.getProperty(key));
-    }
-    logger.debug("Insert times:" + timeString);
+    if (QueryCache.getCache() != null)
+      QueryCache.getCache().invalidateConfigs(configIds);
+
+    // Tell subscribers about the new latest instances once any comparison
+    // results have been stored as well
+    for (Long configId : latestConfigIds)
+      InsertEvents.publish(configId, ii.getId());
   }
 }
@@ -5,6 +5,9 @@ package edu.sdsc.inca.depot.commands;
 
 
 import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URLDecoder;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -15,26 +18,36 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import org.apache.log4j.Logger;
 import org.apache.xmlbeans.XmlException;
 import org.apache.xmlbeans.XmlOptions;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.metadata.ClassMetadata;
-import org.perf4j.StopWatch;
-import org.perf4j.log4j.Log4JStopWatch;
 
 import edu.sdsc.inca.Depot;
 import edu.sdsc.inca.dataModel.graphSeries.GraphInstance;
@@ -44,10 +57,12 @@ import edu.sdsc.inca.dataModel.util.AnyXmlSequence;
 import edu.sdsc.inca.dataModel.util.Log;
 import edu.sdsc.inca.dataModel.util.ReportDetails;
 import edu.sdsc.inca.dataModel.util.Tags;
+import edu.sdsc.inca.depot.archive.InstanceArchive;
 import edu.sdsc.inca.depot.persistent.ComparisonResult;
 import edu.sdsc.inca.depot.persistent.ConnectionManager;
 import edu.sdsc.inca.depot.persistent.HqlQuery;
 import edu.sdsc.inca.depot.persistent.InstanceInfo;
+import edu.sdsc.inca.depot.persistent.InstanceRecord;
 import edu.sdsc.inca.depot.persistent.Notification;
 import edu.sdsc.inca.depot.persistent.PersistenceException;
 import edu.sdsc.inca.depot.persistent.Report;
@@ -57,12 +72,15 @@ import edu.sdsc.inca.depot.persistent.Series;
 import edu.sdsc.inca.depot.persistent.SeriesConfig;
 import edu.sdsc.inca.depot.persistent.Suite;
 import edu.sdsc.inca.depot.util.HibernateMessageHandler;
+import edu.sdsc.inca.depot.util.QueryCache;
+import edu.sdsc.inca.depot.util.QueryExecutor;
 import edu.sdsc.inca.protocol.Protocol;
 import edu.sdsc.inca.protocol.ProtocolException;
 import edu.sdsc.inca.protocol.ProtocolReader;
 import edu.sdsc.inca.protocol.ProtocolWriter;
 import edu.sdsc.inca.protocol.Statement;
 import edu.sdsc.inca.queryResult.ReportSummaryDocument;
+import edu.sdsc.inca.util.SeriesColumns;
 import edu.sdsc.inca.util.StringMethods;
 import edu.sdsc.inca.util.XmlWrapper;
 
@@ -78,80 +96,390 @@ public class Query extends HibernateMessageHandler {
    */
   private interface InstanceProcessor {
 
-    void process(InstanceInfo instance, Map<Long, Report> reports) throws Exception;
+    void process(InstanceRecord instance) throws Exception;
   }
 
   /**
-   *
+   * Reads the instances of a series config that were collected within an
+   * interval, in collection order, first from the archive and then from the
+   * instance table of the series. The instance table is read with a query
+   * that joins each instance with its report and comparison result. By
+   * default the query stays open and only the current row is held in memory.
+   * A paged cursor instead reads a page of instances at a time and closes its
+   * query before returning them, resuming after the last instance read, so
+   * that any number of paged cursors can be merged without holding a
+   * database cursor open for each one. Given a prefetcher, a paged cursor
+   * reads its next page on the query executor, with a connection of its own,
+   * while the current page is being merged.
    */
-  private static class PeriodProcessor implements InstanceProcessor {
+  private static class InstanceCursor implements AutoCloseable {
+
+    /**
+     * A page of instances read by a paged cursor.
+     */
+    private static class Page {
+
+      public final List<InstanceRecord> instances = new ArrayList<InstanceRecord>();
+      public boolean more;
+    }
+
+    public final Series series;
+    public final SeriesConfig config;
+    public final int order;
+    private final boolean withBody;
+    private final InstanceArchive.RecordIterator archived;
+    private final Connection dbConn;
+    private final String query;
+    private final long configId;
+    private final Timestamp endTime;
+    private final int pageSize;
+    private final PagePrefetcher prefetcher;
+    private Page page;
+    private int pageIndex = 0;
+    private Future<Page> nextPage;
+    private Timestamp lastCollected;
+    private long lastId = -1;
+    private PreparedStatement selectStmt;
+    private ResultSet rows;
+    private boolean haveRow;
+    private InstanceRecord current;
+
 
-    private Series series;
-    private SeriesConfig config;
-    private Map<Long, String> comparisons;
-    private Map<Date, GraphSeries> result;
+    /**
+     * Opens a cursor that holds its query open until it is closed.
+     *
+     * @param dbConn
+     * @param s
+     * @param sc
+     * @param o
+     * @param begin
+     * @param end
+     * @param body whether or not the report bodies are needed
+     * @throws SQLException
+     */
+    public InstanceCursor(Connection dbConn, Series s, SeriesConfig sc, int o, Date begin, Date end, boolean body) throws SQLException {
 
+      this(dbConn, s, sc, o, begin, end, body, 0, null);
+    }
 
     /**
      *
+     * @param conn
      * @param s
      * @param sc
-     * @param c
-     * @param r
+     * @param o
+     * @param begin
+     * @param end
+     * @param body whether or not the report bodies are needed
+     * @param size the number of instances to read at a time, or 0 to hold the
+     *             query open until the cursor is closed
+     * @param prefetch reads the next page ahead of time, or <code>null</code>
+     *             to read each page when it is needed
+     * @throws SQLException
      */
-    public PeriodProcessor(Series s, SeriesConfig sc, Map<Long, String> c, Map<Date, GraphSeries> r) {
+    public InstanceCursor(Connection conn, Series s, SeriesConfig sc, int o, Date begin, Date end, boolean body, int size, PagePrefetcher prefetch) throws SQLException {
 
       series = s;
       config = sc;
-      comparisons = c;
-      result = r;
+      order = o;
+      withBody = body;
+      dbConn = conn;
+      configId = sc.getId();
+      endTime = new Timestamp(end.getTime());
+      pageSize = size;
+      prefetcher = prefetch;
+      lastCollected = new Timestamp(begin.getTime());
+
+      InstanceArchive archive = InstanceArchive.getArchive();
+
+      archived = archive != null ? archive.iterate(sc.getId(), begin, end) : null;
+
+      String instanceTableName = s.getInstanceTableName();
+      String linkTableName = s.getLinkTableName();
+
+      // the first query starts at the beginning of the interval, and each page
+      // after that starts after the last instance of the previous page
+      query =
+        "SELECT " + InstanceRecord.getSelectColumns(body) +
+        " FROM " + linkTableName + " link" +
+          " INNER JOIN " + instanceTableName + " instance ON link.incainstance_id = instance.incaid" +
+          " INNER JOIN incareport report ON instance.incareportid = report.incaid" +
+          " LEFT OUTER JOIN incacomparisonresult comparison ON comparison.incareportid = instance.incareportid" +
+            " AND comparison.incaseriesconfigid = link.incaseriesconfig_id" +
+        " WHERE link.incaseriesconfig_id = ?" +
+          " AND ( instance.incacollected > ?" +
+            " OR ( instance.incacollected = ? AND instance.incaid > ? ) )" +
+          " AND instance.incacollected <= ?" +
+        " ORDER BY instance.incacollected, instance.incaid, comparison.incaid DESC";
+
+      if (pageSize > 0)
+        setPage(readPage(conn, lastCollected, lastId));
+      else {
+        selectStmt = executeQuery(dbConn, lastCollected, lastId);
+
+        try {
+          rows = selectStmt.getResultSet();
+          haveRow = rows.next();
+        }
+        catch (SQLException sqlErr) {
+          selectStmt.close();
+
+          throw sqlErr;
+        }
+      }
     }
 
 
     /**
      *
-     * @param instance
-     * @param reports
+     * @return the current instance, or <code>null</code> if the cursor is exhausted
+     */
+    public InstanceRecord current() {
+
+      return current;
+    }
+
+    /**
+     * Moves the cursor to the next instance.
+     *
+     * @return <code>false</code> if there are no more instances
      * @throws Exception
      */
+    public boolean advance() throws Exception {
+
+      if (archived != null && archived.hasNext()) {
+        current = archived.next();
+
+        return true;
+      }
+
+      if (pageSize > 0) {
+        if (pageIndex >= page.instances.size() && page.more)
+          setPage(takeNextPage());
+
+        current = pageIndex < page.instances.size() ? page.instances.get(pageIndex++) : null;
+
+        return current != null;
+      }
+
+      if (!haveRow) {
+        current = null;
+
+        return false;
+      }
+
+      current = InstanceRecord.read(rows, 1, withBody);
+
+      // an instance whose report has been compared more than once appears in
+      // several rows; only the latest comparison result is used
+      do {
+        haveRow = rows.next();
+      } while (haveRow && rows.getLong(1) == current.instanceId);
+
+      return true;
+    }
+
+    /**
+     *
+     * @throws SQLException
+     */
     @Override
-    public void process(InstanceInfo instance, Map<Long, Report> reports) throws Exception {
+    public void close() throws SQLException {
+
+      if (nextPage != null) {
+        nextPage.cancel(true);
+        prefetcher.release();
+
+        nextPage = null;
+      }
+
+      if (selectStmt != null)
+        selectStmt.close();
+    }
+
+    /**
+     *
+     * @param conn
+     * @param afterCollected
+     * @param afterId
+     * @return
+     * @throws SQLException
+     */
+    private PreparedStatement executeQuery(Connection conn, Timestamp afterCollected, long afterId) throws SQLException {
+
+      PreparedStatement stmt = conn.prepareStatement(query);
+
+      try {
+        stmt.setFetchSize(pageSize > 0 ? Math.min(pageSize, FETCH_SIZE) : FETCH_SIZE);
+        stmt.setMaxRows(pageSize);
+        stmt.setLong(1, configId);
+        stmt.setTimestamp(2, afterCollected);
+        stmt.setTimestamp(3, afterCollected);
+        stmt.setLong(4, afterId);
+        stmt.setTimestamp(5, endTime);
+        stmt.execute();
+
+        return stmt;
+      }
+      catch (SQLException sqlErr) {
+        stmt.close();
+
+        throw sqlErr;
+      }
+    }
+
+    /**
+     * Reads the page of instances that follows the given instance and closes
+     * the query. A page ends after <code>pageSize</code> rows, which may cut
+     * off the extra rows of the last instance, but those are skipped by the
+     * query for the next page anyway. Only reads the fields that are set when
+     * the cursor is opened, so it may run on another thread.
+     *
+     * @param conn
+     * @param afterCollected the collection time of the last instance read
+     * @param afterId the id of the last instance read
+     * @return
+     * @throws SQLException
+     */
+    private Page readPage(Connection conn, Timestamp afterCollected, long afterId) throws SQLException {
+
+      Page result = new Page();
+
+      try (PreparedStatement stmt = executeQuery(conn, afterCollected, afterId)) {
+        ResultSet pageRows = stmt.getResultSet();
+        int numRows = 0;
+        boolean haveNext = pageRows.next();
+
+        while (haveNext) {
+          InstanceRecord instance = InstanceRecord.read(pageRows, 1, withBody);
+
+          result.instances.add(instance);
+
+          do {
+            numRows += 1;
+            haveNext = pageRows.next();
+          } while (haveNext && pageRows.getLong(1) == instance.instanceId);
+        }
+
+        result.more = numRows >= pageSize;
+      }
+
+      return result;
+    }
+
+    /**
+     * Makes a page the current one, and starts reading the page after it if
+     * there is one and the prefetcher allows it.
+     *
+     * @param next
+     */
+    private void setPage(Page next) {
+
+      page = next;
+      pageIndex = 0;
+
+      if (!page.instances.isEmpty()) {
+        InstanceRecord last = page.instances.get(page.instances.size() - 1);
+
+        lastCollected = new Timestamp(last.collected);
+        lastId = last.instanceId;
+      }
+
+      if (!page.more || prefetcher == null)
+        return;
+
+      final Timestamp afterCollected = lastCollected;
+      final long afterId = lastId;
+
+      nextPage = prefetcher.submit(new Callable<Page>() {
+        @Override
+        public Page call() throws Exception {
+          try (Connection conn = ConnectionManager.getConnectionSource().getConnection()) {
+            return readPage(conn, afterCollected, afterId);
+          }
+        }
+      });
+    }
+
+    /**
+     * Returns the page after the current one, waiting for it if it is being
+     * read ahead, or reading it now if it isn't.
+     *
+     * @return
+     * @throws Exception
+     */
+    private Page takeNextPage() throws Exception {
+
+      if (nextPage == null)
+        return readPage(dbConn, lastCollected, lastId);
 
-      Long reportId = instance.getReportId();
-      Date collected = instance.getCollected();
-      Report r = reports.get(reportId);
+      Future<Page> pending = nextPage;
+
+      nextPage = null;
+
+      try {
+        return pending.get();
+      }
+      catch (ExecutionException execErr) {
+        Throwable cause = execErr.getCause();
 
-      if (r == null) {
-        r = new Report(reportId);
+        if (cause instanceof Exception)
+          throw (Exception) cause;
 
-        reports.put(reportId, r);
+        throw execErr;
+      }
+      finally {
+        prefetcher.release();
       }
+    }
+  }
+
+  /**
+   * Limits the number of pages that the paged cursors of a request read ahead
+   * on the query executor to the executor's request limit, so that a request
+   * merging many cursors can't fill the executor's queue. Only used by the
+   * thread handling the request.
+   */
+  private static class PagePrefetcher {
+
+    private final QueryExecutor executor;
+    private int available;
+
+
+    /**
+     *
+     * @param e the executor that reads the pages
+     */
+    public PagePrefetcher(QueryExecutor e) {
+
+      executor = e;
+      available = e.getRequestLimit();
+    }
 
-      String cr = comparisons.get(reportId);
-      GraphSeries gs = GraphSeries.Factory.newInstance();
-      GraphInstance gi = gs.addNewObject();
+    /**
+     * Starts reading a page, if fewer than the limit are being read.
+     *
+     * @param task reads the page
+     * @return the page, or <code>null</code> if too many pages are being read
+     */
+    public <T> Future<T> submit(Callable<T> task) {
 
-      gi.setResource(series.getResource());
-      gi.setTargetHostname(series.getTargetHostname());
-      gi.setNickname(config.getNickname());
-      gi.setInstanceId(String.valueOf(instance.getId()));
-      gi.setReportId(reportId.toString());
-      gi.setConfigId(String.valueOf(config.getId()));
-      gi.setBody( AnyXmlSequence.Factory.parse(r.getBody(), (new XmlOptions()).setLoadStripWhitespace()) );
+      if (available <= 0)
+        return null;
 
-      Calendar cal = Calendar.getInstance();
+      Future<T> result = executor.submit(task);
 
-      cal.setTime(collected);
-      gi.setCollected(cal);
+      available -= 1;
 
-      String message = r.getExit_message();
-      boolean success = cr == null || cr.equals("\t") ? r.getExit_status() : cr.matches("^Success");
+      return result;
+    }
 
-      gi.setExitStatus(success ? "Success" : "Failure");
-      gi.setExitMessage(message == null || message.equals("\t") ? "" : message);
-      gi.setComparisonResult(cr == null ? "" : cr);
+    /**
+     * Called once a page returned by submit has been taken or cancelled.
+     */
+    public void release() {
 
-      result.put(collected, gs);
+      available += 1;
     }
   }
 
@@ -161,20 +489,17 @@ public class Query extends HibernateMessageHandler {
   private static class StatusProcessor implements InstanceProcessor {
 
     private int limitError;
-    private Map<Long, String> comparisons;
     private List<StatusCount> counts;
 
 
     /**
      *
      * @param limit
-     * @param cmps
      * @param cnts
      */
-    public StatusProcessor(int limit, Map<Long, String> cmps, List<StatusCount> cnts) {
+    public StatusProcessor(int limit, List<StatusCount> cnts) {
 
       limitError = limit;
-      comparisons = cmps;
       counts = cnts;
     }
 
@@ -182,24 +507,13 @@ public class Query extends HibernateMessageHandler {
     /**
      *
      * @param instance
-     * @param reports
      * @throws Exception
      */
     @Override
-    public void process(InstanceInfo instance, Map<Long, Report> reports) throws Exception {
-
-      Long reportId = instance.getReportId();
-      Date collected = instance.getCollected();
-      Report r = reports.get(reportId);
+    public void process(InstanceRecord instance) throws Exception {
 
-      if (r == null) {
-        r = new Report(reportId);
-
-        reports.put(reportId, r);
-      }
-
-      String message = r.getExit_message();
-      String comparison = comparisons.get(reportId);
+      String message = instance.exitMessage;
+      String comparison = instance.comparisonResult;
 
       if ((message == null || message.equals(Row.DB_EMPTY_STRING)) && comparison != null && !comparison.equals("Success"))
         message = comparison;
@@ -210,7 +524,7 @@ public class Query extends HibernateMessageHandler {
         message = message.substring(0, limitError);
 
       for (StatusCount status : counts) {
-        if (collected.getTime() < status.lowBound || collected.getTime() > status.highBound)
+        if (instance.collected < status.lowBound || instance.collected > status.highBound)
           continue;
 
         Long count = status.messageCounts.get(message);
@@ -264,11 +578,87 @@ public class Query extends HibernateMessageHandler {
     public final Set<String> targets = new TreeSet<String>();
   };
 
+  /**
+   * Passes output through to the client while keeping a copy of it for the
+   * query cache. The copy is dropped once it grows past the longest result
+   * the cache will accept, so a large result is streamed without being held
+   * in memory.
+   */
+  private static class CaptureWriter extends Writer {
+
+    private final Writer m_target;
+    private final long m_maxLength;
+    private StringBuilder m_captured = new StringBuilder();
+
+
+    // constructors
+
+
+    /**
+     *
+     * @param target the writer to the client
+     * @param maxLength the maximum number of characters to capture
+     */
+    public CaptureWriter(Writer target, long maxLength)
+    {
+      m_target = target;
+      m_maxLength = maxLength;
+    }
+
+
+    // public methods
+
+
+    @Override
+    public void write(char[] buffer, int offset, int length) throws IOException
+    {
+      m_target.write(buffer, offset, length);
+
+      if (m_captured == null)
+        return;
+
+      if (m_captured.length() + length > m_maxLength)
+        m_captured = null;
+      else
+        m_captured.append(buffer, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      m_target.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      flush();
+    }
+
+    /**
+     * Returns the output written so far.
+     *
+     * @return the output, or <code>null</code> if it was too long to keep
+     */
+    public String getCaptured()
+    {
+      return m_captured != null ? m_captured.toString() : null;
+    }
+  }
+
 
   private static Logger logger = Logger.getLogger(Query.class);
   private static final int FETCH_SIZE = 100;
+  private static final int BATCH_SIZE = 256;
+  private static final int MERGE_PAGE_SIZE = 100;
   private static final Statement S_FINISH =
     new Statement(Protocol.END_QUERY_RESULTS_COMMAND.toCharArray(), null);
+  private static final XMLInputFactory STAX_FACTORY = XMLInputFactory.newInstance();
+
+  static {
+    STAX_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    STAX_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+  }
 
   /**
    * Execute queries on the depot.
@@ -287,7 +677,6 @@ public class Query extends HibernateMessageHandler {
     Statement queryStatement = reader.readStatement();
     String cmd = new String(queryStatement.getCmd());
     String data = new String(queryStatement.getData());
-    StopWatch timer = new Log4JStopWatch(logger);
     try {
       if(cmd.equals(Protocol.QUERY_DB_COMMAND)) {
         getDbInfo(writer);
@@ -303,26 +692,28 @@ public class Query extends HibernateMessageHandler {
         getInstanceById(writer, data);
         writer.write(S_FINISH);
       } else if(cmd.equals(Protocol.QUERY_LATEST_COMMAND)) {
-        getLatestInstances(writer, data);
+        getCachedOutput(writer, cmd, data);
         writer.write(S_FINISH);
       } else if(cmd.equals(Protocol.QUERY_PERIOD_COMMAND)) {
         getPeriodInstances(writer, data);
         writer.write(S_FINISH);
+      } else if(cmd.equals(Protocol.QUERY_PERIOD_COLUMNS_COMMAND)) {
+        getPeriodColumns(writer, data);
+        writer.write(S_FINISH);
       } else if(cmd.equals(Protocol.QUERY_SQL_COMMAND)) {
         getSelectOutput(writer, data, false);
         writer.write(S_FINISH);
       } else if(cmd.equals(Protocol.QUERY_STATUS_COMMAND)) {
-        getStatusHistory(writer, data);
+        getCachedOutput(writer, cmd, data);
         writer.write(S_FINISH);
       } else if (cmd.equals(Protocol.QUERY_DEPOT_PEERS_COMMAND)) {
         getDepotPeerUris(writer);
-      } else if (cmd.equals(Protocol.QUERY_REPORTERS_COMMAND)) {
-        getReporterSeries(writer);
-      } else if (cmd.equals(Protocol.QUERY_REPORTERS_DETAIL_COMMAND)) {
-        getReporterSeriesDetail(writer);
+      } else if (cmd.equals(Protocol.QUERY_REPORTERS_COMMAND) ||
+                 cmd.equals(Protocol.QUERY_REPORTERS_DETAIL_COMMAND)) {
+        getCachedOutput(writer, cmd, data);
+      } else if (cmd.equals(Protocol.QUERY_CACHE_STATS_COMMAND)) {
+        getCacheStatistics(writer);
       }
-
-      timer.stop( cmd );
     } catch(Exception e) {
       e.printStackTrace();
       throw e;
@@ -330,6 +721,95 @@ public class Query extends HibernateMessageHandler {
 
   }
 
+  /**
+   * Runs one of the queries whose output can be cached, answering from the
+   * cache if an earlier identical request is still valid.
+   *
+   * @param writer Writer to the remote process making the request
+   * @param cmd the command of the request
+   * @param data the data of the request
+   * @throws Exception if trouble running the query
+   */
+  private void getCachedOutput(ProtocolWriter writer, String cmd, String data) throws Exception {
+
+    QueryCache cache = QueryCache.getCache();
+
+    if (cache == null) {
+      getUncachedOutput(writer, cmd, data, null);
+
+      return;
+    }
+
+    String cached = cache.get(cmd, data);
+
+    if (cached != null) {
+      writer.write(cached);
+      writer.flush();
+
+      return;
+    }
+
+    // QUERYREPORTERS reports the latest run of every config, so any insert
+    // changes it, while QUERYREPORTERSDETAIL only depends on the suites
+    Set<Long> configIds;
+
+    if (cmd.equals(Protocol.QUERY_REPORTERS_COMMAND))
+      configIds = null;
+    else if (cmd.equals(Protocol.QUERY_REPORTERS_DETAIL_COMMAND))
+      configIds = Collections.emptySet();
+    else
+      configIds = Collections.synchronizedSet(new HashSet<Long>());
+
+    long generation = cache.getGeneration();
+    CaptureWriter output = new CaptureWriter(writer, cache.getMaxTextLength());
+    ProtocolWriter capture = new ProtocolWriter(output);
+
+    try {
+      getUncachedOutput(capture, cmd, data, configIds);
+    }
+    finally {
+      capture.flush();
+    }
+
+    String text = output.getCaptured();
+
+    if (text != null)
+      cache.put(cmd, data, text, configIds, generation);
+  }
+
+  /**
+   *
+   * @param writer Writer to the remote process making the request
+   * @param cmd the command of the request
+   * @param data the data of the request
+   * @param configIds a set that receives the ids of the configs that the output is built from, or <code>null</code>
+   * @throws Exception if trouble running the query
+   */
+  private void getUncachedOutput(ProtocolWriter writer, String cmd, String data, Set<Long> configIds) throws Exception {
+
+    if (cmd.equals(Protocol.QUERY_LATEST_COMMAND))
+      getLatestInstances(writer, data, configIds);
+    else if (cmd.equals(Protocol.QUERY_STATUS_COMMAND))
+      getStatusHistory(writer, data, configIds);
+    else if (cmd.equals(Protocol.QUERY_REPORTERS_COMMAND))
+      getReporterSeries(writer);
+    else if (cmd.equals(Protocol.QUERY_REPORTERS_DETAIL_COMMAND))
+      getReporterSeriesDetail(writer);
+  }
+
+  /**
+   * Returns the hit rates and other statistics of the query cache.
+   *
+   * @param writer Writer to the remote process making the request
+   * @throws IOException
+   */
+  private void getCacheStatistics(ProtocolWriter writer) throws IOException {
+
+    QueryCache cache = QueryCache.getCache();
+
+    writer.write(Statement.getOkStatement(cache != null ? cache.getStatistics() : "disabled"));
+  }
+
   /**
    * Return XML that represents the structure of the database.
    *
@@ -608,9 +1088,11 @@ public class Query extends HibernateMessageHandler {
    * @param writer  Writer to the remote process making the request.
    * @param expr An HQL WHERE clause expression specifying the series of
    *             interest
+   * @param configIds a set that receives the ids of the selected configs, or
+   *             <code>null</code>
    * @throws Exception if trouble running query
    */
-  private void getLatestInstances(ProtocolWriter writer, String expr) throws Exception {
+  private void getLatestInstances(ProtocolWriter writer, String expr, Set<Long> configIds) throws Exception {
 
     try (Connection dbConn = ConnectionManager.getConnectionSource().getConnection()) {
       Iterator<Object> scList = getSelectedConfigs(dbConn, expr);
@@ -618,6 +1100,10 @@ public class Query extends HibernateMessageHandler {
 
       while (scList.hasNext()) {
         SeriesConfig sc = (SeriesConfig)scList.next();
+
+        if (configIds != null)
+          configIds.add(sc.getId());
+
         ComparisonResult cr = null;
         InstanceInfo ii = null;
         Report r = null;
@@ -689,10 +1175,137 @@ public class Query extends HibernateMessageHandler {
       }
 
       Iterator<Object> seriesList = getSelectedSeries(dbConn, pieces[2], false);
-      Map<Date, GraphSeries> result = new TreeMap<Date, GraphSeries>();
+      List<Series> selected = new ArrayList<Series>();
+
+      while (seriesList.hasNext())
+        selected.add((Series)seriesList.next());
+
+      // Open a cursor for each config and merge them by collection time, so
+      // that each GraphSeries can be sent as soon as it is built. Where more
+      // than one instance was collected at the same time, only the last one in
+      // series/config order is sent. The cursors read a page of instances at a
+      // time, so no query is held open however many configs are selected, and
+      // if there is a query executor the next pages are read ahead on it
+      QueryExecutor executor = QueryExecutor.getExecutor();
+      PagePrefetcher prefetcher = executor != null ? new PagePrefetcher(executor) : null;
+      List<InstanceCursor> cursors = new ArrayList<InstanceCursor>();
+      PriorityQueue<InstanceCursor> merge = new PriorityQueue<InstanceCursor>(11, new Comparator<InstanceCursor>() {
+        @Override
+        public int compare(InstanceCursor first, InstanceCursor second) {
+          long firstCollected = first.current().collected;
+          long secondCollected = second.current().collected;
+
+          if (firstCollected != secondCollected)
+            return firstCollected < secondCollected ? -1 : 1;
+
+          return first.order - second.order;
+        }
+      });
 
-      while (seriesList.hasNext()) {
-        Series s = (Series)seriesList.next();
+      try {
+        for (Series s : selected) {
+          SeriesConfig[] scSorted = new SeriesConfig[s.getSeriesConfigs().size()];
+          scSorted = s.getSeriesConfigs().toArray(scSorted);
+          Arrays.sort( scSorted );
+
+          for (SeriesConfig sc : scSorted ) {
+            if ( ! sc.getSchedule().getType().equals("cron") ) continue;
+
+            InstanceCursor cursor = new InstanceCursor(dbConn, s, sc, cursors.size(), begin, end, true, MERGE_PAGE_SIZE, prefetcher);
+
+            cursors.add(cursor);
+
+            if (cursor.advance())
+              merge.add(cursor);
+          }
+        }
+
+        // The merged instances are converted to GraphSeries documents, which
+        // requires parsing each report body, in parallel batches
+        Statement reply = new Statement(Protocol.QUERY_RESULT, null);
+        List<Callable<String>> batch = new ArrayList<Callable<String>>();
+        InstanceCursor pendingCursor = null;
+        InstanceRecord pending = null;
+
+        while (!merge.isEmpty()) {
+          InstanceCursor cursor = merge.poll();
+          InstanceRecord instance = cursor.current();
+
+          if (pending != null && pending.collected != instance.collected) {
+            batch.add(toGraphSeriesTask(pendingCursor, pending));
+
+            if (batch.size() >= BATCH_SIZE)
+              writeBatch(writer, reply, batch);
+          }
+
+          pendingCursor = cursor;
+          pending = instance;
+
+          if (cursor.advance())
+            merge.add(cursor);
+        }
+
+        if (pending != null)
+          batch.add(toGraphSeriesTask(pendingCursor, pending));
+
+        writeBatch(writer, reply, batch);
+      }
+      finally {
+        for (InstanceCursor cursor : cursors)
+          cursor.close();
+      }
+    }
+  }
+
+  /**
+   * Return the instances of all series selected by an HQL WHERE clause
+   * expression that were collected within a period, as one SeriesColumns
+   * per series config.  Unlike getPeriodInstances, the report bodies are only
+   * read if metrics are requested, and then only to extract their values.
+   *
+   * @param writer  Writer to the remote process making the request.
+   * @param request a space-separated string specifying the beginning and
+   *        ending timestamps, a comma-separated list of URL-encoded metric
+   *        names or "-", and an HQL WHERE clause expression that selects the
+   *        desired series.
+   * @throws Exception if trouble querying database
+   */
+  private void getPeriodColumns(ProtocolWriter writer, String request)
+    throws Exception {
+
+    String[] pieces = request.split(" ", 4);
+    if(pieces.length != 4) {
+      throw new ProtocolException
+      ("Expected 'begin end metrics expr', got '" + request + "'");
+    }
+    Date begin, end;
+    if(pieces[0].matches("^\\d+$")) {
+      begin = new Date(Long.parseLong(pieces[0]));
+    } else {
+      throw new ProtocolException("Bad value '" + pieces[0] + "' for begin");
+    }
+    if(pieces[1].matches("^\\d+$")) {
+      end = new Date(Long.parseLong(pieces[1]));
+    } else {
+      throw new ProtocolException("Bad value '" + pieces[1] + "' for end");
+    }
+    String[] metrics = pieces[2].equals("-") ? new String[0] : pieces[2].split(",");
+    for (int i = 0 ; i < metrics.length ; i += 1)
+      metrics[i] = URLDecoder.decode(metrics[i], "UTF-8");
+
+    try (Connection dbConn = ConnectionManager.getConnectionSource().getConnection()) {
+      dbConn.setAutoCommit(false);
+
+      Iterator<Object> seriesList = getSelectedSeries(dbConn, pieces[3], false);
+      List<Series> selected = new ArrayList<Series>();
+
+      while (seriesList.hasNext())
+        selected.add((Series)seriesList.next());
+
+      Statement reply = new Statement(Protocol.QUERY_RESULT, null);
+      boolean withBody = metrics.length > 0;
+
+      for (Series s : selected) {
         SeriesConfig[] scSorted = new SeriesConfig[s.getSeriesConfigs().size()];
         scSorted = s.getSeriesConfigs().toArray(scSorted);
         Arrays.sort( scSorted );
@@ -700,20 +1313,25 @@ public class Query extends HibernateMessageHandler {
         for (SeriesConfig sc : scSorted ) {
           if ( ! sc.getSchedule().getType().equals("cron") ) continue;
 
-          Map<Long, String> comparisons = getRelatedComparisons(sc.getId());
-
-          processRelatedInstances(sc, begin, end, new PeriodProcessor(s, sc, comparisons, result));
-        }
-      }
+          SeriesColumns columns = new SeriesColumns(sc.getNickname(), s.getResource(), s.getTargetHostname(), sc.getId(), metrics);
 
-      if (result.isEmpty())
-        return;
+          try (InstanceCursor cursor = new InstanceCursor(dbConn, s, sc, 0, begin, end, withBody)) {
+            while (cursor.advance()) {
+              InstanceRecord instance = cursor.current();
+              String cr = instance.comparisonResult;
+              String message = instance.exitMessage;
+              boolean success = cr == null || cr.equals("\t") ? instance.exitStatus : cr.matches("^Success");
+              float[] values = withBody ? getStatistics(instance.body, metrics) : null;
 
-      Statement reply = new Statement(Protocol.QUERY_RESULT, null);
+              columns.add(instance.collected, instance.instanceId, success,
+                message == null || message.equals("\t") ? "" : message,
+                cr == null ? "" : cr, values);
+            }
+          }
 
-      for (GraphSeries gs : result.values()) {
-        reply.setData(gs.xmlText().toCharArray());
-        writer.write(reply);
+          reply.setData(columns.toString().toCharArray());
+          writer.write(reply);
+        }
       }
     }
   }
@@ -726,10 +1344,12 @@ public class Query extends HibernateMessageHandler {
    * @param request a space-separated string specifying the period length,
    *   beginning and ending timestamps, and an HQL WHERE clause expression
    *   that selects the desired series.
+   * @param configIds a set that receives the ids of the selected configs, or
+   *   <code>null</code>
    * @throws Exception if trouble retrieving results
    *
    */
-  private void getStatusHistory(ProtocolWriter writer, String request)
+  private void getStatusHistory(ProtocolWriter writer, String request, final Set<Long> configIds)
     throws Exception {
 
     try (Connection dbConn = ConnectionManager.getConnectionSource().getConnection()) {
@@ -775,97 +1395,142 @@ public class Query extends HibernateMessageHandler {
         throw new ProtocolException("Bad value '" + pieces[2] + "' for end");
       }
       Iterator<Object> seriesList = getSelectedSeries(dbConn, pieces[3], true);
-      Statement reply = new Statement(Protocol.QUERY_RESULT, null);;
+      List<Callable<List<String>>> tasks = new ArrayList<Callable<List<String>>>();
+      final Date periodBegin = begin;
+      final Date periodEnd = end;
+      final long periodLength = periodInMillis;
+      final int limit = limitError;
 
       while (seriesList.hasNext()) {
-        Series series = (Series)seriesList.next();
+        final Series series = (Series)seriesList.next();
 
-        for (SeriesConfig sc : series.getSeriesConfigs()) {
-          Map<Long, String> comparisons = getRelatedComparisons(sc.getId());
+        tasks.add(new Callable<List<String>>() {
+          @Override
+          public List<String> call() throws Exception {
+            return getSeriesStatus(series, periodBegin, periodEnd, periodLength, limit, configIds);
+          }
+        });
+      }
 
-          StringBuilder xml = new StringBuilder();
-          xml.append("<series>\n");
+      // The counts for each series are computed in parallel, but sent in the
+      // order that the series were selected
+      Statement reply = new Statement(Protocol.QUERY_RESULT, null);
 
-          if ( sc.getSuites().size() == 1 &&
-              sc.getSuite(0).getName().equals(Protocol.IMMEDIATE_SUITE_NAME)) {
-            break;
-          }
-          for (Suite s : sc.getSuites()) {
-            if ( ! s.getName().equals(Protocol.IMMEDIATE_SUITE_NAME) ) {
-              xml.append("  <guid>");
-              xml.append(s.getGuid());
-              xml.append("</guid>\n");
-            }
+      try (QueryExecutor.Results<List<String>> results = QueryExecutor.execute(tasks)) {
+        while (results.hasNext()) {
+          for (String xml : results.next()) {
+            reply.setData(xml.toCharArray());
+            writer.write(reply);
           }
+        }
+      }
+    }
+  }
 
-          xml.append("  <nickname>");
-          xml.append(sc.getNickname());
-          xml.append("</nickname>\n");
-          xml.append("  <resource>");
-          xml.append(series.getResource());
-          xml.append("</resource>\n");
-          xml.append("  <targetHostname>");
-          xml.append(series.getTargetHostname());
-          xml.append("</targetHostname>\n");
+  /**
+   * Returns the XML describing the success/failure counts of each of the
+   * configs of a series over a given period.
+   *
+   * @param series the series
+   * @param begin the beginning of the period
+   * @param end the end of the period
+   * @param periodInMillis the length of each interval within the period
+   * @param limitError the maximum length of failure messages, or 0 for no limit
+   * @param configIds a set that receives the ids of the configs, or <code>null</code>
+   * @return a list of XML documents, one for each config
+   * @throws Exception if trouble retrieving results
+   */
+  private List<String> getSeriesStatus(Series series, Date begin, Date end, long periodInMillis, int limitError, Set<Long> configIds)
+    throws Exception {
 
-          List<StatusCount> counts = new ArrayList<StatusCount>();
+    List<String> result = new ArrayList<String>();
 
-          // For each period, from least recent to most recent ...
-          for (long lowBound = begin.getTime() ; lowBound <= end.getTime() ; lowBound += periodInMillis) {
-            long highBound = lowBound + periodInMillis - 1;
+    for (SeriesConfig sc : series.getSeriesConfigs()) {
+      StringBuilder xml = new StringBuilder();
+      xml.append("<series>\n");
 
-            counts.add(new StatusCount(lowBound, highBound));
-          }
+      if (configIds != null)
+        configIds.add(sc.getId());
 
-          processRelatedInstances(sc, begin, end, new StatusProcessor(limitError, comparisons, counts));
+      if ( sc.getSuites().size() == 1 &&
+          sc.getSuite(0).getName().equals(Protocol.IMMEDIATE_SUITE_NAME)) {
+        break;
+      }
+      for (Suite s : sc.getSuites()) {
+        if ( ! s.getName().equals(Protocol.IMMEDIATE_SUITE_NAME) ) {
+          xml.append("  <guid>");
+          xml.append(s.getGuid());
+          xml.append("</guid>\n");
+        }
+      }
 
-          for (StatusCount status : counts) {
-            // Add XML for the successes and failures in this period
-            xml.append("  <period>\n");
-            xml.append("    <begin>");
-            xml.append(status.lowBound);
-            xml.append("</begin>\n");
-            xml.append("    <end>");
-            xml.append(status.highBound);
-            xml.append("</end>\n");
+      xml.append("  <nickname>");
+      xml.append(sc.getNickname());
+      xml.append("</nickname>\n");
+      xml.append("  <resource>");
+      xml.append(series.getResource());
+      xml.append("</resource>\n");
+      xml.append("  <targetHostname>");
+      xml.append(series.getTargetHostname());
+      xml.append("</targetHostname>\n");
 
-            long successes = 0;
-            Long count = status.messageCounts.get("Success");
+      List<StatusCount> counts = new ArrayList<StatusCount>();
 
-            if (count != null) {
-              status.messageCounts.remove("Success");
-              successes += count;
-            }
+      // For each period, from least recent to most recent ...
+      for (long lowBound = begin.getTime() ; lowBound <= end.getTime() ; lowBound += periodInMillis) {
+        long highBound = lowBound + periodInMillis - 1;
 
-            count = status.messageCounts.get(Row.DB_EMPTY_STRING);
+        counts.add(new StatusCount(lowBound, highBound));
+      }
 
-            if (count != null) {
-              status.messageCounts.remove(Row.DB_EMPTY_STRING);
-              successes += count;
-            }
+      processRelatedInstances(series, sc, begin, end, new StatusProcessor(limitError, counts));
 
-            xml.append("    <success>");
-            xml.append(successes);
-            xml.append("</success>\n");
+      for (StatusCount status : counts) {
+        // Add XML for the successes and failures in this period
+        xml.append("  <period>\n");
+        xml.append("    <begin>");
+        xml.append(status.lowBound);
+        xml.append("</begin>\n");
+        xml.append("    <end>");
+        xml.append(status.highBound);
+        xml.append("</end>\n");
+
+        long successes = 0;
+        Long count = status.messageCounts.get("Success");
+
+        if (count != null) {
+          status.messageCounts.remove("Success");
+          successes += count;
+        }
 
-            for (String messageKey : status.messageCounts.keySet()) {
-              xml.append("    <failure><message>");
-              xml.append(XmlWrapper.escape(messageKey));
-              xml.append("</message><count>");
-              xml.append(status.messageCounts.get(messageKey));
-              xml.append("</count></failure>\n");
-            }
+        count = status.messageCounts.get(Row.DB_EMPTY_STRING);
 
-            xml.append("  </period>\n" );
-          }
+        if (count != null) {
+          status.messageCounts.remove(Row.DB_EMPTY_STRING);
+          successes += count;
+        }
 
-          xml.append("</series>");
+        xml.append("    <success>");
+        xml.append(successes);
+        xml.append("</success>\n");
 
-          reply.setData(xml.toString().toCharArray());
-          writer.write(reply);
+        for (String messageKey : status.messageCounts.keySet()) {
+          xml.append("    <failure><message>");
+          xml.append(XmlWrapper.escape(messageKey));
+          xml.append("</message><count>");
+          xml.append(status.messageCounts.get(messageKey));
+          xml.append("</count></failure>\n");
         }
+
+        xml.append("  </period>\n" );
       }
+
+      xml.append("</series>");
+
+      result.add(xml.toString());
     }
+
+    return result;
   }
 
   /**
@@ -1003,24 +1668,39 @@ public class Query extends HibernateMessageHandler {
       writer.write(Protocol.SUCCESS_COMMAND);
       writer.write(" <configs>");
 
-      try {
-        for (ConfigData data : seriesConfigs.values()) {
-          Iterator<Long> ids = data.instanceIds.iterator();
-          StringBuilder idList = new StringBuilder();
+      // The last run of each group of configs is read in parallel, but the
+      // groups are sent in order
+      List<Callable<ConfigData>> tasks = new ArrayList<Callable<ConfigData>>();
 
-          idList.append(ids.next());
+      for (final ConfigData data : seriesConfigs.values()) {
+        tasks.add(new Callable<ConfigData>() {
+          @Override
+          public ConfigData call() throws Exception {
+            Iterator<Long> ids = data.instanceIds.iterator();
+            StringBuilder idList = new StringBuilder();
 
-          while (ids.hasNext()) {
-            idList.append(", ");
             idList.append(ids.next());
-          }
 
-          List<Timestamp> dates = getCollectedDates(data.instanceTable, idList.toString());
+            while (ids.hasNext()) {
+              idList.append(", ");
+              idList.append(ids.next());
+            }
+
+            List<Timestamp> dates = getCollectedDates(data.instanceTable, idList.toString());
+
+            for (Timestamp collected : dates) {
+              if (collected.after(data.lastRun))
+                data.lastRun = collected;
+            }
 
-          for (Timestamp collected : dates) {
-            if (collected.after(data.lastRun))
-              data.lastRun = collected;
+            return data;
           }
+        });
+      }
+
+      try (QueryExecutor.Results<ConfigData> results = QueryExecutor.execute(tasks)) {
+        while (results.hasNext()) {
+          ConfigData data = results.next();
 
           StringBuilder resources = new StringBuilder();
 
@@ -1332,81 +2012,222 @@ public class Query extends HibernateMessageHandler {
   }
 
   /**
-   * Returns a list of ComparisonResult objects generated by a given set of
-   * SeriesConfig objects.
-   *
-   * @param configId the id of a SeriesConfig
+   * Handle the related instances for the provided reports within a specified
+   * time interval. Instances that have been moved to the archive are handled
+   * first, followed by those still held in the instance table of the series.
    *
-   * @return Map where the keys are report ids and the values are the
-   *         result
+   * @param series the Series of the SeriesConfig
+   * @param sc a SeriesConfig for which we need to fetch instances
+   * @param begin the begin time expressed as a Date object
+   * @param end the end time expressed as a Date object
+   * @param processor
    *
-   * @throws SQLException
-   * @throws PersistenceException on DB error
+   * @throws Exception if trouble executing query
    */
-  private Map<Long, String> getRelatedComparisons(long configId) throws SQLException, PersistenceException {
+  private void processRelatedInstances(Series series, SeriesConfig sc, Date begin, Date end, InstanceProcessor processor) throws Exception {
 
     try (Connection dbConn = ConnectionManager.getConnectionSource().getConnection()) {
-      StopWatch timer = new Log4JStopWatch(logger);
-      String query = "SELECT cr.reportId, cr.result FROM ComparisonResult cr " +
-          "WHERE cr.seriesConfigId = " + configId;
-      // execute query and parse results
-      Iterator<Object> crList = (new HqlQuery(query)).select(dbConn);
-      Map<Long, String> crResultsByReportId = new HashMap<Long, String>();
-      while (crList.hasNext()) {
-        Object[] info = (Object[])crList.next();
-        crResultsByReportId.put( (Long)info[0], (String)info[1] );
+      dbConn.setAutoCommit(false);
+
+      try (InstanceCursor cursor = new InstanceCursor(dbConn, series, sc, 0, begin, end, false)) {
+        while (cursor.advance())
+          processor.process(cursor.current());
       }
-      timer.lap("getRelatedComparisons", "numCRs=" + crResultsByReportId.size());
-      return crResultsByReportId;
     }
   }
 
   /**
-   * Handle the related instances for the provided reports within a specified
-   * time interval
+   * Creates the GraphSeries sent in response to a period query for an
+   * instance.
    *
-   * @param sc a SeriesConfig for which we need to fetch instances
-   * @param begin the begin time expressed as a Date object
-   * @param end the end time expressed as a Date object
-   * @param processor
+   * @param series the Series of the instance
+   * @param config the SeriesConfig of the instance
+   * @param instance the instance
+   * @return the GraphSeries for the instance
+   * @throws XmlException
+   */
+  private static GraphSeries toGraphSeries(Series series, SeriesConfig config, InstanceRecord instance) throws XmlException {
+
+    String cr = instance.comparisonResult;
+    GraphSeries gs = GraphSeries.Factory.newInstance();
+    GraphInstance gi = gs.addNewObject();
+
+    gi.setResource(series.getResource());
+    gi.setTargetHostname(series.getTargetHostname());
+    gi.setNickname(config.getNickname());
+    gi.setInstanceId(String.valueOf(instance.instanceId));
+    gi.setReportId(String.valueOf(instance.reportId));
+    gi.setConfigId(String.valueOf(config.getId()));
+    gi.setBody( AnyXmlSequence.Factory.parse(instance.body, (new XmlOptions()).setLoadStripWhitespace()) );
+
+    Calendar cal = Calendar.getInstance();
+
+    cal.setTimeInMillis(instance.collected);
+    gi.setCollected(cal);
+
+    String message = instance.exitMessage;
+    boolean success = cr == null || cr.equals("\t") ? instance.exitStatus : cr.matches("^Success");
+
+    gi.setExitStatus(success ? "Success" : "Failure");
+    gi.setExitMessage(message == null || message.equals("\t") ? "" : message);
+    gi.setComparisonResult(cr == null ? "" : cr);
+
+    return gs;
+  }
+
+  /**
+   * Extracts the values of statistics from a report body, as found by the
+   * xpaths the consumer graphs use: an attribute named after the metric on a
+   * statistics element or on an element directly inside the body, or the
+   * value of a statistic element with the metric as its ID.
    *
-   * @return the results expressed as a list of InstanceInfo objects
+   * @param body the XML text of the report body
+   * @param metrics the names of the statistics
+   * @return the value of each statistic, or NaN if the body has none
+   */
+  private static float[] getStatistics(String body, String[] metrics) {
+
+    float[] values = new float[metrics.length];
+
+    Arrays.fill(values, Float.NaN);
+
+    if (body == null)
+      return values;
+
+    // attribute names can only contain word characters
+    String[] attributes = new String[metrics.length];
+
+    for (int i = 0 ; i < metrics.length ; i += 1)
+      attributes[i] = metrics[i].replaceAll("[^\\w_-]", "").replaceAll("^\\d", "_");
+
+    try {
+      XMLStreamReader reader = STAX_FACTORY.createXMLStreamReader(new StringReader(body));
+      List<String> path = new ArrayList<String>();
+      int offset = 0;
+      int statisticDepth = -1;
+      String statisticId = null;
+      String statisticValue = null;
+
+      try {
+        while (reader.hasNext()) {
+          int event = reader.next();
+
+          if (event == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            String parent = path.isEmpty() ? null : path.get(path.size() - 1);
+
+            // bodies with more than one element are wrapped in an xml-fragment
+            if (path.isEmpty() && name.equals("xml-fragment"))
+              offset = 1;
+
+            path.add(name);
+
+            if (name.equals("statistics") || path.size() - offset == 1) {
+              for (int i = 0 ; i < metrics.length ; i += 1) {
+                if (Float.isNaN(values[i]))
+                  values[i] = parseValue(reader.getAttributeValue(null, attributes[i]));
+              }
+            }
+
+            if (name.equals("statistic") && "statistics".equals(parent)) {
+              statisticDepth = path.size();
+              statisticId = null;
+              statisticValue = null;
+            }
+            else if (statisticDepth > 0 && path.size() == statisticDepth + 1) {
+              if (name.equals("ID"))
+                statisticId = reader.getElementText().trim();
+              else if (name.equals("value"))
+                statisticValue = reader.getElementText();
+
+              if (name.equals("ID") || name.equals("value"))
+                path.remove(path.size() - 1);
+            }
+          }
+          else if (event == XMLStreamConstants.END_ELEMENT) {
+            if (path.size() == statisticDepth) {
+              for (int i = 0 ; i < metrics.length ; i += 1) {
+                if (Float.isNaN(values[i]) && metrics[i].equals(statisticId))
+                  values[i] = parseValue(statisticValue);
+              }
+
+              statisticDepth = -1;
+            }
+
+            path.remove(path.size() - 1);
+          }
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch (XMLStreamException xmlErr) {
+      logger.warn("Unable to read statistics from report body: " + xmlErr.getMessage());
+    }
+
+    return values;
+  }
+
+  /**
+   * Parses the value of a statistic.
    *
-   * @throws Exception if trouble executing query
+   * @param value the text of the value, or <code>null</code>
+   * @return the value, or NaN if there is none or it is not a number
    */
-  private void processRelatedInstances(SeriesConfig sc, Date begin, Date end, InstanceProcessor processor) throws Exception {
+  private static float parseValue(String value) {
 
-    Series s = sc.getSeries();
-    String instanceTableName = s.getInstanceTableName();
-    String linkTableName = s.getLinkTableName();
+    if (value == null)
+      return Float.NaN;
 
-    try (Connection dbConn = ConnectionManager.getConnectionSource().getConnection();
-         PreparedStatement selectStmt = dbConn.prepareStatement(
-           "SELECT instanceid " +
-           "FROM " + linkTableName +
-           " INNER JOIN (" +
-               "SELECT incaid AS instanceId " +
-               "FROM " + instanceTableName +
-               " WHERE incacollected >= ? " +
-               "AND incacollected <= ?" +
-             ") AS instances ON " + linkTableName + ".incainstance_id = instances.instanceid " +
-           "WHERE " + linkTableName + ".incaseriesconfig_id = ?"
-    )) {
-      selectStmt.setFetchSize(FETCH_SIZE);
-      selectStmt.setTimestamp(1, new Timestamp(begin.getTime()));
-      selectStmt.setTimestamp(2, new Timestamp(end.getTime()));
-      selectStmt.setLong(3, sc.getId());
+    try {
+      return Float.parseFloat(value.trim());
+    }
+    catch (NumberFormatException numErr) {
+      return Float.NaN;
+    }
+  }
 
-      ResultSet rows = selectStmt.executeQuery();
+  /**
+   * Returns a task that creates the XML text of the GraphSeries sent in
+   * response to a period query for an instance.
+   *
+   * @param cursor the cursor that produced the instance
+   * @param instance the instance
+   * @return a task that returns the XML text of the GraphSeries
+   */
+  private static Callable<String> toGraphSeriesTask(final InstanceCursor cursor, final InstanceRecord instance) {
+
+    final Series series = cursor.series;
+    final SeriesConfig config = cursor.config;
 
-      Map<Long, Report> reports = new TreeMap<Long, Report>();
+    return new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return toGraphSeries(series, config, instance).xmlText();
+      }
+    };
+  }
 
-      while (rows.next()) {
-        InstanceInfo instance = new InstanceInfo(s, rows.getLong(1));
+  /**
+   * Runs a batch of tasks that each produce a query result, writes the
+   * results in order, and empties the batch.
+   *
+   * @param writer Writer to the remote process making the request
+   * @param reply the statement used to send each result
+   * @param batch the tasks
+   * @throws Exception
+   */
+  private static void writeBatch(ProtocolWriter writer, Statement reply, List<Callable<String>> batch) throws Exception {
 
-        processor.process(instance, reports);
+    try (QueryExecutor.Results<String> results = QueryExecutor.execute(batch)) {
+      while (results.hasNext()) {
+        reply.setData(results.next().toCharArray());
+        writer.write(reply);
       }
     }
+
+    batch.clear();
   }
 
   /**
@@ -1472,7 +2293,7 @@ public class Query extends HibernateMessageHandler {
    * @return
    * @throws SQLException
    */
-  private List<Timestamp> getCollectedDates(String tableName, String idList) throws SQLException {
+  private static List<Timestamp> getCollectedDates(String tableName, String idList) throws SQLException {
 
     try (Connection dbConn = ConnectionManager.getConnectionSource().getConnection();
          PreparedStatement selectStmt = dbConn.prepareStatement(
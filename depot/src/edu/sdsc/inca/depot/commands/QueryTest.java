@@ -16,6 +16,8 @@ import edu.sdsc.inca.depot.persistent.Suite;
 import edu.sdsc.inca.protocol.MessageHandler;
 import edu.sdsc.inca.protocol.Protocol;
 import edu.sdsc.inca.protocol.ProtocolReader;
+import edu.sdsc.inca.protocol.Statement;
+import edu.sdsc.inca.util.SeriesColumns;
 
 
 public class QueryTest extends PersistentTest {
@@ -175,7 +177,7 @@ public class QueryTest extends PersistentTest {
   protected static final int SEQUENTIAL_CONFIG_COUNT = 3;
   protected static final String SEQUENTIAL_ERROR_MESSAGE = "Generic error";
   protected static final String SEQUENTIAL_SUITE_GUID = "aSuite";
-  protected static final int SEQUENTIAL_TEST_COUNT = 4;
+  protected static final int SEQUENTIAL_TEST_COUNT = 5;
   /**
    * Inserts into the DB hourly reports for 14 days for each series config,
    * i.e., 336 instances.  The ending time for each run is equal to (15 +
@@ -296,6 +298,51 @@ public class QueryTest extends PersistentTest {
 
   }
 
+  public void testGetPeriodColumns() throws Exception  {
+
+    Calendar end = Calendar.getInstance();
+    end.setTimeInMillis(TWO_WEEKS_END.getTimeInMillis() - MILLIS_IN_A_DAY * 3L);
+    Calendar start = Calendar.getInstance();
+    start.setTimeInMillis(end.getTimeInMillis() - MILLIS_IN_A_DAY * 7L);
+
+    String reply = execHandler(new Query(),
+      Protocol.QUERY_PERIOD_COLUMNS_COMMAND + " " +
+      start.getTimeInMillis() + " " + end.getTimeInMillis() + " some " +
+      "suite.guid = '" + SEQUENTIAL_SUITE_GUID + "'" + CRLF
+    );
+
+    ProtocolReader reader = new ProtocolReader(new StringReader(reply));
+    int configCount = 0;
+    for(Statement result = reader.readStatement();
+        result != null && Protocol.QUERY_RESULT.equals(new String(result.getCmd()));
+        result = reader.readStatement()) {
+      SeriesColumns columns = SeriesColumns.parse(new String(result.getData()));
+      assertEquals(24 * 7, columns.getSize());
+      assertTrue(columns.getNickname().startsWith("sc nickname "));
+      long[] collected = columns.getCollected();
+      for(int i = 1; i < columns.getSize(); i++) {
+        assertEquals(MILLIS_IN_AN_HOUR, collected[i] - collected[i - 1]);
+      }
+      int failures = 0;
+      for(int i = 0; i < columns.getSize(); i++) {
+        if(!columns.getSuccess()[i]) {
+          failures++;
+        }
+      }
+      if(columns.getNickname().endsWith(" 0")) {
+        assertEquals(7, failures);
+      } else if(columns.getNickname().endsWith(" 1")) {
+        assertEquals(0, failures);
+      } else {
+        assertEquals(24 * 7, failures);
+      }
+      assertTrue(Float.isNaN(columns.getMetricValues("some")[0]));
+      configCount++;
+    }
+    assertEquals(SEQUENTIAL_CONFIG_COUNT, configCount);
+
+  }
+
   public void testSuccessHistory() throws Exception  {
 
     // Ask for a monthly summary ...
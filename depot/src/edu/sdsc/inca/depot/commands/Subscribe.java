@@ -0,0 +1,94 @@
+/*
+ * Subscribe.java
+ */
+package edu.sdsc.inca.depot.commands;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.log4j.Logger;
+
+import edu.sdsc.inca.protocol.MessageHandler;
+import edu.sdsc.inca.protocol.Protocol;
+import edu.sdsc.inca.protocol.ProtocolReader;
+import edu.sdsc.inca.protocol.ProtocolWriter;
+import edu.sdsc.inca.protocol.Statement;
+import edu.sdsc.inca.depot.util.InsertEvents;
+
+
+/**
+ * Handles the SUBSCRIBE command. Streams insert events (see InsertEvents) to
+ * the client until the client closes the connection, the subscription is
+ * lost, or the depot shuts down. The connection stays with this handler for
+ * the life of the subscription, and a PING is sent whenever no event has been
+ * published for HEARTBEAT_PERIOD so that both ends can detect a dead
+ * connection.
+ */
+public class Subscribe extends MessageHandler {
+
+  // data fields
+
+
+  public static final long HEARTBEAT_PERIOD = 30000;
+  private static final Logger m_logger = Logger.getLogger(Subscribe.class);
+
+
+  // public methods
+
+
+  /**
+   *
+   * @param reader the reader connected to the client
+   * @param output the output stream connected to the client
+   * @param dn the DN of the client, null if no authentication
+   * @throws Exception
+   */
+  public void execute(ProtocolReader reader, OutputStream output, String dn) throws Exception
+  {
+    reader.readStatement();
+
+    ProtocolWriter writer = new ProtocolWriter(output);
+    InsertEvents.Subscription subscription = InsertEvents.subscribe();
+
+    m_logger.info("Client " + (dn == null ? "anonymous" : dn) + " subscribed to insert events");
+
+    try {
+      writer.write(Statement.getOkStatement(""));
+
+      while (!Thread.currentThread().isInterrupted()) {
+        String event = subscription.nextEvent(HEARTBEAT_PERIOD);
+
+        if (subscription.isLost()) {
+          writer.write(Statement.getErrorStatement("insert events were dropped"));
+
+          break;
+        }
+
+        if (event != null)
+          writer.write(new Statement(Protocol.INSERTED_EVENT_COMMAND, event));
+        else
+          writer.write(new Statement(Protocol.PING_COMMAND, ""));
+      }
+    }
+    catch (InterruptedException interruptErr) {
+      m_logger.debug("Insert event subscription interrupted");
+
+      Thread.currentThread().interrupt();
+    }
+    catch (IOException ioErr) {
+      m_logger.debug("Insert event subscriber disconnected: " + ioErr.getMessage());
+    }
+    finally {
+      subscription.cancel();
+
+      try {
+        writer.close();
+        reader.close();
+      }
+      catch (IOException ioErr) {
+        // the subscriber is already gone
+      }
+    }
+  }
+}
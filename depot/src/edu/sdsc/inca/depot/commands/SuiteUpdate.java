@@ -20,6 +20,7 @@ import edu.sdsc.inca.depot.DelayedWork;
 import edu.sdsc.inca.depot.DepotPeerClient;
 import edu.sdsc.inca.depot.persistent.*;
 import edu.sdsc.inca.depot.util.HibernateMessageHandler;
+import edu.sdsc.inca.depot.util.QueryCache;
 import edu.sdsc.inca.protocol.MessageHandler;
 import edu.sdsc.inca.protocol.Protocol;
 import edu.sdsc.inca.protocol.ProtocolException;
@@ -255,6 +256,11 @@ public class SuiteUpdate extends HibernateMessageHandler implements DelayedWork
     }
     dbSuite.save();
 
+    // configs may have been added, removed or renamed, which changes the
+    // selection of every cached query
+    if (QueryCache.getCache() != null)
+      QueryCache.getCache().invalidateAll();
+
     return dbSuite.getVersion();
   }
 }
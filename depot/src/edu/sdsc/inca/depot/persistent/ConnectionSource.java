@@ -46,6 +46,17 @@ public abstract class ConnectionSource {
    */
   public abstract void close();
 
+  /**
+   * Returns the largest number of connections that the data source will have
+   * open at once, or 0 if the data source doesn't impose a limit.
+   *
+   * @return the maximum number of open connections
+   */
+  public int getMaximumConnections()
+  {
+    return 0;
+  }
+
   /**
    * Returns a set of database properties from the resource located at <code>DATABASE_CONFIG_FILE</code>.
    *
@@ -74,4 +74,13 @@ public class HikariCPConnectionSource extends ConnectionSource {
   {
     m_dataSource.close();
   }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getMaximumConnections()
+  {
+    return m_dataSource.getMaximumPoolSize();
+  }
 }
@@ -0,0 +1,186 @@
+/*
+ * InstanceRecord.java
+ */
+package edu.sdsc.inca.depot.persistent;
+
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+
+/**
+ * A flattened, read-only view of an instance of a series config, holding the
+ * instance columns together with the exit status, message and body of its
+ * report and the comparison result computed for the config. Used where
+ * instances are read in bulk, either from the live per-series tables or from
+ * the archive, without constructing full <code>InstanceInfo</code> and
+ * <code>Report</code> rows.
+ */
+public class InstanceRecord implements Comparable<InstanceRecord> {
+
+  // data fields
+
+
+  public final long instanceId;
+  public final long collected;
+  public final float memoryUsageMB;
+  public final float cpuUsageSec;
+  public final float wallClockTimeSec;
+  public final long reportId;
+  public final boolean exitStatus;
+  public final String exitMessage;
+  public final String body;
+  public final String comparisonResult;
+
+
+  // constructors
+
+
+  /**
+   *
+   * @param instanceId
+   * @param collected
+   * @param memoryUsageMB
+   * @param cpuUsageSec
+   * @param wallClockTimeSec
+   * @param reportId
+   * @param exitStatus
+   * @param exitMessage
+   * @param body
+   * @param comparisonResult
+   */
+  public InstanceRecord(long instanceId, long collected, float memoryUsageMB, float cpuUsageSec, float wallClockTimeSec,
+                        long reportId, boolean exitStatus, String exitMessage, String body, String comparisonResult)
+  {
+    this.instanceId = instanceId;
+    this.collected = collected;
+    this.memoryUsageMB = memoryUsageMB;
+    this.cpuUsageSec = cpuUsageSec;
+    this.wallClockTimeSec = wallClockTimeSec;
+    this.reportId = reportId;
+    this.exitStatus = exitStatus;
+    this.exitMessage = exitMessage;
+    this.body = body;
+    this.comparisonResult = comparisonResult;
+  }
+
+
+  // public methods
+
+
+  /**
+   * Returns the select list, for a query that joins an instance table aliased
+   * as <code>instance</code>, the report table aliased as <code>report</code>
+   * and the comparison result table aliased as <code>comparison</code>, that
+   * produces the columns read by {@link #read(ResultSet, int, boolean) read}.
+   *
+   * @param withBody whether or not to select the body of the report
+   * @return a comma separated list of columns
+   */
+  public static String getSelectColumns(boolean withBody)
+  {
+    return "instance.incaid, instance.incacollected, instance.incamemoryusagemb, " +
+      "instance.incacpuusagesec, instance.incawallclocktimesec, instance.incareportid, " +
+      "report.incaexit_status, report.incaexit_message, comparison.incaresult" +
+      (withBody ? ", report.incabodypart1, report.incabodypart2, report.incabodypart3" : "");
+  }
+
+  /**
+   * Creates a record from the current row of a result set that contains the
+   * columns returned by {@link #getSelectColumns(boolean) getSelectColumns}.
+   *
+   * @param rows the result set
+   * @param column the offset of the first column
+   * @param withBody whether or not the body of the report was selected
+   * @return a new record
+   * @throws SQLException
+   */
+  public static InstanceRecord read(ResultSet rows, int column, boolean withBody) throws SQLException
+  {
+    String body = null;
+
+    if (withBody)
+      body = joinBody(rows.getString(column + 9), rows.getString(column + 10), rows.getString(column + 11));
+
+    return new InstanceRecord(
+      rows.getLong(column),
+      rows.getTimestamp(column + 1).getTime(),
+      rows.getFloat(column + 2),
+      rows.getFloat(column + 3),
+      rows.getFloat(column + 4),
+      rows.getLong(column + 5),
+      rows.getBoolean(column + 6),
+      rows.getString(column + 7),
+      body,
+      rows.getString(column + 8)
+    );
+  }
+
+  /**
+   * Joins the body parts of a report as they are stored in the database.
+   *
+   * @param part1
+   * @param part2
+   * @param part3
+   * @return
+   */
+  public static String joinBody(String part1, String part2, String part3)
+  {
+    StringBuilder result = new StringBuilder(part1 != null ? part1 : Row.DB_EMPTY_STRING);
+
+    if (part2 != null && !part2.equals(Row.DB_EMPTY_STRING))
+      result.append(part2);
+
+    if (part3 != null && !part3.equals(Row.DB_EMPTY_STRING))
+      result.append(part3);
+
+    return result.toString();
+  }
+
+  /**
+   * Orders records by collection time, then by instance id.
+   *
+   * @param other
+   * @return
+   */
+  @Override
+  public int compareTo(InstanceRecord other)
+  {
+    if (collected != other.collected)
+      return collected < other.collected ? -1 : 1;
+
+    if (instanceId != other.instanceId)
+      return instanceId < other.instanceId ? -1 : 1;
+
+    return 0;
+  }
+
+  /**
+   *
+   * @param other
+   * @return
+   */
+  @Override
+  public boolean equals(Object other)
+  {
+    if (this == other)
+      return true;
+
+    if (!(other instanceof InstanceRecord))
+      return false;
+
+    InstanceRecord otherRecord = (InstanceRecord) other;
+
+    return instanceId == otherRecord.instanceId && collected == otherRecord.collected;
+  }
+
+  /**
+   *
+   * @return
+   */
+  @Override
+  public int hashCode()
+  {
+    return 29 * (int) (instanceId ^ (instanceId >>> 32)) + (int) (collected ^ (collected >>> 32));
+  }
+}
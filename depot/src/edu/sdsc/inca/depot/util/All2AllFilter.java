@@ -3,9 +3,19 @@ package edu.sdsc.inca.depot.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import org.apache.log4j.Logger;
@@ -21,17 +31,29 @@ import org.apache.log4j.Logger;
  * not be at fault if the summary property that matches their nickname
  * has failed.
  *
+ * The summaries are kept in memory, so one instance of the filter is shared
+ * by all the threads in a report filter chain.  Changes are written to the
+ * summary file in the background every inca.summaryFlush seconds (60 by
+ * default) and when the depot shuts down.
+ *
  */
-public class All2AllFilter extends edu.sdsc.inca.depot.util.ReportFilter {
+public class All2AllFilter extends edu.sdsc.inca.depot.util.ReportFilter
+  implements ReportFilterChain.Stage, Flushable {
 
   private static Logger logger = Logger.getLogger(All2AllFilter.class);
   private static String summaryFilename = null;
   private static final Pattern all2allPattern =
     Pattern.compile("nickname=all2all:(.*_to_.[^\\s]*)");
-  private static final Pattern downPattern =
-    Pattern.compile(".*<errorMessage>DOWNTIME:.*",Pattern.MULTILINE);
   private static final Pattern successPattern =
     Pattern.compile("<ID>all2all:(.*?)-success</ID>\\s*<value>(.*?)</value>");
+  private static final Pattern failPattern =
+    Pattern.compile("<ID>all2all:(.*?)-fail</ID>\\s*<value>(.*?)</value>");
+  private static final String ERROR_TAG = "<errorMessage>";
+  private static final String DOWN_PREFIX = "DOWNTIME:";
+  private static final String NOT_AT_FAULT_PREFIX = "NOT_AT_FAULT: ";
+  private static final Map<String,String> summaries =
+    new ConcurrentHashMap<String,String>();
+  private static final AtomicBoolean summariesChanged = new AtomicBoolean();
 
   static {
     summaryFilename = System.getProperty("inca.summaryFile");
@@ -51,6 +73,23 @@ public class All2AllFilter extends edu.sdsc.inca.depot.util.ReportFilter {
         logger.error("Can't create " + summaryFilename + ": " + e);
       }
     }
+    for(Map.Entry<Object,Object> entry : getSummaries().entrySet()) {
+      summaries.put((String)entry.getKey(), (String)entry.getValue());
+    }
+    String flush = System.getProperty("inca.summaryFlush");
+    long flushSecs = flush == null ? 60 : Long.parseLong(flush);
+    ScheduledThreadPoolExecutor flusher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "All2AllSummaryFlush");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    flusher.scheduleWithFixedDelay(new Runnable() {
+      public void run() {
+        flushSummaries();
+      }
+    }, flushSecs, flushSecs, TimeUnit.SECONDS);
   }
 
   /**
@@ -66,11 +105,16 @@ public class All2AllFilter extends edu.sdsc.inca.depot.util.ReportFilter {
    *    (num over threshold can't reach)
    *
    */
-  synchronized static Properties getSummaries()  {
+  static Properties getSummaries()  {
     Properties summaries = new Properties();
     if(summaryFilename != null) {
       try {
-        summaries.load(new FileInputStream(summaryFilename));
+        InputStream in = new FileInputStream(summaryFilename);
+        try {
+          summaries.load(in);
+        } finally {
+          in.close();
+        }
       } catch(IOException e) {
         logger.error("Can't load properties file:" + e);
       }
@@ -87,12 +131,37 @@ public class All2AllFilter extends edu.sdsc.inca.depot.util.ReportFilter {
       return;
     }
     try {
-      props.store(new FileOutputStream(summaryFilename), null);
+      OutputStream out = new FileOutputStream(summaryFilename);
+      try {
+        props.store(out, null);
+      } finally {
+        out.close();
+      }
     } catch (IOException e) {
       logger.error("Can't write to file: " + e);
     }
   }
 
+  /**
+   * Writes the in-memory summaries to the summary file if they have changed
+   * since they were last written.
+   */
+  public static void flushSummaries() {
+    if(!summariesChanged.getAndSet(false)) {
+      return;
+    }
+    Properties props = new Properties();
+    props.putAll(summaries);
+    writeSummaries(props);
+  }
+
+  /**
+   * Writes the in-memory summaries to the summary file.
+   */
+  public void flush() {
+    flushSummaries();
+  }
+
   /**
    * Writes results to properties file if name is summary.successpct.performance
    *
@@ -101,51 +170,99 @@ public class All2AllFilter extends edu.sdsc.inca.depot.util.ReportFilter {
    * @return  string with depot report (reporter Stdout)
    */
   public String getStdout() {
-    Matcher isA2A = all2allPattern.matcher(super.getContext());
-    Matcher isDown = downPattern.matcher(super.getStdout());
     String stdout = super.getStdout();
-    if(!isA2A.find() || isDown.find()) {
+    int offset = stdout.indexOf(ERROR_TAG);
+    if(offset >= 0) {
+      offset += ERROR_TAG.length();
+    }
+    boolean isDown = offset >= 0 && stdout.startsWith(DOWN_PREFIX, offset);
+    if(isDown || !filterReport(super.getContext(), stdout, super.getResource())
+       || offset < 0) {
       return stdout;
     }
+    return stdout.substring(0, offset) + NOT_AT_FAULT_PREFIX +
+      stdout.substring(offset);
+  }
+
+  /**
+   * Records the results of a summary.successpct.performance report, or marks
+   * the error message of an all2all report whose resource is not at fault.
+   *
+   * @param report  the report to filter
+   *
+   * @return  true; reports are never suppressed
+   */
+  public boolean filter(FilteredReport report) {
+    if(report.getContext().indexOf("nickname=all2all:") < 0) {
+      return true;
+    }
+    int offset = report.indexOfStdout(ERROR_TAG);
+    if(offset >= 0) {
+      offset += ERROR_TAG.length();
+    }
+    boolean isDown =
+      offset >= 0 && report.stdoutStartsWith(DOWN_PREFIX, offset);
+    if(!isDown && filterReport
+         (report.getContext(), report.getStdout(), report.getResource())
+       && offset >= 0) {
+      report.insertStdout(offset, NOT_AT_FAULT_PREFIX);
+    }
+    return true;
+  }
+
+  /**
+   * Records the results of a summary report that is not in downtime, or
+   * checks whether the resource of an all2all report is at fault.
+   *
+   * @param context  the context of the report
+   * @param stdout  the report XML
+   * @param resource  the resource the report ran on
+   *
+   * @return  true if the error message of the report should be marked
+   *          NOT_AT_FAULT
+   */
+  private static boolean filterReport
+    (String context, String stdout, String resource) {
+    Matcher isA2A = all2allPattern.matcher(context);
+    if(!isA2A.find()) {
+      return false;
+    }
     String nickname = isA2A.group(1);
     logger.debug("IS ALL2ALL: " + nickname);
-    if(super.getContext().matches(".*summary.successpct.performance.*")) {
+    if(context.matches(".*summary.successpct.performance.*")) {
       // This is the special summary.successpct.performance report
-      Matcher m = successPattern.matcher(super.getStdout());
-      Properties summaries = getSummaries();
+      Map<String,String> failures = new HashMap<String,String>();
+      Matcher failMatch = failPattern.matcher(stdout);
+      while (failMatch.find()){
+        failures.put(failMatch.group(1), failMatch.group(2));
+      }
+      Matcher m = successPattern.matcher(stdout);
       while(m.find()) {
         nickname = m.group(1);
         String numSuccesses = m.group(2);
-        Matcher failMatch = (Pattern.compile(
-            "<ID>all2all:"+nickname+"-fail</ID>\\s*<value>(.*?)</value>"
-        )).matcher(super.getStdout());
-        String numFailures = null;
-        while (failMatch.find()){
-          numFailures = failMatch.group(1);
-        }
+        String numFailures = failures.get(nickname);
         int total = Integer.valueOf(numFailures) + Integer.valueOf(numSuccesses);
         // Since we consider a resource to not be at fault if there are less
         // than two successes we need at least two results for a summary
         if (total > 1){
           logger.debug("IS SUMMARY ALL2ALL: " + nickname + "="
               + numSuccesses + "/" + total);
-          summaries.setProperty(nickname, numSuccesses);
+          if(!numSuccesses.equals(summaries.put(nickname, numSuccesses))) {
+            summariesChanged.set(true);
+          }
         }
       }
-      writeSummaries(summaries);
-    } else {
-      // This is an all2all reporter to compare to the summary results
-      String summaryProp = getSummaries().getProperty(nickname);
-      logger.debug("SUMMARY STATUS " + nickname + ": " + summaryProp);
-      if(summaryProp != null && Integer.valueOf(summaryProp) < 2) {
-        logger.debug( super.getResource() + " NOT AT FAULT " + nickname );
-        stdout = stdout.replaceFirst
-          ("<errorMessage>", "<errorMessage>NOT_AT_FAULT: ");
-      } else {
-        logger.debug( super.getResource() + " AT FAULT " + nickname );
-      }
+      return false;
+    }
+    // This is an all2all reporter to compare to the summary results
+    String summaryProp = summaries.get(nickname);
+    logger.debug("SUMMARY STATUS " + nickname + ": " + summaryProp);
+    if(summaryProp != null && Integer.valueOf(summaryProp) < 2) {
+      logger.debug( resource + " NOT AT FAULT " + nickname );
+      return true;
     }
-    return stdout;
+    logger.debug( resource + " AT FAULT " + nickname );
+    return false;
   }
 
 }
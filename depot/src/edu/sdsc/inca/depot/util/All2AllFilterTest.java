@@ -51,6 +51,7 @@ public class All2AllFilterTest extends TestCase {
     // determine this is a summary all2all related reporter
     // but no action because the report error was during downtime
     filter.getStdout();
+    All2AllFilter.flushSummaries();
     String prop = readFile(summaryProp.toString());
     logger.debug( "Prop: " + prop);
     assertTrue( "nothing in summary properties", Pattern.matches("", prop) );
@@ -61,6 +62,7 @@ public class All2AllFilterTest extends TestCase {
     // determine this is a summary all2all related reporter
     // check error was written to file
     filter2.getStdout();
+    All2AllFilter.flushSummaries();
     String prop2 = readFile(summaryProp.toString());
     logger.debug( "Prop2: " + prop2);
     Pattern p2 = Pattern.compile("^gram_to_remoteResource=1$",
@@ -73,6 +75,7 @@ public class All2AllFilterTest extends TestCase {
     // determine this is a summary all2all related reporter
     // check success was written to file and old error is still in file
     filter3.getStdout();
+    All2AllFilter.flushSummaries();
     String prop3 = readFile(summaryProp.toString());
     logger.debug( "Prop3: " + prop3);
     Pattern p3 = Pattern.compile("^gsissh_to_remoteResource=19$" +
@@ -106,6 +109,35 @@ public class All2AllFilterTest extends TestCase {
 
   }
 
+  /**
+   * Test the filter as a shared stage of a filter chain, after a downtime
+   * prefix has been inserted into the report
+   *
+   * @throws Exception
+   */
+  public void testStage() throws Exception {
+    All2AllFilter filter = new All2AllFilter();
+    filter.filter(new FilteredReport(
+        "nickname=all2all:gram_to_remoteResource " +
+            "summary.successpct.performance", "repo", null, errorReport(),
+        "usage", null));
+
+    FilteredReport report = new FilteredReport(
+        "nickname=all2all:gram_to_remoteResource", "someResource", null,
+        rmErrorReport(), "usage", null);
+    filter.filter(report);
+    assertTrue( "modified err message", report.getStdout().indexOf(
+        "<errorMessage>NOT_AT_FAULT: all2all error") >= 0 );
+
+    report.setStdout(rmErrorReport());
+    int offset = report.indexOfStdout("<errorMessage>");
+    report.insertStdout(offset + "<errorMessage>".length(), "DOWNTIME:1: ");
+    filter.filter(report);
+    assertTrue( "downtime err message not modified",
+        report.getStdout().indexOf(
+        "<errorMessage>DOWNTIME:1: all2all error") >= 0 );
+  }
+
   private static String readFile(String filename) throws IOException {
     BufferedReader br = new BufferedReader(new FileReader(filename));
     String nextLine;
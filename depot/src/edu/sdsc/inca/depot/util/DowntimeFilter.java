@@ -1,5 +1,7 @@
 package edu.sdsc.inca.depot.util;
 
+import java.util.Map;
+
 import org.apache.log4j.Logger;
 import edu.sdsc.inca.util.CachedProperties;
 
@@ -8,15 +10,19 @@ import edu.sdsc.inca.util.CachedProperties;
  * if the resource the report ran on is in downtime.   Resources are determined
  * to be in downtime if they are listed in a downtime properties file.  In order
  * to reduce overhead, the downtime properties file is retrieved and cached at
- * a refresh interval in the getDowntimes() method instead of being retrieved
- * for each filter instance.
+ * a refresh interval instead of being retrieved for each report.  Lookups read
+ * an unmodifiable snapshot of the file, so one instance of the filter is shared
+ * by all the threads in a report filter chain.
  *
  * @author Kate Ericson &lt;kericson@sdsc.edu&gt;
  * @author Shava Smallen &lt;ssmallen@sdsc.edu&gt;
  */
-public class DowntimeFilter extends edu.sdsc.inca.depot.util.ReportFilter {
+public class DowntimeFilter extends edu.sdsc.inca.depot.util.ReportFilter
+  implements ReportFilterChain.Stage {
   private static Logger logger = Logger.getLogger(DowntimeFilter.class);
 
+  private static final String ERROR_TAG = "<errorMessage>";
+
   private static CachedProperties cacheDown =
       new CachedProperties("inca.depot.", "downtime", "15");
 
@@ -26,24 +32,56 @@ public class DowntimeFilter extends edu.sdsc.inca.depot.util.ReportFilter {
    * @return  string with depot report (reporter Stdout)
    */
   public String getStdout() {
-    if (cacheDown.getProperties().isEmpty()){
-      return super.getStdout();
-    } else {
-      logger.debug( "Target hostname is " + super.getTargetHostname() );
-      logger.debug( "Resource is " + super.getResource() );
-
-      String downtimeResource = super.getTargetHostname() == null ?
-        super.getResource() : super.getTargetHostname();
-      String resourceProp  =
-          cacheDown.getProperties().getProperty(downtimeResource);
-      if (resourceProp != null){
-        logger.debug( downtimeResource + " is down " + resourceProp );
-        return super.getStdout().replaceFirst(
-            "<errorMessage>", "<errorMessage>DOWNTIME:"+ resourceProp +": ");
-      } else{
-        return super.getStdout();
-      }
+    String stdout = super.getStdout();
+    String prefix = getPrefix(getTargetHostname(), getResource());
+    int offset = prefix == null ? -1 : stdout.indexOf(ERROR_TAG);
+    if (offset < 0) {
+      return stdout;
+    }
+    offset += ERROR_TAG.length();
+    return stdout.substring(0, offset) + prefix + stdout.substring(offset);
+  }
+
+  /**
+   * Inserts the downtime prefix into the error message of a report from a
+   * resource that is down.
+   *
+   * @param report  the report to filter
+   *
+   * @return  true; reports are never suppressed
+   */
+  public boolean filter(FilteredReport report) {
+    String prefix =
+      getPrefix(report.getTargetHostname(), report.getResource());
+    int offset = prefix == null ? -1 : report.indexOfStdout(ERROR_TAG);
+    if (offset >= 0) {
+      report.insertStdout(offset + ERROR_TAG.length(), prefix);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the text to add to the error message of a report, or null if
+   * the resource is not in downtime.
+   *
+   * @param targetHostname  the target of the report, if any
+   * @param resource  the resource the report ran on
+   *
+   * @return  the error message prefix
+   */
+  private static String getPrefix(String targetHostname, String resource) {
+    Map<String,String> downtimes = cacheDown.getSnapshot();
+    if (downtimes.isEmpty()) {
+      return null;
+    }
+    String downtimeResource = targetHostname == null ? resource : targetHostname;
+    String resourceProp = downtimeResource == null ?
+      null : downtimes.get(downtimeResource);
+    if (resourceProp == null) {
+      return null;
     }
+    logger.debug( downtimeResource + " is down " + resourceProp );
+    return "DOWNTIME:" + resourceProp + ": ";
   }
 
 }
@@ -0,0 +1,386 @@
+/*
+ * FilteredReport.java
+ */
+package edu.sdsc.inca.depot.util;
+
+
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The parts of an incoming report that the stages of a report filter chain
+ * may change. Changes to the report XML are kept as insertions at offsets in
+ * the text that was received, and are only applied when the text is read, so
+ * that a stage that adds a few characters to a large report doesn't have to
+ * copy the whole thing.
+ */
+public class FilteredReport {
+
+  private String m_context;
+  private String m_resource;
+  private String m_stderr;
+  private String m_stdout;
+  private String m_sysusage;
+  private String m_targetHostname;
+  private final List<Integer> m_offsets = new ArrayList<Integer>();
+  private final List<String> m_insertions = new ArrayList<String>();
+  private String m_edited;
+
+
+  // constructors
+
+
+  /**
+   *
+   * @param context
+   * @param resource
+   * @param stderr
+   * @param stdout
+   * @param sysusage
+   * @param targetHostname
+   */
+  public FilteredReport(String context, String resource, String stderr, String stdout, String sysusage, String targetHostname)
+  {
+    m_context = context;
+    m_resource = resource;
+    m_stderr = stderr;
+    m_stdout = stdout;
+    m_sysusage = sysusage;
+    m_targetHostname = targetHostname;
+  }
+
+
+  // public methods
+
+
+  /**
+   *
+   * @return
+   */
+  public String getContext()
+  {
+    return m_context;
+  }
+
+  /**
+   *
+   * @param context
+   */
+  public void setContext(String context)
+  {
+    m_context = context;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public String getResource()
+  {
+    return m_resource;
+  }
+
+  /**
+   *
+   * @param resource
+   */
+  public void setResource(String resource)
+  {
+    m_resource = resource;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public String getStderr()
+  {
+    return m_stderr;
+  }
+
+  /**
+   *
+   * @param stderr
+   */
+  public void setStderr(String stderr)
+  {
+    m_stderr = stderr;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public String getSysusage()
+  {
+    return m_sysusage;
+  }
+
+  /**
+   *
+   * @param sysusage
+   */
+  public void setSysusage(String sysusage)
+  {
+    m_sysusage = sysusage;
+  }
+
+  /**
+   *
+   * @return
+   */
+  public String getTargetHostname()
+  {
+    return m_targetHostname;
+  }
+
+  /**
+   *
+   * @param hostname
+   */
+  public void setTargetHostname(String hostname)
+  {
+    m_targetHostname = hostname;
+  }
+
+  /**
+   * Returns the report XML with all insertions applied. The text is only
+   * built when the report has been changed since the last call.
+   *
+   * @return the report XML, or <code>null</code> if it has been removed
+   */
+  public String getStdout()
+  {
+    if (m_offsets.isEmpty())
+      return m_stdout;
+
+    if (m_edited == null) {
+      int length = m_stdout.length();
+
+      for (String insertion : m_insertions)
+        length += insertion.length();
+
+      StringBuilder result = new StringBuilder(length);
+      int start = 0;
+
+      for (int i = 0 ; i < m_offsets.size() ; i += 1) {
+        int offset = m_offsets.get(i);
+
+        result.append(m_stdout, start, offset);
+        result.append(m_insertions.get(i));
+
+        start = offset;
+      }
+
+      result.append(m_stdout, start, m_stdout.length());
+
+      m_edited = result.toString();
+    }
+
+    return m_edited;
+  }
+
+  /**
+   * Replaces the report XML, discarding any insertions.
+   *
+   * @param stdout the new report XML, or <code>null</code> to suppress the report
+   */
+  public void setStdout(String stdout)
+  {
+    m_stdout = stdout;
+
+    m_offsets.clear();
+    m_insertions.clear();
+
+    m_edited = null;
+  }
+
+  /**
+   * Returns the position of the given text in the report XML as it was
+   * received or last replaced, ignoring insertions. The position can be
+   * passed to {@link #insertStdout(int, String)}.
+   *
+   * @param str the text to find
+   * @return the offset of the first occurrence, or -1 if there is none
+   */
+  public int indexOfStdout(String str)
+  {
+    return m_stdout != null ? m_stdout.indexOf(str) : -1;
+  }
+
+  /**
+   * Returns <code>true</code> if the report XML at the given offset, including
+   * any text inserted there, starts with the given text.
+   *
+   * @param prefix the text to look for
+   * @param offset an offset in the text as it was received or last replaced
+   * @return <code>true</code> if the text is found at the offset
+   */
+  public boolean stdoutStartsWith(String prefix, int offset)
+  {
+    StringBuilder text = new StringBuilder();
+
+    for (int i = 0 ; i < m_offsets.size() && text.length() < prefix.length() ; i += 1) {
+      if (m_offsets.get(i) == offset)
+        text.append(m_insertions.get(i));
+    }
+
+    if (text.length() == 0)
+      return m_stdout.startsWith(prefix, offset);
+
+    int end = Math.min(m_stdout.length(), offset + prefix.length());
+
+    text.append(m_stdout, offset, end);
+
+    return text.indexOf(prefix) == 0;
+  }
+
+  /**
+   * Inserts text into the report XML. Offsets refer to the text as it was
+   * received or last replaced, so the insertions of one stage don't move the
+   * offsets found by another. Text inserted at the same offset as an earlier
+   * insertion follows it.
+   *
+   * @param offset the offset at which to insert the text
+   * @param text the text to insert
+   */
+  public void insertStdout(int offset, String text)
+  {
+    if (offset < 0 || offset > m_stdout.length())
+      throw new IndexOutOfBoundsException("offset " + offset);
+
+    int index = m_offsets.size();
+
+    while (index > 0 && m_offsets.get(index - 1) > offset)
+      index -= 1;
+
+    m_offsets.add(index, offset);
+    m_insertions.add(index, text);
+
+    m_edited = null;
+  }
+
+  /**
+   * Returns a reader for the report XML that applies the insertions as the
+   * text is read, without building a copy of it.
+   *
+   * @return a reader for the report XML
+   */
+  public Reader getStdoutReader()
+  {
+    if (m_edited != null)
+      return new SegmentReader(new String[] { m_edited }, new int[] { 0 }, new int[] { m_edited.length() });
+
+    int numSegments = 2 * m_offsets.size() + 1;
+    String[] texts = new String[numSegments];
+    int[] starts = new int[numSegments];
+    int[] ends = new int[numSegments];
+    int start = 0;
+    int segment = 0;
+
+    for (int i = 0 ; i < m_offsets.size() ; i += 1) {
+      int offset = m_offsets.get(i);
+      String insertion = m_insertions.get(i);
+
+      texts[segment] = m_stdout;
+      starts[segment] = start;
+      ends[segment] = offset;
+      segment += 1;
+
+      texts[segment] = insertion;
+      starts[segment] = 0;
+      ends[segment] = insertion.length();
+      segment += 1;
+
+      start = offset;
+    }
+
+    texts[segment] = m_stdout;
+    starts[segment] = start;
+    ends[segment] = m_stdout.length();
+
+    return new SegmentReader(texts, starts, ends);
+  }
+
+  /**
+   * Returns <code>true</code> if a filter has removed a part of the report
+   * that the depot requires, which suppresses the report.
+   *
+   * @return <code>true</code> if the report should be discarded
+   */
+  public boolean isSuppressed()
+  {
+    return m_context == null || m_resource == null || m_stdout == null || m_sysusage == null;
+  }
+
+
+  // nested classes
+
+
+  /**
+   * Reads a sequence of substrings as one stream of characters.
+   */
+  private static class SegmentReader extends Reader {
+
+    private final String[] m_texts;
+    private final int[] m_starts;
+    private final int[] m_ends;
+    private int m_segment = 0;
+    private int m_position;
+
+
+    // constructors
+
+
+    public SegmentReader(String[] texts, int[] starts, int[] ends)
+    {
+      m_texts = texts;
+      m_starts = starts;
+      m_ends = ends;
+      m_position = starts[0];
+    }
+
+
+    // public methods
+
+
+    @Override
+    public int read(char[] buffer, int offset, int length)
+    {
+      if (length == 0)
+        return 0;
+
+      int count = 0;
+
+      while (count < length && m_segment < m_texts.length) {
+        int available = m_ends[m_segment] - m_position;
+
+        if (available <= 0) {
+          m_segment += 1;
+
+          if (m_segment < m_texts.length)
+            m_position = m_starts[m_segment];
+
+          continue;
+        }
+
+        int copied = Math.min(available, length - count);
+
+        m_texts[m_segment].getChars(m_position, m_position + copied, buffer, offset + count);
+
+        m_position += copied;
+        count += copied;
+      }
+
+      return count > 0 ? count : -1;
+    }
+
+    @Override
+    public void close()
+    {
+      m_segment = m_texts.length;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * InsertEvents.java
+ */
+package edu.sdsc.inca.depot.util;
+
+
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Passes insert events to the clients that have subscribed to them. An event
+ * is published whenever an inserted report becomes the latest instance of a
+ * series config, and names the config and the instance, so that a subscriber
+ * can update whatever it derives from the latest instances of just that
+ * config. Each subscription buffers at most MAX_PENDING events; a subscriber
+ * that falls further behind loses its subscription, and should then assume
+ * that it has missed events.
+ */
+public class InsertEvents {
+
+  // nested classes
+
+
+  /**
+   * The events published since a client subscribed.
+   */
+  public static class Subscription {
+
+    private final BlockingQueue<String> m_events = new LinkedBlockingQueue<String>(MAX_PENDING);
+    private volatile boolean m_lost = false;
+
+
+    // public methods
+
+
+    /**
+     * Returns the next event, waiting up to the given time for one to be
+     * published.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return the event, as the config id and instance id separated by a space, or <code>null</code> if none was published
+     * @throws InterruptedException
+     */
+    public String nextEvent(long timeout) throws InterruptedException
+    {
+      return m_events.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns <code>true</code> if events were dropped because the subscriber
+     * fell behind, or the depot data was replaced.
+     *
+     * @return <code>true</code> if the subscription is no longer complete
+     */
+    public boolean isLost()
+    {
+      return m_lost;
+    }
+
+    /**
+     * Ends the subscription.
+     */
+    public void cancel()
+    {
+      m_subscriptions.remove(this);
+    }
+
+
+    // private methods
+
+
+    /**
+     *
+     * @param event
+     */
+    private void add(String event)
+    {
+      if (!m_events.offer(event))
+        lose();
+    }
+
+    /**
+     *
+     */
+    private void lose()
+    {
+      m_lost = true;
+
+      cancel();
+    }
+  }
+
+
+  // data fields
+
+
+  public static final int MAX_PENDING = 10000;
+  private static final Logger m_logger = Logger.getLogger(InsertEvents.class);
+  private static final Set<Subscription> m_subscriptions = new CopyOnWriteArraySet<Subscription>();
+
+
+  // constructors
+
+
+  private InsertEvents()
+  {
+    // only static methods
+  }
+
+
+  // public methods
+
+
+  /**
+   * Creates a new subscription to insert events.
+   *
+   * @return the subscription
+   */
+  public static Subscription subscribe()
+  {
+    Subscription result = new Subscription();
+
+    m_subscriptions.add(result);
+
+    return result;
+  }
+
+  /**
+   * Publishes an insert event to every subscription.
+   *
+   * @param configId the id of the series config
+   * @param instanceId the id of its new latest instance
+   */
+  public static void publish(long configId, long instanceId)
+  {
+    if (m_subscriptions.isEmpty())
+      return;
+
+    String event = configId + " " + instanceId;
+
+    for (Subscription subscription : m_subscriptions) {
+      subscription.add(event);
+
+      if (subscription.isLost())
+        m_logger.warn("Dropped insert event subscription with " + MAX_PENDING + " pending events");
+    }
+  }
+
+  /**
+   * Ends every subscription, marking them as lost. Used when the depot data
+   * is replaced as a whole.
+   */
+  public static void loseAll()
+  {
+    for (Subscription subscription : m_subscriptions)
+      subscription.lose();
+  }
+
+  /**
+   * Returns the number of current subscriptions.
+   *
+   * @return the number of subscriptions
+   */
+  public static int getSubscriptionCount()
+  {
+    return m_subscriptions.size();
+  }
+}
@@ -0,0 +1,55 @@
+package edu.sdsc.inca.depot.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the InsertEvents class
+ */
+public class InsertEventsTest extends TestCase {
+
+  /**
+   * Test that published events reach every subscription in order
+   */
+  public void testPublish() throws Exception {
+    InsertEvents.Subscription first = InsertEvents.subscribe();
+    InsertEvents.Subscription second = InsertEvents.subscribe();
+    try {
+      assertEquals(2, InsertEvents.getSubscriptionCount());
+      InsertEvents.publish(1, 10);
+      InsertEvents.publish(2, 20);
+      assertEquals("1 10", first.nextEvent(0));
+      assertEquals("2 20", first.nextEvent(0));
+      assertNull(first.nextEvent(0));
+      assertEquals("1 10", second.nextEvent(0));
+      second.cancel();
+      assertEquals(1, InsertEvents.getSubscriptionCount());
+      InsertEvents.publish(3, 30);
+      assertEquals("3 30", first.nextEvent(0));
+      assertEquals("2 20", second.nextEvent(0));
+      assertNull(second.nextEvent(0));
+    } finally {
+      first.cancel();
+      second.cancel();
+    }
+  }
+
+  /**
+   * Test that a subscriber that falls behind loses its subscription
+   */
+  public void testLost() throws Exception {
+    InsertEvents.Subscription subscription = InsertEvents.subscribe();
+    for(int i = 0; i < InsertEvents.MAX_PENDING; i++) {
+      InsertEvents.publish(i, i);
+    }
+    assertFalse(subscription.isLost());
+    InsertEvents.publish(0, 0);
+    assertTrue(subscription.isLost());
+    assertEquals(0, InsertEvents.getSubscriptionCount());
+
+    subscription = InsertEvents.subscribe();
+    InsertEvents.loseAll();
+    assertTrue(subscription.isLost());
+    assertEquals(0, InsertEvents.getSubscriptionCount());
+  }
+
+}
@@ -0,0 +1,410 @@
+/*
+ * QueryCache.java
+ */
+package edu.sdsc.inca.depot.util;
+
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Holds the output of recent read-only queries, keyed by the command and the
+ * data of the request, so that identical requests can be answered without
+ * recomputing the result. Each result records the ids of the series configs
+ * that it was built from, and is discarded as soon as a report for one of them
+ * is inserted. A result can also depend on every config, or only on the set of
+ * configs that exist, in which case it is discarded by any insert or only when
+ * the suites change, respectively. The total size of the results is bounded,
+ * and the least recently used ones are evicted first.
+ */
+public class QueryCache {
+
+  // nested classes
+
+
+  /**
+   *
+   */
+  private static class Entry {
+
+    public final String command;
+    public final String text;
+    public final Set<Long> configIds;
+    public final long size;
+    public static final long BASE_SIZE = 64;
+
+
+    /**
+     *
+     * @param command
+     * @param text
+     * @param configIds
+     */
+    public Entry(String command, String text, Set<Long> configIds)
+    {
+      this.command = command;
+      this.text = text;
+      this.configIds = configIds;
+
+      // an estimate of the memory used by the entry: the characters of the
+      // text, and a boxed id and hash table slot for each config
+      long estimate = BASE_SIZE + 2L * text.length();
+
+      if (configIds != null)
+        estimate += 48L * configIds.size();
+
+      this.size = estimate;
+    }
+  }
+
+  /**
+   *
+   */
+  private static class Counter {
+
+    public long hits;
+    public long misses;
+    public long invalidations;
+    public long evictions;
+  }
+
+
+  // data fields
+
+
+  private static final Logger m_logger = Logger.getLogger(QueryCache.class);
+  private static QueryCache m_cache;
+  private final long m_maxSize;
+  private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(16, 0.75F, true);
+  private final Map<Long, Set<String>> m_configKeys = new HashMap<Long, Set<String>>();
+  private final Set<String> m_allConfigKeys = new HashSet<String>();
+  private final Map<String, Counter> m_counters = new TreeMap<String, Counter>();
+  private long m_size = 0;
+  private long m_generation = 0;
+
+
+  // constructors
+
+
+  /**
+   *
+   * @param maxSize the maximum size of the cached results, in bytes
+   */
+  public QueryCache(long maxSize)
+  {
+    m_maxSize = maxSize;
+  }
+
+
+  // public methods
+
+
+  /**
+   * Returns the global cache, or <code>null</code> if caching has been
+   * disabled.
+   *
+   * @return the cache
+   */
+  public static QueryCache getCache()
+  {
+    return m_cache;
+  }
+
+  /**
+   * Sets the global cache.
+   *
+   * @param cache the cache
+   */
+  public static void setCache(QueryCache cache)
+  {
+    m_cache = cache;
+  }
+
+  /**
+   * Returns the cached result of a request.
+   *
+   * @param command the command of the request
+   * @param data the data of the request
+   * @return the result, or <code>null</code> if it isn't cached
+   */
+  public synchronized String get(String command, String data)
+  {
+    Entry entry = m_entries.get(createKey(command, data));
+    Counter counter = getCounter(command);
+
+    if (entry == null) {
+      counter.misses += 1;
+
+      return null;
+    }
+
+    counter.hits += 1;
+
+    return entry.text;
+  }
+
+  /**
+   * Returns the length of the longest result that will be cached, so that
+   * callers can stop keeping a copy of a result that is too long.
+   *
+   * @return the maximum number of characters in a cached result
+   */
+  public long getMaxTextLength()
+  {
+    return Math.max(0, (m_maxSize / 4 - Entry.BASE_SIZE) / 2);
+  }
+
+  /**
+   * Returns a value that changes every time cached results are invalidated.
+   * The value should be read before a result is computed, and passed to
+   * {@link #put(String, String, String, Set, long) put}, so that a result
+   * computed while a report was being inserted isn't cached.
+   *
+   * @return the current generation of the cache
+   */
+  public synchronized long getGeneration()
+  {
+    return m_generation;
+  }
+
+  /**
+   * Stores the result of a request.
+   *
+   * @param command the command of the request
+   * @param data the data of the request
+   * @param text the result
+   * @param configIds the ids of the series configs that the result was built from, or <code>null</code> if it depends on all of them
+   * @param generation the generation of the cache when the result was computed
+   */
+  public synchronized void put(String command, String data, String text, Set<Long> configIds, long generation)
+  {
+    if (generation != m_generation)
+      return;
+
+    Entry entry = new Entry(command, text, configIds);
+
+    if (entry.size > m_maxSize / 4) {
+      m_logger.debug("Not caching " + command + " result of " + entry.size + " bytes");
+
+      return;
+    }
+
+    String key = createKey(command, data);
+
+    remove(key);
+
+    m_entries.put(key, entry);
+    m_size += entry.size;
+
+    if (configIds == null)
+      m_allConfigKeys.add(key);
+    else {
+      for (Long id : configIds) {
+        Set<String> keys = m_configKeys.get(id);
+
+        if (keys == null) {
+          keys = new HashSet<String>();
+
+          m_configKeys.put(id, keys);
+        }
+
+        keys.add(key);
+      }
+    }
+
+    Iterator<Map.Entry<String, Entry>> oldest = m_entries.entrySet().iterator();
+
+    while (m_size > m_maxSize && oldest.hasNext()) {
+      Map.Entry<String, Entry> eldest = oldest.next();
+
+      getCounter(eldest.getValue().command).evictions += 1;
+
+      oldest.remove();
+      unlink(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  /**
+   * Discards the results built from any of the given series configs, along
+   * with the results that depend on every config.
+   *
+   * @param configIds the ids of the series configs that have changed
+   */
+  public synchronized void invalidateConfigs(Collection<Long> configIds)
+  {
+    m_generation += 1;
+
+    Set<String> stale = new HashSet<String>(m_allConfigKeys);
+
+    for (Long id : configIds) {
+      Set<String> keys = m_configKeys.get(id);
+
+      if (keys != null)
+        stale.addAll(keys);
+    }
+
+    for (String key : stale) {
+      Entry entry = remove(key);
+
+      if (entry != null)
+        getCounter(entry.command).invalidations += 1;
+    }
+  }
+
+  /**
+   * Discards all of the cached results.
+   */
+  public synchronized void invalidateAll()
+  {
+    m_generation += 1;
+
+    for (Entry entry : m_entries.values())
+      getCounter(entry.command).invalidations += 1;
+
+    m_entries.clear();
+    m_configKeys.clear();
+    m_allConfigKeys.clear();
+    m_size = 0;
+  }
+
+  /**
+   *
+   * @return the number of cached results
+   */
+  public synchronized int getNumEntries()
+  {
+    return m_entries.size();
+  }
+
+  /**
+   *
+   * @return the estimated size of the cached results, in bytes
+   */
+  public synchronized long getSize()
+  {
+    return m_size;
+  }
+
+  /**
+   * Returns the hit rate and other counts for each command that has been
+   * looked up in the cache, one command per line.
+   *
+   * @return the statistics of the cache
+   */
+  public synchronized String getStatistics()
+  {
+    StringBuilder result = new StringBuilder();
+
+    result.append("entries ");
+    result.append(m_entries.size());
+    result.append(" size ");
+    result.append(m_size);
+    result.append(" max ");
+    result.append(m_maxSize);
+
+    for (Map.Entry<String, Counter> entry : m_counters.entrySet()) {
+      Counter counter = entry.getValue();
+      long lookups = counter.hits + counter.misses;
+
+      result.append('\n');
+      result.append(entry.getKey());
+      result.append(" hits ");
+      result.append(counter.hits);
+      result.append(" misses ");
+      result.append(counter.misses);
+      result.append(" hitRate ");
+      result.append(lookups > 0 ? String.format("%.3f", (double) counter.hits / lookups) : "0.000");
+      result.append(" invalidations ");
+      result.append(counter.invalidations);
+      result.append(" evictions ");
+      result.append(counter.evictions);
+    }
+
+    return result.toString();
+  }
+
+
+  // private methods
+
+
+  /**
+   *
+   * @param command
+   * @param data
+   * @return
+   */
+  private static String createKey(String command, String data)
+  {
+    return command + " " + data;
+  }
+
+  /**
+   *
+   * @param command
+   * @return
+   */
+  private Counter getCounter(String command)
+  {
+    Counter result = m_counters.get(command);
+
+    if (result == null) {
+      result = new Counter();
+
+      m_counters.put(command, result);
+    }
+
+    return result;
+  }
+
+  /**
+   *
+   * @param key
+   * @return
+   */
+  private Entry remove(String key)
+  {
+    Entry entry = m_entries.remove(key);
+
+    if (entry != null)
+      unlink(key, entry);
+
+    return entry;
+  }
+
+  /**
+   *
+   * @param key
+   * @param entry
+   */
+  private void unlink(String key, Entry entry)
+  {
+    m_size -= entry.size;
+
+    if (entry.configIds == null) {
+      m_allConfigKeys.remove(key);
+
+      return;
+    }
+
+    for (Long id : entry.configIds) {
+      Set<String> keys = m_configKeys.get(id);
+
+      if (keys == null)
+        continue;
+
+      keys.remove(key);
+
+      if (keys.isEmpty())
+        m_configKeys.remove(id);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package edu.sdsc.inca.depot.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the QueryCache class
+ */
+public class QueryCacheTest extends TestCase {
+
+  private static Set<Long> ids(Long... values) {
+    return new HashSet<Long>(Arrays.asList(values));
+  }
+
+  /**
+   * Test that results are only discarded by changes to their configs
+   */
+  public void testInvalidate() {
+    QueryCache cache = new QueryCache(1024 * 1024);
+    cache.put("QUERYLATEST", "a", "resultA", ids(1L, 2L), cache.getGeneration());
+    cache.put("QUERYLATEST", "b", "resultB", ids(3L), cache.getGeneration());
+    cache.put("QUERYREPORTERS", "", "reporters", null, cache.getGeneration());
+    cache.put("QUERYREPORTERSDETAIL", "", "detail",
+              Collections.<Long>emptySet(), cache.getGeneration());
+    assertEquals("resultA", cache.get("QUERYLATEST", "a"));
+    cache.invalidateConfigs(ids(2L));
+    assertNull(cache.get("QUERYLATEST", "a"));
+    assertEquals("resultB", cache.get("QUERYLATEST", "b"));
+    assertNull(cache.get("QUERYREPORTERS", ""));
+    assertEquals("detail", cache.get("QUERYREPORTERSDETAIL", ""));
+    cache.invalidateAll();
+    assertEquals(0, cache.getNumEntries());
+    assertEquals(0, cache.getSize());
+  }
+
+  /**
+   * Test that a result computed across an invalidation isn't stored
+   */
+  public void testGeneration() {
+    QueryCache cache = new QueryCache(1024 * 1024);
+    long generation = cache.getGeneration();
+    cache.invalidateConfigs(ids(5L));
+    cache.put("QUERYLATEST", "a", "stale", ids(1L), generation);
+    assertNull(cache.get("QUERYLATEST", "a"));
+  }
+
+  /**
+   * Test that a result as long as the maximum text length is cached and a
+   * longer one isn't
+   */
+  public void testMaxTextLength() {
+    QueryCache cache = new QueryCache(4096);
+    int max = (int) cache.getMaxTextLength();
+    assertTrue(max > 0);
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < max; i++) {
+      text.append('x');
+    }
+    cache.put("QUERYREPORTERS", "a", text.toString(), null, cache.getGeneration());
+    assertEquals(text.toString(), cache.get("QUERYREPORTERS", "a"));
+    text.append('x');
+    cache.put("QUERYREPORTERS", "b", text.toString(), null, cache.getGeneration());
+    assertNull(cache.get("QUERYREPORTERS", "b"));
+  }
+
+  /**
+   * Test that the least recently used results are evicted first, and that
+   * the statistics count hits and misses
+   */
+  public void testEviction() {
+    StringBuilder text = new StringBuilder();
+    for(int i = 0; i < 100; i++) {
+      text.append("0123456789");
+    }
+    // each entry is a little over 2000 bytes
+    QueryCache cache = new QueryCache(9000);
+    cache.put("QUERYSTATUS", "1", text.toString(), ids(1L), 0);
+    cache.put("QUERYSTATUS", "2", text.toString(), ids(2L), 0);
+    cache.put("QUERYSTATUS", "3", text.toString(), ids(3L), 0);
+    cache.put("QUERYSTATUS", "4", text.toString(), ids(4L), 0);
+    assertNotNull(cache.get("QUERYSTATUS", "1"));
+    cache.put("QUERYSTATUS", "5", text.toString(), ids(5L), 0);
+    assertNotNull(cache.get("QUERYSTATUS", "1"));
+    assertNull(cache.get("QUERYSTATUS", "2"));
+    assertTrue(cache.getSize() <= 9000);
+    String stats = cache.getStatistics();
+    assertTrue(stats, stats.indexOf("QUERYSTATUS hits 2 misses 1") >= 0);
+  }
+
+}
@@ -0,0 +1,259 @@
+/*
+ * QueryExecutor.java
+ */
+package edu.sdsc.inca.depot.util;
+
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Runs the independent parts of a query, such as the reads of each selected
+ * series, on a shared pool of threads. The pool is sized so that the query
+ * threads can't claim every connection in the database pool, and each request
+ * may only have a limited number of its parts running or queued at once, so
+ * a single large request can't keep the others from making progress. The
+ * results of a request are returned in the order that its parts were given.
+ */
+public class QueryExecutor {
+
+  // nested classes
+
+
+  /**
+   * Returns the results of the parts of a single request, in order. A new part
+   * is submitted to the pool each time a result is taken, so that no more than
+   * the request limit are outstanding.
+   *
+   * @param <T>
+   */
+  public static class Results<T> implements AutoCloseable {
+
+    private final ExecutorService m_pool;
+    private final Iterator<Callable<T>> m_tasks;
+    private final Deque<Future<T>> m_pending = new ArrayDeque<Future<T>>();
+
+
+    /**
+     *
+     * @param pool
+     * @param tasks
+     * @param limit
+     */
+    private Results(ExecutorService pool, List<Callable<T>> tasks, int limit)
+    {
+      m_pool = pool;
+      m_tasks = tasks.iterator();
+
+      if (m_pool != null) {
+        while (m_pending.size() < limit && m_tasks.hasNext())
+          m_pending.add(m_pool.submit(m_tasks.next()));
+      }
+    }
+
+
+    /**
+     *
+     * @return
+     */
+    public boolean hasNext()
+    {
+      return !m_pending.isEmpty() || m_tasks.hasNext();
+    }
+
+    /**
+     * Returns the result of the next part, waiting for it to complete if
+     * necessary. If the part failed, the remaining parts are cancelled and the
+     * exception that it threw is rethrown.
+     *
+     * @return the result of the next part
+     * @throws Exception
+     */
+    public T next() throws Exception
+    {
+      if (m_pool == null)
+        return m_tasks.next().call();
+
+      Future<T> head = m_pending.poll();
+
+      if (head == null)
+        throw new NoSuchElementException();
+
+      T result;
+
+      try {
+        result = head.get();
+      }
+      catch (ExecutionException execErr) {
+        close();
+
+        Throwable cause = execErr.getCause();
+
+        if (cause instanceof Exception)
+          throw (Exception) cause;
+
+        throw execErr;
+      }
+      catch (InterruptedException interruptErr) {
+        close();
+
+        throw interruptErr;
+      }
+
+      if (m_tasks.hasNext())
+        m_pending.add(m_pool.submit(m_tasks.next()));
+
+      return result;
+    }
+
+    /**
+     * Cancels any parts that haven't completed.
+     */
+    @Override
+    public void close()
+    {
+      for (Future<T> task : m_pending)
+        task.cancel(true);
+
+      m_pending.clear();
+
+      while (m_tasks.hasNext())
+        m_tasks.next();
+    }
+  }
+
+
+  // data fields
+
+
+  private static final Logger m_logger = Logger.getLogger(QueryExecutor.class);
+  private static QueryExecutor m_executor;
+  private final ExecutorService m_pool;
+  private final int m_requestLimit;
+
+
+  // constructors
+
+
+  /**
+   *
+   * @param numThreads the number of threads in the pool
+   * @param requestLimit the number of parts of a single request that may be outstanding at once
+   */
+  public QueryExecutor(int numThreads, int requestLimit)
+  {
+    final AtomicInteger threadCount = new AtomicInteger();
+
+    m_pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task)
+      {
+        Thread result = new Thread(task, "query-" + threadCount.incrementAndGet());
+
+        result.setDaemon(true);
+
+        return result;
+      }
+    });
+    m_requestLimit = requestLimit > 0 ? requestLimit : numThreads;
+
+    m_logger.debug("Query executor started with " + numThreads + " threads, " + m_requestLimit + " per request");
+  }
+
+
+  // public methods
+
+
+  /**
+   * Returns the global executor, or <code>null</code> if parallel queries
+   * haven't been configured.
+   *
+   * @return the executor
+   */
+  public static QueryExecutor getExecutor()
+  {
+    return m_executor;
+  }
+
+  /**
+   * Sets the global executor.
+   *
+   * @param executor the executor
+   */
+  public static void setExecutor(QueryExecutor executor)
+  {
+    m_executor = executor;
+  }
+
+  /**
+   * Runs the parts of a request on the global executor, or on the calling
+   * thread, one at a time as their results are taken, if there isn't one.
+   *
+   * @param tasks the parts of the request
+   * @return the results of the parts, in order
+   */
+  public static <T> Results<T> execute(List<Callable<T>> tasks)
+  {
+    QueryExecutor executor = m_executor;
+
+    if (executor == null)
+      return new Results<T>(null, tasks, 0);
+
+    return executor.submit(tasks);
+  }
+
+  /**
+   * Runs the parts of a request on the pool.
+   *
+   * @param tasks the parts of the request
+   * @return the results of the parts, in order
+   */
+  public <T> Results<T> submit(List<Callable<T>> tasks)
+  {
+    return new Results<T>(m_pool, tasks, m_requestLimit);
+  }
+
+  /**
+   * Runs a single part of a request on the pool. Unlike the parts given to
+   * {@link #submit(List) submit}, the caller must keep the number of these
+   * that it has outstanding within the request limit.
+   *
+   * @param task the part
+   * @return the result of the part
+   */
+  public <T> Future<T> submit(Callable<T> task)
+  {
+    return m_pool.submit(task);
+  }
+
+  /**
+   *
+   * @return
+   */
+  public int getRequestLimit()
+  {
+    return m_requestLimit;
+  }
+
+  /**
+   * Stops the threads of the pool. Parts that are already running are
+   * interrupted.
+   */
+  public void shutdown()
+  {
+    m_pool.shutdownNow();
+  }
+}
@@ -0,0 +1,113 @@
+package edu.sdsc.inca.depot.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the QueryExecutor class
+ */
+public class QueryExecutorTest extends TestCase {
+
+  private QueryExecutor executor;
+
+  public void setUp() throws Exception {
+    executor = new QueryExecutor(4, 2);
+  }
+
+  public void tearDown() throws Exception {
+    executor.shutdown();
+  }
+
+  /**
+   * Create tasks that finish in the reverse of the order they're submitted,
+   * recording the most that run at once.
+   */
+  private List<Callable<Integer>> makeTasks
+    (int count, final AtomicInteger running, final AtomicInteger maxRunning) {
+    List<Callable<Integer>> result = new ArrayList<Callable<Integer>>();
+    for(int i = 0; i < count; i++) {
+      final int value = i;
+      result.add(new Callable<Integer>() {
+        public Integer call() throws Exception {
+          int now = running.incrementAndGet();
+          synchronized(maxRunning) {
+            if(now > maxRunning.get()) {
+              maxRunning.set(now);
+            }
+          }
+          Thread.sleep(5 * (value % 3));
+          running.decrementAndGet();
+          return value;
+        }
+      });
+    }
+    return result;
+  }
+
+  /**
+   * Test that results come back in order and that a request never has more
+   * than its limit running at once
+   *
+   * @throws Exception
+   */
+  public void testOrder() throws Exception {
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    QueryExecutor.Results<Integer> results =
+      executor.submit(makeTasks(50, running, maxRunning));
+    for(int i = 0; i < 50; i++) {
+      assertTrue(results.hasNext());
+      assertEquals(i, results.next().intValue());
+    }
+    assertFalse(results.hasNext());
+    assertTrue(maxRunning.get() <= 2);
+  }
+
+  /**
+   * Test that an exception thrown by a task is rethrown by next
+   *
+   * @throws Exception
+   */
+  public void testFailure() throws Exception {
+    List<Callable<Integer>> tasks =
+      makeTasks(3, new AtomicInteger(), new AtomicInteger());
+    tasks.add(1, new Callable<Integer>() {
+      public Integer call() throws Exception {
+        throw new IllegalStateException("failed");
+      }
+    });
+    QueryExecutor.Results<Integer> results = executor.submit(tasks);
+    assertEquals(0, results.next().intValue());
+    try {
+      results.next();
+      fail("expected exception");
+    } catch(IllegalStateException e) {
+      assertEquals("failed", e.getMessage());
+    }
+    assertFalse(results.hasNext());
+  }
+
+  /**
+   * Test that tasks run on the calling thread when there's no executor
+   *
+   * @throws Exception
+   */
+  public void testInline() throws Exception {
+    QueryExecutor.setExecutor(null);
+    final Thread caller = Thread.currentThread();
+    List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+    tasks.add(new Callable<Boolean>() {
+      public Boolean call() throws Exception {
+        return Thread.currentThread() == caller;
+      }
+    });
+    QueryExecutor.Results<Boolean> results = QueryExecutor.execute(tasks);
+    assertTrue(results.next());
+    assertFalse(results.hasNext());
+  }
+
+}
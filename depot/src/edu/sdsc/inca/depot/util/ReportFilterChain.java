@@ -0,0 +1,189 @@
+/*
+ * ReportFilterChain.java
+ */
+package edu.sdsc.inca.depot.util;
+
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+
+/**
+ * Applies the report filters named in the depot configuration to incoming
+ * reports. The filter classes are loaded when the chain is built, at startup
+ * or whenever the depot configuration is changed, rather than for each
+ * report. A filter that implements {@link Stage} is created once and shared
+ * by all the threads that insert reports, so it must be thread safe, and
+ * should keep any configuration it reads in a form that it can reload without
+ * blocking its readers. A filter that only extends {@link ReportFilter} holds
+ * the report in its fields, so a new instance is still created for each
+ * report, using a constructor found when the chain was built.
+ */
+public class ReportFilterChain {
+
+  // nested classes
+
+
+  /**
+   * A report filter that can be shared between threads.
+   */
+  public interface Stage {
+
+    /**
+     * Changes the parts of a report that the filter is concerned with. A
+     * stage may suppress a report by returning <code>false</code>, or by
+     * setting one of the required parts of the report to <code>null</code>.
+     *
+     * @param report the report to filter
+     * @return <code>false</code> if the report should be discarded
+     * @throws Exception
+     */
+    boolean filter(FilteredReport report) throws Exception;
+  }
+
+  /**
+   * Creates an instance of a legacy report filter for each report.
+   */
+  private static class LegacyStage implements Stage {
+
+    private final Constructor<? extends ReportFilter> m_constructor;
+
+
+    // constructors
+
+
+    public LegacyStage(Constructor<? extends ReportFilter> constructor)
+    {
+      m_constructor = constructor;
+    }
+
+
+    // public methods
+
+
+    public boolean filter(FilteredReport report) throws Exception
+    {
+      ReportFilter filter = m_constructor.newInstance();
+      String stdout = report.getStdout();
+
+      filter.setContext(report.getContext());
+      filter.setResource(report.getResource());
+      filter.setStderr(report.getStderr());
+      filter.setStdout(stdout);
+      filter.setSysusage(report.getSysusage());
+      filter.setTargetHostname(report.getTargetHostname());
+
+      report.setContext(filter.getContext());
+      report.setResource(filter.getResource());
+      report.setStderr(filter.getStderr());
+      report.setSysusage(filter.getSysusage());
+      report.setTargetHostname(filter.getTargetHostname());
+
+      String filtered = filter.getStdout();
+
+      if (filtered != stdout)
+        report.setStdout(filtered);
+
+      return true;
+    }
+  }
+
+
+  private static final Logger m_logger = Logger.getLogger(ReportFilterChain.class);
+  private final String[] m_names;
+  private final Stage[] m_stages;
+
+
+  // constructors
+
+
+  /**
+   * Loads the named filter classes. A class that can't be loaded is logged
+   * and left out of the chain.
+   *
+   * @param filterNames the class names of the filters, in the order they are applied
+   */
+  public ReportFilterChain(String[] filterNames)
+  {
+    ClassLoader loader = ClassLoader.getSystemClassLoader();
+    List<String> names = new ArrayList<String>();
+    List<Stage> stages = new ArrayList<Stage>();
+
+    for (int i = 0 ; i < filterNames.length ; i += 1) {
+      try {
+        Class<?> filterClass = loader.loadClass(filterNames[i]);
+
+        if (Stage.class.isAssignableFrom(filterClass))
+          stages.add((Stage)filterClass.getDeclaredConstructor().newInstance());
+        else
+          stages.add(new LegacyStage(filterClass.asSubclass(ReportFilter.class).getDeclaredConstructor()));
+
+        names.add(filterNames[i]);
+      }
+      catch (Exception err) {
+        m_logger.warn("Unable to load ReportFilter '" + filterNames[i] + "' " + err);
+      }
+    }
+
+    m_names = names.toArray(new String[names.size()]);
+    m_stages = stages.toArray(new Stage[stages.size()]);
+  }
+
+
+  // public methods
+
+
+  /**
+   * Passes a report through each filter in turn.
+   *
+   * @param report the report to filter
+   * @return <code>false</code> if a filter suppressed the report
+   * @throws Exception
+   */
+  public boolean filter(FilteredReport report) throws Exception
+  {
+    for (int i = 0 ; i < m_stages.length ; i += 1) {
+      if (!m_stages[i].filter(report) || report.isSuppressed()) {
+        m_logger.warn("Report '" + report.getContext() + "' from " + report.getResource() + " suppressed by filter " + m_names[i]);
+
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Asks the filters that keep state in memory to write it out. A filter
+   * takes part by implementing {@link Flushable}.
+   */
+  public void flush()
+  {
+    for (int i = 0 ; i < m_stages.length ; i += 1) {
+      if (!(m_stages[i] instanceof Flushable))
+        continue;
+
+      try {
+        ((Flushable)m_stages[i]).flush();
+      }
+      catch (IOException ioErr) {
+        m_logger.warn("Unable to flush ReportFilter '" + m_names[i] + "' " + ioErr);
+      }
+    }
+  }
+
+  /**
+   * Returns the number of filters that were loaded.
+   *
+   * @return the number of filters in the chain
+   */
+  public int size()
+  {
+    return m_stages.length;
+  }
+}
@@ -0,0 +1,101 @@
+package edu.sdsc.inca.depot.util;
+
+import java.io.Reader;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for the ReportFilterChain and FilteredReport classes
+ */
+public class ReportFilterChainTest extends TestCase {
+
+  /**
+   * A shared stage that marks the start of the body
+   */
+  public static class MarkingStage implements ReportFilterChain.Stage {
+    public static int instances = 0;
+
+    public MarkingStage() {
+      instances++;
+    }
+
+    public boolean filter(FilteredReport report) {
+      int offset = report.indexOfStdout("<body>");
+      if (offset >= 0) {
+        report.insertStdout(offset + "<body>".length(), "[marked]");
+      }
+      return !report.getResource().equals("ignored");
+    }
+  }
+
+  /**
+   * A legacy filter that changes the context
+   */
+  public static class ContextFilter extends ReportFilter {
+    public String getContext() {
+      return this.context + " filtered";
+    }
+  }
+
+  private static String read(Reader reader) throws Exception {
+    StringBuilder result = new StringBuilder();
+    char[] buffer = new char[3];
+    for (int count; (count = reader.read(buffer, 0, buffer.length)) >= 0; ) {
+      result.append(buffer, 0, count);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Test that insertions are applied in order of offset when read
+   */
+  public void testInsertions() throws Exception {
+    FilteredReport report =
+      new FilteredReport("c", "r", null, "abcdef", "u", null);
+    assertSame("abcdef", report.getStdout());
+    report.insertStdout(4, "2");
+    report.insertStdout(0, "0");
+    report.insertStdout(4, "3");
+    report.insertStdout(6, "4");
+    report.insertStdout(2, "1");
+    assertEquals("0ab1cd23ef4", report.getStdout());
+    assertEquals("0ab1cd23ef4", read(report.getStdoutReader()));
+    assertEquals(2, report.indexOfStdout("c"));
+    assertTrue(report.stdoutStartsWith("23ef", 4));
+    assertFalse(report.stdoutStartsWith("ef", 4));
+    assertFalse(report.stdoutStartsWith("cd", 2));
+    assertTrue(report.stdoutStartsWith("4", 6));
+    report.setStdout("xyz");
+    assertEquals("xyz", read(report.getStdoutReader()));
+    assertFalse(report.isSuppressed());
+    report.setSysusage(null);
+    assertTrue(report.isSuppressed());
+  }
+
+  /**
+   * Test that shared stages are created once and that legacy filters and
+   * suppression still work
+   */
+  public void testChain() throws Exception {
+    MarkingStage.instances = 0;
+    ReportFilterChain chain = new ReportFilterChain(new String[] {
+      MarkingStage.class.getName(), "no.such.Filter",
+      ContextFilter.class.getName()
+    });
+    assertEquals(2, chain.size());
+    assertEquals(1, MarkingStage.instances);
+    for (int i = 0; i < 3; i++) {
+      FilteredReport report = new FilteredReport
+        ("ctx", "res", null, "<a><body>b</body></a>", "usage", "host");
+      assertTrue(chain.filter(report));
+      assertEquals("ctx filtered", report.getContext());
+      assertEquals("<a><body>[marked]b</body></a>",
+                   read(report.getStdoutReader()));
+    }
+    assertEquals(1, MarkingStage.instances);
+    FilteredReport ignored = new FilteredReport
+      ("ctx", "ignored", null, "<a/>", "usage", null);
+    assertFalse(chain.filter(ignored));
+    assertEquals("ctx", ignored.getContext());
+  }
+}
@@ -467,6 +467,10 @@ sub register {
       $self->_acceptSuite( $data );
     } elsif ( $cmd eq "PACKAGE" ) {
       $self->_acceptPackage( $data );
+    } elsif ( $cmd eq "DIGEST" ) {
+      $self->_acceptDigest( $data );
+    } elsif ( $cmd eq "CHUNK" ) {
+      $self->_acceptChunk( $data );
     } else {
       $self->writeAndLogError( 
         "Received unknown command '$cmd' from $self->{uri}"
@@ -483,6 +487,69 @@ sub register {
 # Private methods (not documented with pod markers and prefixed with '_' )
 #-----------------------------------------------------------------------------#
 
+#-----------------------------------------------------------------------------#
+# _acceptChunk( $data )
+#
+# Read a chunk of gzipped package content from the agent and append it to
+# the content received so far.  Protocol goes like this:
+#
+# CHUNK <digest> <offset> <total> <base64 encoded chunk>
+#
+# Arguments:
+#
+# data     A string containing the digest, offset, total and chunk.
+#
+# Returns: 
+#
+# Returns true if the chunk was succesfully stored and false otherwise.
+#-----------------------------------------------------------------------------#
+sub _acceptChunk {
+  my ( $self, $data ) = validate_pos( @_, $SELF_PARAM_REQ, SCALAR );
+
+  my ( $digest, $offset, $total, $content ) = split( / /, $data, 4 );
+  if ( ! defined $content || $offset !~ /^\d+$/ || $total !~ /^\d+$/ ) {
+    $self->writeAndLogError( "Expected CHUNK digest offset total content" );
+    return 0;
+  }
+  if ( ! $self->{rm}->getReporterCache()->appendContent(
+         $digest, $offset, $total, decode_base64($content)) ) {
+    $self->writeAndLogError( "Unable to store chunk of $digest at $offset" );
+    return 0;
+  }
+  $self->writeStatement(
+    Inca::Net::Protocol::Statement->getOkStatement(data=>$digest)
+  );
+  return 1;
+}
+
+#-----------------------------------------------------------------------------#
+# _acceptDigest( $digest )
+#
+# Reply whether the package content with the given digest has already been
+# received from the agent.  Protocol goes like this:
+#
+# DIGEST <digest>
+#
+# and the reply is either OK HAVE or OK NEED <offset> where offset is the
+# number of bytes of gzipped content received in an earlier interrupted
+# transfer.
+#
+# Arguments:
+#
+# digest   A string containing the SHA-256 digest of the package content.
+#-----------------------------------------------------------------------------#
+sub _acceptDigest {
+  my ( $self, $digest ) = validate_pos( @_, $SELF_PARAM_REQ, SCALAR );
+
+  my $rc = $self->{rm}->getReporterCache();
+  if ( defined $rc->getContentPath($digest) ) {
+    $self->{logger}->debug( "Already have package content $digest" );
+    $self->writeStatement( "OK", "HAVE" );
+  } else {
+    $self->writeStatement( "OK", "NEED " . $rc->getContentOffset($digest) );
+  }
+}
+
 #-----------------------------------------------------------------------------#
 # _acceptPackage( $name )
 #
@@ -493,7 +560,11 @@ sub register {
 # VERSION <version>
 # INSTALLPATH <installpath>
 # (opt) PERMISSION 755
-# CONTENT <package text>
+# (opt) DEPENDENCIES <dependencies>
+# CONTENT <package text> | CONTENTDIGEST <digest>
+#
+# where CONTENTDIGEST refers to package content previously received with
+# CHUNK.
 #
 # Arguments:
 #
@@ -532,6 +603,20 @@ sub _acceptPackage {
     $dependencies = $content;
     ( $cmd4, $content ) = $self->readStatement();
   } 
+  if ( $cmd4 eq "CONTENTDIGEST" ) {
+    my $path = $self->{rm}->getReporterCache()->getContentPath( $content );
+    if ( ! defined $path ) {
+      $self->writeAndLogError( "Package content $content not received" );
+      return 0;
+    }
+    $self->writeStatement(
+      Inca::Net::Protocol::Statement->getOkStatement(data=>$name)
+    );
+    return $self->{rm}->storePackage( 
+      $name, $filename, $version, $installpath, $permission, $dependencies, 
+      $path, $content
+    );
+  }
   if ( $cmd4 ne "CONTENT" ) {
     $self->writeAndLogError( "Expected CONTENT; received $cmd4" );
     return 0;
@@ -1265,7 +1265,7 @@ sub stop {
 #-----------------------------------------------------------------------------#
 
 =head2 storePackage( $name, $filename, $version, $installpath, $dependencies,
-                     $tmpfilename )
+                     $tmpfilename, $digest )
 
 Store the specified package into the reporter cache.  
 
@@ -1308,6 +1308,11 @@ there are none.
 A string containing the name of a temporary file that is storing the content 
 of the package.
 
+=item digest
+
+An optional string containing the SHA-256 digest of the package content if
+it was received into the content store.
+
 =back
 
 B<Returns>:
@@ -1349,14 +1354,16 @@ false otherwise.
 #-----------------------------------------------------------------------------#
 sub storePackage {
   my ($self, $name, $filename, $version, $installpath, $perms, $dependencies,
-      $tmpfilename) =
+      $tmpfilename, $digest) =
     validate_pos(
       @_, $SELF_PARAM_REQ, SCALAR, SCALAR, SCALAR, SCALAR,
-          SCALAR|UNDEF, SCALAR|UNDEF, SCALAR
+          SCALAR|UNDEF, SCALAR|UNDEF, SCALAR,
+          { type => SCALAR|UNDEF, optional => 1 }
     );
 
   return $self->getReporterCache()->storePackage( 
-    $name, $filename, $version, $installpath, $perms, $dependencies,$tmpfilename
+    $name, $filename, $version, $installpath, $perms, $dependencies,
+    $tmpfilename, $digest
   );
 }
 
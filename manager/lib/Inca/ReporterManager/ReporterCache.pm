@@ -48,6 +48,8 @@ use XML::Simple;
 # Perl standard
 use Carp;
 use Cwd;
+use Digest::SHA;
+use IO::Uncompress::Gunzip qw(gunzip $GunzipError);
 use File::Copy;
 use File::Spec;
 use File::Path;
@@ -61,6 +63,9 @@ our ($VERSION) = '$Revision: 1.2 $' =~ 'Revision: (.*) ';
 my $SELF_PARAM_REQ         = { isa => "Inca::ReporterManager::ReporterCache" };
 my $DEFAULT_ERROR_REPORTER = "INCA_ERROR_REPORTER";
 my $REPOSITORY_FILE        = "repository.xml";
+my $CONTENT_DIR            = "content";
+my $DIGEST_PATTERN         = '^[0-9a-f]{64}$';
+my $PARTIAL_CONTENT_AGE    = 7 * 24 * 60 * 60;
 my %XML_OPTIONS            = (
   KeyAttr       => { },
   SuppressEmpty => undef
@@ -181,6 +186,210 @@ sub new {
 
 #-----------------------------------------------------------------------------#
 
+=head2 appendContent( $digest, $offset, $total, $chunk )
+
+Append a chunk of gzipped package content received from the agent.  Package
+content is stored under its SHA-256 digest so that it only needs to be
+transferred once even if it is used by several package versions.  Partially
+received content is kept so that an interrupted transfer can be resumed (see
+getContentOffset).  When the last chunk is received, the content is
+uncompressed and checked against the digest.
+
+=over 2
+
+B<Arguments>:
+
+=over 13
+
+=item digest
+
+A string containing the SHA-256 digest of the uncompressed content.
+
+=item offset
+
+The offset of the chunk in the gzipped content.
+
+=item total
+
+The total length of the gzipped content.
+
+=item chunk
+
+The chunk of gzipped content.
+
+=back
+
+B<Returns>:
+
+Returns true if the chunk was stored and false otherwise.
+
+=back
+
+=begin testing
+
+  use Inca::ReporterManager::ReporterCache;
+  use Digest::SHA;
+  use IO::Compress::Gzip qw(gzip);
+
+  `rm -fr var/cache`;
+  my $rc = new Inca::ReporterManager::ReporterCache( "var/cache" );
+  my $content = "some package content\n" x 100;
+  my $digest = Digest::SHA::sha256_hex( $content );
+  my $gz;
+  gzip( \$content => \$gz );
+  my $half = int( length($gz) / 2 );
+  ok( ! defined $rc->getContentPath($digest), "content not present" );
+  is( $rc->getContentOffset($digest), 0, "no partial content" );
+  ok( $rc->appendContent($digest, 0, length($gz), substr($gz, 0, $half)),
+      "first chunk stored" );
+  is( $rc->getContentOffset($digest), $half, "partial content kept" );
+  ok( ! $rc->appendContent($digest, 0, length($gz), substr($gz, $half)),
+      "out of order chunk rejected" );
+  ok( $rc->appendContent($digest, $half, length($gz), substr($gz, $half)),
+      "last chunk stored" );
+  my $path = $rc->getContentPath( $digest );
+  ok( defined $path && -f $path, "content present" );
+  is( -s $path, length($content), "content uncompressed" );
+  ok( ! $rc->appendContent("0" x 64, 0, length($gz), $gz), "bad digest" );
+  is( $rc->getContentOffset("0" x 64), 0, "bad content removed" );
+  `rm -fr var/cache`;
+
+=end testing
+
+=cut
+
+#-----------------------------------------------------------------------------#
+sub appendContent {
+  my ( $self, $digest, $offset, $total, $chunk ) =
+    validate_pos( @_, $SELF_PARAM_REQ, SCALAR, SCALAR, SCALAR, SCALAR );
+
+  if ( $digest !~ /$DIGEST_PATTERN/ ) {
+    $self->{logger}->error( "Invalid package digest '$digest'" );
+    return 0;
+  }
+  my $partial = $self->_getContentFile( $digest ) . ".part";
+  my $dir = File::Spec->catfile( $self->{location}, $CONTENT_DIR );
+  if ( ! -d $dir && ! mkpath($dir) ) {
+    $self->{logger}->error( "Unable to create content dir $dir: $!" );
+    return 0;
+  }
+  my $size = $self->getContentOffset( $digest );
+  if ( $offset != $size ) {
+    $self->{logger}->error( 
+      "Chunk of $digest at offset $offset does not follow $size bytes received"
+    );
+    return 0;
+  }
+  local *FD;
+  if ( ! open(FD, ">>$partial") ) {
+    $self->{logger}->error( "Unable to open $partial: $!" );
+    return 0;
+  }
+  binmode FD;
+  print FD $chunk;
+  close FD;
+  if ( $offset + length($chunk) < $total ) {
+    return 1;
+  }
+
+  # last chunk so uncompress and verify
+  my $file = $self->_getContentFile( $digest );
+  my $ok = gunzip( $partial => "$file.tmp", BinModeOut => 1 );
+  unlink $partial;
+  if ( ! $ok ) {
+    $self->{logger}->error( "Unable to uncompress $digest: $GunzipError" );
+    unlink "$file.tmp";
+    return 0;
+  }
+  my $sha = Digest::SHA->new( 256 );
+  $sha->addfile( "$file.tmp", "b" );
+  if ( $sha->hexdigest() ne $digest ) {
+    $self->{logger}->error( "Received content does not match $digest" );
+    unlink "$file.tmp";
+    return 0;
+  }
+  if ( ! rename("$file.tmp", $file) ) {
+    $self->{logger}->error( "Unable to rename $file.tmp to $file: $!" );
+    return 0;
+  }
+  $self->{logger}->info( "Received package content $digest" );
+  return 1;
+}
+
+#-----------------------------------------------------------------------------#
+
+=head2 getContentOffset( $digest )
+
+Return the number of bytes of gzipped content received so far for the
+specified digest (see appendContent).
+
+=over 2
+
+B<Arguments>:
+
+=over 13
+
+=item digest
+
+A string containing the SHA-256 digest of the package content.
+
+=back
+
+B<Returns>:
+
+The number of bytes received or 0 if none.
+
+=back
+
+=cut
+
+#-----------------------------------------------------------------------------#
+sub getContentOffset {
+  my ( $self, $digest ) = validate_pos( @_, $SELF_PARAM_REQ, SCALAR );
+
+  return 0 if $digest !~ /$DIGEST_PATTERN/;
+  my $size = -s $self->_getContentFile( $digest ) . ".part";
+  return defined $size ? $size : 0;
+}
+
+#-----------------------------------------------------------------------------#
+
+=head2 getContentPath( $digest )
+
+Return a path to the package content with the specified digest.
+
+=over 2
+
+B<Arguments>:
+
+=over 13
+
+=item digest
+
+A string containing the SHA-256 digest of the package content.
+
+=back
+
+B<Returns>:
+
+A string containing the path to the content or undef if the content has not
+been received.
+
+=back
+
+=cut
+
+#-----------------------------------------------------------------------------#
+sub getContentPath {
+  my ( $self, $digest ) = validate_pos( @_, $SELF_PARAM_REQ, SCALAR );
+
+  return undef if $digest !~ /$DIGEST_PATTERN/;
+  my $file = $self->_getContentFile( $digest );
+  return -f $file ? $file : undef;
+}
+
+#-----------------------------------------------------------------------------#
+
 =head2 getDependencies( $name, $version )
 
 Return the dependencies for the given reporter. 
@@ -335,6 +544,104 @@ sub getPath {
 
 #-----------------------------------------------------------------------------#
 
+=head2 pruneContent( )
+
+Remove package content that is no longer needed from the content store (see
+appendContent).  Content is kept while it is the content of the most
+recently stored version of some package; older versions stay installed, so
+their content is only needed again if the agent sends one of them again, in
+which case it is transferred again.  Partially received content that has
+not been added to for a week is also removed.  Called whenever a package is
+stored.
+
+=over 2
+
+B<Returns>:
+
+The number of content files removed.
+
+=back
+
+=begin testing
+
+  use Inca::ReporterManager::ReporterCache;
+  use Digest::SHA;
+  use IO::Compress::Gzip qw(gzip);
+
+  `rm -fr var/cache`;
+  my $rc = new Inca::ReporterManager::ReporterCache( "var/cache" );
+  my @digests;
+  for my $version ( 1, 2 ) {
+    my $content = "content of version $version\n";
+    my $digest = Digest::SHA::sha256_hex( $content );
+    my $gz;
+    gzip( \$content => \$gz );
+    ok( $rc->appendContent($digest, 0, length($gz), $gz), "content stored" );
+    ok( $rc->storePackage( "pkg", "pkg-$version", $version, "bin", undef,
+                           undef, $rc->getContentPath($digest), $digest ),
+        "package $version stored from content" );
+    push( @digests, $digest );
+  }
+  ok( ! defined $rc->getContentPath($digests[0]), "old content pruned" );
+  ok( defined $rc->getContentPath($digests[1]), "current content kept" );
+  ok( -f "var/cache/bin/pkg-1", "old version still installed" );
+  my $partial = "var/cache/content/" . ("0" x 64) . ".part";
+  `echo partial > $partial`;
+  is( $rc->pruneContent(), 0, "recent partial content kept" );
+  utime( 0, 0, $partial );
+  is( $rc->pruneContent(), 1, "stale partial content pruned" );
+  ok( ! -f $partial, "stale partial content removed" );
+  `rm -fr var/cache`;
+
+=end testing
+
+=cut
+
+#-----------------------------------------------------------------------------#
+sub pruneContent {
+  my ( $self ) = validate_pos( @_, $SELF_PARAM_REQ );
+
+  my $dir = File::Spec->catfile( $self->{location}, $CONTENT_DIR );
+  return 0 if ! -d $dir;
+
+  # the catalog lists packages in the order they were stored
+  my %latest;
+  for my $package ( @{$self->{catalog}->{package}} ) {
+    $latest{$package->{name}} = $package->{digest};
+  }
+  my %referenced = map { $_ => 1 } grep { defined $_ } values %latest;
+
+  local *DIR;
+  if ( ! opendir(DIR, $dir) ) {
+    $self->{logger}->error( "Unable to read content dir $dir: $!" );
+    return 0;
+  }
+  my @files = readdir( DIR );
+  closedir DIR;
+  my $removed = 0;
+  for my $file ( @files ) {
+    my $path = File::Spec->catfile( $dir, $file );
+    my ( $digest, $suffix ) = $file =~ /^([0-9a-f]{64})(\.part)?$/;
+    next if ! defined $digest;
+    if ( defined $suffix ) {
+      my $mtime = ( stat($path) )[9];
+      next if ! defined $mtime || time() - $mtime < $PARTIAL_CONTENT_AGE;
+      $self->{logger}->info( "Removing stale partial package content $digest" );
+    } else {
+      next if exists $referenced{$digest};
+      $self->{logger}->info( "Removing unreferenced package content $digest" );
+    }
+    if ( unlink($path) ) {
+      $removed++;
+    } else {
+      $self->{logger}->error( "Unable to remove $path: $!" );
+    }
+  }
+  return $removed;
+}
+
+#-----------------------------------------------------------------------------#
+
 =head2 setErrorReporterPath( $path )
 
 Set the path to the special reporter that the reporter manager will use to
@@ -443,9 +750,11 @@ sub setLocation {
 #-----------------------------------------------------------------------------#
 
 =head2 storePackage( $name, $filename, $version, $installpath, $perms, 
-                     $dependencies, $tmpfilename )
+                     $dependencies, $tmpfilename, $digest )
 
-Store the specified package into the reporter cache.  
+Store the specified package into the reporter cache.  If the package was
+stored from the content store, the digest of its content is recorded so that
+content no package uses any more can be removed (see pruneContent).
 
 =over 2
 
@@ -486,6 +795,11 @@ there are none.
 A string containing the name of a temporary file that is storing the content 
 of the package.
 
+=item digest
+
+An optional string containing the SHA-256 digest of the package content if
+it was received into the content store (see appendContent).
+
 =back
 
 =back
@@ -704,9 +1018,10 @@ FILE
 #-----------------------------------------------------------------------------#
 sub storePackage {
   my ( $self, $name, $filename, $version, $installpath, $perms, $dependencies,
-       $tmpfilename ) =
+       $tmpfilename, $digest ) =
     validate_pos( @_, $SELF_PARAM_REQ, SCALAR, SCALAR, SCALAR, SCALAR,
-    SCALAR | UNDEF, SCALAR | UNDEF, SCALAR );
+    SCALAR | UNDEF, SCALAR | UNDEF, SCALAR,
+    { type => SCALAR | UNDEF, optional => 1 } );
 
   my $package_dir =  File::Spec->catfile( $self->{location}, $installpath );
   if ( !-d $package_dir && !mkpath($package_dir) ) {
@@ -742,9 +1057,13 @@ sub storePackage {
     }
   }
   
-  return $self->_updateCatalog( 
-    $name, $installpath . "/" . $filename, $version, $dependencies
-  );
+  if ( ! $self->_updateCatalog( 
+         $name, $installpath . "/" . $filename, $version, $dependencies,
+         $digest ) ) {
+    return 0;
+  }
+  $self->pruneContent();
+  return 1;
 }
 
 #-----------------------------------------------------------------------------#
@@ -800,6 +1119,26 @@ sub _deleteEntry {
   return 0;
 }
 
+#-----------------------------------------------------------------------------#
+#
+# _getContentFile( $digest )
+#
+# Return the path where the package content with the given digest is stored
+#
+# Arguments:
+#
+# digest A string containing the SHA-256 digest of the package content
+#
+# Returns:
+#
+# A string containing the path to the content file (which may not exist)
+#-----------------------------------------------------------------------------#
+sub _getContentFile {
+  my ( $self, $digest ) = validate_pos( @_, $SELF_PARAM_REQ, SCALAR );
+
+  return File::Spec->catfile( $self->{location}, $CONTENT_DIR, $digest );
+}
+
 #-----------------------------------------------------------------------------#
 #
 # _getEntry( $name, $version )
@@ -956,7 +1295,7 @@ sub _installTarGz {
 }
 
 #-----------------------------------------------------------------------------#
-# _updateCatalog( $name, $relPath, $version, $dependencies )
+# _updateCatalog( $name, $relPath, $version, $dependencies, $digest )
 #
 # Update the repository cache catalog with the following information about
 # a package.
@@ -973,13 +1312,17 @@ sub _installTarGz {
 # dependencies A string containing a whitespace delimited list of dependencies
 #              or undef if there are none.
 #
+# digest    An optional string containing the SHA-256 digest of the package
+#           content if it was stored from the content store.
+#
 # Returns:
 #
 # Returns true if the catalog was successfully update and false otherwise.
 #-----------------------------------------------------------------------------#
 sub _updateCatalog {
-  my ( $self, $name, $relPath, $version, $dependencies ) =
-    validate_pos( @_, $SELF_PARAM_REQ, SCALAR, SCALAR, SCALAR, SCALAR | UNDEF );
+  my ( $self, $name, $relPath, $version, $dependencies, $digest ) =
+    validate_pos( @_, $SELF_PARAM_REQ, SCALAR, SCALAR, SCALAR, SCALAR | UNDEF,
+                  { type => SCALAR | UNDEF, optional => 1 } );
 
   my $package = $self->_getEntry( $name, $version );
   $self->_deleteEntry( $name, $version ) if ( defined $package ); 
@@ -994,6 +1337,7 @@ sub _updateCatalog {
     version => $version,
     %dependenciesAttr
   };
+  $entry->{digest} = $digest if defined $digest;
   push( @{$self->{catalog}->{package}}, $entry );
   eval {
     XMLout(